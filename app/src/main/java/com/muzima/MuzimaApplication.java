@@ -63,11 +63,15 @@ import com.muzima.domain.Credentials;
 import com.muzima.service.FormDuplicateCheckPreferenceService;
 import com.muzima.service.GPSFeaturePreferenceService;
 import com.muzima.service.LocalePreferenceService;
+import com.muzima.service.FormSaveStage;
+import com.muzima.service.MediaDownloadQueue;
+import com.muzima.service.MediaSyncManifest;
 import com.muzima.service.MuzimaGPSLocationService;
 import com.muzima.service.MuzimaLoggerService;
 import com.muzima.service.MuzimaSyncService;
 import com.muzima.service.RealTimeFormDataSyncPreferenceService;
 import com.muzima.service.SntpService;
+import com.muzima.tasks.MuzimaTaskScheduler;
 import com.muzima.util.Constants;
 import com.muzima.utils.LanguageUtil;
 import com.muzima.utils.StringUtils;
@@ -81,10 +85,7 @@ import java.security.Security;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 
 import io.github.inflationx.calligraphy3.CalligraphyConfig;
@@ -123,12 +124,17 @@ public class MuzimaApplication extends MultiDexApplication {
     private AppUsageLogsController appUsageLogsController;
     private MuzimaTimer muzimaTimer;
     private static final String APP_DIR = "/data/data/com.muzima";
+    // logging out waits at most this long for the buffered log events to be written
+    private static final long LOGOUT_LOG_FLUSH_TIMEOUT_MILLIS = 2000;
     private SntpService sntpService;
     private User authenticatedUser;
     private AppReleaseController appVersionController;
     private MediaController mediaController;
+    private MediaDownloadQueue mediaDownloadQueue;
+    private FormSaveStage formSaveStage;
     private MediaCategoryController mediaCategoryController;
     private ExecutorService executorService;
+    private ExecutorService syncExecutorService;
     private FormDuplicateCheckPreferenceService formDuplicateCheckPreferenceService;
     private RealTimeFormDataSyncPreferenceService realTimeFormDataSyncPreferenceService;
 
@@ -234,7 +240,7 @@ public class MuzimaApplication extends MultiDexApplication {
         if (conceptController == null) {
             try {
                 conceptController = new ConceptController(muzimaContext.getService(ConceptService.class),
-                        muzimaContext.getService(ObservationService.class));
+                        muzimaContext.getService(ObservationService.class), getObservationController());
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -286,7 +292,8 @@ public class MuzimaApplication extends MultiDexApplication {
     public PatientController getPatientController() {
         if (patientController == null) {
             try {
-                patientController = new PatientController(muzimaContext.getPatientService(), muzimaContext.getCohortService(), muzimaContext.getFormService(), muzimaContext.getPatientTagService(), muzimaContext.getObservationService());
+                patientController = new PatientController(muzimaContext.getPatientService(), muzimaContext.getCohortService(), muzimaContext.getFormService(), muzimaContext.getPatientTagService(), muzimaContext.getObservationService(),
+                        getObservationController());
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -301,7 +308,8 @@ public class MuzimaApplication extends MultiDexApplication {
                         muzimaContext.getService(ConceptService.class),
                         muzimaContext.getService(EncounterService.class),
                         muzimaContext.getLastSyncTimeService(),
-                        getSntpService());
+                        getSntpService(),
+                        new File(getFilesDir(), ObservationController.WATERMARK_FILE_NAME));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -454,11 +462,7 @@ public class MuzimaApplication extends MultiDexApplication {
         if (authenticatedUser != null) {
             MuzimaLoggerService.stopLogsSync();
             MuzimaLoggerService.log(this, "USER_LOGOUT", "{}");
-            try {
-                TimeUnit.MILLISECONDS.sleep(100);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-            }
+            MuzimaLoggerService.flushLogs(LOGOUT_LOG_FLUSH_TIMEOUT_MILLIS);
         }
         saveBeforeExit();
 
@@ -486,6 +490,7 @@ public class MuzimaApplication extends MultiDexApplication {
                 Log.e(getClass().getSimpleName(),"Could not delete observations",e);
             }
         }
+        getObservationController().clearObservationsDownloaded();
 
         try {
             List<Encounter> encounters = getEncounterController().getAllEncounters();
@@ -521,6 +526,7 @@ public class MuzimaApplication extends MultiDexApplication {
         } catch (IOException e) {
             Log.e(getClass().getSimpleName(),"Could not delete patients",e);
         }
+        getPatientController().clearPatientListIndex();
 
         try {
             getRelationshipController().deleteAllRelationships();
@@ -624,15 +630,28 @@ public class MuzimaApplication extends MultiDexApplication {
         return minimumSupportedAppVersionController;
     }
 
+    /**
+     * @return an executor for the loaders behind the screens, on the UI query lane of the {@link MuzimaTaskScheduler}
+     */
     public ExecutorService getExecutorService() {
         if (executorService == null) {
-            return new ThreadPoolExecutor(
-                    20, 20, 3000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(128)
-            );
+            executorService = MuzimaTaskScheduler.getInstance().getExecutorService(MuzimaTaskScheduler.Lane.UI_QUERY,
+                    MuzimaTaskScheduler.Priority.USER_VISIBLE, "ScreenLoader");
         }
         return executorService;
     }
 
+    /**
+     * @return an executor for downloads the user waits on, on the sync lane of the {@link MuzimaTaskScheduler}
+     */
+    public ExecutorService getSyncExecutorService() {
+        if (syncExecutorService == null) {
+            syncExecutorService = MuzimaTaskScheduler.getInstance().getExecutorService(MuzimaTaskScheduler.Lane.SYNC_IO,
+                    MuzimaTaskScheduler.Priority.USER_VISIBLE, "UserDownload");
+        }
+        return syncExecutorService;
+    }
+
     public FCMTokenController getFCMTokenController() {
         if (fcmTokenController == null) {
             try {
@@ -700,6 +719,21 @@ public class MuzimaApplication extends MultiDexApplication {
         return mediaController;
     }
 
+    public synchronized MediaDownloadQueue getMediaDownloadQueue() {
+        if (mediaDownloadQueue == null) {
+            mediaDownloadQueue = new MediaDownloadQueue(this,
+                    new MediaSyncManifest(new File(getFilesDir(), MediaDownloadQueue.MANIFEST_FILE_NAME)));
+        }
+        return mediaDownloadQueue;
+    }
+
+    public synchronized FormSaveStage getFormSaveStage() {
+        if (formSaveStage == null) {
+            formSaveStage = new FormSaveStage(this, new File(getFilesDir(), FormSaveStage.JOURNAL_FILE_NAME));
+        }
+        return formSaveStage;
+    }
+
     public String getApplicationVersion() {
         String versionText = "";
         String versionCode = "";
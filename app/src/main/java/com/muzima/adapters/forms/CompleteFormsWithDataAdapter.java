@@ -54,7 +54,7 @@ public class CompleteFormsWithDataAdapter extends FormsWithDataAdapter<CompleteF
             if (adapterWeakReference.get() != null) {
                 try {
                     FormsAdapter formsAdapter = adapterWeakReference.get();
-                    completeForms = formsAdapter.getFormController().getAllCompleteFormsWithPatientData(formsAdapter.getContext(),filterPatientUuid);
+                    completeForms = formsAdapter.getFormController().getAllCompleteFormsWithPatientData(formsAdapter.getContext(),filterPatientUuid, this::publishProgress);
                     Log.i(getClass().getSimpleName(), "#Complete forms: " + completeForms.size());
                 } catch (FormController.FormFetchException e) {
                     Log.w(getClass().getSimpleName(), "Exception occurred while fetching local forms ", e);
@@ -70,7 +70,10 @@ public class CompleteFormsWithDataAdapter extends FormsWithDataAdapter<CompleteF
                 // Forms have to be displayed in sorted fashion by Patient. And forms' don't have a direct relationship with patient.
                 FormsWithDataAdapter formsAdapter = (FormsWithDataAdapter) adapterWeakReference.get();
                 if (forms != null && !forms.isEmpty()) {
-                    formsAdapter.sortFormsByPatientName(forms);
+                    // rows arrive sorted by patient, page by page, while they are loaded
+                    if (!isPageShown()) {
+                        formsAdapter.sortFormsByPatientName(forms);
+                    }
                     notifyListener();
                 } else {
                     formsAdapter.clear();
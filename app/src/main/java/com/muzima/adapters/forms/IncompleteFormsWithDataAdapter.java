@@ -51,7 +51,7 @@ public class IncompleteFormsWithDataAdapter extends FormsWithDataAdapter<Incompl
             if (adapterWeakReference.get() != null) {
                 try {
                     FormsAdapter formsAdapter = adapterWeakReference.get();
-                    incompleteForms = formsAdapter.getFormController().getAllIncompleteFormsWithPatientData(filterPatientUuid);
+                    incompleteForms = formsAdapter.getFormController().getAllIncompleteFormsWithPatientData(filterPatientUuid, this::publishProgress);
                     Log.i(getClass().getSimpleName(), "#Incomplete forms: " + incompleteForms.size());
                 } catch (FormController.FormFetchException e) {
                     Log.w(getClass().getSimpleName(), "Exception occurred while fetching local forms ", e);
@@ -65,7 +65,10 @@ public class IncompleteFormsWithDataAdapter extends FormsWithDataAdapter<Incompl
             if (adapterWeakReference.get() != null) {
                 FormsWithDataAdapter formsAdapter = (FormsWithDataAdapter) adapterWeakReference.get();
                 if (forms != null && !forms.isEmpty()) {
-                    formsAdapter.sortFormsByPatientName(forms);
+                    // rows arrive sorted by patient, page by page, while they are loaded
+                    if (!isPageShown()) {
+                        formsAdapter.sortFormsByPatientName(forms);
+                    }
                     notifyListener();
                 } else {
                     formsAdapter.clear();
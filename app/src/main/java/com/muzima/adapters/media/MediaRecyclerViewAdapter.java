@@ -31,6 +31,7 @@ import com.muzima.R;
 import com.muzima.api.model.Media;
 import com.muzima.api.model.MediaCategory;
 import com.muzima.controller.MediaController;
+import com.muzima.utils.MediaUtils;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -122,20 +123,7 @@ public class MediaRecyclerViewAdapter extends RecyclerView.Adapter<MediaRecycler
     private void startMediaDisplayActivity(Media media) {
         String mimeType = media.getMimeType();
         String PATH = Objects.requireNonNull(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)).getAbsolutePath();
-        File file = new File(PATH + "/" + media.getName() + "." + mimeType.substring(mimeType.lastIndexOf("/") + 1));
-        if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.ms-excel")){
-            file = new File(PATH + "/"+media.getName()+".xls");
-        }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.spreadsheetml.sheet")){
-            file = new File(PATH + "/"+media.getName()+".xlsx");
-        }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("msword")){
-            file = new File(PATH + "/"+media.getName()+".doc");
-        }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.wordprocessingml.document")){
-            file = new File(PATH + "/"+media.getName()+".docx");
-        }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.ms-powerpoint")){
-            file = new File(PATH + "/"+media.getName()+".ppt");
-        }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.presentationml.presentation")){
-            file = new File(PATH + "/"+media.getName()+".pptx");
-        }
+        File file = new File(PATH + "/" + MediaUtils.getMediaFileName(media.getName(), mimeType));
         if(!file.exists()){
             Toast.makeText(context, context.getString(R.string.info_no_media_not_available), Toast.LENGTH_LONG).show();
         } else {
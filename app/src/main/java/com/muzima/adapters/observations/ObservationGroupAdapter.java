@@ -27,73 +27,39 @@ import com.muzima.controller.ObservationController;
 import com.muzima.controller.SetupConfigurationController;
 import com.muzima.model.ObsData;
 import com.muzima.model.ObsGroups;
+import com.muzima.model.observation.PatientObservationMatrix;
+import com.muzima.tasks.MuzimaAsyncTask;
 import com.muzima.util.JsonUtils;
 import com.muzima.utils.StringUtils;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class ObservationGroupAdapter extends BaseTableAdapter {
 
-    private final ObsGroups obsGroup[];
-    List<Concept> concepts = new ArrayList<>();
-    List<Concept> conceptWithObservations = new ArrayList<>();
+    private static volatile TableModel cachedTableModel;
+
+    private ObsGroups obsGroup[] = new ObsGroups[0];
+    private int conceptRowCount;
     private final LayoutInflater layoutInflater;
     private final String patientUuid;
     private final ConceptController conceptController;
     private final ObservationController observationController;
     boolean isGroupingEnabled;
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy");
-    private List<String> h;
-    private String headers[];
-    List<ObsGroups> obsGroups = new ArrayList<>();
-    List<String> groups = new ArrayList<>();
+    private String headers[] = {""};
     MuzimaApplication app;
     private  Context context;
     private boolean shouldReplaceProviderIdWithNames;
-    Map<String, Integer> map = new LinkedHashMap<>( );
     Map<String, String> conceptUnits = new LinkedHashMap<>( );
-    Map<String, String> conceptGroupMap = new LinkedHashMap<>();
-    Map<String, List<Observation>> conceptsObservations = new LinkedHashMap<>();
     private final String applicationLanguage;
 
-
-    public List<String> getHeaders() {
-        List<String> dates = new ArrayList();
-        dates.add("");
-        try {
-            List<Observation> observations = observationController.getObservationsByPatient(patientUuid);
-            Collections.sort(observations, obsDateTimeComparator);
-            for (Observation observation : observations) {
-                if (observation.getObservationDatetime() != null) {
-                    String formattedDate = dateFormat.format(observation.getObservationDatetime());
-                    if(dates == null){
-                        dates.add(formattedDate);
-                    } else if(!dates.contains(formattedDate)){
-                        dates.add(formattedDate);
-                    }
-                }
-            }
-        } catch (ObservationController.LoadObservationException e) {
-            Log.w("Observations", String.format("Exception while loading observations for %s."), e);
-        }
-        return dates;
-    }
-
-    private final Comparator<Observation> obsDateTimeComparator = (lhs, rhs) -> {
-        if (lhs.getObservationDatetime()==null)
-            return -1;
-        if (rhs.getObservationDatetime()==null)
-            return 1;
-        return -(lhs.getObservationDatetime()
-                .compareTo(rhs.getObservationDatetime()));
-    };
-
     private final float density;
 
     public ObservationGroupAdapter(Context context, String patientUuid) {
@@ -107,42 +73,71 @@ public class ObservationGroupAdapter extends BaseTableAdapter {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
         this.applicationLanguage = preferences.getString(context.getResources().getString(R.string.preference_app_language), context.getResources().getString(R.string.language_english));
 
-        h = getHeaders();
-        headers = h.toArray(new String[0]);
+        density = context.getResources().getDisplayMetrics().density;
+        new BackgroundQueryTask().execute();
+    }
 
-        List<String> conceptUuids = new ArrayList<>();
-        List<Object> objects = null;
+    private void setTableModel(TableModel tableModel) {
+        headers = tableModel.headers;
+        obsGroup = tableModel.obsGroups;
+        conceptRowCount = tableModel.conceptRowCount;
+        conceptUnits = tableModel.conceptUnits;
+        isGroupingEnabled = tableModel.isGroupingEnabled;
+        notifyDataSetChanged();
+    }
 
-        String json = "";
-        try {
-            SetupConfigurationTemplate activeSetupConfig = app.getSetupConfigurationController().getActiveSetupConfigurationTemplate();
-            json = activeSetupConfig.getConfigJson();
+    /**
+     * Builds the table from the observation matrix of the patient, reusing the table last built
+     * as long as the matrix, the language and the setup configuration are the same.
+     */
+    private TableModel getTableModel() throws ObservationController.LoadObservationException,
+            SetupConfigurationController.SetupConfigurationFetchException {
+        PatientObservationMatrix matrix = observationController.getObservationMatrix(patientUuid);
+        SetupConfigurationTemplate activeSetupConfig = app.getSetupConfigurationController().getActiveSetupConfigurationTemplate();
+        String configJson = activeSetupConfig.getConfigJson();
+        TableModel tableModel = cachedTableModel;
+        if (tableModel == null || !tableModel.isBuiltFrom(matrix, configJson, applicationLanguage, shouldReplaceProviderIdWithNames)) {
+            tableModel = buildTableModel(matrix, configJson);
+            cachedTableModel = tableModel;
+        }
+        return tableModel;
+    }
+
+    private TableModel buildTableModel(PatientObservationMatrix matrix, String configJson) {
+        TableModel tableModel = new TableModel(matrix, configJson, applicationLanguage, shouldReplaceProviderIdWithNames);
+        String[] headers = new String[matrix.getColumnCount() + 1];
+        headers[0] = "";
+        for (int column = 0; column < matrix.getColumnCount(); column++) {
+            headers[column + 1] = dateFormat.format(matrix.getColumnDate(column));
+        }
+        tableModel.headers = headers;
 
-            isGroupingEnabled = JsonUtils.readAsBoolean(json, "$['config']['requireConceptGroups']");
-            if(isGroupingEnabled) {
-                objects = JsonUtils.readAsObjectList(json, "$['config']['configConceptGroups']");
+        List<String> groups = new ArrayList<>();
+        List<ObsGroups> obsGroups = new ArrayList<>();
+        Set<String> conceptUuids = new HashSet<>();
+        Map<String, Concept> conceptsWithObservations = new LinkedHashMap<>();
+        Map<String, String> conceptGroupMap = new HashMap<>();
+        try {
+            tableModel.isGroupingEnabled = JsonUtils.readAsBoolean(configJson, "$['config']['requireConceptGroups']");
+            if (tableModel.isGroupingEnabled) {
+                List<Object> objects = JsonUtils.readAsObjectList(configJson, "$['config']['configConceptGroups']");
                 if (objects != null) {
                     for (Object object : objects) {
                         net.minidev.json.JSONObject configConceptGroups = (net.minidev.json.JSONObject) object;
-
-                        net.minidev.json.JSONObject jsonObject = configConceptGroups;
                         List<Object> concepts = JsonUtils.readAsObjectList(configConceptGroups.toJSONString(), "concepts");
-                        Object group = jsonObject.get("name");
+                        String group = configConceptGroups.get("name").toString();
                         for (Object concept : concepts) {
-                            net.minidev.json.JSONObject concept1 = (net.minidev.json.JSONObject) concept;
-                            String conceptUuid = concept1.get("uuid").toString();
+                            String conceptUuid = ((net.minidev.json.JSONObject) concept).get("uuid").toString();
                             conceptUuids.add(conceptUuid);
-
-                            Concept cpt = conceptController.getConceptByUuid(conceptUuid);
-                            if (cpt != null) {
-                                List<Observation> observations = observationController.getObservationsByPatientuuidAndConceptId(patientUuid, cpt.getId());
-                                if (observations.size() > 0) {
-                                    if(!groups.contains(group.toString())) {
-                                        obsGroups.add(new ObsGroups(group.toString()));
-                                        groups.add(group.toString());
+                            if (matrix.hasObservations(conceptUuid)) {
+                                Concept cpt = conceptController.getConceptByUuid(conceptUuid);
+                                if (cpt != null) {
+                                    if (!groups.contains(group)) {
+                                        obsGroups.add(new ObsGroups(group));
+                                        groups.add(group);
                                     }
-                                    conceptsObservations.put(conceptUuid,observations);
-                                    conceptGroupMap.put(conceptUuid,group.toString());
+                                    conceptsWithObservations.put(conceptUuid, cpt);
+                                    conceptGroupMap.put(conceptUuid, group);
                                 }
                             }
                         }
@@ -150,109 +145,67 @@ public class ObservationGroupAdapter extends BaseTableAdapter {
                 }
             }
 
-            concepts = conceptController.getConcepts();
-            boolean isOtherGroupAdded = false;
-            for(Concept concept : concepts){
-                if(!conceptUuids.contains(concept.getUuid())){
-                    if(!isOtherGroupAdded){
-                        if (concept != null) {
-                            List<Observation> observations = observationController.getObservationsByPatientuuidAndConceptId(patientUuid, concept.getId());
-                            if (observations.size() > 0) {
-                                if(!groups.contains(app.getString(R.string.general_other))) {
-                                    obsGroups.add(new ObsGroups(app.getString(R.string.general_other)));
-                                    groups.add(app.getString(R.string.general_other));
-                                }
-                                conceptGroupMap.put(concept.getUuid(),app.getString(R.string.general_other));
-                                conceptsObservations.put(concept.getUuid(),observations);
-                            }
-
-                        }
+            String otherGroup = app.getString(R.string.general_other);
+            for (Concept concept : conceptController.getConcepts()) {
+                if (concept != null && !conceptUuids.contains(concept.getUuid()) && matrix.hasObservations(concept.getUuid())) {
+                    if (!groups.contains(otherGroup)) {
+                        obsGroups.add(new ObsGroups(otherGroup));
+                        groups.add(otherGroup);
                     }
+                    conceptGroupMap.put(concept.getUuid(), otherGroup);
+                    conceptsWithObservations.put(concept.getUuid(), concept);
                 }
             }
-        } catch (ConceptController.ConceptFetchException | ObservationController.LoadObservationException | SetupConfigurationController.SetupConfigurationFetchException e) {
+        } catch (ConceptController.ConceptFetchException e) {
             Log.e(getClass().getSimpleName(),"Exception encountered while loading Observations or fetching concepts ",e);
         }
 
-        obsGroup = obsGroups.toArray(new ObsGroups[0]);
-
-        density = context.getResources().getDisplayMetrics().density;
-        getObservationByConcept();
+        Map<String, String> providerNames = new HashMap<>();
+        for (Map.Entry<String, Concept> pair : conceptsWithObservations.entrySet()) {
+            Concept concept = pair.getValue();
+            String conceptName = getConceptNameFromConceptNamesByLocale(concept.getConceptNames(), applicationLanguage);
+            Observation[] observations = matrix.getRow(pair.getKey());
+            String[] conceptRow = new String[observations.length + 1];
+            conceptRow[0] = conceptName;
+            for (int column = 0; column < observations.length; column++) {
+                String value = observations[column] == null ? null : getValue(concept, observations[column], providerNames);
+                conceptRow[column + 1] = StringUtils.isEmpty(value) ? "" : value;
+            }
+            tableModel.conceptUnits.put(conceptName, StringUtils.isEmpty(concept.getUnit()) ? "" : concept.getUnit());
+            obsGroups.get(groups.indexOf(conceptGroupMap.get(pair.getKey()))).list.add(new ObsData(conceptRow));
+            tableModel.conceptRowCount++;
+        }
+        tableModel.obsGroups = obsGroups.toArray(new ObsGroups[0]);
+        return tableModel;
     }
 
-
-    public void getObservationByConcept(){
-        try {
-            List<String> conceptUuids = new ArrayList<>();
-
-            for (Map.Entry<String,List<Observation>> pair : conceptsObservations.entrySet()){
-                Concept concept = conceptController.getConceptByUuid(pair.getKey());
-                conceptUuids.add(pair.getKey());
-                if (concept != null) {
-                    List<String> conceptRow = new ArrayList<>();
-                    List<Observation> observations = pair.getValue();
-                    if (observations.size() > 0) {
-                        conceptWithObservations.add(concept);
-                        for (String dateString : h) {
-                            if (dateString.isEmpty()) {
-                                conceptRow.add(getConceptNameFromConceptNamesByLocale(concept.getConceptNames(), applicationLanguage));
-                            } else {
-                                String value = "";
-                                for (Observation observation : observations) {
-                                    if (dateString.equals(dateFormat.format(observation.getObservationDatetime()))) {
-                                        if (shouldReplaceProviderIdWithNames && observation.getConcept().getId() == HEALTHWORKER_ASSIGNMENT_CONCEPT_ID) {
-                                            Provider provider = app.getProviderController().getProviderBySystemId(observation.getValueText());
-                                            if (provider != null) {
-                                                value = provider.getName();
-                                            } else {
-                                                value = observation.getValueText();
-                                            }
-                                        } else {
-                                            if (concept.isNumeric()) {
-                                                value = String.valueOf(observation.getValueNumeric());
-                                            } else if (concept.isCoded()) {
-                                                value = getConceptNameFromConceptNamesByLocale(observation.getValueCoded().getConceptNames(), applicationLanguage);
-                                            } else if (concept.isDatetime()) {
-                                                if(observation.getValueDatetime() != null)
-                                                    value = dateFormat.format(observation.getValueDatetime());
-                                            } else {
-                                                value = observation.getValueText();
-                                            }
-                                        }
-                                    }
-                                }
-                                if (!StringUtils.isEmpty(value)) {
-                                    conceptRow.add(value);
-                                } else {
-                                    conceptRow.add("");
-                                }
-                            }
-                        }
-                        String units = "";
-                        if(!StringUtils.isEmpty(concept.getUnit())){
-                            units = concept.getUnit();
-                        }
-
-                        map.put(getConceptNameFromConceptNamesByLocale(concept.getConceptNames(), applicationLanguage), groups.indexOf(conceptGroupMap.get(pair.getKey())));
-                        conceptUnits.put(getConceptNameFromConceptNamesByLocale(concept.getConceptNames(), applicationLanguage), units);
-                        obsGroup[groups.indexOf(conceptGroupMap.get(pair.getKey()))].list.add(new ObsData(conceptRow.toArray(new String[0])));
-                    }
-                }
-
+    private String getValue(Concept concept, Observation observation, Map<String, String> providerNames) {
+        if (shouldReplaceProviderIdWithNames && concept.getId() == HEALTHWORKER_ASSIGNMENT_CONCEPT_ID) {
+            String systemId = observation.getValueText();
+            if (!providerNames.containsKey(systemId)) {
+                Provider provider = app.getProviderController().getProviderBySystemId(systemId);
+                providerNames.put(systemId, provider != null ? provider.getName() : systemId);
             }
-        } catch (ConceptController.ConceptFetchException e) {
-            Log.e(getClass().getSimpleName(),"Exception encountered while fetching concepts ",e);
+            return providerNames.get(systemId);
+        } else if (concept.isNumeric()) {
+            return String.valueOf(observation.getValueNumeric());
+        } else if (concept.isCoded()) {
+            return getConceptNameFromConceptNamesByLocale(observation.getValueCoded().getConceptNames(), applicationLanguage);
+        } else if (concept.isDatetime()) {
+            return observation.getValueDatetime() == null ? "" : dateFormat.format(observation.getValueDatetime());
+        } else {
+            return observation.getValueText();
         }
     }
 
     @Override
     public int getRowCount() {
-        return conceptWithObservations.size()+obsGroup.length;
+        return conceptRowCount+obsGroup.length;
     }
 
     @Override
     public int getColumnCount() {
-        return h.size()-1;
+        return headers.length-1;
     }
 
     @Override
@@ -389,7 +342,7 @@ public class ObservationGroupAdapter extends BaseTableAdapter {
     public int getHeight(int row) {
         final int height;
         if (row == -1) {
-            if(conceptWithObservations.size() == 0)
+            if(conceptRowCount == 0)
                 height = 0;
             else
                 height = 40;
@@ -454,4 +407,57 @@ public class ObservationGroupAdapter extends BaseTableAdapter {
     public int getViewTypeCount() {
         return 5;
     }
+
+    private class BackgroundQueryTask extends MuzimaAsyncTask<Void, Void, TableModel> {
+
+        @Override
+        protected void onPreExecute() {}
+
+        @Override
+        protected TableModel doInBackground(Void... voids) {
+            try {
+                return getTableModel();
+            } catch (ObservationController.LoadObservationException | SetupConfigurationController.SetupConfigurationFetchException e) {
+                Log.e(getClass().getSimpleName(),"Exception encountered while loading Observations or fetching concepts ",e);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(TableModel tableModel) {
+            if (tableModel != null) {
+                setTableModel(tableModel);
+            }
+        }
+
+        @Override
+        protected void onBackgroundError(Exception e) {
+            Log.e(getClass().getSimpleName(),"Exception encountered while building the observation table ",e);
+        }
+    }
+
+    private static class TableModel {
+        private final PatientObservationMatrix matrix;
+        private final String configJson;
+        private final String language;
+        private final boolean shouldReplaceProviderIdWithNames;
+        private String[] headers;
+        private ObsGroups[] obsGroups;
+        private int conceptRowCount;
+        private final Map<String, String> conceptUnits = new HashMap<>();
+        private boolean isGroupingEnabled;
+
+        TableModel(PatientObservationMatrix matrix, String configJson, String language, boolean shouldReplaceProviderIdWithNames) {
+            this.matrix = matrix;
+            this.configJson = configJson;
+            this.language = language;
+            this.shouldReplaceProviderIdWithNames = shouldReplaceProviderIdWithNames;
+        }
+
+        boolean isBuiltFrom(PatientObservationMatrix matrix, String configJson, String language, boolean shouldReplaceProviderIdWithNames) {
+            return this.matrix == matrix && StringUtils.equals(this.configJson, configJson)
+                    && StringUtils.equals(this.language, language)
+                    && this.shouldReplaceProviderIdWithNames == shouldReplaceProviderIdWithNames;
+        }
+    }
 }
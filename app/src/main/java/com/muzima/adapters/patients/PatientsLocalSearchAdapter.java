@@ -20,6 +20,7 @@ import com.muzima.utils.Constants;
 import com.muzima.utils.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class PatientsLocalSearchAdapter extends PatientAdapterHelper implements MuzimaAsyncTask.OnProgressListener {
@@ -97,91 +98,34 @@ public class PatientsLocalSearchAdapter extends PatientAdapterHelper implements
 
         @Override
         protected List<Patient> doInBackground(String... params) {
-            List<Patient> patients = null;
-            List<Patient> filteredPatients = null;
-
             if (isSearch(params)) {
                 try {
-                    if(cohortUuids.size() == 1)
-                        return patientController.searchPatientLocally(params[0], cohortUuids.get(0));
-                    else
-                        return patientController.searchPatientLocally(params[0],null);
+                    List<String> searchCohortUuids = cohortUuids.size() == 1
+                            ? Collections.singletonList(cohortUuids.get(0)) : Collections.<String>emptyList();
+                    List<Patient> patients = new ArrayList<>();
+                    List<Patient> page;
+                    int pageNumber = 1;
+                    do {
+                        page = patientController.searchPatientsForList(params[0], searchCohortUuids, pageNumber++,
+                                Constants.PATIENT_LOAD_PAGE_SIZE, this::isCancelled);
+                        if (!page.isEmpty() && !isCancelled()) {
+                            patients.addAll(page);
+                            publishProgress(page);
+                        }
+                    } while (page.size() == Constants.PATIENT_LOAD_PAGE_SIZE && !isCancelled());
+                    return patients;
                 } catch (PatientController.PatientLoadException e) {
                     Log.w(getClass().getSimpleName(), String.format("Exception occurred while searching patients for %s search string." , params[0]), e);
                 }
             }
 
             try {
-                int pageSize = Constants.PATIENT_LOAD_PAGE_SIZE;
-                if (!cohortUuids.isEmpty()) {
-                    for(String cohortUuid :cohortUuids) {
-                        int patientCount = patientController.countPatients(cohortUuid);
-                        List<Patient> temp = null;
-
-                        if (patientCount <= pageSize) {
-                            temp = patientController.getPatients(cohortUuid);
-                            if(patients == null)
-                                patients = temp;
-                            else
-                                patients.addAll(temp);
-                            publishProgress(temp);
-                        } else {
-                            int pages = new Double(Math.ceil((float) patientCount / pageSize)).intValue();
-
-                            for (int page = 1; page <= pages; page++) {
-                                if (!isCancelled()) {
-                                    if (patients == null) {
-                                        patients = patientController.getPatients(cohortUuid, page, pageSize);
-                                        if (patients != null) {
-                                            publishProgress(patients);
-                                        }
-                                    } else {
-                                        temp = patientController.getPatients(cohortUuid, page, pageSize);
-                                        if (temp != null) {
-                                            patients.addAll(temp);
-                                            publishProgress(temp);
-                                        }
-                                    }
-                                } else {
-                                    break;
-                                }
-                            }
-                        }
-                    }
-
-                } else {
-                    int patientCount = patientController.countAllPatients();
-                    if(patientCount <= pageSize){
-                        patients = patientController.getAllPatients();
-                    } else {
-                        int pages = new Double(Math.ceil((float)patientCount / pageSize)).intValue();
-                        List<Patient> temp = null;
-                        for (int page = 1; page <= pages; page++) {
-                            if(!isCancelled()) {
-                                if (patients == null) {
-                                    patients = patientController.getPatients(page, pageSize);
-                                    if (patients != null) {
-                                        publishProgress(patients);
-                                    }
-                                } else {
-                                    temp = patientController.getPatients(page, pageSize);
-                                    if (temp != null) {
-                                        patients.addAll(temp);
-                                        publishProgress(temp);
-                                    }
-                                }
-                            } else {
-                                break;
-                            }
-                        }
-                    }
-                }
+                List<String> tags = patientController.getSelectedTagUuids();
+                return patientController.getPatientsForList(new ArrayList<>(cohortUuids), tags);
             } catch (PatientController.PatientLoadException e) {
                 Log.e(getClass().getSimpleName(), "Exception occurred while fetching patients", e);
             }
-            List<String> tags = patientController.getSelectedTagUuids();
-            filteredPatients = patientController.filterPatientByTags(patients,tags);
-            return filteredPatients;
+            return null;
         }
 
         private boolean isSearch(String[] params) {
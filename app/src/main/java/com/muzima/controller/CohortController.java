@@ -444,6 +444,7 @@ public class CohortController {
     public void deleteAllCohortMembers(String cohortUuid) throws CohortReplaceException {
         try {
             cohortService.deleteCohortMembers(cohortUuid);
+            invalidatePatientListCohorts();
         } catch (IOException e) {
             throw new CohortReplaceException(e);
         }
@@ -453,6 +454,7 @@ public class CohortController {
     public void addCohortMembers(List<CohortMember> cohortMembers) throws CohortReplaceException {
         try {
             cohortService.saveCohortMembers(cohortMembers);
+            invalidatePatientListCohorts();
         } catch (IOException e) {
             throw new CohortReplaceException(e);
         }
@@ -518,11 +520,19 @@ public class CohortController {
     public void deleteCohortMembers(List<CohortMember> cohortMembers) throws CohortDeleteException {
         try {
             cohortService.deleteCohortMembers(cohortMembers);
+            invalidatePatientListCohorts();
         } catch (IOException e) {
             throw new CohortDeleteException(e);
         }
     }
 
+    private void invalidatePatientListCohorts() {
+        PatientController patientController = muzimaApplication.getPatientController();
+        if (patientController != null) {
+            patientController.invalidatePatientListCohorts();
+        }
+    }
+
     public static class CohortDownloadException extends Throwable {
         public CohortDownloadException(Throwable throwable) {
             super(throwable);
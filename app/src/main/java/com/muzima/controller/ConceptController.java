@@ -14,6 +14,8 @@ import com.muzima.api.model.FormTemplate;
 import com.muzima.api.model.Observation;
 import com.muzima.api.service.ConceptService;
 import com.muzima.api.service.ObservationService;
+import com.muzima.model.ConceptDictionary;
+import com.muzima.tasks.ParallelDownloader;
 import com.muzima.util.JsonUtils;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
@@ -30,10 +32,33 @@ public class ConceptController {
     private List<Concept> newConcepts = new ArrayList<>();
     private final ConceptService conceptService;
     private final ObservationService observationService;
+    private ConceptDictionary conceptDictionary;
+    private final ParallelDownloader<Concept> conceptDownloader;
+    private final ObservationController observationController;
 
     public ConceptController(ConceptService conceptService, ObservationService observationService) {
+        this(conceptService, observationService, null);
+    }
+
+    /**
+     * @param observationController forgets the observation download watermarks of deleted concepts, may be null
+     */
+    public ConceptController(ConceptService conceptService, ObservationService observationService,
+                             ObservationController observationController) {
+        this(conceptService, observationService, new ParallelDownloader<Concept>("ConceptDownload"), observationController);
+    }
+
+    ConceptController(ConceptService conceptService, ObservationService observationService,
+                      ParallelDownloader<Concept> conceptDownloader) {
+        this(conceptService, observationService, conceptDownloader, null);
+    }
+
+    ConceptController(ConceptService conceptService, ObservationService observationService,
+                      ParallelDownloader<Concept> conceptDownloader, ObservationController observationController) {
         this.observationService = observationService;
         this.conceptService = conceptService;
+        this.conceptDownloader = conceptDownloader;
+        this.observationController = observationController;
     }
 
     public List<Concept> downloadConceptsByNamePrefix(String name) throws ConceptDownloadException {
@@ -44,19 +69,13 @@ public class ConceptController {
         }
     }
 
-    private Concept downloadConceptByUuid(String uuid) throws ConceptDownloadException {
-        try {
-            return conceptService.downloadConceptByUuid(uuid);
-        } catch (IOException e) {
-            throw new ConceptDownloadException(e);
-        }
-    }
-
     public void deleteConcept(Concept concept) throws ConceptDeleteException {
         try {
             conceptService.deleteConcept(concept);
+            invalidateConceptDictionary();
             List<Observation> observations = observationService.getObservations(concept);
             observationService.deleteObservations(observations);
+            forgetObservationsDownloaded(Collections.singletonList(concept));
         } catch (IOException e) {
             throw new ConceptDeleteException(e);
         }
@@ -65,18 +84,31 @@ public class ConceptController {
     public void deleteConcepts(List<Concept> concepts) throws ConceptDeleteException {
         try {
             conceptService.deleteConcepts(concepts);
+            invalidateConceptDictionary();
             for(Concept concept : concepts){
                 List<Observation> observations = observationService.getObservations(concept);
                 observationService.deleteObservations(observations);
             }
+            forgetObservationsDownloaded(concepts);
         } catch (IOException e) {
             throw new ConceptDeleteException(e);
         }
     }
 
+    private void forgetObservationsDownloaded(List<Concept> concepts) {
+        if (observationController != null) {
+            List<String> conceptUuids = new ArrayList<>();
+            for (Concept concept : concepts) {
+                conceptUuids.add(concept.getUuid());
+            }
+            observationController.forgetConceptsDownloaded(conceptUuids);
+        }
+    }
+
     public void saveConcepts(List<Concept> concepts) throws ConceptSaveException {
         try {
             conceptService.saveConcepts(concepts);
+            invalidateConceptDictionary();
         } catch (IOException e) {
             throw new ConceptSaveException(e);
         }
@@ -128,11 +160,17 @@ public class ConceptController {
         return new ArrayList<>(result);
     }
 
+    /**
+     * Downloads the concepts a few at a time in parallel
+     */
     public List<Concept> downloadConceptsByUuid(String[] uuids) throws ConceptDownloadException {
         HashSet<Concept> result = new HashSet<>();
-        for (String uuid : uuids) {
-            Concept concept = downloadConceptByUuid(uuid);
-            if(concept != null) result.add(concept);
+        try {
+            for (Concept concept : conceptDownloader.download(uuids, conceptService::downloadConceptByUuid)) {
+                if(concept != null) result.add(concept);
+            }
+        } catch (IOException e) {
+            throw new ConceptDownloadException(e);
         }
         return new ArrayList<>(result);
     }
@@ -155,6 +193,24 @@ public class ConceptController {
         }
     }
 
+    /**
+     * @return the concepts on the device keyed by uuid and id, kept until concepts are saved or deleted
+     */
+    public synchronized ConceptDictionary getConceptDictionary() throws ConceptFetchException {
+        if (conceptDictionary == null) {
+            try {
+                conceptDictionary = new ConceptDictionary(conceptService.getAllConcepts());
+            } catch (IOException e) {
+                throw new ConceptFetchException(e);
+            }
+        }
+        return conceptDictionary;
+    }
+
+    private synchronized void invalidateConceptDictionary() {
+        conceptDictionary = null;
+    }
+
     public void newConcepts(List<Concept> concepts) throws ConceptFetchException {
         newConcepts = concepts;
         List<Concept> savedConcepts = getConcepts();
@@ -169,6 +225,10 @@ public class ConceptController {
         return newConcepts;
     }
 
+    /**
+     * @return the concepts used by the form templates, downloaded from the server also when they are
+     * on the device already so that changes made on the server arrive
+     */
     public List<Concept> getRelatedConcepts(List<FormTemplate> formTemplates) throws ConceptDownloadException {
         HashSet<String> uuids = new HashSet<>();
         for (FormTemplate formTemplate : formTemplates) {
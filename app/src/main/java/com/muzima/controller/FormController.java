@@ -13,6 +13,9 @@ package com.muzima.controller;
 import android.content.Context;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.muzima.MuzimaApplication;
 import com.muzima.api.model.APIName;
 import com.muzima.api.model.Encounter;
@@ -36,6 +39,8 @@ import com.muzima.api.service.PersonService;
 import com.muzima.api.service.SetupConfigurationService;
 import com.muzima.model.AvailableForm;
 import com.muzima.model.CompleteFormWithPatientData;
+import com.muzima.model.FormWithData;
+import com.muzima.model.IncompleteFormWithPatientData;
 import com.muzima.model.builders.AvailableFormBuilder;
 import com.muzima.model.builders.CompleteFormBuilder;
 import com.muzima.model.builders.CompleteFormWithPatientDataBuilder;
@@ -48,32 +53,40 @@ import com.muzima.model.collections.CompleteFormsWithPatientData;
 import com.muzima.model.collections.DownloadedForms;
 import com.muzima.model.collections.IncompleteForms;
 import com.muzima.model.collections.IncompleteFormsWithPatientData;
+import com.muzima.service.FormDataDuplicateIndex;
 import com.muzima.service.MuzimaLoggerService;
 import com.muzima.service.SntpService;
+import com.muzima.tasks.FormUploadEngine;
+import com.muzima.tasks.ParallelDownloader;
 import com.muzima.util.JsonUtils;
 import com.muzima.utils.Constants;
 import com.muzima.utils.CustomColor;
-import com.muzima.utils.EnDeCrypt;
+import com.muzima.utils.JsonMediaPathRewriter;
 import com.muzima.utils.MediaUtils;
+import com.muzima.utils.PatientComparator;
 import com.muzima.utils.PersonRegistrationUtils;
 import com.muzima.utils.StringUtils;
 import com.muzima.view.forms.GenericPatientRegistrationJSONMapper;
 import com.muzima.view.forms.HTMLPatientJSONMapper;
 import com.muzima.view.forms.PatientJSONMapper;
-import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
 import net.minidev.json.parser.JSONParser;
 import net.minidev.json.parser.ParseException;
 import org.json.JSONException;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.muzima.utils.Constants.FORM_DISCRIMINATOR_REGISTRATION;
 import static com.muzima.utils.Constants.FORM_JSON_DISCRIMINATOR_CONSULTATION;
@@ -88,6 +101,42 @@ import static com.muzima.utils.Constants.STATUS_UPLOADED;
 
 public class FormController {
 
+    private static final String MEDIA_ENCRYPTION_KEY = "this-is-supposed-to-be-a-secure-key";
+    private static final int FORMS_WITH_PATIENT_DATA_PAGE_SIZE = 50;
+    private static final String DUPLICATE_INDEX_FILE_NAME = "FormDataDuplicateIndex.txt";
+    // above this many distinct form uuids a single bulk query is cheaper than one lookup per uuid
+    private static final int BULK_LOOKUP_THRESHOLD = 20;
+    // the forms of a patient are uploaded in this order, other forms are not uploaded
+    private static final List<String> FORM_UPLOAD_ORDER = Arrays.asList(
+            FORM_DISCRIMINATOR_REGISTRATION,
+            Constants.FORM_JSON_DISCRIMINATOR_INDIVIDUAL_OBS,
+            Constants.FORM_JSON_DISCRIMINATOR_RELATIONSHIP,
+            FORM_JSON_DISCRIMINATOR_REGISTRATION,
+            FORM_JSON_DISCRIMINATOR_SHR_REGISTRATION,
+            FORM_JSON_DISCRIMINATOR_GENERIC_REGISTRATION,
+            Constants.FORM_JSON_DISCRIMINATOR_DEMOGRAPHICS_UPDATE,
+            Constants.FORM_JSON_DISCRIMINATOR_SHR_DEMOGRAPHICS_UPDATE,
+            Constants.FORM_JSON_DISCRIMINATOR_CONSULTATION,
+            Constants.FORM_XML_DISCRIMINATOR_ENCOUNTER,
+            Constants.FORM_JSON_DISCRIMINATOR_ENCOUNTER,
+            Constants.FORM_JSON_DISCRIMINATOR_SHR_ENCOUNTER,
+            FORM_JSON_DISCRIMINATOR_PERSON_UPDATE);
+    // uploaded before any other form, as forms may refer to the registration of another patient
+    private static final List<String> FORM_UPLOAD_FIRST = Arrays.asList(
+            FORM_DISCRIMINATOR_REGISTRATION,
+            FORM_JSON_DISCRIMINATOR_REGISTRATION,
+            FORM_JSON_DISCRIMINATOR_SHR_REGISTRATION,
+            FORM_JSON_DISCRIMINATOR_GENERIC_REGISTRATION);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final JsonMediaPathRewriter mediaPathRewriter = new JsonMediaPathRewriter(new JsonMediaPathRewriter.MediaSource() {
+        @Override
+        public InputStream open(String mediaPath) throws IOException {
+            return MediaUtils.openMediaForUpload(new File(mediaPath), MEDIA_ENCRYPTION_KEY);
+        }
+    });
+
     private final FormService formService;
     private final PatientService patientService;
     private final PersonService personService;
@@ -98,8 +147,12 @@ public class FormController {
     private final SetupConfigurationService setupConfigurationService;
     private final Map<String, Integer> tagColors;
     private List<Tag> selectedTags;
-    private String jsonPayload;
     private MuzimaApplication muzimaApplication;
+    private final Map<String, Form> formMetadataCache = new HashMap<>();
+    private final Map<String, Integer> formDataCounts = new HashMap<>();
+    private FormDataDuplicateIndex formDataDuplicateIndex;
+    private final ParallelDownloader<FormTemplate> formTemplateDownloader = new ParallelDownloader<>("FormTemplateDownload");
+    private final FormUploadEngine formUploadEngine = new FormUploadEngine("FormUpload", FORM_UPLOAD_ORDER, FORM_UPLOAD_FIRST);
 
     public FormController(MuzimaApplication muzimaApplication) throws IOException {
         this.formService = muzimaApplication.getMuzimaContext().getFormService();
@@ -265,12 +318,15 @@ public class FormController {
         }
     }
 
+    /**
+     * Downloads the form templates a few at a time in parallel, in the order of the uuids
+     */
     public List<FormTemplate> downloadFormTemplates(String[] formUuids) throws FormFetchException {
-        ArrayList<FormTemplate> formTemplates = new ArrayList<>();
-        for (String uuid : formUuids) {
-            formTemplates.add(downloadFormTemplateByUuid(uuid));
+        try {
+            return new ArrayList<>(formTemplateDownloader.download(formUuids, formService::downloadFormTemplateByUuid));
+        } catch (IOException e) {
+            throw new FormFetchException(e);
         }
-        return formTemplates;
     }
 
     public FormTemplate downloadFormTemplateByUuid(String uuid) throws FormFetchException {
@@ -284,6 +340,7 @@ public class FormController {
     public void saveAllForms(List<Form> forms) throws FormSaveException {
         try {
             formService.saveForms(forms);
+            clearFormMetadataCache();
         } catch (IOException e) {
             throw new FormSaveException(e);
         }
@@ -292,6 +349,7 @@ public class FormController {
     public void updateAllForms(List<Form> forms) throws FormSaveException {
         try {
             formService.updateForms(forms);
+            clearFormMetadataCache();
         } catch (IOException e) {
             throw new FormSaveException(e);
         }
@@ -300,6 +358,7 @@ public class FormController {
     public void deleteAllForms() throws FormDeleteException {
         try {
             formService.deleteForms(formService.getAllForms());
+            clearFormMetadataCache();
         } catch (IOException e) {
             throw new FormDeleteException(e);
         }
@@ -316,6 +375,7 @@ public class FormController {
     public void deleteForms(List<Form> forms) throws FormDeleteException {
         try {
             formService.deleteForms(forms);
+            clearFormMetadataCache();
         } catch (IOException e) {
             throw new FormDeleteException(e);
         }
@@ -424,7 +484,8 @@ public class FormController {
     public void saveFormData(FormData formData) throws FormDataSaveException {
         try {
             formData.setSaveTime(new Date());
-            formService.saveFormData(formData);
+            saveFormDataAndUpdateCounts(formData);
+            updateDuplicateIndex(formData);
         } catch (IOException e) {
             throw new FormDataSaveException(e);
         }
@@ -455,40 +516,28 @@ public class FormController {
     }
 
     public IncompleteFormsWithPatientData getAllIncompleteFormsWithPatientData(String filterPatientUuid) throws FormFetchException {
+        return getAllIncompleteFormsWithPatientData(filterPatientUuid, null);
+    }
+
+    /**
+     * Loads all incomplete forms, sorted by patient name, looking up the referenced forms and
+     * patients once each. Rows are handed to the listener, if any, as soon as a page is built.
+     */
+    public IncompleteFormsWithPatientData getAllIncompleteFormsWithPatientData(String filterPatientUuid,
+                                                                               FormsWithPatientDataPageListener<IncompleteFormWithPatientData> pageListener) throws FormFetchException {
         IncompleteFormsWithPatientData incompleteForms = new IncompleteFormsWithPatientData();
+        PagePublisher<IncompleteFormWithPatientData> publisher = new PagePublisher<>(incompleteForms, pageListener);
 
         try {
-            List<FormData> allFormData;
-            if(!StringUtils.isEmpty(filterPatientUuid)) {
-                allFormData = formService.getFormDataByPatient(filterPatientUuid, Constants.STATUS_INCOMPLETE);
-            } else {
-                allFormData = formService.getAllFormData(Constants.STATUS_INCOMPLETE);
-            }
+            List<FormData> allFormData = getFormDataForListing(filterPatientUuid, Constants.STATUS_INCOMPLETE);
+            Map<String, Form> forms = getFormsReferencedBy(allFormData);
 
-            for (FormData formData : allFormData) {
-                String patientUuid = formData.getPatientUuid();
-                Patient patient = null;
-                if (patientUuid != null) {
-                    patient = patientService.getPatientByUuid(patientUuid);
-                }
-                if(patient == null){
-                    try {
-                        patient = new Patient();
-                        org.json.JSONObject payloadObject = new org.json.JSONObject(formData.getJsonPayload());
-                        org.json.JSONObject patientJSON = payloadObject.getJSONObject("patient");
-                        final PersonName personName = PersonRegistrationUtils.createPersonName(patientJSON);
-                        patient.setNames(new ArrayList<PersonName>() {{
-                            add(personName);
-                        }});
-                    } catch (JSONException e) {
-                        patient = null;
-                        Log.e(getClass().getSimpleName(),"Could not create temporary patient",e);
-                    }
-                }
-                incompleteForms.add(new IncompleteFormWithPatientDataBuilder()
-                        .withForm(formService.getFormByUuid(formData.getTemplateUuid()))
+            for (FormDataWithPatient row : sortByPatient(allFormData, getPatientsReferencedBy(allFormData), true)) {
+                FormData formData = row.formData;
+                publisher.add(new IncompleteFormWithPatientDataBuilder()
+                        .withForm(forms.get(formData.getTemplateUuid()))
                         .withFormDataUuid(formData.getUuid())
-                        .withPatient(patient)
+                        .withPatient(row.patient)
                         .withLastModifiedDate(formData.getSaveTime())
                         .withEncounterDate(formData.getEncounterDate())
                         .build());
@@ -496,23 +545,31 @@ public class FormController {
         } catch (IOException e) {
             throw new FormFetchException(e);
         }
+        publisher.finish();
         return incompleteForms;
     }
 
     public CompleteFormsWithPatientData getAllCompleteFormsWithPatientData(Context context, String filterPatientUuid) throws FormFetchException {
+        return getAllCompleteFormsWithPatientData(context, filterPatientUuid, null);
+    }
+
+    /**
+     * Loads all complete forms, sorted by patient name, looking up the referenced forms and
+     * patients once each. Rows are handed to the listener, if any, as soon as a page is built.
+     */
+    public CompleteFormsWithPatientData getAllCompleteFormsWithPatientData(Context context, String filterPatientUuid,
+                                                                           FormsWithPatientDataPageListener<CompleteFormWithPatientData> pageListener) throws FormFetchException {
         CompleteFormsWithPatientData completeForms = new CompleteFormsWithPatientData();
+        PagePublisher<CompleteFormWithPatientData> publisher = new PagePublisher<>(completeForms, pageListener);
 
         try {
-            List<FormData> allFormData;
-            if(!StringUtils.isEmpty(filterPatientUuid)) {
-                allFormData = formService.getFormDataByPatient(filterPatientUuid, Constants.STATUS_COMPLETE);
-            } else {
-                allFormData = formService.getAllFormData(Constants.STATUS_COMPLETE);
-            }
+            List<FormData> allFormData = getFormDataForListing(filterPatientUuid, Constants.STATUS_COMPLETE);
+            Map<String, Form> forms = getFormsReferencedBy(allFormData);
 
-            for (FormData formData : allFormData) {
-                Patient patient = patientService.getPatientByUuid(formData.getPatientUuid());
-                Form form = formService.getFormByUuid(formData.getTemplateUuid());
+            for (FormDataWithPatient row : sortByPatient(allFormData, getPatientsReferencedBy(allFormData), false)) {
+                FormData formData = row.formData;
+                Patient patient = row.patient;
+                Form form = forms.get(formData.getTemplateUuid());
                 if (form != null) {
                     CompleteFormWithPatientData completeForm = new CompleteFormWithPatientDataBuilder()
                             .withForm(form)
@@ -521,7 +578,7 @@ public class FormController {
                             .withLastModifiedDate(formData.getSaveTime())
                             .withEncounterDate(formData.getEncounterDate())
                             .build();
-                    completeForms.add(completeForm);
+                    publisher.add(completeForm);
                 } else {
                     if (formData.getDiscriminator() != null) {
                         if (formData.getDiscriminator().equals(Constants.FORM_JSON_DISCRIMINATOR_INDIVIDUAL_OBS)) {
@@ -532,7 +589,7 @@ public class FormController {
                                     .withLastModifiedDate(formData.getSaveTime())
                                     .withEncounterDate(formData.getEncounterDate())
                                     .build();
-                            completeForms.add(completeForm);
+                            publisher.add(completeForm);
                         }else if (formData.getDiscriminator().equals(Constants.FORM_JSON_DISCRIMINATOR_SHR_REGISTRATION)) {
                             CompleteFormWithPatientData completeForm = new CompleteFormWithPatientDataBuilder()
                                     .withSHRRegistrationForm(form, context)
@@ -541,7 +598,7 @@ public class FormController {
                                     .withLastModifiedDate(formData.getSaveTime())
                                     .withEncounterDate(formData.getEncounterDate())
                                     .build();
-                            completeForms.add(completeForm);
+                            publisher.add(completeForm);
                         }else if (formData.getDiscriminator().equals(FORM_JSON_DISCRIMINATOR_RELATIONSHIP)) {
                             CompleteFormWithPatientData completeForm = new CompleteFormWithPatientDataBuilder()
                                     .withRelationshipForm(form, context)
@@ -550,7 +607,7 @@ public class FormController {
                                     .withLastModifiedDate(formData.getSaveTime())
                                     .withEncounterDate(formData.getEncounterDate())
                                     .build();
-                            completeForms.add(completeForm);
+                            publisher.add(completeForm);
                         }else if (formData.getDiscriminator().equals(Constants.FORM_JSON_DISCRIMINATOR_DEMOGRAPHICS_UPDATE)) {
                             CompleteFormWithPatientData completeForm = new CompleteFormWithPatientDataBuilder()
                                     .withDemographicsUpdateForm(form, context)
@@ -559,7 +616,7 @@ public class FormController {
                                     .withLastModifiedDate(formData.getSaveTime())
                                     .withEncounterDate(formData.getEncounterDate())
                                     .build();
-                            completeForms.add(completeForm);
+                            publisher.add(completeForm);
                         }
                     }
                 }
@@ -567,9 +624,183 @@ public class FormController {
         } catch (IOException e) {
             throw new FormFetchException(e);
         }
+        publisher.finish();
         return completeForms;
     }
 
+    private List<FormData> getFormDataForListing(String filterPatientUuid, String status) throws IOException {
+        if (!StringUtils.isEmpty(filterPatientUuid)) {
+            return formService.getFormDataByPatient(filterPatientUuid, status);
+        }
+        return formService.getAllFormData(status);
+    }
+
+    /**
+     * Looks up each patient referenced by the form data once, by uuid, so listing forms does not
+     * load every patient on the device.
+     */
+    private Map<String, Patient> getPatientsReferencedBy(List<FormData> allFormData) throws IOException {
+        Map<String, Patient> patients = new HashMap<>();
+        for (FormData formData : allFormData) {
+            String patientUuid = formData.getPatientUuid();
+            if (patientUuid != null && !patients.containsKey(patientUuid)) {
+                patients.put(patientUuid, patientService.getPatientByUuid(patientUuid));
+            }
+        }
+        return patients;
+    }
+
+    private Map<String, Form> getFormsReferencedBy(List<FormData> allFormData) throws IOException {
+        Set<String> formUuids = new HashSet<>();
+        for (FormData formData : allFormData) {
+            formUuids.add(formData.getTemplateUuid());
+        }
+
+        Map<String, Form> forms = new HashMap<>();
+        synchronized (formMetadataCache) {
+            Set<String> uncachedFormUuids = new HashSet<>(formUuids);
+            uncachedFormUuids.removeAll(formMetadataCache.keySet());
+            if (uncachedFormUuids.size() > BULK_LOOKUP_THRESHOLD) {
+                for (Form form : formService.getAllForms()) {
+                    formMetadataCache.put(form.getUuid(), form);
+                }
+            }
+            for (String formUuid : formUuids) {
+                if (!formMetadataCache.containsKey(formUuid)) {
+                    // also remember forms that are not available locally, e.g. individual obs forms
+                    formMetadataCache.put(formUuid, formService.getFormByUuid(formUuid));
+                }
+                forms.put(formUuid, formMetadataCache.get(formUuid));
+            }
+        }
+        return forms;
+    }
+
+    private void clearFormMetadataCache() {
+        synchronized (formMetadataCache) {
+            formMetadataCache.clear();
+        }
+    }
+
+    /**
+     * Builds a patient holding only the name captured in the payload of a form whose patient is
+     * not stored locally. Only the patient section of the payload is read.
+     */
+    private static Patient createTemporaryPatient(FormData formData) {
+        try {
+            JsonParser parser = jsonFactory.createParser(formData.getJsonPayload());
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String section = parser.getCurrentName();
+                    JsonToken sectionToken = parser.nextToken();
+                    if ("patient".equals(section) && sectionToken == JsonToken.START_OBJECT) {
+                        return createPatientWithName(parser);
+                    }
+                    parser.skipChildren();
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            Log.e(FormController.class.getSimpleName(), "Could not create temporary patient", e);
+        }
+        return null;
+    }
+
+    private static Patient createPatientWithName(JsonParser parser) throws IOException {
+        org.json.JSONObject patientJSON = new org.json.JSONObject();
+        try {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken().isScalarValue()) {
+                    patientJSON.put(field, parser.getValueAsString());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            final PersonName personName = PersonRegistrationUtils.createPersonName(patientJSON);
+            Patient patient = new Patient();
+            patient.setNames(new ArrayList<PersonName>() {{
+                add(personName);
+            }});
+            return patient;
+        } catch (JSONException e) {
+            Log.e(FormController.class.getSimpleName(), "Could not create temporary patient", e);
+            return null;
+        }
+    }
+
+    private static List<FormDataWithPatient> sortByPatient(List<FormData> allFormData, Map<String, Patient> patients,
+                                                           boolean withTemporaryPatients) {
+        List<FormDataWithPatient> rows = new ArrayList<>(allFormData.size());
+        for (FormData formData : allFormData) {
+            Patient patient = patients.get(formData.getPatientUuid());
+            if (patient == null && withTemporaryPatients) {
+                patient = createTemporaryPatient(formData);
+            }
+            rows.add(new FormDataWithPatient(formData, patient));
+        }
+        final PatientComparator patientComparator = new PatientComparator();
+        Collections.sort(rows, new Comparator<FormDataWithPatient>() {
+            @Override
+            public int compare(FormDataWithPatient lhs, FormDataWithPatient rhs) {
+                return patientComparator.compare(lhs.patient, rhs.patient);
+            }
+        });
+        return rows;
+    }
+
+    private static class FormDataWithPatient {
+        private final FormData formData;
+        private final Patient patient;
+
+        private FormDataWithPatient(FormData formData, Patient patient) {
+            this.formData = formData;
+            this.patient = patient;
+        }
+    }
+
+    /**
+     * Collects listing rows and hands them to the listener, if any, each time a page is complete
+     */
+    private static class PagePublisher<T> {
+        private final List<T> rows;
+        private final FormsWithPatientDataPageListener<T> pageListener;
+        private int published;
+
+        private PagePublisher(List<T> rows, FormsWithPatientDataPageListener<T> pageListener) {
+            this.rows = rows;
+            this.pageListener = pageListener;
+        }
+
+        private void add(T row) {
+            rows.add(row);
+            if (rows.size() - published == FORMS_WITH_PATIENT_DATA_PAGE_SIZE) {
+                publish();
+            }
+        }
+
+        private void finish() {
+            if (published < rows.size()) {
+                publish();
+            }
+        }
+
+        private void publish() {
+            if (pageListener != null) {
+                pageListener.onPage(new ArrayList<>(rows.subList(published, rows.size())));
+            }
+            published = rows.size();
+        }
+    }
+
+    public interface FormsWithPatientDataPageListener<T> {
+        void onPage(List<T> page);
+    }
+
     public IncompleteForms getAllIncompleteFormsForPatientUuid(String patientUuid) throws FormFetchException {
         IncompleteForms incompleteForms = new IncompleteForms();
         try {
@@ -623,19 +854,100 @@ public class FormController {
     }
 
     public int countAllIncompleteForms() throws FormFetchException {
-        return getAllIncompleteFormsWithPatientData(StringUtils.EMPTY).size();
+        return countFormData(null, Constants.STATUS_INCOMPLETE);
     }
 
     public int countAllCompleteForms() throws FormFetchException {
-        return getAllCompleteFormsWithPatientData(null,StringUtils.EMPTY).size();
+        return countFormData(null, Constants.STATUS_COMPLETE);
     }
 
     public int countCompleteFormsForPatient(String patientuuid) throws FormFetchException {
-        return getAllCompleteFormsWithPatientData(null,patientuuid).size();
+        return countFormData(patientuuid, Constants.STATUS_COMPLETE);
     }
 
     public int countIncompleteFormsForPatient(String patientuuid) throws FormFetchException {
-        return getAllIncompleteFormsWithPatientData(patientuuid).size();
+        return countFormData(patientuuid, Constants.STATUS_INCOMPLETE);
+    }
+
+    /**
+     * Counts the form data by status, for one patient or for all patients when no patient uuid is
+     * given, with a count query. Counts are cached and kept up to date as form data is saved,
+     * uploaded or deleted through this controller.
+     */
+    private int countFormData(String patientUuid, String status) throws FormFetchException {
+        String key = formDataCountKey(status, patientUuid);
+        synchronized (formDataCounts) {
+            Integer count = formDataCounts.get(key);
+            if (count == null) {
+                try {
+                    count = formService.countFormDataByPatient(StringUtils.isEmpty(patientUuid) ? null : patientUuid, status);
+                } catch (IOException e) {
+                    throw new FormFetchException(e);
+                }
+                formDataCounts.put(key, count);
+            }
+            return count;
+        }
+    }
+
+    private static String formDataCountKey(String status, String patientUuid) {
+        return status + "|" + (StringUtils.isEmpty(patientUuid) ? StringUtils.EMPTY : patientUuid);
+    }
+
+    /**
+     * Adds the delta to the cached counts the form data falls under, for its patient and for all
+     * patients. Counts not yet cached are left to the next count query.
+     */
+    private void adjustFormDataCounts(FormData formData, int delta) {
+        if (formData == null || formData.getStatus() == null) {
+            return;
+        }
+        synchronized (formDataCounts) {
+            adjustFormDataCount(formDataCountKey(formData.getStatus(), null), delta);
+            if (!StringUtils.isEmpty(formData.getPatientUuid())) {
+                adjustFormDataCount(formDataCountKey(formData.getStatus(), formData.getPatientUuid()), delta);
+            }
+        }
+    }
+
+    private void adjustFormDataCount(String key, int delta) {
+        Integer count = formDataCounts.get(key);
+        if (count != null) {
+            formDataCounts.put(key, Math.max(0, count + delta));
+        }
+    }
+
+    private void adjustFormDataCounts(List<FormData> formDataList, int delta) {
+        for (FormData formData : formDataList) {
+            adjustFormDataCounts(formData, delta);
+        }
+    }
+
+    /**
+     * Saves the form data and moves it from the counts of its stored status to those of its new
+     * one. The counts stay locked meanwhile so a count query cannot see the save half applied.
+     */
+    private void saveFormDataAndUpdateCounts(FormData formData) throws IOException {
+        synchronized (formDataCounts) {
+            FormData storedFormData = formData.getUuid() == null ? null : formService.getFormDataByUuid(formData.getUuid());
+            formService.saveFormData(formData);
+            adjustFormDataCounts(storedFormData, -1);
+            adjustFormDataCounts(formData, 1);
+        }
+    }
+
+    private void deleteFormDataAndUpdateCounts(FormData formData) throws IOException {
+        synchronized (formDataCounts) {
+            formService.deleteFormData(formData);
+            adjustFormDataCounts(formData, -1);
+        }
+    }
+
+    private void deleteFormDataAndUpdateCounts(List<FormData> formDataList) throws IOException {
+        synchronized (formDataCounts) {
+            formService.deleteFormData(formDataList);
+            adjustFormDataCounts(formDataList, -1);
+        }
     }
 
     public AvailableForms getDownloadedRegistrationForms() throws FormFetchException {
@@ -662,6 +974,7 @@ public class FormController {
                 throw new Exception("Could not determine type of registration form: ["+formData.getDiscriminator()+"]. Patient not created.");
             }
             patientService.savePatient(patient);
+            updatePatientListIndex(patient);
             return patient;
         } catch (Exception e) {
             throw new FormDataProcessException(e);
@@ -680,12 +993,20 @@ public class FormController {
                 throw new Exception("Could not determine type of demographics update form: ["+formData.getDiscriminator()+"]. Patient not updated.");
             }
             patientService.updatePatient(patient);
+            updatePatientListIndex(patient);
             return patient;
         } catch (Exception e) {
             throw new FormDataProcessException(e);
         }
     }
 
+    private void updatePatientListIndex(Patient patient) {
+        PatientController patientController = muzimaApplication.getPatientController();
+        if (patientController != null) {
+            patientController.updatePatientListIndex(Collections.singletonList(patient));
+        }
+    }
+
     public Person updatePerson(MuzimaApplication muzimaApplication, FormData formData) throws FormDataProcessException {
         try {
             Person person = personService.getPersonByUuid(formData.getPatientUuid());
@@ -709,22 +1030,7 @@ public class FormController {
 
     public boolean uploadAllCompletedForms() throws UploadFormDataException {
         try {
-            boolean result = true;
-            List<FormData> allFormData = formService.getAllFormData(Constants.STATUS_COMPLETE);
-
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, FORM_DISCRIMINATOR_REGISTRATION), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_JSON_DISCRIMINATOR_INDIVIDUAL_OBS), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_JSON_DISCRIMINATOR_RELATIONSHIP), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, FORM_JSON_DISCRIMINATOR_REGISTRATION), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, FORM_JSON_DISCRIMINATOR_SHR_REGISTRATION), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, FORM_JSON_DISCRIMINATOR_GENERIC_REGISTRATION), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_JSON_DISCRIMINATOR_DEMOGRAPHICS_UPDATE), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_JSON_DISCRIMINATOR_SHR_DEMOGRAPHICS_UPDATE), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_JSON_DISCRIMINATOR_CONSULTATION), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_XML_DISCRIMINATOR_ENCOUNTER), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_JSON_DISCRIMINATOR_ENCOUNTER), result);
-            result = uploadFormDataToServer(getFormsWithDiscriminator(allFormData, Constants.FORM_JSON_DISCRIMINATOR_SHR_ENCOUNTER), result);
-            return uploadFormDataToServer(getFormsWithDiscriminator(allFormData, FORM_JSON_DISCRIMINATOR_PERSON_UPDATE), result);
+            return uploadFormDataToServer(formService.getAllFormData(Constants.STATUS_COMPLETE), true);
         } catch (IOException e) {
             throw new UploadFormDataException(e);
         }
@@ -848,36 +1154,35 @@ public class FormController {
         }
     }
 
-    private List<FormData> getFormsWithDiscriminator(List<FormData> allFormData, String discriminator) {
-        List<FormData> requiredForms = new ArrayList<>();
-        for (FormData formData : allFormData) {
-            if (formData.getDiscriminator().equals(discriminator)) {
-                requiredForms.add(formData);
+    boolean uploadFormDataToServer(List<FormData> allFormData, boolean result) throws IOException {
+        FormUploadEngine.Result uploadResult = formUploadEngine.upload(allFormData, this::uploadFormData, this::saveUploadedFormData);
+        Log.i(getClass().getSimpleName(), "Form upload: " + uploadResult);
+        return uploadResult.isSuccessful() && result;
+    }
+
+    private long uploadFormData(FormData formData) throws IOException {
+        String rawPayload = formData.getJsonPayload();
+        // inject consultation.sourceUuid
+        formData = injectUuidToPayload(formData);
+        // replace media paths with base64 string
+        formData = replaceMediaPathWithBase64String(formData);
+        String payload = formData.getJsonPayload();
+        try {
+            if (!formService.syncFormData(formData)) {
+                return FormUploadEngine.REJECTED;
             }
+        } finally {
+            //DO NOT save base64 string in DB
+            formData.setJsonPayload(rawPayload);
         }
-        return requiredForms;
+        formData.setStatus(STATUS_UPLOADED);
+        return payload == null ? 0 : payload.length();
     }
 
-    boolean uploadFormDataToServer(List<FormData> allFormData, boolean result) throws IOException {
-        for (FormData formData : allFormData) {
-            String rawPayload = formData.getJsonPayload();
-            // inject consultation.sourceUuid
-            formData = injectUuidToPayload(formData);
-            // replace media paths with base64 string
-            formData = replaceMediaPathWithBase64String(formData);
-            if (formService.syncFormData(formData)) {
-                formData.setStatus(STATUS_UPLOADED);
-
-                //DO NOT save base64 string in DB
-                formData.setJsonPayload(rawPayload);
-                formService.saveFormData(formData);
-                MuzimaLoggerService.log(muzimaApplication, "SYNCED_FORM_DATA", "{\"formDataUuid\":\"" + formData.getUuid() + "\"}");
-
-            } else {
-                result = false;
-            }
-        }
-        return result;
+    private void saveUploadedFormData(FormData uploadedFormData) throws IOException {
+        saveFormDataAndUpdateCounts(uploadedFormData);
+        updateDuplicateIndex(uploadedFormData);
+        MuzimaLoggerService.log(muzimaApplication, "SYNCED_FORM_DATA", "{\"formDataUuid\":\"" + uploadedFormData.getUuid() + "\"}");
     }
 
     public void markFormDataAsIncompleteAndDeleteRelatedEncountersAndObs(final FormData formData) throws FormDataSaveException, FormDataDeleteException {
@@ -888,10 +1193,18 @@ public class FormController {
         saveFormData(formData);
     }
 
+    /**
+     * Deletes the encounters and observations created from the complete form data, keeping the form data
+     */
+    public void deleteRelatedEncountersAndObs(FormData formData) throws FormDataDeleteException {
+        deletePatientDataRelatedToFormData(Collections.singletonList(formData));
+    }
+
     public void deleteFormDataAndRelatedEncountersAndObs(List<FormData> formData) throws FormDataDeleteException {
         try {
             deleteEncounterFormDataAndRelatedPatientData(formData);
             formService.deleteFormData(formData);
+            removeFromDuplicateIndex(formData);
         } catch (IOException e) {
             throw new FormDataDeleteException(e);
         }
@@ -929,106 +1242,154 @@ public class FormController {
         return formData;
     }
 
-    private void traverseJson(JSONObject json) {
-        for (String key : json.keySet()) {
-            String val = null;
-            try {
-                Object obj = JsonUtils.readAsObject(json.toJSONString(), "$['" + key + "']");
-                if (obj instanceof JSONArray) {
-                    JSONArray arr = (JSONArray) obj;
-                    for (Object object : arr) {
-                        traverseJson((JSONObject) object);
-                    }
-                } else {
-                    traverseJson((JSONObject) obj);
-                }
-            } catch (Exception e) {
-                val = json.get(key).toString();
-            }
+    private FormData replaceMediaPathWithBase64String(FormData formData) {
+        try {
+            formData.setJsonPayload(mediaPathRewriter.rewrite(formData.getJsonPayload()));
+        } catch (IOException e) {
+            Log.e("FormController", e.getMessage(), e);
+        }
+        return formData;
+    }
 
-            if (val != null) {
-                replaceMediaPathWithMedia(key, val);
+    public boolean isFormAlreadyExist(String jsonPayload, FormData formData) throws IOException, JSONException {
+        org.json.JSONObject temp = new org.json.JSONObject(jsonPayload);
+        String checkEncounterDate = ((org.json.JSONObject) temp.get("encounter")).get("encounter.encounter_datetime").toString();
+        String checkPatientUuid = ((org.json.JSONObject) temp.get("patient")).get("patient.uuid").toString();
+        String checkFormUuid = ((org.json.JSONObject) temp.get("encounter")).get("encounter.form_uuid").toString();
+
+        for (FormDataDuplicateIndex.Entry entry : findInDuplicateIndex(checkPatientUuid, checkFormUuid)) {
+            if (!entry.isRegistration() && !entry.getFormDataUuid().equals(formData.getUuid())
+                    && entry.getEncounterDatetime().equals(checkEncounterDate)
+                    && getIndexedFormData(entry) != null) {
+                return true;
             }
         }
+        return false;
     }
 
-    private void replaceMediaPathWithMedia(String key, String value) {
-        if (value.contains("/muzima/media/")) {
-            String newKeyValPair = "\"" + key + "\":\"" + getStringMedia(value) + "\"";
-            if (!jsonPayload.contains(value)) {
-                value = value.replace("/", "\\/");
+    /**
+     * @return the incomplete and complete form data of the patient that were filled with the given form
+     */
+    public List<FormData> getFormDataForDuplicateCheck(String patientUuid, String formUuid) throws FormDataFetchException {
+        try {
+            List<FormData> formDataList = new ArrayList<>();
+            for (FormDataDuplicateIndex.Entry entry : findInDuplicateIndex(patientUuid, formUuid)) {
+                FormData formData = getIndexedFormData(entry);
+                if (formData != null) {
+                    formDataList.add(formData);
+                }
             }
-            String keyValPair = "\"" + key + "\":\"" + value + "\"";
+            return formDataList;
+        } catch (IOException e) {
+            throw new FormDataFetchException(e);
+        }
+    }
 
-            jsonPayload = jsonPayload.replace(keyValPair, newKeyValPair);
+    /**
+     * Looks up the form data of the patient filled with the form in the duplicate index, first
+     * re-indexing the patient from the stored form data if the index does not hold as many form
+     * data of the patient as the store, e.g. after they were saved without this controller.
+     */
+    private List<FormDataDuplicateIndex.Entry> findInDuplicateIndex(String patientUuid, String formUuid) throws IOException {
+        FormDataDuplicateIndex index = getDuplicateIndex();
+        if (!StringUtils.isEmpty(patientUuid)) {
+            int storedCount = formService.countFormDataByPatient(patientUuid, Constants.STATUS_INCOMPLETE)
+                    + formService.countFormDataByPatient(patientUuid, Constants.STATUS_COMPLETE);
+            if (storedCount != index.countByPatient(patientUuid)) {
+                List<FormData> patientFormData = new ArrayList<>(formService.getFormDataByPatient(patientUuid, Constants.STATUS_INCOMPLETE));
+                patientFormData.addAll(formService.getFormDataByPatient(patientUuid, Constants.STATUS_COMPLETE));
+                List<FormDataDuplicateIndex.Entry> entries = new ArrayList<>();
+                for (FormData formData : patientFormData) {
+                    FormDataDuplicateIndex.Entry entry = createDuplicateIndexEntry(formData);
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+                index.resetPatient(patientUuid, entries);
+            }
         }
+        return index.find(patientUuid, formUuid);
     }
 
-    private FormData replaceMediaPathWithBase64String(FormData formData) {
-        try {
-            jsonPayload = formData.getJsonPayload();
-            JSONParser jp = new JSONParser(JSONParser.MODE_PERMISSIVE);
-            traverseJson((JSONObject) jp.parse(jsonPayload));
-            formData.setJsonPayload(jsonPayload);
-        } catch (ParseException e) {
-            Log.e("FormController", e.getMessage(), e);
+    private FormData getIndexedFormData(FormDataDuplicateIndex.Entry entry) throws IOException {
+        FormData formData = formService.getFormDataByUuid(entry.getFormDataUuid());
+        if (createDuplicateIndexEntry(formData) == null) {
+            // the form data was changed or removed without going through this controller
+            getDuplicateIndex().remove(entry.getFormDataUuid());
+            return null;
         }
         return formData;
     }
 
-    private static String getStringMedia(String mediaUri) {
-        String mediaString = null;
-        if (!StringUtils.isEmpty(mediaUri)) {
-            //fetch the media and convert it to @Base64 encoded string.
-            File f = new File(mediaUri);
-            if (f.exists()) {
-
-                // here the media file is encrypted so we decrypt it
-                EnDeCrypt.decrypt(f, "this-is-supposed-to-be-a-secure-key");
-
-                try {
-                    FileInputStream fis = new FileInputStream(f);
-                    byte[] fileBytes = new byte[(int) f.length()];
-                    int read = fis.read(fileBytes);
-                    if (read != f.length()) {
-                        Log.e("FormController", "File read is not equal to the length of the file itself.");
+    private synchronized FormDataDuplicateIndex getDuplicateIndex() throws IOException {
+        if (formDataDuplicateIndex == null) {
+            File filesDir = muzimaApplication.getFilesDir();
+            FormDataDuplicateIndex index = new FormDataDuplicateIndex(
+                    filesDir == null ? null : new File(filesDir, DUPLICATE_INDEX_FILE_NAME));
+            if (!index.load()) {
+                List<FormData> allFormData = formService.getAllFormData(Constants.STATUS_INCOMPLETE);
+                allFormData.addAll(formService.getAllFormData(Constants.STATUS_COMPLETE));
+                List<FormDataDuplicateIndex.Entry> entries = new ArrayList<>();
+                for (FormData formData : allFormData) {
+                    FormDataDuplicateIndex.Entry entry = createDuplicateIndexEntry(formData);
+                    if (entry != null) {
+                        entries.add(entry);
                     }
-
-                    //convert the decrypted media to Base64 string
-                    mediaString = MediaUtils.toBase64(fileBytes);
-                } catch (Exception e) {
-                    Log.e("FormController", e.getMessage(), e);
                 }
+                index.reset(entries);
+            }
+            formDataDuplicateIndex = index;
+        }
+        return formDataDuplicateIndex;
+    }
 
-                // and encrypt again
-                EnDeCrypt.encrypt(f, "this-is-supposed-to-be-a-secure-key");
+    private void updateDuplicateIndex(FormData formData) {
+        try {
+            FormDataDuplicateIndex.Entry entry = createDuplicateIndexEntry(formData);
+            if (entry != null) {
+                getDuplicateIndex().put(entry);
+            } else if (formData.getUuid() != null) {
+                getDuplicateIndex().remove(formData.getUuid());
             }
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not update form data duplicate index", e);
         }
-        return mediaString != null ? mediaString : mediaUri;
     }
 
-    public boolean isFormAlreadyExist(String jsonPayload, FormData formData) throws IOException, JSONException {
-        org.json.JSONObject temp = new org.json.JSONObject(jsonPayload);
-        String checkEncounterDate = ((org.json.JSONObject) temp.get("encounter")).get("encounter.encounter_datetime").toString();
-        String checkPatientUuid = ((org.json.JSONObject) temp.get("patient")).get("patient.uuid").toString();
-        String checkFormUuid = ((org.json.JSONObject) temp.get("encounter")).get("encounter.form_uuid").toString();
+    private void removeFromDuplicateIndex(List<FormData> formDataList) {
+        try {
+            for (FormData formData : formDataList) {
+                if (formData.getUuid() != null) {
+                    getDuplicateIndex().remove(formData.getUuid());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not update form data duplicate index", e);
+        }
+    }
 
-        List<FormData> allFormData = formService.getAllFormData(Constants.STATUS_INCOMPLETE);
-        allFormData.addAll(formService.getAllFormData(Constants.STATUS_COMPLETE));
-        for (FormData formData1 : allFormData) {
-            if (!isRegistrationFormData(formData1) && !formData1.getUuid().equals(formData.getUuid())) {
-                org.json.JSONObject object = new org.json.JSONObject(formData1.getJsonPayload());
-                String encounterDate = ((org.json.JSONObject) object.get("encounter")).get("encounter.encounter_datetime").toString();
-                String patientUuid = ((org.json.JSONObject) object.get("patient")).get("patient.uuid").toString();
-                String formUuid = ((org.json.JSONObject) object.get("encounter")).get("encounter.form_uuid").toString();
-                if (encounterDate.equals(checkEncounterDate)
-                        && patientUuid.equals(checkPatientUuid)
-                        && formUuid.equals(checkFormUuid)) {
-                    return true;
+    /**
+     * @return the index entry of incomplete or complete form data, null for any other form data
+     */
+    private FormDataDuplicateIndex.Entry createDuplicateIndexEntry(FormData formData) {
+        if (formData == null || formData.getUuid() == null
+                || !(isIncompleteFormData(formData) || isCompleteFormData(formData))) {
+            return null;
+        }
+        String encounterDatetime = null;
+        if (!StringUtils.isEmpty(formData.getJsonPayload())) {
+            try {
+                org.json.JSONObject encounter = new org.json.JSONObject(formData.getJsonPayload()).optJSONObject("encounter");
+                if (encounter != null && encounter.has("encounter.encounter_datetime")) {
+                    encounterDatetime = encounter.get("encounter.encounter_datetime").toString();
                 }
+            } catch (JSONException e) {
+                Log.w(getClass().getSimpleName(), "Could not read encounter date of form data " + formData.getUuid());
             }
         }
-        return false;
+        boolean registration = formData.getDiscriminator() != null && isRegistrationFormData(formData);
+        return new FormDataDuplicateIndex.Entry(formData.getUuid(), formData.getPatientUuid(),
+                formData.getTemplateUuid(), encounterDatetime, registration);
     }
 
     public boolean isRegistrationFormDataWithEncounterForm(String formUuid) throws FormDataFetchException {
@@ -1085,6 +1446,10 @@ public class FormController {
         return (formData.getDiscriminator() != null) && !isRegistrationFormData(formData);
     }
 
+    private boolean isIncompleteFormData(FormData formData) {
+        return StringUtils.equals(formData.getStatus(), Constants.STATUS_INCOMPLETE);
+    }
+
     private boolean isCompleteFormData(FormData formData) {
         return StringUtils.equals(formData.getStatus(), Constants.STATUS_COMPLETE);
     }
@@ -1145,7 +1510,9 @@ public class FormController {
                         String encounterUuid = encounterObject.getString("encounter.encounter_uuid");
                         List<Observation> observations = observationService.getObservationsByEncounter(encounterUuid);
                         observationService.deleteObservations(observations);
-                        formService.deleteFormData(formData);
+                        muzimaApplication.getObservationController().invalidateObservationMatrices(observations);
+                        deleteFormDataAndUpdateCounts(formData);
+                        removeFromDuplicateIndex(Collections.singletonList(formData));
                     } else {
                         parseAsFormData = true;
                     }
@@ -1157,10 +1524,12 @@ public class FormController {
                         for (Encounter encounter : encounters) {
                             List<Observation> observations = observationService.getObservationsByEncounter(encounter.getUuid());
                             observationService.deleteObservations(observations);
+                            muzimaApplication.getObservationController().invalidateObservationMatrices(observations);
                         }
                         encounterService.deleteEncounters(encounters);
                     }
-                    formService.deleteFormData(formData);
+                    deleteFormDataAndUpdateCounts(formData);
+                    removeFromDuplicateIndex(Collections.singletonList(formData));
                 }
             }
             muzimaApplication.getPatientController().deletePatientsPendingDeletion();
@@ -1179,6 +1548,7 @@ public class FormController {
                     for (Encounter encounter : encounters) {
                         List<Observation> observations = observationService.getObservationsByEncounter(encounter.getUuid());
                         observationService.deleteObservations(observations);
+                        muzimaApplication.getObservationController().invalidateObservationMatrices(observations);
                     }
                     encounterService.deleteEncounters(encounters);
                 }
@@ -1195,10 +1565,15 @@ public class FormController {
                 List<FormData> formDataList = groupedFormData.get(patientUuid);
                 int actualPatientFormDataCount = countAllFormDataByPatientUuid(patientUuid, null);
                 if (actualPatientFormDataCount == formDataList.size()) {
-                    formService.deleteFormData(formDataList);
+                    deleteFormDataAndUpdateCounts(formDataList);
+                    removeFromDuplicateIndex(formDataList);
                     Patient patient = patientService.getPatientByUuid(patientUuid);
                     if (patient != null) {
                         patientService.deletePatient(patient);
+                        PatientController patientController = muzimaApplication.getPatientController();
+                        if (patientController != null) {
+                            patientController.removeFromPatientListIndex(patientUuid);
+                        }
                     }
                 } else {
                     remnantData.put(patientUuid, formDataList);
@@ -16,7 +16,7 @@ import com.muzima.api.model.Location;
 import com.muzima.api.model.LocationAttribute;
 import com.muzima.api.model.LocationAttributeType;
 import com.muzima.api.service.LocationService;
-import com.muzima.service.HTMLLocationParser;
+import com.muzima.service.FormTemplateCache;
 import com.muzima.service.LocationParser;
 import com.muzima.utils.StringUtils;
 import org.apache.lucene.queryParser.ParseException;
@@ -200,11 +200,10 @@ public class LocationController {
     public List<Location> getRelatedLocations(List<FormTemplate> formTemplates) throws LocationDownloadException {
         HashSet<Location> locations = new HashSet<>();
         LocationParser xmlParserUtils = new LocationParser();
-        HTMLLocationParser htmlParserUtils = new HTMLLocationParser();
         for (FormTemplate formTemplate : formTemplates) {
             List<String> names = new ArrayList<>();
             if (formTemplate.isHTMLForm()) {
-                names = htmlParserUtils.parse(formTemplate.getHtml());
+                names = FormTemplateCache.getInstance().getLocationNames(formTemplate);
             } else {
                 // names = xmlParserUtils.parse(formTemplate.getModelXml());
             }
@@ -9,6 +9,7 @@ import com.muzima.api.model.Media;
 import com.muzima.api.service.LastSyncTimeService;
 import com.muzima.api.service.MediaService;
 import com.muzima.service.SntpService;
+import com.muzima.utils.MediaUtils;
 import com.muzima.utils.MemoryUtil;
 
 import org.apache.lucene.queryParser.ParseException;
@@ -19,8 +20,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 public class MediaController {
     private final MediaService mediaService;
@@ -101,6 +104,35 @@ public class MediaController {
         }
     }
 
+    /**
+     * Saves the new media and updates the ones already on the device, each in a single call
+     */
+    public void saveOrUpdateMedia(List<Media> mediaList) throws MediaController.MediaSaveException {
+        try {
+            Set<String> savedUuids = new HashSet<>();
+            for (Media media : mediaService.getMedia()) {
+                savedUuids.add(media.getUuid());
+            }
+            List<Media> newMedia = new ArrayList<>();
+            List<Media> updatedMedia = new ArrayList<>();
+            for (Media media : mediaList) {
+                if (savedUuids.contains(media.getUuid())) {
+                    updatedMedia.add(media);
+                } else {
+                    newMedia.add(media);
+                }
+            }
+            if (!newMedia.isEmpty()) {
+                mediaService.saveMedia(newMedia);
+            }
+            if (!updatedMedia.isEmpty()) {
+                mediaService.updateMedia(updatedMedia);
+            }
+        } catch (IOException e) {
+            throw new MediaController.MediaSaveException(e);
+        }
+    }
+
     public void deleteMedia(List<String> uuids) throws MediaController.MediaSaveException {
         try {
             List<Media> mediaList = new ArrayList<>();
@@ -110,7 +142,7 @@ public class MediaController {
                     mediaList.add(media);
                     //Delete file if exists
                     String PATH = Objects.requireNonNull(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)).getAbsolutePath();
-                    File file = new File(PATH + "/"+media.getName());
+                    File file = new File(PATH + "/" + MediaUtils.getMediaFileName(media.getName(), media.getMimeType()));
                     if(file.exists())
                         file.delete();
                 }
@@ -39,7 +39,10 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.muzima.api.model.APIName.DOWNLOAD_SETTINGS;
 import static com.muzima.util.Constants.ServerSettings.ALLOCATION_TAG_GENERATION;
@@ -81,6 +84,9 @@ public class MuzimaSettingController {
     private final SntpService sntpService;
     private final SetupConfigurationService setupConfigurationService;
     private final MuzimaApplication muzimaApplication;
+    private final Map<String, MuzimaSetting> settingsByProperty = new HashMap<>();
+    private final AtomicLong settingsCacheHits = new AtomicLong();
+    private final AtomicLong settingsCacheMisses = new AtomicLong();
 
 
     public MuzimaSettingController(MuzimaSettingService settingService, LastSyncTimeService lastSyncTimeService,
@@ -92,16 +98,45 @@ public class MuzimaSettingController {
         this.muzimaApplication = muzimaApplication;
     }
 
+    /**
+     * Reads through a cache of settings by property, which is cleared whenever settings or the
+     * setup configuration template change, see {@link #invalidateSettingsCache()}.
+     */
     public MuzimaSetting getSettingByProperty(String property) throws MuzimaSettingFetchException {
+        synchronized (settingsByProperty) {
+            if (settingsByProperty.containsKey(property)) {
+                settingsCacheHits.incrementAndGet();
+                return settingsByProperty.get(property);
+            }
+        }
+        settingsCacheMisses.incrementAndGet();
+        MuzimaSetting setting;
         try {
-            MuzimaSetting configLevelSetting = getSetupConfigurationSettingByKey("property", property);
-            if(configLevelSetting != null){
-                return configLevelSetting;
+            setting = getSetupConfigurationSettingByKey("property", property);
+            if(setting == null){
+                setting = settingService.getSettingByProperty(property);
             }
-            return settingService.getSettingByProperty(property);
         } catch (IOException | ArrayIndexOutOfBoundsException | ParseException e) { //Fails with ArrayIndexOutOfBoundsException onCall #getSettingByProperty
             throw new MuzimaSettingFetchException(e);
         }
+        synchronized (settingsByProperty) {
+            settingsByProperty.put(property, setting);
+        }
+        return setting;
+    }
+
+    public void invalidateSettingsCache() {
+        synchronized (settingsByProperty) {
+            settingsByProperty.clear();
+        }
+    }
+
+    public long getSettingsCacheHitCount() {
+        return settingsCacheHits.get();
+    }
+
+    public long getSettingsCacheMissCount() {
+        return settingsCacheMisses.get();
     }
 
     public MuzimaSetting getSettingByUuid(String uuid) throws MuzimaSettingFetchException {
@@ -196,6 +231,8 @@ public class MuzimaSettingController {
             settingService.saveSetting(setting);
         } catch (IOException | NullPointerException e) {
             throw new MuzimaSettingSaveException(e);
+        } finally {
+            invalidateSettingsCache();
         }
     }
 
@@ -204,6 +241,8 @@ public class MuzimaSettingController {
             settingService.updateSetting(setting);
         } catch (IOException e) {
             throw new MuzimaSettingSaveException(e);
+        } finally {
+            invalidateSettingsCache();
         }
     }
 
@@ -217,6 +256,7 @@ public class MuzimaSettingController {
         try {
             if (settingService.getSettingByProperty(setting.getProperty()) != null) {
                 settingService.updateSetting(setting);
+                invalidateSettingsCache();
                 if(setting.getProperty().equals(ONLINE_ONLY_MODE_ENABLED_SETTING)){
                     updateTheme();
                     if(!setting.getValueBoolean()) {
@@ -241,6 +281,7 @@ public class MuzimaSettingController {
             } else {
                 settingService.saveSetting(setting);
             }
+            invalidateSettingsCache();
 
             if(setting.getProperty().equals(NOTIFICATION_FEATURE_ENABLED_SETTING) && getSettingByProperty(NOTIFICATION_FEATURE_ENABLED_SETTING).getValueBoolean()){
                 muzimaApplication.getFCMTokenController().sendTokenToServer();
@@ -23,18 +23,22 @@ import com.muzima.api.service.LastSyncTimeService;
 import com.muzima.api.service.ObservationService;
 import com.muzima.model.observation.Concepts;
 import com.muzima.model.observation.Encounters;
+import com.muzima.model.observation.PatientObservationMatrix;
+import com.muzima.service.ObservationSyncWatermarkStore;
 import com.muzima.service.SntpService;
 import com.muzima.utils.CustomColor;
-import com.muzima.utils.StringUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.muzima.api.model.APIName.DOWNLOAD_OBSERVATIONS;
 import static com.muzima.util.Constants.UUID_SEPARATOR;
@@ -44,6 +48,9 @@ import static java.util.Arrays.asList;
 import android.util.Log;
 
 public class ObservationController {
+    public static final String WATERMARK_FILE_NAME = "ObservationSyncWatermarks.txt";
+    private static final String WATERMARK_PARAM_SIGNATURE = "watermarks";
+    private static final int OBSERVATION_MATRIX_CACHE_SIZE = 8;
 
     private final ObservationService observationService;
     private final ConceptService conceptService;
@@ -51,15 +58,35 @@ public class ObservationController {
     private final LastSyncTimeService lastSyncTimeService;
     private final SntpService sntpService;
     private final Map<String, Integer> conceptColors;
+    private final File watermarkFile;
+    private ObservationSyncWatermarkStore watermarkStore;
+    private final Map<String, PatientObservationMatrix> observationMatrixCache =
+            new LinkedHashMap<String, PatientObservationMatrix>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PatientObservationMatrix> eldest) {
+                    return size() > OBSERVATION_MATRIX_CACHE_SIZE;
+                }
+            };
+    private int observationMatrixGeneration;
 
     public ObservationController(ObservationService observationService, ConceptService conceptService,
                                  EncounterService encounterService, LastSyncTimeService lastSyncTimeService,
                                  SntpService sntpService) {
+        this(observationService, conceptService, encounterService, lastSyncTimeService, sntpService, null);
+    }
+
+    /**
+     * @param watermarkFile the file keeping the observation download watermarks, or null to keep them in memory
+     */
+    public ObservationController(ObservationService observationService, ConceptService conceptService,
+                                 EncounterService encounterService, LastSyncTimeService lastSyncTimeService,
+                                 SntpService sntpService, File watermarkFile) {
         this.observationService = observationService;
         this.conceptService = conceptService;
         this.encounterService = encounterService;
         this.lastSyncTimeService = lastSyncTimeService;
         this.sntpService = sntpService;
+        this.watermarkFile = watermarkFile;
         conceptColors = new HashMap<>();
     }
 
@@ -86,6 +113,18 @@ public class ObservationController {
         }
     }
 
+    public List<Observation> getObservationsByConceptId(int conceptId) throws LoadObservationException {
+        try {
+            Concept concept = conceptService.getConceptById(conceptId);
+            if (concept == null) {
+                return new ArrayList<>();
+            }
+            return observationService.getObservations(concept);
+        } catch (IOException e) {
+            throw new LoadObservationException(e);
+        }
+    }
+
     public List<Observation> getObservationsByEncounterId(int encounterId) throws LoadObservationException {
         try {
             return observationService.getObservationsByEncounter(encounterId);
@@ -163,6 +202,7 @@ public class ObservationController {
     public void replaceObservations(List<Observation> allObservations) throws ReplaceObservationException {
         try {
             observationService.updateObservations(allObservations);
+            invalidateObservationMatrices(allObservations);
         } catch (IOException e) {
             throw new ReplaceObservationException(e);
         }
@@ -207,6 +247,60 @@ public class ObservationController {
         }
     }
 
+    /**
+     * Loads the observations of the patient once and buckets them by concept and day. The matrix
+     * of the last few patients is kept until observations of the patient are saved or deleted.
+     */
+    public PatientObservationMatrix getObservationMatrix(String patientUuid) throws LoadObservationException {
+        int generation;
+        synchronized (observationMatrixCache) {
+            PatientObservationMatrix matrix = observationMatrixCache.get(patientUuid);
+            if (matrix != null) {
+                return matrix;
+            }
+            generation = observationMatrixGeneration;
+        }
+        try {
+            PatientObservationMatrix matrix = new PatientObservationMatrix(patientUuid,
+                    observationService.getObservationsByPatient(patientUuid));
+            synchronized (observationMatrixCache) {
+                // observations saved while loading may be missing from the matrix
+                if (generation == observationMatrixGeneration) {
+                    observationMatrixCache.put(patientUuid, matrix);
+                }
+            }
+            return matrix;
+        } catch (IOException e) {
+            throw new LoadObservationException(e);
+        }
+    }
+
+    /**
+     * Drops the observation matrices of the patients of the given observations, for observations
+     * saved or deleted without going through this controller.
+     */
+    public void invalidateObservationMatrices(List<Observation> observations) {
+        Set<String> patientUuids = new HashSet<>();
+        for (Observation observation : observations) {
+            if (observation.getPerson() == null) {
+                invalidateAllObservationMatrices();
+                return;
+            }
+            patientUuids.add(observation.getPerson().getUuid());
+        }
+        synchronized (observationMatrixCache) {
+            observationMatrixGeneration++;
+            observationMatrixCache.keySet().removeAll(patientUuids);
+        }
+    }
+
+    private void invalidateAllObservationMatrices() {
+        synchronized (observationMatrixCache) {
+            observationMatrixGeneration++;
+            observationMatrixCache.clear();
+        }
+    }
+
     private Encounters groupByEncounters(List<Observation> observationsByPatient) throws IOException {
         inflateConcepts(observationsByPatient);
         inflateEncounters(observationsByPatient);
@@ -221,45 +315,43 @@ public class ObservationController {
         }
     }
 
+    /**
+     * Downloads the observations of the patients and concepts which changed since they were
+     * recorded as downloaded with {@link #recordObservationsDownloaded(List, List, Date)}
+     */
     public List<Observation> downloadObservationsByPatientUuidsAndConceptUuids(List<String> patientUuids, List<String> conceptUuids,String activeSetupConfigUuid) throws DownloadObservationException {
         try {
-            String paramSignature = buildParamSignature(patientUuids, conceptUuids);
-            Date lastSyncTime = lastSyncTimeService.getLastSyncTimeFor(DOWNLOAD_OBSERVATIONS, paramSignature);
             List<Observation> observations = new ArrayList<>();
-            if (hasExactCallBeenMadeBefore(lastSyncTime)) {
-                observations.addAll(observationService.downloadObservationsAndSetupConfig(patientUuids, conceptUuids, lastSyncTime, activeSetupConfigUuid));
-            } else {
-
-                LastSyncTime fullLastSyncTimeInfo = lastSyncTimeService.getFullLastSyncTimeInfoFor(DOWNLOAD_OBSERVATIONS);
-                if (isFirstCallToDownloadObservationsEver(fullLastSyncTimeInfo)) {
-                    observations.addAll(observationService.downloadObservationsAndSetupConfig(patientUuids, conceptUuids, null, activeSetupConfigUuid));
-                } else {
-                    String[] parameterSplit = fullLastSyncTimeInfo.getParamSignature().split(UUID_TYPE_SEPARATOR, -1);
-                    List<String> knownPatientsUuid = asList(parameterSplit[0].split(UUID_SEPARATOR));
-                    List<String> newPatientsUuids = getNewUuids(patientUuids, knownPatientsUuid);
-                    List<String> knownConceptsUuid = asList(parameterSplit[1].split(UUID_SEPARATOR));
-                    List<String> newConceptsUuids = getNewUuids(conceptUuids, knownConceptsUuid);
-                    List<String> allConceptsUuids = getAllUuids(knownConceptsUuid, newConceptsUuids);
-                    List<String> allPatientsUuids = getAllUuids(knownPatientsUuid, newPatientsUuids);
-                    paramSignature = buildParamSignature(allPatientsUuids, allConceptsUuids);
-                    if(newPatientsUuids.size()!=0) {
-                        observations = observationService.downloadObservationsAndSetupConfig(newPatientsUuids, allConceptsUuids, null, activeSetupConfigUuid);
-                        observations.addAll(observationService.downloadObservationsAndSetupConfig(knownPatientsUuid, newConceptsUuids, null, activeSetupConfigUuid));
-                        observations.addAll(observationService.downloadObservationsAndSetupConfig(knownPatientsUuid, knownConceptsUuid, fullLastSyncTimeInfo.getLastSyncDate(), activeSetupConfigUuid));
-                    }
-                    else{
-                        observations.addAll(observationService.downloadObservationsAndSetupConfig(patientUuids, conceptUuids, fullLastSyncTimeInfo.getLastSyncDate(),activeSetupConfigUuid));
-                    }
-                }
+            for (ObservationSyncWatermarkStore.Download download : getWatermarkStore().plan(patientUuids, conceptUuids)) {
+                observations.addAll(observationService.downloadObservationsAndSetupConfig(download.getPatientUuids(),
+                        download.getConceptUuids(), download.getSince(), activeSetupConfigUuid));
             }
-            LastSyncTime newLastSyncTime = new LastSyncTime(DOWNLOAD_OBSERVATIONS, sntpService.getTimePerDeviceTimeZone(), paramSignature);
-            lastSyncTimeService.saveLastSyncTime(newLastSyncTime);
             return observations;
         } catch (IOException e) {
             throw new DownloadObservationException(e);
         }
     }
 
+    /**
+     * @return the time to record a download started now with, once its observations are saved
+     */
+    public Date getObservationSyncTime() {
+        return sntpService.getTimePerDeviceTimeZone();
+    }
+
+    /**
+     * Records that the observations of the patients and concepts downloaded as of the sync time
+     * are saved, later downloads only ask for what changed since then
+     */
+    public void recordObservationsDownloaded(List<String> patientUuids, List<String> conceptUuids, Date syncTime) throws SaveObservationException {
+        try {
+            getWatermarkStore().recordSync(patientUuids, conceptUuids, syncTime);
+            lastSyncTimeService.saveLastSyncTime(new LastSyncTime(DOWNLOAD_OBSERVATIONS, syncTime, WATERMARK_PARAM_SIGNATURE));
+        } catch (IOException e) {
+            throw new SaveObservationException(e);
+        }
+    }
+
     public List<Observation> downloadObservationsForAddedConceptsByPatientUuidsAndConceptUuids(List<String> patientUuids, List<String> conceptUuids,String activeSetupConfigUuid) throws DownloadObservationException {
         List<Observation> observations = new ArrayList<>();
         try {
@@ -271,38 +363,60 @@ public class ObservationController {
         return observations;
     }
 
-    private ArrayList<String> getAllUuids(List<String> knownUuids, List<String> newUuids) {
-        HashSet<String> allUuids = new HashSet<>(knownUuids);
-        allUuids.addAll(newUuids);
-        ArrayList<String> sortedUuids = new ArrayList<>(allUuids);
-        Collections.sort(sortedUuids);
-        return sortedUuids;
-    }
-
-    private List<String> getNewUuids(List<String> patientUuids, List<String> knownPatientsUuid) {
-        List<String> newPatientsUuids = new ArrayList<>(patientUuids);
-        newPatientsUuids.removeAll(knownPatientsUuid);
-        return newPatientsUuids;
+    /**
+     * Forgets the download watermarks of patients whose observations were deleted
+     */
+    public void forgetPatientsDownloaded(Collection<String> patientUuids) {
+        try {
+            getWatermarkStore().forgetPatients(patientUuids);
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not forget observation sync watermarks", e);
+        }
     }
 
-    private boolean isFirstCallToDownloadObservationsEver(LastSyncTime fullLastSyncTimeInfo) {
-        return fullLastSyncTimeInfo == null;
+    /**
+     * Forgets the download watermarks of concepts whose observations were deleted
+     */
+    public void forgetConceptsDownloaded(Collection<String> conceptUuids) {
+        try {
+            getWatermarkStore().forgetConcepts(conceptUuids);
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not forget observation sync watermarks", e);
+        }
     }
 
-    private boolean hasExactCallBeenMadeBefore(Date lastSyncTime) {
-        return lastSyncTime != null;
+    /**
+     * Forgets all download watermarks once all observations were deleted
+     */
+    public synchronized void clearObservationsDownloaded() {
+        if (watermarkStore == null) {
+            watermarkStore = new ObservationSyncWatermarkStore(watermarkFile);
+        }
+        watermarkStore.clear();
     }
 
-    private String buildParamSignature(List<String> patientUuids, List<String> conceptUuids) {
-        String paramSignature = StringUtils.getCommaSeparatedStringFromList(patientUuids);
-        paramSignature += UUID_TYPE_SEPARATOR;
-        paramSignature += StringUtils.getCommaSeparatedStringFromList(conceptUuids);
-        return paramSignature;
+    private synchronized ObservationSyncWatermarkStore getWatermarkStore() throws IOException {
+        if (watermarkStore == null) {
+            ObservationSyncWatermarkStore store = new ObservationSyncWatermarkStore(watermarkFile);
+            if (!store.load()) {
+                // carry over the single watermark kept by earlier versions in the last sync time signature
+                LastSyncTime fullLastSyncTimeInfo = lastSyncTimeService.getFullLastSyncTimeInfoFor(DOWNLOAD_OBSERVATIONS);
+                if (fullLastSyncTimeInfo != null && fullLastSyncTimeInfo.getParamSignature() != null
+                        && fullLastSyncTimeInfo.getParamSignature().contains(UUID_TYPE_SEPARATOR)) {
+                    String[] parameterSplit = fullLastSyncTimeInfo.getParamSignature().split(UUID_TYPE_SEPARATOR, -1);
+                    store.recordSync(asList(parameterSplit[0].split(UUID_SEPARATOR)),
+                            asList(parameterSplit[1].split(UUID_SEPARATOR)), fullLastSyncTimeInfo.getLastSyncDate());
+                }
+            }
+            watermarkStore = store;
+        }
+        return watermarkStore;
     }
 
     public void saveObservations(List<Observation> observations) throws SaveObservationException {
         try {
             observationService.saveObservations(observations);
+            invalidateObservationMatrices(observations);
         } catch (IOException e) {
             throw new SaveObservationException(e);
         }
@@ -311,6 +425,7 @@ public class ObservationController {
     public void deleteObservations(List<Observation> observations) throws DeleteObservationException {
         try {
             observationService.deleteObservations(observations);
+            invalidateObservationMatrices(observations);
         } catch (IOException e) {
             throw new DeleteObservationException(e);
         }
@@ -319,6 +434,12 @@ public class ObservationController {
     public void deleteAllObservations(List<Concept> concepts) throws DeleteObservationException {
         try {
             observationService.deleteObservations(getObservations(concepts));
+            invalidateAllObservationMatrices();
+            List<String> conceptUuids = new ArrayList<>();
+            for (Concept concept : concepts) {
+                conceptUuids.add(concept.getUuid());
+            }
+            getWatermarkStore().forgetConcepts(conceptUuids);
         } catch (IOException e) {
             throw new DeleteObservationException(e);
         }
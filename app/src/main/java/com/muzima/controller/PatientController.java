@@ -24,15 +24,20 @@ import com.muzima.api.service.FormService;
 import com.muzima.api.service.ObservationService;
 import com.muzima.api.service.PatientService;
 import com.muzima.api.service.PatientTagService;
+import com.muzima.service.PatientListIndex;
 import com.muzima.utils.CustomColor;
 import com.muzima.utils.StringUtils;
 import org.apache.lucene.queryParser.ParseException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
 
 import static com.muzima.util.Constants.PATIENT_DELETION_PENDING_STATUS;
 import static com.muzima.utils.Constants.LOCAL_PATIENT;
@@ -52,9 +57,20 @@ public class PatientController {
     private FormService formService;
     private PatientTagService patientTagService;
     private ObservationService observationService;
+    private PatientListIndex patientListIndex;
+    private ObservationController observationController;
+    private final Object patientTagsLock = new Object();
 
 
     public PatientController(PatientService patientService, CohortService cohortService, FormService formService, PatientTagService patientTagService, ObservationService observationService) {
+        this(patientService, cohortService, formService, patientTagService, observationService, null);
+    }
+
+    /**
+     * @param observationController forgets the observation download watermarks of deleted patients, may be null
+     */
+    public PatientController(PatientService patientService, CohortService cohortService, FormService formService, PatientTagService patientTagService,
+                             ObservationService observationService, ObservationController observationController) {
         this.patientService = patientService;
         this.cohortService = cohortService;
         tagColors = new HashMap<>();
@@ -62,11 +78,13 @@ public class PatientController {
         this.formService = formService;
         this.patientTagService = patientTagService;
         this.observationService = observationService;
+        this.observationController = observationController;
     }
 
     public void replacePatients(List<Patient> patients) throws PatientSaveException {
         try {
             patientService.updatePatients(patients);
+            updatePatientListIndex(patients);
         } catch (IOException e) {
             throw new PatientSaveException(e);
         }
@@ -201,6 +219,7 @@ public class PatientController {
     public void savePatient(Patient patient) throws PatientSaveException {
         try {
             patientService.savePatient(patient);
+            updatePatientListIndex(Collections.singletonList(patient));
         } catch (IOException e) {
             Log.e(getClass().getSimpleName(), "Error while saving the patient : " + patient.getUuid(), e);
             throw new PatientSaveException(e);
@@ -210,6 +229,7 @@ public class PatientController {
     public void updatePatient(Patient patient) throws PatientSaveException {
         try {
             patientService.updatePatient(patient);
+            updatePatientListIndex(Collections.singletonList(patient));
         } catch (IOException e) {
             Log.e(getClass().getSimpleName(), "Error while updating the patient : " + patient.getUuid(), e);
             throw new PatientSaveException(e);
@@ -223,6 +243,7 @@ public class PatientController {
     public void savePatients(List<Patient> patients) throws PatientSaveException {
         try {
             patientService.savePatients(patients);
+            updatePatientListIndex(patients);
         } catch (IOException e) {
             Log.e(getClass().getSimpleName(), "Error while saving the patient list", e);
             throw new PatientSaveException(e);
@@ -233,6 +254,7 @@ public class PatientController {
         try {
 
             patientService.savePatients(patients);
+            updatePatientListIndex(patients);
         } catch (IOException e) {
             Log.e(getClass().getSimpleName(), "Error while saving the patient list", e);
             throw new PatientSaveException(e);
@@ -277,8 +299,22 @@ public class PatientController {
     }
 
     public void deleteAllPatients() throws IOException {
-        List<Patient> allPatients = patientService.getAllPatients();
-        patientService.deletePatients(allPatients);
+        try {
+            List<Patient> allPatients = patientService.getAllPatients();
+            patientService.deletePatients(allPatients);
+        } finally {
+            clearPatientListIndex();
+        }
+    }
+
+    /**
+     * Empties the patient list, e.g. once all patients were deleted from the device.
+     */
+    public synchronized void clearPatientListIndex() {
+        if (patientListIndex != null) {
+            patientListIndex.clear();
+        }
+        patientListIndex = null;
     }
 
     public PatientIdentifierType getPatientIdentifierTypeByUuid(String uuid){
@@ -360,6 +396,14 @@ public class PatientController {
         this.selectedTags = selectedTags;
     }
 
+    /**
+     * Tags are updated by loading patients, changing their tags and saving them back. Updates hold
+     * this lock meanwhile so that one does not overwrite the tags another just saved.
+     */
+    public Object getPatientTagsLock() {
+        return patientTagsLock;
+    }
+
     public List<PatientTag> getAllTags() throws PatientLoadException {
         List<PatientTag> allTags = new ArrayList<>();
         try {
@@ -379,6 +423,83 @@ public class PatientController {
         return tags;
     }
 
+    /**
+     * Lists the members of the given cohorts, or all patients if there are none, having the given
+     * tags, sorted by name. The patients only hold what the patient list shows.
+     */
+    public List<Patient> getPatientsForList(List<String> cohortUuids, List<String> tagUuids) throws PatientLoadException {
+        try {
+            return getPatientListIndex(cohortUuids).getPatients(cohortUuids, tagUuids);
+        } catch (IOException e) {
+            throw new PatientLoadException(e);
+        }
+    }
+
+    /**
+     * Searches the names and identifiers of the members of the given cohorts, or of all patients
+     * if there are none, best matches first. The patients only hold what the patient list shows.
+     *
+     * @param cancelled checked while searching, so that a search overtaken by a newer one stops early
+     */
+    public List<Patient> searchPatientsForList(String term, List<String> cohortUuids, int page, int pageSize,
+                                               BooleanSupplier cancelled) throws PatientLoadException {
+        try {
+            return getPatientListIndex(cohortUuids).search(term, cohortUuids, page, pageSize, cancelled);
+        } catch (IOException e) {
+            throw new PatientLoadException(e);
+        }
+    }
+
+    /**
+     * Drops the patient list so that it is read again from the store, e.g. after patients
+     * or cohort memberships were changed without going through this controller.
+     */
+    public synchronized void invalidatePatientListIndex() {
+        patientListIndex = null;
+    }
+
+    public void invalidatePatientListCohorts() {
+        PatientListIndex index = patientListIndex;
+        if (index != null) {
+            index.clearCohorts();
+        }
+    }
+
+    private synchronized PatientListIndex getPatientListIndex(List<String> cohortUuids) throws IOException {
+        if (patientListIndex == null) {
+            PatientListIndex index = new PatientListIndex();
+            index.reset(patientService.getAllPatients());
+            patientListIndex = index;
+        }
+        for (String cohortUuid : cohortUuids) {
+            if (!patientListIndex.hasCohort(cohortUuid)) {
+                List<String> memberUuids = new ArrayList<>();
+                for (CohortMember cohortMember : cohortService.getCohortMembers(cohortUuid)) {
+                    memberUuids.add(cohortMember.getPatientUuid());
+                }
+                patientListIndex.setCohortMembers(cohortUuid, memberUuids);
+            }
+        }
+        return patientListIndex;
+    }
+
+    /**
+     * Updates the patient list after patients were saved without going through this controller.
+     */
+    public void updatePatientListIndex(List<Patient> patients) {
+        PatientListIndex index = patientListIndex;
+        if (index != null) {
+            index.putAll(patients);
+        }
+    }
+
+    public void removeFromPatientListIndex(String patientUuid) {
+        PatientListIndex index = patientListIndex;
+        if (index != null) {
+            index.remove(patientUuid);
+        }
+    }
+
     public List<Patient> filterPatientByTags(List<Patient> patients, List<String> tagsUuid) {
         if (tagsUuid == null || tagsUuid.isEmpty()) {
             return patients;
@@ -398,21 +519,21 @@ public class PatientController {
             tagsUuid.remove(AWAITING_ASSIGNMENT_TAG_UUID);
         }
 
+        Set<String> tags = new HashSet<>(tagsUuid);
         List<Patient> filteredPatients = new ArrayList<>();
         for (Patient patient : patients) {
             PatientTag[] patientTags = patient.getTags();
-            if (tagsUuid.isEmpty()) {
-                filteredPatients.add(patient);
-            } else {
+            boolean included = tags.isEmpty();
+            if (!included) {
                 for (PatientTag patientTag : patientTags) {
-                    if (tagsUuid.contains(patientTag.getUuid())) {
-                        filteredPatients.add(patient);
+                    if (tags.contains(patientTag.getUuid())) {
+                        included = true;
                         break;
                     }
                 }
             }
 
-            if(isPartnerTagNeeded && filteredPatients.contains(patient)){
+            if(isPartnerTagNeeded && included){
                 boolean hasPartnerTag = false;
                 for (PatientTag patientTag : patientTags) {
                     if(HAS_SEXUAL_PARTNER_TAG_UUID.equals(patientTag.getUuid())){
@@ -420,11 +541,9 @@ public class PatientController {
                         break;
                     }
                 }
-                if(!hasPartnerTag){
-                    filteredPatients.remove(patient);
-                }
+                included = hasPartnerTag;
             }
-            if((isAlTagsNeeded || isAaTagsNeeded) && filteredPatients.contains(patient)){
+            if((isAlTagsNeeded || isAaTagsNeeded) && included){
                 boolean hasAlAaTag = false;
                 for (PatientTag patientTag : patientTags) {
 
@@ -434,9 +553,10 @@ public class PatientController {
                         break;
                     }
                 }
-                if(!hasAlAaTag){
-                    filteredPatients.remove(patient);
-                }
+                included = hasAlAaTag;
+            }
+            if (included) {
+                filteredPatients.add(patient);
             }
         }
         return filteredPatients;
@@ -457,14 +577,17 @@ public class PatientController {
         int formCount = getFormDataCount(patient.getUuid());
         if(formCount == 0 ){
             patientService.deletePatient(patient);
+            removeFromPatientListIndex(patient.getUuid());
             List<Observation> observations = observationService.getObservationsByPatient(patient);
             if(observations.size()>0) {
                 observationService.deleteObservations(observations);
             }
+            forgetObservationsDownloaded(patient.getUuid());
         }else{
             Patient pat = patientService.getPatientByUuid(patient.getUuid());
             pat.setDeletionStatus(PATIENT_DELETION_PENDING_STATUS);
             patientService.updatePatient(pat);
+            updatePatientListIndex(Collections.singletonList(pat));
         }
     }
 
@@ -475,10 +598,12 @@ public class PatientController {
                 int formCount = getFormDataCount(patient.getUuid());
                 if(formCount == 0){
                     patientService.deletePatient(patient);
+                    removeFromPatientListIndex(patient.getUuid());
                     List<Observation> observations = observationService.getObservationsByPatient(patient);
                     if(observations.size()>0) {
                         observationService.deleteObservations(observations);
                     }
+                    forgetObservationsDownloaded(patient.getUuid());
                 }
             }
         } catch (IOException e) {
@@ -488,6 +613,12 @@ public class PatientController {
         }
     }
 
+    private void forgetObservationsDownloaded(String patientUuid) {
+        if (observationController != null) {
+            observationController.forgetPatientsDownloaded(Collections.singletonList(patientUuid));
+        }
+    }
+
     public int getFormDataCount(String patientUuid) throws IOException {
         int incompleteFormCount = formService.countFormDataByPatient(patientUuid,STATUS_INCOMPLETE);
         int completeFormCount = formService.countFormDataByPatient(patientUuid,STATUS_COMPLETE);
@@ -14,7 +14,7 @@ import android.util.Log;
 import com.muzima.api.model.FormTemplate;
 import com.muzima.api.model.Provider;
 import com.muzima.api.service.ProviderService;
-import com.muzima.service.HTMLProviderParser;
+import com.muzima.service.FormTemplateCache;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -168,11 +168,10 @@ public class ProviderController {
     }
     public List<Provider> getRelatedProviders(List<FormTemplate> formTemplates, String systemId) throws ProviderDownloadException, ProviderLoadException {
         HashSet<Provider> providers = new HashSet<>();
-        HTMLProviderParser htmlParserUtils = new HTMLProviderParser();
         for (FormTemplate formTemplate : formTemplates) {
             List<String> names = new ArrayList<>();
             if (formTemplate.isHTMLForm()) {
-                names = htmlParserUtils.parse(formTemplate.getHtml());
+                names = FormTemplateCache.getInstance().getProviderNames(formTemplate);
             } else {
                 // names = xmlParserUtils.parse(formTemplate.getModelXml());
             }
@@ -18,23 +18,40 @@ import com.muzima.api.model.RelationshipType;
 import com.muzima.api.service.PatientService;
 import com.muzima.api.service.PersonService;
 import com.muzima.api.service.RelationshipService;
+import com.muzima.tasks.ParallelDownloader;
 import com.muzima.utils.StringUtils;
 import org.apache.lucene.queryParser.ParseException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class RelationshipController {
 
     private final RelationshipService relationshipService;
     private final PersonService personService;
     private final PatientService patientService;
+    private final ParallelDownloader<List<Relationship>> relationshipDownloader;
 
     public RelationshipController(MuzimaApplication muzimaApplication) throws IOException {
-        this.relationshipService = muzimaApplication.getMuzimaContext().getRelationshipService();
-        this.personService = muzimaApplication.getMuzimaContext().getPersonService();
-        patientService = muzimaApplication.getMuzimaContext().getPatientService();
+        this(muzimaApplication.getMuzimaContext().getRelationshipService(),
+                muzimaApplication.getMuzimaContext().getPersonService(),
+                muzimaApplication.getMuzimaContext().getPatientService(),
+                new ParallelDownloader<List<Relationship>>("RelationshipDownload"));
+    }
+
+    RelationshipController(RelationshipService relationshipService, PersonService personService,
+                           PatientService patientService, ParallelDownloader<List<Relationship>> relationshipDownloader) {
+        this.relationshipService = relationshipService;
+        this.personService = personService;
+        this.patientService = patientService;
+        this.relationshipDownloader = relationshipDownloader;
     }
 
     /********************************************************************************************************
@@ -108,25 +125,6 @@ public class RelationshipController {
         }
     }
 
-    private void saveRelationshipTypesAndPersonsFromRelationships(List<Relationship> relationships) {
-
-        // if the relationship has a new type we save it to the local repo
-        try{
-            for (Relationship relationship : relationships) {
-                if (getRelationshipTypeByUuid(relationship.getRelationshipType().getUuid()) == null)
-                    saveRelationshipType(relationship.getRelationshipType());
-
-                if (personService.getPersonByUuid(relationship.getPersonA().getUuid()) == null)
-                    personService.savePerson(relationship.getPersonA());
-
-                if (personService.getPersonByUuid(relationship.getPersonB().getUuid()) == null)
-                    personService.savePerson(relationship.getPersonB());
-            }
-        } catch (SaveRelationshipTypeException | RetrieveRelationshipTypeException | IOException e) {
-            Log.e(getClass().getSimpleName(), "Error in saving the relationship type list while saving relationship", e);
-        }
-    }
-
     /********************************************************************************************************
      *                               METHODS FOR RELATIONSHIPS
      *********************************************************************************************************/
@@ -139,6 +137,41 @@ public class RelationshipController {
         }
     }
 
+    /**
+     * Downloads the relationships of several persons with a bounded number of requests in flight
+     * @return the relationships of the persons, each relationship once even when it is between two of them
+     */
+    public List<Relationship> downloadRelationshipsForPersons(List<String> personUuids) throws RetrieveRelationshipException {
+        try {
+            Map<String, Relationship> relationships = new LinkedHashMap<>();
+            for (List<Relationship> personRelationships : relationshipDownloader.download(
+                    personUuids.toArray(new String[personUuids.size()]), relationshipService::downloadRelationshipsForPerson)) {
+                if (personRelationships != null) {
+                    for (Relationship relationship : personRelationships) {
+                        relationships.put(relationship.getUuid(), relationship);
+                    }
+                }
+            }
+            return new ArrayList<>(relationships.values());
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Error while downloading relationships for " + personUuids.size() + " persons from server", e);
+            throw new RetrieveRelationshipException(e);
+        }
+    }
+
+    /**
+     * Loads the relationships, relationship types and persons stored on the device once, to
+     * reconcile the relationships downloaded during a sync against them
+     */
+    public RelationshipReconciliation startRelationshipReconciliation() throws RetrieveRelationshipException {
+        try {
+            return new RelationshipReconciliation(relationshipService.getAllRelationships(),
+                    relationshipService.getAllRelationshipTypes(), personService.getAllPersons());
+        } catch (IOException e) {
+            throw new RetrieveRelationshipException(e);
+        }
+    }
+
     /**
      * Save a single relationship to the local repo
      * @param relationship list of {@link Relationship}
@@ -180,36 +213,6 @@ public class RelationshipController {
         }
     }
 
-    /**
-     * Save a list of relationships to the local repo
-     * @param relationships list of {@link Relationship}
-     * @throws SaveRelationshipException Relationship Save Exception
-     */
-    public void saveRelationships(List<Relationship> relationships, String personUuid) throws SaveRelationshipException, SearchRelationshipException {
-        try {
-            List<Relationship> syncedRelationshipsForPatient = relationshipService.getRelationshipsForPerson(personUuid);
-            if (syncedRelationshipsForPatient.size() > 0) {
-                List<Relationship> syncedRelationshipsForPatientToDelete = new ArrayList<>();
-                for (Relationship relationship : syncedRelationshipsForPatient) {
-                    if (relationship.getSynced())
-                        syncedRelationshipsForPatientToDelete.add(relationship);
-                }
-                relationshipService.deleteRelationships(syncedRelationshipsForPatientToDelete);
-            }
-
-            for (Relationship relationship : relationships) {
-                if (relationshipService.getRelationshipByUuid(relationship.getUuid()) != null)
-                    relationshipService.deleteRelationship(relationship);
-            }
-            relationshipService.saveRelationships(relationships);
-
-            saveRelationshipTypesAndPersonsFromRelationships(relationships);
-        } catch (IOException e) {
-            Log.e(getClass().getSimpleName(), "Error while saving the relationships list", e);
-            throw new SaveRelationshipException(e);
-        }
-    }
-
     public List<Relationship>  getRelationshipsForPerson(String personUuid) throws RetrieveRelationshipException{
         try {
             List<Relationship>  relationships = relationshipService.getRelationshipsForPerson(personUuid);
@@ -242,6 +245,17 @@ public class RelationshipController {
         }
     }
 
+    /**
+     * @return all relationships stored on the device, without loading the related persons
+     */
+    public List<Relationship> getAllRelationships() throws RetrieveRelationshipException {
+        try {
+            return relationshipService.getAllRelationships();
+        } catch (IOException e) {
+            throw new RetrieveRelationshipException(e);
+        }
+    }
+
     public List<Relationship>  getPersonRelationshipsByType(String personUuid, String relationshipTypeUuid) throws RetrieveRelationshipException, SearchRelationshipException {
         try {
             return relationshipService.getPersonRelationshipsByType(personUuid, relationshipTypeUuid);
@@ -311,6 +325,122 @@ public class RelationshipController {
         }
     }
 
+    /**
+     * The relationships stored on the device while a sync reconciles the downloaded ones against them
+     */
+    public class RelationshipReconciliation {
+        private final Map<String, Relationship> localRelationships = new HashMap<>();
+        private final Map<String, Map<String, Relationship>> localRelationshipsByPerson = new HashMap<>();
+        private final Set<String> relationshipTypeUuids = new HashSet<>();
+        private final Set<String> personUuids = new HashSet<>();
+
+        RelationshipReconciliation(List<Relationship> relationships, List<RelationshipType> relationshipTypes, List<Person> persons) {
+            for (Relationship relationship : relationships) {
+                addLocal(relationship);
+            }
+            for (RelationshipType relationshipType : relationshipTypes) {
+                relationshipTypeUuids.add(relationshipType.getUuid());
+            }
+            for (Person person : persons) {
+                personUuids.add(person.getUuid());
+            }
+        }
+
+        /**
+         * Makes the synced relationships of the persons those downloaded for them: deletes the ones
+         * the server no longer has and replaces the rest in one delete and one save, then saves the
+         * relationship types and persons which are new to the device
+         */
+        public void reconcile(Collection<String> personUuids, List<Relationship> downloadedRelationships) throws SaveRelationshipException {
+            Map<String, Relationship> downloaded = new LinkedHashMap<>();
+            for (Relationship relationship : downloadedRelationships) {
+                downloaded.put(relationship.getUuid(), relationship);
+            }
+
+            Map<String, Relationship> toDelete = new LinkedHashMap<>();
+            for (String personUuid : personUuids) {
+                Map<String, Relationship> personRelationships = localRelationshipsByPerson.get(personUuid);
+                if (personRelationships != null) {
+                    for (Relationship relationship : personRelationships.values()) {
+                        if (relationship.getSynced() && !downloaded.containsKey(relationship.getUuid())) {
+                            toDelete.put(relationship.getUuid(), relationship);
+                        }
+                    }
+                }
+            }
+            for (String uuid : downloaded.keySet()) {
+                Relationship local = localRelationships.get(uuid);
+                if (local != null) {
+                    toDelete.put(uuid, local);
+                }
+            }
+
+            Map<String, RelationshipType> newRelationshipTypes = new LinkedHashMap<>();
+            Map<String, Person> newPersons = new LinkedHashMap<>();
+            for (Relationship relationship : downloaded.values()) {
+                RelationshipType relationshipType = relationship.getRelationshipType();
+                if (!relationshipTypeUuids.contains(relationshipType.getUuid())) {
+                    newRelationshipTypes.put(relationshipType.getUuid(), relationshipType);
+                }
+                for (Person person : new Person[]{relationship.getPersonA(), relationship.getPersonB()}) {
+                    if (!this.personUuids.contains(person.getUuid())) {
+                        newPersons.put(person.getUuid(), person);
+                    }
+                }
+            }
+
+            try {
+                if (!toDelete.isEmpty()) {
+                    relationshipService.deleteRelationships(new ArrayList<>(toDelete.values()));
+                    for (Relationship relationship : toDelete.values()) {
+                        removeLocal(relationship);
+                    }
+                }
+                if (!downloaded.isEmpty()) {
+                    relationshipService.saveRelationships(new ArrayList<>(downloaded.values()));
+                    for (Relationship relationship : downloaded.values()) {
+                        addLocal(relationship);
+                    }
+                }
+                if (!newRelationshipTypes.isEmpty()) {
+                    relationshipService.saveRelationshipTypes(new ArrayList<>(newRelationshipTypes.values()));
+                    relationshipTypeUuids.addAll(newRelationshipTypes.keySet());
+                }
+                // there is no bulk save of persons, only the new ones are saved
+                for (Person person : newPersons.values()) {
+                    personService.savePerson(person);
+                    this.personUuids.add(person.getUuid());
+                }
+            } catch (IOException e) {
+                Log.e(getClass().getSimpleName(), "Error while saving the relationships of " + personUuids.size() + " persons", e);
+                throw new SaveRelationshipException(e);
+            }
+        }
+
+        private void addLocal(Relationship relationship) {
+            localRelationships.put(relationship.getUuid(), relationship);
+            for (Person person : new Person[]{relationship.getPersonA(), relationship.getPersonB()}) {
+                if (person != null) {
+                    Map<String, Relationship> personRelationships = localRelationshipsByPerson.get(person.getUuid());
+                    if (personRelationships == null) {
+                        personRelationships = new LinkedHashMap<>();
+                        localRelationshipsByPerson.put(person.getUuid(), personRelationships);
+                    }
+                    personRelationships.put(relationship.getUuid(), relationship);
+                }
+            }
+        }
+
+        private void removeLocal(Relationship relationship) {
+            localRelationships.remove(relationship.getUuid());
+            for (Person person : new Person[]{relationship.getPersonA(), relationship.getPersonB()}) {
+                if (person != null && localRelationshipsByPerson.containsKey(person.getUuid())) {
+                    localRelationshipsByPerson.get(person.getUuid()).remove(relationship.getUuid());
+                }
+            }
+        }
+    }
+
     /********************************************************************************************************
      *                               METHODS FOR EXCEPTION HANDLING
      *********************************************************************************************************/
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.model;
+
+import com.muzima.api.model.Concept;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.muzima.utils.ConceptUtils.getConceptNameFromConceptNamesByLocale;
+
+/**
+ * The concepts on the device keyed by uuid and by id, with the name of each concept in a
+ * language resolved once and then kept.
+ */
+public class ConceptDictionary {
+    private final Map<String, Concept> conceptsByUuid = new HashMap<>();
+    private final Map<Integer, Concept> conceptsById = new HashMap<>();
+    private final Map<String, Map<String, String>> namesByLanguage = new HashMap<>();
+
+    public ConceptDictionary(List<Concept> concepts) {
+        for (Concept concept : concepts) {
+            conceptsByUuid.put(concept.getUuid(), concept);
+            conceptsById.put(concept.getId(), concept);
+        }
+    }
+
+    public Concept getConceptByUuid(String uuid) {
+        return conceptsByUuid.get(uuid);
+    }
+
+    public Concept getConceptById(int id) {
+        return conceptsById.get(id);
+    }
+
+    /**
+     * @return the name of the concept in the given language, or null if the concept is not on the device
+     */
+    public synchronized String getConceptName(String uuid, String language) {
+        Map<String, String> names = namesByLanguage.get(language);
+        if (names == null) {
+            names = new HashMap<>();
+            namesByLanguage.put(language, names);
+        }
+        String name = names.get(uuid);
+        if (name == null) {
+            Concept concept = conceptsByUuid.get(uuid);
+            if (concept == null || concept.getConceptNames() == null || concept.getConceptNames().isEmpty()) {
+                return null;
+            }
+            name = getConceptNameFromConceptNamesByLocale(concept.getConceptNames(), language);
+            names.put(uuid, name);
+        }
+        return name;
+    }
+
+    public int size() {
+        return conceptsByUuid.size();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.model.events;
+
+public class SyncProgressEvent {
+    public static final String PHASE_OBSERVATIONS = "observations";
+    public static final String PHASE_RELATIONSHIPS = "relationships";
+
+    private final String phase;
+    private final String message;
+    private final int done;
+    private final int total;
+    private final double itemsPerSecond;
+    private final long etaMillis;
+
+    public SyncProgressEvent(String phase, String message, int done, int total, double itemsPerSecond, long etaMillis) {
+        this.phase = phase;
+        this.message = message;
+        this.done = done;
+        this.total = total;
+        this.itemsPerSecond = itemsPerSecond;
+        this.etaMillis = etaMillis;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getDone() {
+        return done;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public double getItemsPerSecond() {
+        return itemsPerSecond;
+    }
+
+    /**
+     * @return the estimated time until the phase is done, -1 while there is no rate to estimate it from
+     */
+    public long getEtaMillis() {
+        return etaMillis;
+    }
+}
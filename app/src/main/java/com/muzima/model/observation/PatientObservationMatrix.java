@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.model.observation;
+
+import com.muzima.api.model.Observation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The observations of a patient bucketed by concept and by day, the days being the columns of
+ * the observation table, most recent first. Each cell holds the last observation of its concept
+ * on that day, in the order the observations were given.
+ */
+public class PatientObservationMatrix {
+    private final String patientUuid;
+    private final Date[] columnDates;
+    private final Map<String, Observation[]> rowsByConceptUuid = new HashMap<>();
+
+    public PatientObservationMatrix(String patientUuid, List<Observation> observations) {
+        this.patientUuid = patientUuid;
+        Calendar calendar = Calendar.getInstance();
+        Map<Integer, Date> datesByDayKey = new HashMap<>();
+        int[] dayKeys = new int[observations.size()];
+        for (int i = 0; i < observations.size(); i++) {
+            Date observationDatetime = observations.get(i).getObservationDatetime();
+            if (observationDatetime != null) {
+                dayKeys[i] = dayKeyOf(calendar, observationDatetime);
+                Date date = datesByDayKey.get(dayKeys[i]);
+                if (date == null || observationDatetime.after(date)) {
+                    datesByDayKey.put(dayKeys[i], observationDatetime);
+                }
+            }
+        }
+
+        Integer[] sortedDayKeys = datesByDayKey.keySet().toArray(new Integer[0]);
+        Arrays.sort(sortedDayKeys, (dayKey1, dayKey2) -> dayKey2.compareTo(dayKey1));
+        columnDates = new Date[sortedDayKeys.length];
+        Map<Integer, Integer> columnsByDayKey = new HashMap<>();
+        for (int column = 0; column < sortedDayKeys.length; column++) {
+            columnDates[column] = datesByDayKey.get(sortedDayKeys[column]);
+            columnsByDayKey.put(sortedDayKeys[column], column);
+        }
+
+        for (int i = 0; i < observations.size(); i++) {
+            Observation observation = observations.get(i);
+            if (observation.getObservationDatetime() == null || observation.getConcept() == null) {
+                continue;
+            }
+            Observation[] row = rowsByConceptUuid.get(observation.getConcept().getUuid());
+            if (row == null) {
+                row = new Observation[columnDates.length];
+                rowsByConceptUuid.put(observation.getConcept().getUuid(), row);
+            }
+            row[columnsByDayKey.get(dayKeys[i])] = observation;
+        }
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public int getColumnCount() {
+        return columnDates.length;
+    }
+
+    /**
+     * @return the time of the latest observation on the day of the given column
+     */
+    public Date getColumnDate(int column) {
+        return columnDates[column];
+    }
+
+    public boolean hasObservations(String conceptUuid) {
+        return rowsByConceptUuid.containsKey(conceptUuid);
+    }
+
+    /**
+     * @return the observations of the concept by column, null where there is none
+     */
+    public Observation[] getRow(String conceptUuid) {
+        Observation[] row = rowsByConceptUuid.get(conceptUuid);
+        return row == null ? new Observation[columnDates.length] : row;
+    }
+
+    /**
+     * @return the concepts having observations, in no particular order
+     */
+    public List<String> getConceptUuids() {
+        return new ArrayList<>(rowsByConceptUuid.keySet());
+    }
+
+    private static int dayKeyOf(Calendar calendar, Date date) {
+        calendar.setTime(date);
+        return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+    }
+}
@@ -19,6 +19,23 @@ import static com.muzima.util.Constants.ServerSettings.NOTIFICATION_FEATURE_ENAB
 import static com.muzima.util.Constants.ServerSettings.ONLINE_ONLY_MODE_ENABLED_SETTING;
 import static com.muzima.util.Constants.ServerSettings.PATIENT_IDENTIFIER_AUTOGENERATTION_SETTING;
 import static com.muzima.util.Constants.ServerSettings.SHR_FEATURE_ENABLED_SETTING;
+import static com.muzima.scheduler.SyncJobGraph.ResourceClass.LOCAL_STORE;
+import static com.muzima.scheduler.SyncJobGraph.ResourceClass.NETWORK;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.CLEAN_UP_PROCESSED_TEMPORARY_FORM_DATA;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_ALL_PATIENT_REPORT_HEADERS_AND_REPORTS;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_COHORTS_AND_ALL_PATIENTS_FULL_DATA;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_CONCEPTS_AND_OBS_BASED_ON_CHANGES_IN_CONFIG;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_DATASETS;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_FORMS;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_LOCATIONS_BASED_ON_CHANGES_IN_CONFIG;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_MEDIA;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_MEDIA_CATEGORIES;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_OBSERVATIONS;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_PROVIDERS_BASED_ON_CHANGES_IN_CONFIG;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_REAL_TIME_UPLOAD_FORMS;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_RELATIONSHIPS;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SYNC_SETTINGS;
+import static com.muzima.utils.Constants.DataSyncServiceConstants.SyncStatusConstants.AUTHENTICATION_SUCCESS;
 import static com.muzima.utils.Constants.DataSyncServiceConstants.SyncStatusConstants.SUCCESS;
 import static com.muzima.utils.Constants.STANDARD_DATE_TIMEZONE_FORMAT;
 import static com.muzima.utils.DeviceDetailsUtil.generatePseudoDeviceId;
@@ -35,7 +52,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -47,8 +63,10 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.muzima.MuzimaApplication;
 import com.muzima.R;
 import com.muzima.api.model.AppUsageLogs;
+import com.muzima.api.model.FormData;
 import com.muzima.api.model.Location;
 import com.muzima.api.model.MuzimaSetting;
+import com.muzima.api.model.Patient;
 import com.muzima.api.model.Person;
 import com.muzima.api.model.SetupConfigurationTemplate;
 import com.muzima.api.model.User;
@@ -58,6 +76,7 @@ import com.muzima.controller.FormController;
 import com.muzima.controller.LocationController;
 import com.muzima.controller.MuzimaSettingController;
 import com.muzima.controller.SetupConfigurationController;
+import com.muzima.domain.Credentials;
 import com.muzima.service.FormDuplicateCheckPreferenceService;
 import com.muzima.service.MuzimaSyncService;
 import com.muzima.service.OnlineOnlyModePreferenceService;
@@ -65,24 +84,14 @@ import com.muzima.service.RealTimeFormDataSyncPreferenceService;
 import com.muzima.service.RequireMedicalRecordNumberPreferenceService;
 import com.muzima.service.SHRStatusPreferenceService;
 import com.muzima.service.WizardFinishPreferenceService;
+import com.muzima.tasks.MuzimaTaskScheduler;
 import com.muzima.util.JsonUtils;
 import com.muzima.util.MuzimaSettingUtils;
 import com.muzima.utils.Constants;
-import com.muzima.utils.DownloadAndDeleteCohortsBasedOnConfigChangesIntent;
-import com.muzima.utils.DownloadAndDeleteConceptAndObservationBasedOnConfigChangesIntent;
-import com.muzima.utils.DownloadAndDeleteLocationBasedOnConfigChangesIntent;
-import com.muzima.utils.DownloadAndDeleteProvidersBasedOnConfigChangesIntent;
-import com.muzima.utils.ProcessedTemporaryFormDataCleanUpIntent;
+import com.muzima.utils.NetworkUtils;
 import com.muzima.utils.StringUtils;
-import com.muzima.utils.SyncCohortsAndPatientFullDataIntent;
-import com.muzima.utils.SyncDatasetsIntent;
-import com.muzima.utils.SyncMediaCategoryIntent;
-import com.muzima.utils.SyncMediaIntent;
-import com.muzima.utils.SyncSettingsIntent;
 import com.muzima.view.BroadcastListenerActivity;
 import com.muzima.view.MainDashboardActivity;
-import com.muzima.view.forms.SyncFormIntent;
-import com.muzima.view.reports.SyncAllPatientReports;
 
 import org.apache.lucene.queryParser.ParseException;
 
@@ -92,9 +101,12 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressLint("NewApi")
 public class MuzimaJobScheduler extends JobService {
+    // a job started while the sync of the previous one still runs leaves it be
+    private static final AtomicBoolean periodicSyncRunning = new AtomicBoolean(false);
 
     private MuzimaSyncService muzimaSynService;
     private String authenticatedUserUuid;
@@ -194,118 +206,236 @@ public class MuzimaJobScheduler extends JobService {
     private void handleBackgroundWork(JobParameters parameters) {
         if (parameters == null) {
             Log.e(getClass().getSimpleName(), "Parameters for job is null");
+        } else if (!periodicSyncRunning.compareAndSet(false, true)) {
+            Log.i(getClass().getSimpleName(), "Periodic sync of the previous job still running");
         } else {
-            new SyncSetupConfigTemplatesBackgroundTask().execute();
-            new CohortsAndPatientFullDataSyncBackgroundTask().execute();
-            new FormDataUploadBackgroundTask().execute();
-            new ProcessedTemporaryFormDataCleanUpBackgroundTask().execute();
-            new SyncSettingsBackgroundTask().execute();
-            if(muzimaSettingController.isClinicalSummaryEnabled()) {
-                new SyncAllPatientReportsBackgroundTask().execute();
-            }
-            new FormMetaDataSyncBackgroundTask().execute();
+            newPeriodicSyncGraph().start(MuzimaTaskScheduler.getInstance(), report -> {
+                Log.i(getClass().getSimpleName(), report.toString());
+                periodicSyncRunning.set(false);
+                Intent syncCompletedBroadcastIntent = new Intent();
+                syncCompletedBroadcastIntent.setAction(SYNC_COMPLETED_ACTION);
+                LocalBroadcastManager.getInstance(this).sendBroadcast(syncCompletedBroadcastIntent);
+            });
         }
     }
 
-    private class  ProcessedTemporaryFormDataCleanUpBackgroundTask extends AsyncTask<Void,Void,Void>{
+    /**
+     * The setup configuration decides which cohorts, forms, media and concepts are synced, so those
+     * wait for it. Form metadata and patient data are downloaded after the completed forms were
+     * uploaded, even when some did not go up, and the stages which mostly write to the local store
+     * run one at a time.
+     */
+    private SyncJobGraph newPeriodicSyncGraph() {
+        final boolean wizardFinished = new WizardFinishPreferenceService(this).isWizardFinished();
+        final SyncSetupConfigTemplates setupConfigTemplatesSync = new SyncSetupConfigTemplates();
+        final List<String> patientUuids = new ArrayList<>();
+
+        return new SyncJobGraph("PeriodicSync")
+                .addStage("authenticate", NETWORK, this::authenticate)
+                .addStage("setupConfigTemplates", NETWORK, setupConfigTemplatesSync::sync, "authenticate")
+                .addStage("settings", NETWORK, this::syncSettings, "setupConfigTemplates")
+                .addStage("formUpload", NETWORK, whenWizardFinished(wizardFinished, this::uploadCompletedForms), "authenticate")
+                .addStage("processedFormDataCleanUp", NETWORK, this::cleanUpProcessedTemporaryFormData, "authenticate")
+                .runAfter("processedFormDataCleanUp", "formUpload")
+                .addStage("formMetadata", NETWORK, whenWizardFinished(wizardFinished, this::syncFormMetadata),
+                        "setupConfigTemplates")
+                .runAfter("formMetadata", "formUpload")
+                .addStage("formTemplates", NETWORK, () -> muzimaSynService.SyncFormTemplates(configBeforeConfigUpdate),
+                        "formMetadata")
+                .addStage("reportDatasets", NETWORK, this::syncReportDatasets, "setupConfigTemplates")
+                .addStage("mediaCategories", NETWORK, this::syncMediaCategories, "setupConfigTemplates")
+                .addStage("media", NETWORK, this::syncMedia, "mediaCategories")
+                .addStage("appUsageLogs", NETWORK, this::syncAppUsageLogs, "media")
+                .addStage("cohorts", NETWORK, whenWizardFinished(wizardFinished, this::syncCohorts),
+                        "setupConfigTemplates")
+                .runAfter("cohorts", "formUpload")
+                .addStage("cohortPatients", NETWORK, whenWizardFinished(wizardFinished, this::syncPatientsForCohorts), "cohorts")
+                .addStage("consolidatePatients", LOCAL_STORE, whenWizardFinished(wizardFinished, () -> {
+                    muzimaSynService.consolidatePatients();
+                    patientUuids.addAll(muzimaSynService.getUuidsForAllPatientsFromLocalStorage());
+                }), "cohortPatients")
+                .addStage("observations", NETWORK, whenWizardFinished(wizardFinished, () -> syncObservations(patientUuids)),
+                        "consolidatePatients")
+                .addStage("relationships", NETWORK, whenWizardFinished(wizardFinished, () -> syncRelationships(patientUuids)),
+                        "consolidatePatients")
+                .addStage("personObservations", NETWORK, whenWizardFinished(wizardFinished, () -> {
+                    if (muzimaSettingController.isRelationshipEnabled()) {
+                        muzimaSynService.downloadObservationsForAllPersons(true);
+                    }
+                }), "observations", "relationships")
+                .addStage("patientTags", LOCAL_STORE, whenWizardFinished(wizardFinished, () -> {
+                    if (muzimaSettingController.isPatientTagGenerationEnabled()) {
+                        muzimaSynService.updatePatientTags(patientUuids);
+                    }
+                }), "observations", "relationships")
+                .addStage("patientReports", NETWORK, this::syncPatientReports, "cohortPatients")
+                .addStage("configCohortChanges", NETWORK, () -> {
+                    if (setupConfigTemplatesSync.wasConfigUpdateDone && !muzimaSettingController.isOnlineOnlyModeEnabled()) {
+                        muzimaSynService.SyncPatientFullDataBasedOnCohortChangesInConfig(configBeforeConfigUpdate);
+                    }
+                }, "cohortPatients")
+                .addStage("configLocationChanges", NETWORK, () -> {
+                    if (setupConfigTemplatesSync.wasConfigUpdateDone) {
+                        int[] result = muzimaSynService.DownloadAndDeleteLocationBasedOnConfigChanges(configBeforeConfigUpdate);
+                        broadcastSyncResult(SYNC_LOCATIONS_BASED_ON_CHANGES_IN_CONFIG, result,
+                                getString(R.string.info_locations_downloaded_deleted, result[1], result[2]));
+                    }
+                }, "setupConfigTemplates")
+                .addStage("configProviderChanges", NETWORK, () -> {
+                    if (setupConfigTemplatesSync.wasConfigUpdateDone) {
+                        int[] result = muzimaSynService.DownloadAndDeleteProvidersBasedOnConfigChanges(configBeforeConfigUpdate);
+                        broadcastSyncResult(SYNC_PROVIDERS_BASED_ON_CHANGES_IN_CONFIG, result,
+                                getString(R.string.info_provider_downloaded_deleted, result[1], result[2]));
+                    }
+                }, "setupConfigTemplates")
+                .addStage("configConceptChanges", NETWORK, () -> {
+                    if (setupConfigTemplatesSync.wasConfigUpdateDone) {
+                        int[] result = muzimaSynService.DownloadAndDeleteConceptAndObservationBasedOnConfigChanges(configBeforeConfigUpdate);
+                        broadcastSyncResult(SYNC_CONCEPTS_AND_OBS_BASED_ON_CHANGES_IN_CONFIG, result,
+                                getString(R.string.info_concepts_downloaded_deleted, result[1], result[2]));
+                    }
+                }, "setupConfigTemplates", "observations");
+    }
 
-        @Override
-        protected Void doInBackground(Void... voids) {
-           new ProcessedTemporaryFormDataCleanUpIntent(getApplicationContext()).start();
-           return null;
-        }
+    private SyncJobGraph.StageWork whenWizardFinished(final boolean wizardFinished, final SyncJobGraph.StageWork work) {
+        return () -> {
+            if (wizardFinished) {
+                work.run();
+            }
+        };
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
+    private void authenticate() throws SyncJobGraph.StageFailedException {
+        int authenticationStatus = muzimaSynService.authenticate(new Credentials(this).getCredentialsArray());
+        if (authenticationStatus != AUTHENTICATION_SUCCESS) {
+            throw new SyncJobGraph.StageFailedException("Authentication failed with status " + authenticationStatus);
         }
     }
 
-    private class CohortsAndPatientFullDataSyncBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            if (new WizardFinishPreferenceService(MuzimaJobScheduler.this).isWizardFinished()) {
-                new SyncCohortsAndPatientFullDataIntent(getApplicationContext()).start();
-            }
-            return null;
+    private void syncSettings() {
+        int[] result = muzimaSynService.downloadNewSettings();
+        if (result[0] != SUCCESS) {
+            broadcastSyncResult(SYNC_SETTINGS, result, getString(R.string.error_settings_download));
+        } else if (result[1] > 0) {
+            broadcastSyncResult(SYNC_SETTINGS, result, getString(R.string.info_settings_downloaded, result[1]));
         }
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
+    private void uploadCompletedForms() throws FormController.FormFetchException {
+        FormController formController = ((MuzimaApplication) getApplicationContext()).getFormController();
+        if (formController.countAllCompleteForms() > 0 && NetworkUtils.isConnectedToNetwork(this)) {
+            int[] result = muzimaSynService.uploadAllCompletedForms();
+            broadcastSyncResult(SYNC_REAL_TIME_UPLOAD_FORMS, result, getString(R.string.info_real_time_upload_success));
         }
     }
 
-    private class FormDataUploadBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            if (new WizardFinishPreferenceService(getApplicationContext()).isWizardFinished()) {
-                RealTimeFormUploader.getInstance().uploadAllCompletedForms(getApplicationContext(),true);
-            }
-            return null;
+    private void cleanUpProcessedTemporaryFormData() {
+        List<FormData> archivedFormData = muzimaSynService.getArchivedFormData();
+        if (archivedFormData.size() > 0) {
+            int[] result = muzimaSynService.checkAndDeleteTemporaryDataForProcessedFormData(archivedFormData);
+            String msg = result[0] == SUCCESS
+                    ? getString(R.string.info_submitted_form_data_status, result[1], result[2], result[3], result[4])
+                    : getString(R.string.info_submitted_form_data_status_check_failure);
+            broadcastSyncResult(CLEAN_UP_PROCESSED_TEMPORARY_FORM_DATA, result, msg);
         }
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
+    private void syncFormMetadata() throws FormController.FormFetchException {
+        Context context = getApplicationContext();
+        if (!((MuzimaApplication) context).getFormController().isFormWithPatientDataAvailable(context)) {
+            int[] result = muzimaSynService.downloadForms();
+            broadcastSyncResult(SYNC_FORMS, result, getString(R.string.info_form_download_delete, result[1], result[2]));
+        } else {
+            Log.e(getClass().getSimpleName(), "Could not sync form metadata. Incomplete/unsyched forms exist");
         }
     }
 
-    private class FormMetaDataSyncBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            try {
-                Context context = getApplicationContext();
-                if (new WizardFinishPreferenceService(context).isWizardFinished() &&
-                        !((MuzimaApplication) context).getFormController().isFormWithPatientDataAvailable(context)) {
+    private void syncReportDatasets() {
+        int[] result = muzimaSynService.SyncDatasets(configBeforeConfigUpdate);
+        broadcastSyncResult(SYNC_DATASETS, result, getString(R.string.info_report_dataset_downloaded, result[1]));
+    }
 
-                    new SyncFormIntent(getApplicationContext()).start();
-                } else {
-                    Log.e(MuzimaJobScheduler.class.getSimpleName(),"Could not sync form metadata. Incomplete/unsyched forms exist");
-                }
-            } catch (FormController.FormFetchException e){
-                Log.e(MuzimaJobScheduler.class.getSimpleName(),"Could not sync form metadata",e);
-            }
-            return null;
-        }
+    private void syncMediaCategories() throws SyncJobGraph.StageFailedException {
+        int[] result = muzimaSynService.SyncMediaCategory(configBeforeConfigUpdate);
+        broadcastSyncResult(SYNC_MEDIA_CATEGORIES, result, getString(R.string.info_media_category_downloaded, result[1]));
+        requireSuccess(result, "Media category sync");
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
+    private void syncMedia() throws SyncJobGraph.StageFailedException {
+        int[] result = muzimaSynService.SyncMedia();
+        broadcastSyncResult(SYNC_MEDIA, result, getString(R.string.info_media_downloaded, result[1]));
+        requireSuccess(result, "Media sync");
     }
 
-    private class SyncSettingsBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new SyncSettingsIntent(getApplicationContext()).start();
-            return null;
+    private void syncAppUsageLogs() throws IOException {
+        List<AppUsageLogs> appUsageLogs = appUsageLogsController.getAllAppUsageLogs();
+        appUsageLogsController.syncAppUsageLogs(appUsageLogs);
+    }
+
+    private void syncCohorts() {
+        int[] result = muzimaSynService.downloadCohorts();
+        broadcastSyncResult(SYNC_COHORTS_AND_ALL_PATIENTS_FULL_DATA, result,
+                getString(R.string.info_new_cohort_download_delete, result[1], result[2]));
+    }
+
+    private void syncPatientsForCohorts() {
+        int[] result = muzimaSynService.downloadPatientsForCohortsWithUpdatesAvailable();
+        List<Patient> updatedPatients = muzimaSynService.updatePatientsNotPartOfCohorts();
+        if (updatedPatients.size() > 0) {
+            result[1] += updatedPatients.size();
+            result[0] = SUCCESS;
+        }
+        String msg = result[0] == SUCCESS
+                ? getString(R.string.info_cohorts_patients_download, result[1], result[2])
+                : getString(R.string.info_cohort_patient_not_download);
+        broadcastSyncResult(SYNC_COHORTS_AND_ALL_PATIENTS_FULL_DATA, result, msg);
+    }
+
+    private void syncObservations(List<String> patientUuids) {
+        int[] result = muzimaSynService.downloadObservationsForPatientsByPatientUUIDs(patientUuids, true);
+        broadcastSyncResult(SYNC_OBSERVATIONS, result,
+                getString(R.string.info_new_observation_download_delete, result[1], result[2]));
+    }
+
+    private void syncRelationships(List<String> patientUuids) {
+        muzimaSynService.downloadRelationshipsTypes();
+        int[] result = muzimaSynService.downloadRelationshipsForPatientsByPatientUUIDs(patientUuids);
+        if (result != null) {
+            broadcastSyncResult(SYNC_RELATIONSHIPS, result, getString(R.string.info_relationships_download, result[1], result[2]));
         }
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
+    private void syncPatientReports() {
+        if (muzimaSettingController.isClinicalSummaryEnabled()) {
+            int[] result = muzimaSynService.downloadAllPatientReportHeadersAndReports();
+            broadcastSyncResult(SYNC_ALL_PATIENT_REPORT_HEADERS_AND_REPORTS, result,
+                    getString(R.string.info_patient_reports_downloaded, result[1]));
         }
     }
 
-    private class SyncAllPatientReportsBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new SyncAllPatientReports(getApplicationContext()).start();
-            return null;
+    private void requireSuccess(int[] result, String sync) throws SyncJobGraph.StageFailedException {
+        if (result[0] != SUCCESS) {
+            throw new SyncJobGraph.StageFailedException(sync + " failed with status " + result[0]);
         }
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
+    private void broadcastSyncResult(int syncType, int[] result, String msg) {
+        Intent broadcastIntent = new Intent();
+        broadcastIntent.setAction(BroadcastListenerActivity.MESSAGE_SENT_ACTION);
+        broadcastIntent.putExtra(Constants.DataSyncServiceConstants.SYNC_TYPE, syncType);
+        broadcastIntent.putExtra(Constants.DataSyncServiceConstants.SYNC_STATUS, result[0]);
+        broadcastIntent.putExtra(Constants.DataSyncServiceConstants.SYNC_RESULT_MESSAGE, msg);
+        if (result[0] == SUCCESS) {
+            broadcastIntent.putExtra(Constants.DataSyncServiceConstants.DOWNLOAD_COUNT_PRIMARY, result[1]);
         }
+        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcastIntent);
     }
 
-    private class SyncSetupConfigTemplatesBackgroundTask extends AsyncTask<Void,Void,Void> {
+    private class SyncSetupConfigTemplates {
         Context context = getApplicationContext();
-        Boolean wasConfigUpdateDone = false;
-        @Override
-        protected Void doInBackground(Void... voids) {
+        volatile boolean wasConfigUpdateDone = false;
+
+        void sync() {
             try {
                 configBeforeConfigUpdate = setupConfigurationController.getActiveSetupConfigurationTemplate();
                 for (SetupConfigurationTemplate template : setupConfigurationController.getSetupConfigurationTemplates()) {
@@ -348,22 +478,6 @@ public class MuzimaJobScheduler extends JobService {
             } catch (MuzimaSettingController.MuzimaSettingFetchException e) {
                 Log.e(getClass().getSimpleName(),"Exception while fetching config settings ",e);
             }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-            new SyncReportDatasetsBackgroundTask().execute();
-            new FormTemplateSyncBackgroundTask().execute();
-            new MediaCategorySyncBackgroundTask().execute();
-            if(wasConfigUpdateDone) {
-                if (!muzimaSettingController.isOnlineOnlyModeEnabled())
-                    new DownloadAndDeleteCohortsBasedOnConfigChangesBackgroundTask().execute();
-                new DownloadAndDeleteLocationBasedOnConfigChangesBackgroundTask().execute();
-                new DownloadAndDeleteProvidersBasedOnConfigChangesBackgroundTask().execute();
-                new DownloadAndDeleteConceptsBasedOnConfigChangesBackgroundTask().execute();
-            }
         }
 
         public int[] downloadAndSaveUpdatedSetupConfigurationTemplate(String uuid) {
@@ -376,6 +490,7 @@ public class MuzimaJobScheduler extends JobService {
                     result[1] = 1;
                     wasConfigUpdateDone = true;
                     setupConfigurationController.updateSetupConfigurationTemplate(setupConfigurationTemplate);
+                    muzimaSettingController.invalidateSettingsCache();
                 }
 
             } catch (SetupConfigurationController.SetupConfigurationDownloadException e) {
@@ -389,6 +504,7 @@ public class MuzimaJobScheduler extends JobService {
         }
 
         public void updateSettingsPreferences(List<MuzimaSetting> muzimaSettings) {
+            muzimaSettingController.invalidateSettingsCache();
             List<String> configSettings = new ArrayList<>();
             List<String> preferenceSettings = new ArrayList<>();
             preferenceSettings.add(SHR_FEATURE_ENABLED_SETTING);
@@ -549,130 +665,6 @@ public class MuzimaJobScheduler extends JobService {
         }
     }
 
-    private class SyncReportDatasetsBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new SyncDatasetsIntent(getApplicationContext(), configBeforeConfigUpdate).start();
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
-    private class FormTemplateSyncBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            MuzimaSyncService muzimaSyncService = ((MuzimaApplication) getApplicationContext()).getMuzimaSyncService();
-            muzimaSyncService.SyncFormTemplates(configBeforeConfigUpdate);
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
-    private class DownloadAndDeleteCohortsBasedOnConfigChangesBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new DownloadAndDeleteCohortsBasedOnConfigChangesIntent(getApplicationContext(), configBeforeConfigUpdate).start();
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
-    private class DownloadAndDeleteLocationBasedOnConfigChangesBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new DownloadAndDeleteLocationBasedOnConfigChangesIntent(getApplicationContext(), configBeforeConfigUpdate).start();
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
-    private class DownloadAndDeleteProvidersBasedOnConfigChangesBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new DownloadAndDeleteProvidersBasedOnConfigChangesIntent(getApplicationContext(), configBeforeConfigUpdate).start();
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
-    private class  DownloadAndDeleteConceptsBasedOnConfigChangesBackgroundTask extends AsyncTask<Void,Void,Void>{
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new DownloadAndDeleteConceptAndObservationBasedOnConfigChangesIntent(getApplicationContext(), configBeforeConfigUpdate).start();
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
-    private class SyncAppUsageLogsBackgroundTask extends AsyncTask<Void,Void,Void>{
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            Context context = getApplicationContext();
-            AppUsageLogsController appUsageLogsController = ((MuzimaApplication) context).getAppUsageLogsController();
-
-            try {
-                List<AppUsageLogs> appUsageLogs = appUsageLogsController.getAllAppUsageLogs();
-                appUsageLogsController.syncAppUsageLogs(appUsageLogs);
-            } catch (IOException e) {
-                Log.e(getClass().getSimpleName(),"Encounter an IO exception",e);
-            }
-
-            return null;
-        }
-    }
-
-    private class MediaCategorySyncBackgroundTask extends AsyncTask<Void,Void,Void>{
-
-        @Override
-        protected Void doInBackground(Void... input) {
-            new SyncMediaCategoryIntent(getApplicationContext(), configBeforeConfigUpdate).start();
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
-    private class DownloadAndDeleteMediaBasedOnConfigChangesBackgroundTask extends AsyncTask<Void,Void,Void> {
-        @Override
-        protected Void doInBackground(Void... voids) {
-            new SyncMediaIntent(getApplicationContext()).start();
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-        }
-    }
-
     private void displayToast(Intent intent) {
         int syncStatus = intent.getIntExtra(Constants.DataSyncServiceConstants.SYNC_STATUS,
                 Constants.DataSyncServiceConstants.SyncStatusConstants.UNKNOWN_ERROR);
@@ -717,14 +709,6 @@ public class MuzimaJobScheduler extends JobService {
                         msg = getString(R.string.info_concepts_downloaded_deleted, downloadCount, deleteCount);
                         break;
                     }
-                    case Constants.DataSyncServiceConstants.SYNC_MEDIA_CATEGORIES: {
-                        new DownloadAndDeleteMediaBasedOnConfigChangesBackgroundTask().execute();
-                        break;
-                    }
-                    case Constants.DataSyncServiceConstants.SYNC_MEDIA: {
-                        new SyncAppUsageLogsBackgroundTask().execute();
-                        break;
-                    }
                 }
                 break;
         }
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.scheduler;
+
+import android.util.Log;
+
+import com.muzima.tasks.MuzimaTaskScheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The stages of a sync run and the stages each of them waits for. A stage starts once all its
+ * dependencies succeeded and its resource class has room; a stage whose dependency failed or was
+ * skipped is skipped. A stage can also be ordered after other stages without depending on them; it
+ * then waits for them to finish however they end. Stages can only depend on or be ordered after
+ * stages added before them, so the graph has no cycles.
+ */
+public class SyncJobGraph {
+    private static final int MAX_SYNC_LANE_STAGES = MuzimaTaskScheduler.Lane.SYNC_IO.getThreads() - 1;
+
+    /**
+     * Stages on the sync lane together take at most all but one of its threads, which is left to
+     * downloads the user starts.
+     */
+    public enum ResourceClass {
+        /**
+         * Mostly waiting on the server; the sync lane threads not kept for local store stages
+         */
+        NETWORK(MuzimaTaskScheduler.Lane.SYNC_IO, MAX_SYNC_LANE_STAGES - 1),
+        /**
+         * Mostly writing to the local store, one at a time so that they do not compete for it
+         */
+        LOCAL_STORE(MuzimaTaskScheduler.Lane.SYNC_IO, 1),
+        CPU(MuzimaTaskScheduler.Lane.CPU, 2);
+
+        private final MuzimaTaskScheduler.Lane lane;
+        private final int maxConcurrentStages;
+
+        ResourceClass(MuzimaTaskScheduler.Lane lane, int maxConcurrentStages) {
+            this.lane = lane;
+            this.maxConcurrentStages = maxConcurrentStages;
+        }
+    }
+
+    public enum StageStatus {
+        SUCCEEDED,
+        FAILED,
+        SKIPPED
+    }
+
+    public interface StageWork {
+        void run() throws Throwable;
+    }
+
+    public interface OnFinishedListener {
+        void onFinished(TimingReport report);
+    }
+
+    /**
+     * Thrown by a stage whose work did not succeed, so that the stages depending on it are skipped
+     */
+    public static class StageFailedException extends Throwable {
+        public StageFailedException(String message) {
+            super(message);
+        }
+    }
+
+    private final String name;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final Map<ResourceClass, ArrayDeque<Stage>> readyStages = new EnumMap<>(ResourceClass.class);
+    private final Map<ResourceClass, Integer> runningStages = new EnumMap<>(ResourceClass.class);
+    private MuzimaTaskScheduler scheduler;
+    private OnFinishedListener listener;
+    private long startTime;
+    private int finishedStages;
+
+    public SyncJobGraph(String name) {
+        this.name = name;
+        for (ResourceClass resourceClass : ResourceClass.values()) {
+            readyStages.put(resourceClass, new ArrayDeque<Stage>());
+            runningStages.put(resourceClass, 0);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a stage with the same name exists or a dependency was not added yet
+     */
+    public synchronized SyncJobGraph addStage(String stageName, ResourceClass resourceClass, StageWork work, String... dependencies) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Stages cannot be added once " + name + " started");
+        }
+        if (stages.containsKey(stageName)) {
+            throw new IllegalArgumentException("Stage " + stageName + " was already added to " + name);
+        }
+        Stage stage = new Stage(stageName, resourceClass, work, stages.size());
+        for (String dependency : dependencies) {
+            Stage dependencyStage = stages.get(dependency);
+            if (dependencyStage == null) {
+                throw new IllegalArgumentException("Stage " + stageName + " depends on " + dependency + " which was not added before it");
+            }
+            dependencyStage.dependents.add(stage);
+            stage.remainingDependencies++;
+        }
+        stages.put(stageName, stage);
+        return this;
+    }
+
+    /**
+     * Makes the stage wait for the earlier stages to finish, without being skipped if they fail
+     *
+     * @throws IllegalArgumentException if a stage was not added or an earlier stage was added after the stage
+     */
+    public synchronized SyncJobGraph runAfter(String stageName, String... earlierStages) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Stages cannot be ordered once " + name + " started");
+        }
+        Stage stage = stages.get(stageName);
+        if (stage == null) {
+            throw new IllegalArgumentException("Stage " + stageName + " was not added to " + name);
+        }
+        for (String earlierStage : earlierStages) {
+            Stage predecessor = stages.get(earlierStage);
+            if (predecessor == null || predecessor.index >= stage.index) {
+                throw new IllegalArgumentException("Stage " + stageName + " runs after " + earlierStage + " which was not added before it");
+            }
+            predecessor.successors.add(stage);
+            stage.remainingDependencies++;
+        }
+        return this;
+    }
+
+    /**
+     * Runs the stages on the lanes of the scheduler and calls the listener, on the thread of the
+     * last stage, once every stage finished
+     */
+    public void start(MuzimaTaskScheduler scheduler, OnFinishedListener listener) {
+        TimingReport report = null;
+        synchronized (this) {
+            if (this.scheduler != null) {
+                throw new IllegalStateException(name + " was already started");
+            }
+            this.scheduler = scheduler;
+            this.listener = listener;
+            startTime = System.currentTimeMillis();
+            for (Stage stage : stages.values()) {
+                if (stage.remainingDependencies == 0) {
+                    makeReady(stage);
+                }
+            }
+            if (stages.isEmpty()) {
+                report = new TimingReport(name, 0, new ArrayList<Stage>(), startTime);
+            }
+        }
+        if (report != null) {
+            listener.onFinished(report);
+        } else {
+            dispatch();
+        }
+    }
+
+    private void makeReady(Stage stage) {
+        stage.readyTime = System.currentTimeMillis();
+        readyStages.get(stage.resourceClass).add(stage);
+    }
+
+    private void dispatch() {
+        List<Stage> rejectedStages = new ArrayList<>();
+        synchronized (this) {
+            for (ResourceClass resourceClass : ResourceClass.values()) {
+                ArrayDeque<Stage> ready = readyStages.get(resourceClass);
+                while (!ready.isEmpty() && runningStages.get(resourceClass) < resourceClass.maxConcurrentStages) {
+                    final Stage stage = ready.poll();
+                    runningStages.put(resourceClass, runningStages.get(resourceClass) + 1);
+                    try {
+                        scheduler.submit(resourceClass.lane, MuzimaTaskScheduler.Priority.BACKGROUND,
+                                name + ":" + stage.name, () -> run(stage));
+                    } catch (RejectedExecutionException e) {
+                        stage.error = e;
+                        rejectedStages.add(stage);
+                    }
+                }
+            }
+        }
+        for (Stage stage : rejectedStages) {
+            finish(stage, StageStatus.FAILED);
+        }
+    }
+
+    private void run(Stage stage) {
+        stage.startTime = System.currentTimeMillis();
+        StageStatus status = StageStatus.SUCCEEDED;
+        try {
+            stage.work.run();
+        } catch (Throwable e) {
+            // errors too, or the run would never finish
+            Log.e(getClass().getSimpleName(), "Stage " + stage.name + " of " + name + " failed", e);
+            stage.error = e;
+            status = StageStatus.FAILED;
+        }
+        finish(stage, status);
+    }
+
+    private void finish(Stage stage, StageStatus status) {
+        TimingReport report = null;
+        synchronized (this) {
+            stage.endTime = System.currentTimeMillis();
+            runningStages.put(stage.resourceClass, runningStages.get(stage.resourceClass) - 1);
+            complete(stage, status);
+            if (finishedStages == stages.size()) {
+                report = new TimingReport(name, System.currentTimeMillis() - startTime, new ArrayList<>(stages.values()), startTime);
+            }
+        }
+        if (report != null) {
+            listener.onFinished(report);
+        } else {
+            dispatch();
+        }
+    }
+
+    private void complete(Stage stage, StageStatus status) {
+        stage.status = status;
+        finishedStages++;
+        for (Stage dependent : stage.dependents) {
+            if (dependent.status != null) {
+                continue;
+            }
+            if (status != StageStatus.SUCCEEDED) {
+                complete(dependent, StageStatus.SKIPPED);
+            } else if (--dependent.remainingDependencies == 0) {
+                makeReady(dependent);
+            }
+        }
+        for (Stage successor : stage.successors) {
+            if (successor.status == null && --successor.remainingDependencies == 0) {
+                makeReady(successor);
+            }
+        }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final ResourceClass resourceClass;
+        private final StageWork work;
+        private final int index;
+        private final List<Stage> dependents = new ArrayList<>();
+        // ordered after this stage, without depending on it
+        private final List<Stage> successors = new ArrayList<>();
+        private int remainingDependencies;
+        private StageStatus status;
+        private Throwable error;
+        private long readyTime;
+        private long startTime;
+        private long endTime;
+
+        Stage(String name, ResourceClass resourceClass, StageWork work, int index) {
+            this.name = name;
+            this.resourceClass = resourceClass;
+            this.work = work;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The outcome and timings of every stage of one run, in the order the stages were added.
+     * Times are in milliseconds since the run started.
+     */
+    public static class TimingReport {
+        private final String name;
+        private final long wallTime;
+        private final Map<String, StageTiming> stageTimings = new LinkedHashMap<>();
+
+        private TimingReport(String name, long wallTime, List<Stage> stages, long runStartTime) {
+            this.name = name;
+            this.wallTime = wallTime;
+            for (Stage stage : stages) {
+                stageTimings.put(stage.name, new StageTiming(stage, runStartTime));
+            }
+        }
+
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        public StageTiming getStageTiming(String stageName) {
+            return stageTimings.get(stageName);
+        }
+
+        public List<StageTiming> getStageTimings() {
+            return new ArrayList<>(stageTimings.values());
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(name).append(" took ").append(wallTime).append(" ms");
+            for (StageTiming timing : stageTimings.values()) {
+                report.append('\n').append(timing);
+            }
+            return report.toString();
+        }
+    }
+
+    public static class StageTiming {
+        private final String name;
+        private final ResourceClass resourceClass;
+        private final StageStatus status;
+        private final Throwable error;
+        private final long readyAt;
+        private final long startedAt;
+        private final long endedAt;
+
+        private StageTiming(Stage stage, long runStartTime) {
+            name = stage.name;
+            resourceClass = stage.resourceClass;
+            status = stage.status;
+            error = stage.error;
+            readyAt = stage.readyTime > 0 ? stage.readyTime - runStartTime : -1;
+            startedAt = stage.startTime > 0 ? stage.startTime - runStartTime : -1;
+            endedAt = stage.startTime > 0 ? stage.endTime - runStartTime : -1;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public StageStatus getStatus() {
+            return status;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return when the stage was started, -1 if it never was
+         */
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        /**
+         * @return when the stage ended, -1 if it never started
+         */
+        public long getEndedAt() {
+            return endedAt;
+        }
+
+        /**
+         * @return how long the stage waited for a free slot once its dependencies were done
+         */
+        public long getWaitTime() {
+            return startedAt < 0 ? 0 : startedAt - readyAt;
+        }
+
+        public long getRunTime() {
+            return startedAt < 0 ? 0 : endedAt - startedAt;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-28s %-11s %-9s start %6d ms, waited %6d ms, ran %7d ms%s",
+                    name, resourceClass, status, startedAt, getWaitTime(), getRunTime(),
+                    error == null ? "" : ", " + error.getClass().getSimpleName());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the incomplete and complete form data on the device keyed by patient and form, used
+ * to look for possible duplicates without reading every form data payload.
+ *
+ * The entries are kept in an {@link IdentifierJournal}, one serialized entry per identifier,
+ * which is replayed when the index is opened. Without a file the index lives in memory.
+ */
+public class FormDataDuplicateIndex {
+    private static final String SEPARATOR = "\t";
+
+    private final File journalFile;
+    private final IdentifierJournal journal;
+    private final Map<String, Entry> entriesByFormDataUuid = new HashMap<>();
+    private final Map<String, List<Entry>> entriesByPatientAndForm = new HashMap<>();
+    private final Map<String, Integer> entryCountsByPatient = new HashMap<>();
+
+    /**
+     * @param journalFile the file holding the index, or null to keep the index in memory only
+     */
+    public FormDataDuplicateIndex(File journalFile) {
+        this.journalFile = journalFile;
+        this.journal = journalFile == null ? null : new IdentifierJournal(journalFile);
+    }
+
+    /**
+     * @return true if the index was read from its journal, false if it is empty and has to be
+     * filled from the stored form data
+     */
+    public synchronized boolean load() {
+        clearEntries();
+        if (journal == null || !journalFile.exists()) {
+            return false;
+        }
+        try {
+            for (String record : journal.list()) {
+                Entry entry = Entry.deserialize(record);
+                if (entry != null) {
+                    removeEntry(entry.formDataUuid);
+                    addEntry(entry);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not read form data duplicate index", e);
+            clearEntries();
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the whole index, e.g. after it was rebuilt from the stored form data.
+     */
+    public synchronized void reset(List<Entry> entries) {
+        clearEntries();
+        List<String> records = new ArrayList<>();
+        for (Entry entry : entries) {
+            removeEntry(entry.formDataUuid);
+            addEntry(entry);
+        }
+        for (Entry entry : entriesByFormDataUuid.values()) {
+            records.add(entry.serialize());
+        }
+        if (journal != null) {
+            try {
+                journal.replace(records);
+            } catch (IOException e) {
+                Log.e(getClass().getSimpleName(), "Could not rewrite form data duplicate index", e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the entries of one patient, e.g. after they were found to be behind the stored
+     * form data of the patient.
+     */
+    public synchronized void resetPatient(String patientUuid, Collection<Entry> entries) {
+        for (Entry entry : new ArrayList<>(entriesByFormDataUuid.values())) {
+            if (entry.patientUuid.equals(Entry.clean(patientUuid))) {
+                remove(entry.formDataUuid);
+            }
+        }
+        for (Entry entry : entries) {
+            put(entry);
+        }
+    }
+
+    public synchronized void put(Entry entry) {
+        Entry existing = entriesByFormDataUuid.get(entry.formDataUuid);
+        if (entry.equals(existing)) {
+            return;
+        }
+        removeEntry(entry.formDataUuid);
+        addEntry(entry);
+        try {
+            if (journal != null) {
+                if (existing != null) {
+                    journal.remove(existing.serialize());
+                }
+                journal.add(entry.serialize());
+            }
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not update form data duplicate index", e);
+        }
+    }
+
+    public synchronized void remove(String formDataUuid) {
+        Entry entry = removeEntry(formDataUuid);
+        if (entry != null && journal != null) {
+            try {
+                journal.remove(entry.serialize());
+            } catch (IOException e) {
+                Log.e(getClass().getSimpleName(), "Could not update form data duplicate index", e);
+            }
+        }
+    }
+
+    public synchronized List<Entry> find(String patientUuid, String formUuid) {
+        List<Entry> entries = entriesByPatientAndForm.get(key(Entry.clean(patientUuid), Entry.clean(formUuid)));
+        return entries == null ? new ArrayList<Entry>() : new ArrayList<>(entries);
+    }
+
+    /**
+     * @return the number of form data of the patient in the index, whatever their form
+     */
+    public synchronized int countByPatient(String patientUuid) {
+        Integer count = entryCountsByPatient.get(Entry.clean(patientUuid));
+        return count == null ? 0 : count;
+    }
+
+    public synchronized int size() {
+        return entriesByFormDataUuid.size();
+    }
+
+    private void addEntry(Entry entry) {
+        entriesByFormDataUuid.put(entry.formDataUuid, entry);
+        String key = key(entry.patientUuid, entry.formUuid);
+        List<Entry> entries = entriesByPatientAndForm.get(key);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            entriesByPatientAndForm.put(key, entries);
+        }
+        entries.add(entry);
+        entryCountsByPatient.put(entry.patientUuid, countByPatient(entry.patientUuid) + 1);
+    }
+
+    private Entry removeEntry(String formDataUuid) {
+        Entry entry = entriesByFormDataUuid.remove(formDataUuid);
+        if (entry == null) {
+            return null;
+        }
+        String key = key(entry.patientUuid, entry.formUuid);
+        List<Entry> entries = entriesByPatientAndForm.get(key);
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            entriesByPatientAndForm.remove(key);
+        }
+        int patientCount = countByPatient(entry.patientUuid) - 1;
+        if (patientCount == 0) {
+            entryCountsByPatient.remove(entry.patientUuid);
+        } else {
+            entryCountsByPatient.put(entry.patientUuid, patientCount);
+        }
+        return entry;
+    }
+
+    private void clearEntries() {
+        entriesByFormDataUuid.clear();
+        entriesByPatientAndForm.clear();
+        entryCountsByPatient.clear();
+    }
+
+    private static String key(String patientUuid, String formUuid) {
+        return patientUuid + SEPARATOR + formUuid;
+    }
+
+    public static class Entry {
+        private final String formDataUuid;
+        private final String patientUuid;
+        private final String formUuid;
+        private final String encounterDatetime;
+        private final boolean registration;
+
+        public Entry(String formDataUuid, String patientUuid, String formUuid, String encounterDatetime, boolean registration) {
+            this.formDataUuid = formDataUuid;
+            this.patientUuid = clean(patientUuid);
+            this.formUuid = clean(formUuid);
+            this.encounterDatetime = clean(encounterDatetime);
+            this.registration = registration;
+        }
+
+        public String getFormDataUuid() {
+            return formDataUuid;
+        }
+
+        public String getEncounterDatetime() {
+            return encounterDatetime;
+        }
+
+        public boolean isRegistration() {
+            return registration;
+        }
+
+        private String serialize() {
+            return formDataUuid + SEPARATOR + patientUuid + SEPARATOR + formUuid + SEPARATOR
+                    + encounterDatetime + SEPARATOR + registration;
+        }
+
+        private static Entry deserialize(String record) {
+            String[] fields = record.split(SEPARATOR, -1);
+            if (fields.length != 5) {
+                return null;
+            }
+            return new Entry(fields[0], fields[1], fields[2], fields[3], Boolean.parseBoolean(fields[4]));
+        }
+
+        private static String clean(String value) {
+            // keep records on a single line with a fixed number of fields
+            return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) other;
+            return registration == entry.registration
+                    && formDataUuid.equals(entry.formDataUuid)
+                    && patientUuid.equals(entry.patientUuid)
+                    && formUuid.equals(entry.formUuid)
+                    && encounterDatetime.equals(entry.encounterDatetime);
+        }
+
+        @Override
+        public int hashCode() {
+            return formDataUuid.hashCode();
+        }
+    }
+}
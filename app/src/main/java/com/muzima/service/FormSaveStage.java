@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.util.Log;
+
+import com.muzima.MuzimaApplication;
+import com.muzima.api.model.FormData;
+import com.muzima.api.model.Patient;
+import com.muzima.api.model.PatientTag;
+import com.muzima.controller.FormController;
+import com.muzima.controller.PatientController;
+import com.muzima.tasks.MuzimaTaskScheduler;
+import com.muzima.utils.Constants;
+import com.muzima.utils.StringUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Second phase of saving a completed HTML form. While the form is open, its uuid is journaled and
+ * the form data saved; the encounter, observations and patient tag derived from the payload are
+ * written afterwards from a single parse of the payload, so that the form closes without waiting
+ * for them. Saves whose derived writes were cut short by the app stopping are journaled still and
+ * applied again by {@link #replayPendingSaves()}. The patient tag is written under the tags lock of
+ * the patient controller, as tag generation may be rewriting the tags of the same patient.
+ */
+public class FormSaveStage {
+    public static final String JOURNAL_FILE_NAME = "PendingFormSaves.txt";
+    private static final String PATIENT_OBS = "patient ";
+    private static final String PERSON_OBS = "person ";
+
+    private final MuzimaApplication application;
+    private final IdentifierJournal journal;
+    private final Set<String> savesInProgress = new HashSet<>();
+
+    public FormSaveStage(MuzimaApplication application, File journalFile) {
+        this.application = application;
+        this.journal = new IdentifierJournal(journalFile);
+    }
+
+    /**
+     * Records a save before its form data is written, a save journaled this way has to be
+     * followed by {@link #applyInBackground(String, JSONObject, boolean)}
+     */
+    public void journal(String formDataUuid, boolean parseObsForPerson) throws IOException {
+        synchronized (savesInProgress) {
+            savesInProgress.add(formDataUuid);
+        }
+        try {
+            journal.add(record(formDataUuid, parseObsForPerson));
+        } catch (IOException e) {
+            finished(formDataUuid);
+            throw e;
+        }
+    }
+
+    public void applyInBackground(String formDataUuid, JSONObject payload, boolean parseObsForPerson) {
+        try {
+            MuzimaTaskScheduler.getInstance().submit(MuzimaTaskScheduler.Lane.CPU, MuzimaTaskScheduler.Priority.USER_VISIBLE,
+                    "FormSave", () -> apply(formDataUuid, payload, parseObsForPerson, false));
+        } catch (RejectedExecutionException e) {
+            apply(formDataUuid, payload, parseObsForPerson, false);
+        }
+    }
+
+    /**
+     * Applies the derived writes of the journaled saves which are not in progress, after deleting
+     * whatever part of them was written before the app stopped
+     */
+    public void replayPendingSaves() {
+        try {
+            MuzimaTaskScheduler.getInstance().submit(MuzimaTaskScheduler.Lane.CPU, MuzimaTaskScheduler.Priority.BACKGROUND,
+                    "FormSaveReplay", this::replay);
+        } catch (RejectedExecutionException e) {
+            Log.e(getClass().getSimpleName(), "Could not replay pending form saves, they are replayed next time", e);
+        }
+    }
+
+    private void replay() {
+        try {
+            for (String record : journal.list()) {
+                boolean parseObsForPerson = record.startsWith(PERSON_OBS);
+                String formDataUuid = record.substring((parseObsForPerson ? PERSON_OBS : PATIENT_OBS).length());
+                synchronized (savesInProgress) {
+                    if (!savesInProgress.add(formDataUuid)) {
+                        continue;
+                    }
+                }
+                apply(formDataUuid, null, parseObsForPerson, true);
+            }
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not read pending form saves", e);
+        }
+    }
+
+    private void apply(String formDataUuid, JSONObject payload, boolean parseObsForPerson, boolean replay) {
+        try {
+            FormController formController = application.getFormController();
+            FormData formData = formController.getFormDataByUuid(formDataUuid);
+            // the form may have been deleted or reopened as a draft in the meantime
+            if (formData != null && (StringUtils.equals(formData.getStatus(), Constants.STATUS_COMPLETE)
+                    || StringUtils.equals(formData.getStatus(), Constants.STATUS_UPLOADED))) {
+                if (replay) {
+                    formController.deleteRelatedEncountersAndObs(formData);
+                    payload = new JSONObject(formData.getJsonPayload());
+                }
+                new HTMLFormObservationCreator(application, false, parseObsForPerson)
+                        .createAndPersistObservations(payload, formDataUuid);
+                updatePatientTag(formData.getPatientUuid(), payload);
+            }
+            journal.remove(record(formDataUuid, parseObsForPerson));
+        } catch (FormController.FormDataFetchException | FormController.FormDataDeleteException | IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not apply the save of form data " + formDataUuid + ", it is replayed next time", e);
+        } catch (JSONException e) {
+            Log.e(getClass().getSimpleName(), "Could not parse the payload of form data " + formDataUuid, e);
+            removeQuietly(record(formDataUuid, parseObsForPerson));
+        } finally {
+            finished(formDataUuid);
+        }
+    }
+
+    private void updatePatientTag(String patientUuid, JSONObject payload) throws JSONException {
+        JSONObject jsonObjectInner = payload.getJSONObject("patient");
+        if (!jsonObjectInner.has("patient.tagName") || !jsonObjectInner.has("patient.tagUuid")) {
+            return;
+        }
+        PatientController patientController = application.getPatientController();
+        synchronized (patientController.getPatientTagsLock()) {
+            try {
+                List<PatientTag> existingTags = new ArrayList<>();
+                try {
+                    existingTags = patientController.getAllTags();
+                } catch (PatientController.PatientLoadException e) {
+                    Log.e(getClass().getSimpleName(), "Encountered an exception", e);
+                }
+
+                List<PatientTag> tags = new ArrayList<>();
+                Patient patient = patientController.getPatientByUuid(patientUuid);
+                if (patient.getTags() != null) {
+                    tags = new ArrayList<>(Arrays.asList(patient.getTags()));
+                }
+
+                String tagName = jsonObjectInner.getString("patient.tagName");
+                //Remove AA patient tag to be replaced by the AL/NA tags
+                PatientTag aaTag = null;
+                for (PatientTag patientTag : tags) {
+                    if (patientTag.getName().equals(tagName)) {
+                        // already tagged by an earlier attempt of this save
+                        return;
+                    }
+                    if (patientTag.getName().equals("AA")) {
+                        aaTag = patientTag;
+                    }
+                }
+                if (aaTag != null) {
+                    tags.remove(aaTag);
+                }
+
+                PatientTag tag = null;
+                for (PatientTag existingTag : existingTags) {
+                    if (StringUtils.equals(existingTag.getName(), tagName)) {
+                        tag = existingTag;
+                    }
+                }
+                if (tag == null) {
+                    tag = new PatientTag();
+                    tag.setName(tagName);
+                    tag.setUuid(jsonObjectInner.getString("patient.tagUuid"));
+                    if (jsonObjectInner.has("patient.tagDescription")) {
+                        tag.setDescription(jsonObjectInner.getString("patient.tagDescription"));
+                    }
+                    patientController.savePatientTags(tag);
+                }
+                tags.add(tag);
+
+                patient.setTags(tags.toArray(new PatientTag[tags.size()]));
+                patientController.updatePatient(patient);
+            } catch (PatientController.PatientLoadException e) {
+                Log.e(getClass().getSimpleName(), "Exception occurred while fetching patient", e);
+            } catch (PatientController.PatientSaveException e) {
+                Log.e(getClass().getSimpleName(), "Exception occurred while saving patient", e);
+            } catch (IOException e) {
+                Log.e(getClass().getSimpleName(), "Exception occurred while saving tags", e);
+            }
+        }
+    }
+
+    private void removeQuietly(String record) {
+        try {
+            journal.remove(record);
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not update pending form saves", e);
+        }
+    }
+
+    private void finished(String formDataUuid) {
+        synchronized (savesInProgress) {
+            savesInProgress.remove(formDataUuid);
+        }
+    }
+
+    private static String record(String formDataUuid, boolean parseObsForPerson) {
+        return (parseObsForPerson ? PERSON_OBS : PATIENT_OBS) + formDataUuid;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.FormTemplate;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses each version of an HTML form template once. The locations and providers the template
+ * refers to are kept for every template, so that a sync does not parse templates again.
+ * The serialized template with an empty pre-populate data element is kept for the most recently
+ * opened templates, so that pre-populating a saved form is a string splice.
+ */
+public class FormTemplateCache {
+    static final int MAX_CACHED_HTML_CHARS = 4 * 1024 * 1024;
+    private static final String PRE_POPULATE_DATA_ELEMENT = "<div id=\"pre_populate_data\">";
+
+    private static final FormTemplateCache instance = new FormTemplateCache(MAX_CACHED_HTML_CHARS);
+
+    private final int maxCachedHtmlChars;
+    private final Map<String, CompiledTemplate> compiledTemplates = new HashMap<>();
+    private final LinkedHashMap<String, CompiledTemplate> templatesWithHtml = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedHtmlChars;
+    private int parseCount;
+
+    public static FormTemplateCache getInstance() {
+        return instance;
+    }
+
+    FormTemplateCache(int maxCachedHtmlChars) {
+        this.maxCachedHtmlChars = maxCachedHtmlChars;
+    }
+
+    public List<String> getLocationNames(FormTemplate formTemplate) {
+        return getCompiledTemplate(formTemplate, false).locationNames;
+    }
+
+    public List<String> getProviderNames(FormTemplate formTemplate) {
+        return getCompiledTemplate(formTemplate, false).providerNames;
+    }
+
+    /**
+     * @return the template html with the payload as the first element of the body, where the form
+     * scripts read the data of a saved form from
+     */
+    public String prePopulate(FormTemplate formTemplate, String jsonPayload) {
+        CompiledTemplate compiledTemplate = getCompiledTemplate(formTemplate, true);
+        String html = compiledTemplate.html;
+        if (html == null) {
+            // evicted since it was compiled by this call
+            html = compile(formTemplate.getHtml()).html;
+        }
+        int offset = compiledTemplate.prePopulateOffset;
+        return new StringBuilder(html.length() + jsonPayload.length())
+                .append(html, 0, offset)
+                .append(jsonPayload)
+                .append(html, offset, html.length())
+                .toString();
+    }
+
+    synchronized int getParseCount() {
+        return parseCount;
+    }
+
+    private CompiledTemplate getCompiledTemplate(FormTemplate formTemplate, boolean withHtml) {
+        String key = formTemplate.getUuid() == null ? "" : formTemplate.getUuid();
+        String html = formTemplate.getHtml() == null ? "" : formTemplate.getHtml();
+        String version = getVersion(html);
+        synchronized (this) {
+            CompiledTemplate compiledTemplate = compiledTemplates.get(key);
+            if (compiledTemplate != null && compiledTemplate.version.equals(version)
+                    && (!withHtml || compiledTemplate.html != null)) {
+                if (withHtml) {
+                    templatesWithHtml.get(key);
+                }
+                return compiledTemplate;
+            }
+        }
+        // parsed outside the lock so that a large template does not hold up the others
+        CompiledTemplate compiledTemplate = compile(html);
+        synchronized (this) {
+            parseCount++;
+            remove(key);
+            compiledTemplates.put(key, compiledTemplate);
+            templatesWithHtml.put(key, compiledTemplate);
+            cachedHtmlChars += compiledTemplate.html.length();
+            releaseLeastRecentlyOpenedHtml(key);
+        }
+        return compiledTemplate;
+    }
+
+    private void remove(String key) {
+        CompiledTemplate removed = templatesWithHtml.remove(key);
+        if (removed != null) {
+            cachedHtmlChars -= removed.html.length();
+        }
+        compiledTemplates.remove(key);
+    }
+
+    private void releaseLeastRecentlyOpenedHtml(String keptKey) {
+        Iterator<Map.Entry<String, CompiledTemplate>> iterator = templatesWithHtml.entrySet().iterator();
+        while (cachedHtmlChars > maxCachedHtmlChars && iterator.hasNext()) {
+            Map.Entry<String, CompiledTemplate> entry = iterator.next();
+            if (entry.getKey().equals(keptKey)) {
+                continue;
+            }
+            cachedHtmlChars -= entry.getValue().html.length();
+            entry.getValue().html = null;
+            iterator.remove();
+        }
+    }
+
+    private static CompiledTemplate compile(String html) {
+        Document document = Jsoup.parse(html);
+        CompiledTemplate compiledTemplate = new CompiledTemplate(getVersion(html),
+                Collections.unmodifiableList(new HTMLLocationParser().parse(document)),
+                Collections.unmodifiableList(new HTMLProviderParser().parse(document)));
+        document.body().prepend(PRE_POPULATE_DATA_ELEMENT + "</div>");
+        compiledTemplate.html = document.toString();
+        compiledTemplate.prePopulateOffset = compiledTemplate.html.indexOf(PRE_POPULATE_DATA_ELEMENT)
+                + PRE_POPULATE_DATA_ELEMENT.length();
+        return compiledTemplate;
+    }
+
+    private static String getVersion(String html) {
+        return html.length() + ":" + html.hashCode();
+    }
+
+    private static class CompiledTemplate {
+        private final String version;
+        private final List<String> locationNames;
+        private final List<String> providerNames;
+        private volatile String html;
+        private int prePopulateOffset;
+
+        CompiledTemplate(String version, List<String> locationNames, List<String> providerNames) {
+            this.version = version;
+            this.locationNames = locationNames;
+            this.providerNames = providerNames;
+        }
+    }
+}
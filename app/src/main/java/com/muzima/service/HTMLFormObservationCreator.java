@@ -65,7 +65,18 @@ public class HTMLFormObservationCreator {
     }
 
     public void createAndPersistObservations(String jsonResponse,String formDataUuid) {
-        parseJSONResponse(jsonResponse,formDataUuid);
+        try {
+            createAndPersistObservations(new JSONObject(jsonResponse), formDataUuid);
+        } catch (JSONException e) {
+            Log.e(getClass().getSimpleName(), "Error while parsing response JSON", e);
+        }
+    }
+
+    /**
+     * Same as {@link #createAndPersistObservations(String, String)} for a payload which is already parsed
+     */
+    public void createAndPersistObservations(JSONObject responseJSON, String formDataUuid) {
+        parseJSONResponse(responseJSON, formDataUuid);
 
         try {
             saveObservationsAndRelatedEntities();
@@ -96,7 +107,14 @@ public class HTMLFormObservationCreator {
 
     private void parseJSONResponse(String jsonResponse, String formDataUuid) {
         try {
-            JSONObject responseJSON = new JSONObject(jsonResponse);
+            parseJSONResponse(new JSONObject(jsonResponse), formDataUuid);
+        } catch (JSONException e) {
+            Log.e(getClass().getSimpleName(), "Error while parsing response JSON", e);
+        }
+    }
+
+    private void parseJSONResponse(JSONObject responseJSON, String formDataUuid) {
+        try {
             if(parseAsObsForPerson){
                 person = getPerson(responseJSON.getJSONObject("patient"));
             } else {
@@ -207,7 +225,15 @@ public class HTMLFormObservationCreator {
 
     public Date getEncounterDateFromFormDate(String jsonResponse){
         try {
-            JSONObject jsonObject = new JSONObject(jsonResponse);
+            return getEncounterDateFromFormDate(new JSONObject(jsonResponse));
+        } catch (JSONException e) {
+            Log.e(getClass().getSimpleName(), "Error while parsing response JSON", e);
+        }
+        return null;
+    }
+
+    public Date getEncounterDateFromFormDate(JSONObject jsonObject){
+        try {
             JSONObject jsonObjectInner = jsonObject.getJSONObject("encounter");
             DateFormat dateTimeFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm");
             String dateTime = jsonObjectInner.getString("encounter.encounter_datetime");
@@ -25,8 +25,11 @@ public class HTMLLocationParser {
 
     private static final String DATA_LOCATION_TAG = "data-location";
     public List<String> parse(String html) {
+        return parse(Jsoup.parse(html));
+    }
+
+    List<String> parse(Document htmlDoc) {
         Set<String> locations = new HashSet<>();
-        Document htmlDoc = Jsoup.parse(html);
         //Select all elements containing data-locations attr and is not a div.
         Elements elements = htmlDoc.select("*:not(div)[" + DATA_LOCATION_TAG + "]");
         for (Element element : elements) {
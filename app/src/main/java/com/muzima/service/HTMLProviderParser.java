@@ -23,8 +23,11 @@ import java.util.Set;
 public class HTMLProviderParser {
     private static final String DATA_PROVIDER_TAG = "data-provider";
     public List<String> parse(String html) {
+        return parse(Jsoup.parse(html));
+    }
+
+    List<String> parse(Document htmlDoc) {
         Set<String> providers = new HashSet<>();
-        Document htmlDoc = Jsoup.parse(html);
         //Select all elements containing data-providers attr and is not a div.
         Elements elements = htmlDoc.select("*:not(div)[" + DATA_PROVIDER_TAG + "]");
         for (Element element : elements) {
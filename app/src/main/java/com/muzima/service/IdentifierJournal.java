@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of identifiers kept in memory and on disk as a journal of additions and removals. Each
+ * change appends a line to the journal, which is rewritten with only the current identifiers once
+ * most of its lines are superseded.
+ *
+ * A file holding a JSON array of identifiers, as written by earlier versions, is read as the
+ * starting set and rewritten as a journal.
+ */
+class IdentifierJournal {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char ADDED = '+';
+    private static final char REMOVED = '-';
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 64;
+
+    private final File journalFile;
+    private final Set<String> identifiers = new LinkedHashSet<>();
+    private boolean loaded;
+    private int journalRecords;
+
+    IdentifierJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    synchronized void add(String identifier) throws IOException {
+        load();
+        String cleanIdentifier = clean(identifier);
+        if (identifiers.add(cleanIdentifier)) {
+            try {
+                append(ADDED, cleanIdentifier);
+            } catch (IOException e) {
+                identifiers.remove(cleanIdentifier);
+                throw e;
+            }
+        }
+    }
+
+    synchronized void remove(String identifier) throws IOException {
+        load();
+        String cleanIdentifier = clean(identifier);
+        if (identifiers.remove(cleanIdentifier)) {
+            try {
+                append(REMOVED, cleanIdentifier);
+            } catch (IOException e) {
+                identifiers.add(cleanIdentifier);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Replaces all identifiers, rewriting the journal with only the given ones
+     */
+    synchronized void replace(Collection<String> replacementIdentifiers) throws IOException {
+        identifiers.clear();
+        for (String identifier : replacementIdentifiers) {
+            identifiers.add(clean(identifier));
+        }
+        loaded = true;
+        compact();
+    }
+
+    synchronized boolean contains(String identifier) throws IOException {
+        load();
+        return identifiers.contains(clean(identifier));
+    }
+
+    /**
+     * @return a copy of the identifiers in the order they were added
+     */
+    synchronized List<String> list() throws IOException {
+        load();
+        return new ArrayList<>(identifiers);
+    }
+
+    synchronized int getJournalRecords() {
+        return journalRecords;
+    }
+
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        identifiers.clear();
+        journalRecords = 0;
+        if (journalFile.exists()) {
+            boolean legacyFormat = false;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if (line.charAt(0) == '[') {
+                        readLegacyList(line);
+                        legacyFormat = true;
+                    } else {
+                        replay(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (legacyFormat) {
+                compact();
+            }
+        }
+        loaded = true;
+    }
+
+    private void replay(String record) {
+        String identifier = record.substring(1);
+        if (record.charAt(0) == ADDED) {
+            identifiers.add(identifier);
+        } else if (record.charAt(0) == REMOVED) {
+            identifiers.remove(identifier);
+        }
+        journalRecords++;
+    }
+
+    private void readLegacyList(String json) throws IOException {
+        try {
+            JSONArray jsonArray = new JSONArray(json);
+            for (int i = 0; i < jsonArray.length(); i++) {
+                identifiers.add(clean(jsonArray.get(i).toString()));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Could not read " + journalFile, e);
+        }
+    }
+
+    private void append(char operation, String identifier) throws IOException {
+        if (journalRecords + 1 > 2 * identifiers.size() + MIN_RECORDS_BEFORE_COMPACTION) {
+            // the journal already reflects this change once rewritten from the set
+            compact();
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF_8));
+        try {
+            writer.write(operation);
+            writer.write(identifier);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+        journalRecords++;
+    }
+
+    private void compact() throws IOException {
+        File compactedFile = new File(journalFile.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compactedFile), UTF_8));
+        try {
+            for (String identifier : identifiers) {
+                writer.write(ADDED);
+                writer.write(identifier);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!compactedFile.renameTo(journalFile)) {
+            throw new IOException("Could not replace " + journalFile);
+        }
+        journalRecords = identifiers.size();
+    }
+
+    private static String clean(String identifier) {
+        // keep records on a single line
+        return identifier == null ? "" : identifier.replace('\n', ' ').replace('\r', ' ');
+    }
+}
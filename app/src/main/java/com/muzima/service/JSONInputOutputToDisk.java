@@ -11,78 +11,51 @@
 package com.muzima.service;
 
 import android.content.Context;
-import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * The identifiers of patients whose uuid changed during a sync. The identifiers are kept in an
+ * {@link IdentifierJournal} shared by all instances, so a change only appends to the file.
+ */
 public class JSONInputOutputToDisk extends PreferenceService{
 
     private static final String FILE_NAME = "IdOfPatientWithChangedUuid.txt";
+    private static final Map<String, IdentifierJournal> journals = new HashMap<>();
+
+    private final IdentifierJournal journal;
+
     public JSONInputOutputToDisk(Context context) {
         super(context);
-        initialize();
+        journal = getJournal(context.getFileStreamPath(FILE_NAME));
     }
 
-    private void initialize() {
-        File file = context.getFileStreamPath(FILE_NAME);
-        if(!file.exists()) {
-            try {
-                write("");
-            } catch (IOException error) {
-                Log.e(this.getClass().toString(), "Error thrown when initialising JSON file on device drive.", error);
-            }
+    private static synchronized IdentifierJournal getJournal(File file) {
+        IdentifierJournal journal = journals.get(file.getAbsolutePath());
+        if (journal == null) {
+            journal = new IdentifierJournal(file);
+            journals.put(file.getAbsolutePath(), journal);
         }
+        return journal;
     }
 
     public void add(String patientIdentifier) throws IOException {
-        String savedData = read();
-        List<String> savedList = deserialize(savedData);
-        savedList.add(patientIdentifier);
-        String updatedData = serialize(savedList);
-        write(updatedData);
-    }
-
-    private void write(String dataToWrite) throws IOException {
-        final File dir = new File(String.valueOf(context.getFilesDir()));
-        dir.mkdirs();
-        FileOutputStream fOut = context.openFileOutput(FILE_NAME,
-                Context.MODE_PRIVATE);
-        OutputStreamWriter osw = new OutputStreamWriter(fOut);
-        osw.write(dataToWrite);
-        osw.close();
+        journal.add(patientIdentifier);
     }
 
-    private String read() throws IOException {
-        FileInputStream FileInputStream = context.openFileInput(FILE_NAME);
-        InputStreamReader inputStreamReader = new InputStreamReader(FileInputStream);
-
-        StringBuilder outStringBuffer = new StringBuilder();
-        String inputLine = "";
-        BufferedReader inputBuffer = new BufferedReader(inputStreamReader);
-        while ((inputLine = inputBuffer.readLine()) != null) {
-            outStringBuffer.append(inputLine);
-            outStringBuffer.append("\n");
-        }
-        inputBuffer.close();
-        return outStringBuffer.toString();
+    public List readList() throws IOException {
+        return journal.list();
     }
 
-    public List readList() throws IOException {
-        return deserialize(read());
+    public boolean contains(String patientIdentifier) throws IOException {
+        return journal.contains(patientIdentifier);
     }
 
     public void remove(String patientIdentifier) throws IOException {
-        String savedData = read();
-        List<String> savedList = deserialize(savedData);
-        savedList.remove(patientIdentifier);
-        String updatedData = serialize(savedList);
-        write(updatedData);
+        journal.remove(patientIdentifier);
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer of log events written by a single background thread, in batches of up to
+ * batchSize events once batchSize events are waiting or the oldest has waited flushIntervalMillis.
+ *
+ * When the buffer is full the oldest or the newest event is dropped, depending on the drop policy
+ * it was created with. Events still in the buffer are lost if the process dies before they are
+ * written.
+ */
+public class LogEventBuffer {
+    public enum DropPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    public interface LogEventWriter {
+        /**
+         * Writes a batch of events in one go, a failure counts every event of the batch as failed
+         */
+        void write(List<LogEvent> events) throws Exception;
+    }
+
+    private final LogEvent[] events;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final DropPolicy dropPolicy;
+    private final LogEventWriter writer;
+    private final Object writeLock = new Object();
+    private int head;
+    private int count;
+    private Thread writerThread;
+
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    public LogEventBuffer(int capacity, int batchSize, long flushIntervalMillis, DropPolicy dropPolicy,
+                          LogEventWriter writer) {
+        if (capacity <= 0 || batchSize <= 0 || batchSize > capacity) {
+            throw new IllegalArgumentException("Batch size must be positive and not larger than the capacity");
+        }
+        this.events = new LogEvent[capacity];
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.dropPolicy = dropPolicy;
+        this.writer = writer;
+    }
+
+    /**
+     * Queues the event without blocking.
+     *
+     * @return false if the event was dropped because the buffer is full
+     */
+    public synchronized boolean add(LogEvent event) {
+        if (count == events.length) {
+            droppedCount.incrementAndGet();
+            if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                return false;
+            }
+            events[head] = null;
+            head = (head + 1) % events.length;
+            count--;
+        }
+        events[(head + count) % events.length] = event;
+        count++;
+        if (count == 1 || count == batchSize) {
+            notifyAll();
+        }
+        startWriter();
+        return true;
+    }
+
+    /**
+     * Writes every queued event on the calling thread, e.g. before the logs are uploaded.
+     * Use {@link MuzimaLoggerService#flushLogs(long)} to flush from the UI thread.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            List<LogEvent> batch;
+            while (!(batch = drain(batchSize)).isEmpty()) {
+                write(batch);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the average time written events waited in the buffer
+     */
+    public long getAverageLatencyMillis() {
+        long flushed = flushedCount.get();
+        return flushed == 0 ? 0 : totalLatencyMillis.get() / flushed;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    private void startWriter() {
+        if (writerThread == null) {
+            writerThread = new Thread(this::runWriter, "MuzimaLogWriter");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                awaitBatch();
+                synchronized (writeLock) {
+                    write(drain(batchSize));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void awaitBatch() throws InterruptedException {
+        while (count == 0) {
+            wait();
+        }
+        long deadline = events[head].getTimestamp() + flushIntervalMillis;
+        long now;
+        while (count > 0 && count < batchSize && (now = System.currentTimeMillis()) < deadline) {
+            wait(deadline - now);
+        }
+    }
+
+    private synchronized List<LogEvent> drain(int maximum) {
+        int drained = Math.min(maximum, count);
+        List<LogEvent> batch = new ArrayList<>(drained);
+        for (int i = 0; i < drained; i++) {
+            batch.add(events[head]);
+            events[head] = null;
+            head = (head + 1) % events.length;
+        }
+        count -= drained;
+        return batch;
+    }
+
+    private void write(List<LogEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            writer.write(batch);
+        } catch (Exception e) {
+            failedCount.addAndGet(batch.size());
+            Log.e(getClass().getSimpleName(), "Could not write " + batch.size() + " log events", e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (LogEvent event : batch) {
+            long latency = now - event.getTimestamp();
+            flushedCount.incrementAndGet();
+            totalLatencyMillis.addAndGet(latency);
+            long max;
+            while (latency > (max = maxLatencyMillis.get()) && !maxLatencyMillis.compareAndSet(max, latency)) {
+                // retry until the larger latency is stored
+            }
+        }
+    }
+
+    public static class LogEvent {
+        private final String tag;
+        private final String userId;
+        private final String gpsLocation;
+        private final String details;
+        private final long timestamp;
+
+        public LogEvent(String tag, String userId, String gpsLocation, String details, long timestamp) {
+            this.tag = tag;
+            this.userId = userId;
+            this.gpsLocation = gpsLocation;
+            this.details = details;
+            this.timestamp = timestamp;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getGpsLocation() {
+            return gpsLocation;
+        }
+
+        public String getDetails() {
+            return details;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.util.Log;
+
+import com.muzima.api.model.Media;
+
+import java.io.File;
+import java.util.List;
+
+import static android.content.Context.DOWNLOAD_SERVICE;
+
+/**
+ * Brings the media files in the Downloads directory up to date with the {@link MediaSyncManifest},
+ * with at most {@link #MAX_CONCURRENT_DOWNLOADS} downloads handed to the download manager at a
+ * time. The next queued download starts when one completes.
+ */
+public class MediaDownloadQueue {
+    public static final String MANIFEST_FILE_NAME = "MediaSyncManifest.txt";
+    public static final int MAX_CONCURRENT_DOWNLOADS = 2;
+
+    private final Context context;
+    private final MediaSyncManifest manifest;
+
+    public MediaDownloadQueue(Context context, MediaSyncManifest manifest) {
+        this.context = context.getApplicationContext();
+        this.manifest = manifest;
+        manifest.load();
+    }
+
+    /**
+     * Queues the new and changed media items, removes the retired ones and starts downloads
+     *
+     * @return the number of media items waiting to be downloaded
+     */
+    public synchronized int sync(List<Media> mediaList) {
+        MediaSyncManifest.Plan plan = manifest.plan(mediaList, getDownloadDirectory());
+        DownloadManager downloadManager = getDownloadManager();
+        for (long downloadId : plan.getDownloadsToCancel()) {
+            downloadManager.remove(downloadId);
+        }
+        for (String fileName : plan.getFilesToDelete()) {
+            deleteFile(fileName);
+        }
+        startQueuedDownloads();
+        manifest.save();
+        return plan.getQueuedCount();
+    }
+
+    /**
+     * Records the outcome of a download and starts the next queued one. Downloads not started by
+     * this queue are ignored.
+     */
+    public synchronized void onDownloadComplete(long downloadId) {
+        MediaSyncManifest.Entry entry = manifest.getEntryByDownloadId(downloadId);
+        if (entry == null) {
+            return;
+        }
+        recordOutcome(entry, getDownloadManager());
+        startQueuedDownloads();
+        manifest.save();
+    }
+
+    private void startQueuedDownloads() {
+        DownloadManager downloadManager = getDownloadManager();
+        int running = 0;
+        for (MediaSyncManifest.Entry entry : manifest.getEntries(MediaSyncManifest.State.DOWNLOADING)) {
+            // a completion may have been missed while the app was not running
+            if (!recordOutcome(entry, downloadManager)) {
+                running++;
+            }
+        }
+        for (MediaSyncManifest.Entry entry : manifest.getEntries(MediaSyncManifest.State.QUEUED)) {
+            if (running >= MAX_CONCURRENT_DOWNLOADS) {
+                break;
+            }
+            try {
+                // the download manager does not overwrite files, it would add a suffix instead
+                deleteFile(entry.getFileName());
+                DownloadManager.Request request = new DownloadManager.Request(Uri.parse(entry.getUrl()));
+                request.setTitle(entry.getTitle());
+                request.setDescription(entry.getDescription());
+                request.allowScanningByMediaScanner();
+                request.setAllowedOverMetered(true);
+                request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
+                request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, entry.getFileName());
+                manifest.markDownloading(entry.getUuid(), downloadManager.enqueue(request));
+                running++;
+            } catch (RuntimeException e) {
+                Log.e(getClass().getSimpleName(), "Could not start the download of " + entry.getFileName(), e);
+                manifest.markFailed(entry.getUuid());
+            }
+        }
+    }
+
+    /**
+     * @return true if the download is over, false while the download manager is still at it
+     */
+    private boolean recordOutcome(MediaSyncManifest.Entry entry, DownloadManager downloadManager) {
+        int status = DownloadManager.STATUS_FAILED;
+        long downloadedSize = 0;
+        Cursor cursor = downloadManager.query(new DownloadManager.Query().setFilterById(entry.getDownloadId()));
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+                    downloadedSize = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (status == DownloadManager.STATUS_SUCCESSFUL) {
+            manifest.markDownloaded(entry.getUuid(), downloadedSize);
+            return true;
+        }
+        if (status == DownloadManager.STATUS_FAILED) {
+            Log.e(getClass().getSimpleName(), "Download of " + entry.getFileName() + " failed, it is retried on the next sync");
+            manifest.markFailed(entry.getUuid());
+            return true;
+        }
+        return false;
+    }
+
+    private void deleteFile(String fileName) {
+        File file = new File(getDownloadDirectory(), fileName);
+        if (file.exists() && file.delete()) {
+            context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
+        }
+    }
+
+    private File getDownloadDirectory() {
+        return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+    }
+
+    private DownloadManager getDownloadManager() {
+        return (DownloadManager) context.getSystemService(DOWNLOAD_SERVICE);
+    }
+}
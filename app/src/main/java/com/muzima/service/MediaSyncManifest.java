@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.util.Log;
+
+import com.muzima.api.model.Media;
+import com.muzima.utils.MediaUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which version of each media item is in the Downloads directory, so that a sync only
+ * downloads the items which changed or whose file went missing.
+ *
+ * The version of an item is made of its url, size and file name as reported by the server. An
+ * entry keeps the id of its pending download, so that a download interrupted by the end of a sync
+ * or of the app is picked up where the download manager left it instead of being started again.
+ *
+ * The whole manifest is rewritten by {@link #save()}; without a file it lives in memory.
+ */
+public class MediaSyncManifest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\t";
+    private static final int FIELD_COUNT = 9;
+    public static final long NO_DOWNLOAD = -1;
+
+    public enum State {
+        QUEUED,
+        DOWNLOADING,
+        DOWNLOADED,
+        FAILED
+    }
+
+    private final File manifestFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param manifestFile the file holding the manifest, or null to keep it in memory only
+     */
+    public MediaSyncManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * @return true if the manifest was read from its file, false if there is none yet
+     */
+    public synchronized boolean load() {
+        entries.clear();
+        if (manifestFile == null || !manifestFile.exists()) {
+            return false;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = Entry.parse(line);
+                    if (entry != null) {
+                        entries.put(entry.uuid, entry);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(getClass().getSimpleName(), "Could not read the media sync manifest", e);
+            entries.clear();
+            return false;
+        }
+    }
+
+    public synchronized void save() {
+        if (manifestFile == null) {
+            return;
+        }
+        File tempFile = new File(manifestFile.getPath() + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8));
+            try {
+                for (Entry entry : entries.values()) {
+                    writer.write(entry.format());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(manifestFile)) {
+                throw new IOException("Could not replace " + manifestFile);
+            }
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not save the media sync manifest", e);
+        }
+    }
+
+    /**
+     * Compares the media items reported by the server with the files in the download directory.
+     * New and changed items are queued and retired items are dropped; downloads which failed in
+     * an earlier sync are queued again.
+     */
+    public synchronized Plan plan(List<Media> mediaList, File downloadDirectory) {
+        Plan plan = new Plan();
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.FAILED) {
+                entry.state = State.QUEUED;
+            }
+        }
+        for (Media media : mediaList) {
+            Entry entry = entries.get(media.getUuid());
+            if (media.isRetired()) {
+                if (entry != null) {
+                    entries.remove(entry.uuid);
+                    drop(entry, plan);
+                } else {
+                    plan.filesToDelete.add(new Entry(media).fileName);
+                }
+                continue;
+            }
+            Entry latest = new Entry(media);
+            if (entry == null && isOnDisk(latest, downloadDirectory)) {
+                // downloaded before the manifest was kept
+                latest.state = State.DOWNLOADED;
+                latest.localSize = latest.fileSize;
+            } else if (entry != null && entry.getVersion().equals(latest.getVersion())) {
+                if (entry.state == State.DOWNLOADED && !isOnDisk(entry, downloadDirectory)) {
+                    entry.state = State.QUEUED;
+                    entry.localSize = 0;
+                }
+                continue;
+            }
+            if (entry != null) {
+                drop(entry, plan);
+            }
+            entries.put(latest.uuid, latest);
+        }
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.QUEUED) {
+                plan.queuedCount++;
+            }
+        }
+        return plan;
+    }
+
+    private void drop(Entry entry, Plan plan) {
+        if (entry.state == State.DOWNLOADING) {
+            plan.downloadsToCancel.add(entry.downloadId);
+        }
+        plan.filesToDelete.add(entry.fileName);
+    }
+
+    private static boolean isOnDisk(Entry entry, File downloadDirectory) {
+        File file = new File(downloadDirectory, entry.fileName);
+        long expectedSize = entry.state == State.DOWNLOADED ? entry.localSize : entry.fileSize;
+        return file.exists() && (expectedSize <= 0 || file.length() == expectedSize);
+    }
+
+    public synchronized List<Entry> getEntries(State state) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state == state) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    public synchronized Entry getEntryByDownloadId(long downloadId) {
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.DOWNLOADING && entry.downloadId == downloadId) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void markDownloading(String uuid, long downloadId) {
+        Entry entry = entries.get(uuid);
+        if (entry != null) {
+            entry.state = State.DOWNLOADING;
+            entry.downloadId = downloadId;
+        }
+    }
+
+    public synchronized void markDownloaded(String uuid, long localSize) {
+        Entry entry = entries.get(uuid);
+        if (entry != null) {
+            entry.state = State.DOWNLOADED;
+            entry.downloadId = NO_DOWNLOAD;
+            entry.localSize = localSize;
+        }
+    }
+
+    /**
+     * Keeps a failed download out of this sync, the next sync queues it again
+     */
+    public synchronized void markFailed(String uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry != null) {
+            entry.state = State.FAILED;
+            entry.downloadId = NO_DOWNLOAD;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * What a sync has to do to bring the download directory up to date besides starting the
+     * queued downloads
+     */
+    public static class Plan {
+        private final List<Long> downloadsToCancel = new ArrayList<>();
+        private final List<String> filesToDelete = new ArrayList<>();
+        private int queuedCount;
+
+        public List<Long> getDownloadsToCancel() {
+            return downloadsToCancel;
+        }
+
+        public List<String> getFilesToDelete() {
+            return filesToDelete;
+        }
+
+        public int getQueuedCount() {
+            return queuedCount;
+        }
+    }
+
+    public static class Entry {
+        private final String uuid;
+        private final String fileName;
+        private final String title;
+        private final String description;
+        private final String url;
+        private final long fileSize;
+        private State state;
+        private long downloadId;
+        private long localSize;
+
+        private Entry(Media media) {
+            this(clean(media.getUuid()), clean(MediaUtils.getMediaFileName(media.getName(), media.getMimeType())),
+                    clean(media.getName()), clean(media.getDescription()), clean(media.getUrl()),
+                    media.getFileSize(), State.QUEUED, NO_DOWNLOAD, 0);
+        }
+
+        private Entry(String uuid, String fileName, String title, String description, String url,
+                      long fileSize, State state, long downloadId, long localSize) {
+            this.uuid = uuid;
+            this.fileName = fileName;
+            this.title = title;
+            this.description = description;
+            this.url = url;
+            this.fileSize = fileSize;
+            this.state = state;
+            this.downloadId = downloadId;
+            this.localSize = localSize;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the version of the item as reported by the server
+         */
+        public String getVersion() {
+            return url + "|" + fileSize + "|" + fileName;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getDownloadId() {
+            return downloadId;
+        }
+
+        private String format() {
+            return uuid + SEPARATOR + fileName + SEPARATOR + title + SEPARATOR + description + SEPARATOR + url
+                    + SEPARATOR + fileSize + SEPARATOR + state + SEPARATOR + downloadId + SEPARATOR + localSize;
+        }
+
+        private static Entry parse(String line) {
+            String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length != FIELD_COUNT) {
+                return null;
+            }
+            return new Entry(fields[0], fields[1], fields[2], fields[3], fields[4], Long.parseLong(fields[5]),
+                    State.valueOf(fields[6]), Long.parseLong(fields[7]), Long.parseLong(fields[8]));
+        }
+    }
+
+    private static String clean(String value) {
+        // keep entries on a single line with a fixed number of fields
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
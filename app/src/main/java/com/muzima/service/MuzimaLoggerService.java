@@ -19,14 +19,20 @@ import com.muzima.api.model.User;
 import com.muzima.controller.MuzimaSettingController;
 import com.muzima.model.location.MuzimaGPSLocation;
 import com.muzima.tasks.MuzimaAsyncTask;
+import com.muzima.tasks.MuzimaTaskScheduler;
 import com.muzima.util.MuzimaLogger;
 import net.minidev.json.JSONObject;
 import org.json.JSONException;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Timer;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.muzima.util.Constants.ServerSettings.LOGGING_FEATURE_ENABLED_SETTING;
 import static com.muzima.utils.DeviceDetailsUtil.generatePseudoDeviceId;
@@ -36,6 +42,17 @@ public class MuzimaLoggerService {
 
     private static Timer timer;
 
+    private static final int LOG_BUFFER_CAPACITY = 1000;
+    private static final int LOG_BATCH_SIZE = 50;
+    private static final long LOG_FLUSH_INTERVAL_MILLIS = 5000;
+    // not a user setting, the most recent events are kept when logging outpaces the writer
+    private static final LogEventBuffer.DropPolicy LOG_DROP_POLICY = LogEventBuffer.DropPolicy.DROP_OLDEST;
+    private static final String LOG_FLUSH_TASK_TYPE = "LogFlush";
+    private static final long GPS_LOCATION_CACHE_MILLIS = 10000;
+    private static volatile LogEventBuffer logEventBuffer;
+    private static volatile String cachedGPSLocation;
+    private static volatile long cachedGPSLocationTime;
+
     public static String getAndParseGPSLocationForLogging(final MuzimaApplication muzimaApplication){
         if(isLoggingFeatureEnabled(muzimaApplication)) {
             MuzimaGPSLocationService muzimaLocationService = muzimaApplication.getMuzimaGPSLocationService();
@@ -57,32 +74,8 @@ public class MuzimaLoggerService {
 
     public static void log(final MuzimaApplication muzimaApplication, final String tag, final String userId, final String gpsLocation, final String details){
         if(isLoggingFeatureEnabled(muzimaApplication)) {
-
-            new MuzimaAsyncTask<Void, Void, Void>() {
-                @Override
-                protected void onPreExecute() {
-
-                }
-
-                protected Void doInBackground(Void... voids) {
-                    String deviceId = getPseudoDeviceId();
-                    JSONObject timestamp = new JSONObject(){{
-                        put("systemTimestamp",System.currentTimeMillis());
-                    }};
-
-                    MuzimaLogger.log(muzimaApplication.getMuzimaContext(), tag, userId, gpsLocation, details, deviceId,timestamp.toJSONString());                    return null;
-                }
-
-                @Override
-                protected void onPostExecute(Void unused) {
-
-                }
-
-                @Override
-                protected void onBackgroundError(Exception e) {
-
-                }
-            }.execute();
+            LogEventBuffer.LogEvent event = new LogEventBuffer.LogEvent(tag, userId, gpsLocation, details, System.currentTimeMillis());
+            getLogEventBuffer(muzimaApplication).add(event);
         }
     }
 
@@ -91,7 +84,7 @@ public class MuzimaLoggerService {
             User authenticatedUser = muzimaApplication.getAuthenticatedUser();
             if (authenticatedUser != null) {
                 String userId = authenticatedUser.getUuid();
-                log(muzimaApplication, tag, userId, getAndParseGPSLocationForLogging(muzimaApplication), details);
+                log(muzimaApplication, tag, userId, getCachedGPSLocationForLogging(muzimaApplication), details);
             } else {
                 Log.e("MuzimaLoggerService", "Could not save logs");
             }
@@ -113,6 +106,7 @@ public class MuzimaLoggerService {
                             }
 
                             protected Void doInBackground(Void... voids) {
+                                flushLogs();
                                 try {
                                     Context context = muzimaApplication.getMuzimaContext();
                                     context.getLogEntryService().syncLogs();
@@ -138,6 +132,57 @@ public class MuzimaLoggerService {
         }
     }
 
+    /**
+     * Writes the buffered log events to the store on the calling thread.
+     */
+    public static void flushLogs() {
+        LogEventBuffer buffer = logEventBuffer;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * Writes the buffered log events to the store on the sync lane, waiting at most the given time
+     * so it can be called from the UI thread, e.g. on logout. Events not written by then are still
+     * written in the background.
+     */
+    public static void flushLogs(long timeoutMillis) {
+        final LogEventBuffer buffer = logEventBuffer;
+        if (buffer == null) {
+            return;
+        }
+        try {
+            MuzimaTaskScheduler.getInstance().submit(MuzimaTaskScheduler.Lane.SYNC_IO, MuzimaTaskScheduler.Priority.USER_VISIBLE,
+                    LOG_FLUSH_TASK_TYPE, (Runnable) buffer::flush).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w("MuzimaLoggerService", "Log events still being written after " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            Log.e("MuzimaLoggerService", "Could not flush log events", e);
+        }
+    }
+
+    /**
+     * Saves a batch of log events. The logger API stores one entry at a time, so this is the
+     * single place the whole batch goes through on its way to the store.
+     */
+    static void saveLogEvents(MuzimaApplication muzimaApplication, List<LogEventBuffer.LogEvent> events) {
+        Context context = muzimaApplication.getMuzimaContext();
+        String deviceId = getPseudoDeviceId();
+        for (LogEventBuffer.LogEvent event : events) {
+            JSONObject timestamp = new JSONObject();
+            timestamp.put("systemTimestamp", event.getTimestamp());
+            MuzimaLogger.log(context, event.getTag(), event.getUserId(), event.getGpsLocation(), event.getDetails(),
+                    deviceId, timestamp.toJSONString());
+        }
+    }
+
+    public static LogEventBuffer getLogEventBuffer() {
+        return logEventBuffer;
+    }
+
     public static void stopLogsSync(){
         if(timer != null){
             timer.cancel();
@@ -160,6 +205,23 @@ public class MuzimaLoggerService {
         return false;
     }
 
+    private static synchronized LogEventBuffer getLogEventBuffer(final MuzimaApplication muzimaApplication) {
+        if (logEventBuffer == null) {
+            logEventBuffer = new LogEventBuffer(LOG_BUFFER_CAPACITY, LOG_BATCH_SIZE, LOG_FLUSH_INTERVAL_MILLIS,
+                    LOG_DROP_POLICY, events -> saveLogEvents(muzimaApplication, events));
+        }
+        return logEventBuffer;
+    }
+
+    private static String getCachedGPSLocationForLogging(final MuzimaApplication muzimaApplication) {
+        long now = System.currentTimeMillis();
+        if (cachedGPSLocation == null || now - cachedGPSLocationTime > GPS_LOCATION_CACHE_MILLIS) {
+            cachedGPSLocation = getAndParseGPSLocationForLogging(muzimaApplication);
+            cachedGPSLocationTime = now;
+        }
+        return cachedGPSLocation;
+    }
+
     private static String getPseudoDeviceId() {
         if(pseudoDeviceId == null){
             pseudoDeviceId = generatePseudoDeviceId();
@@ -10,13 +10,7 @@
 
 package com.muzima.service;
 
-import static android.content.Context.DOWNLOAD_SERVICE;
-
-import android.app.DownloadManager;
-import android.content.Intent;
 import android.content.SharedPreferences;
-import android.net.Uri;
-import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -41,9 +35,7 @@ import com.muzima.api.model.Observation;
 import com.muzima.api.model.Patient;
 import com.muzima.api.model.PatientReport;
 import com.muzima.api.model.PatientReportHeader;
-import com.muzima.api.model.PatientTag;
 import com.muzima.api.model.Person;
-import com.muzima.api.model.PersonAddress;
 import com.muzima.api.model.Provider;
 import com.muzima.api.model.MuzimaSetting;
 import com.muzima.api.model.Relationship;
@@ -72,32 +64,30 @@ import com.muzima.model.CompleteFormWithPatientData;
 import com.muzima.model.IncompleteFormWithPatientData;
 import com.muzima.model.collections.CompleteFormsWithPatientData;
 import com.muzima.model.collections.IncompleteFormsWithPatientData;
+import com.muzima.model.events.SyncProgressEvent;
 import com.muzima.util.JsonUtils;
 import com.muzima.util.MuzimaSettingUtils;
-import com.muzima.utils.Constants;
 import com.muzima.utils.MemoryUtil;
 import com.muzima.utils.NetworkUtils;
 import com.muzima.utils.StringUtils;
 import com.muzima.view.forms.SyncFormTemplateIntent;
 import com.muzima.view.patients.SyncPatientDataIntent;
-import com.muzima.view.progressdialog.ProgressDialogUpdateIntentService;
 
 import org.apache.lucene.queryParser.ParseException;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import static com.muzima.utils.Constants.DataSyncServiceConstants.SyncStatusConstants;
@@ -110,21 +100,24 @@ import static com.muzima.utils.Constants.DataSyncServiceConstants.SyncStatusCons
 import static com.muzima.utils.Constants.LOCAL_PATIENT;
 import static java.util.Collections.singleton;
 
-import static com.muzima.utils.Constants.FGH.Concepts.HEALTHWORKER_ASSIGNMENT_CONCEPT_ID;
-import static com.muzima.utils.Constants.FGH.TagsUuids.ALREADY_ASSIGNED_TAG_UUID;
-import static com.muzima.utils.Constants.FGH.TagsUuids.AWAITING_ASSIGNMENT_TAG_UUID;
-import static com.muzima.utils.Constants.FGH.TagsUuids.HAS_SEXUAL_PARTNER_TAG_UUID;
 import static com.muzima.utils.Constants.STANDARD_DATE_TIMEZONE_FORMAT;
 import static com.muzima.utils.DeviceDetailsUtil.generatePseudoDeviceId;
 
 public class MuzimaSyncService {
     private static final String TAG = "MuzimaSyncService";
+    private static final int RELATIONSHIP_SYNC_SLICE_SIZE = 50;
+    // one per operation, shared by the sync job and DataSyncService
+    private static final Lock formUploadLock = new ReentrantLock();
+    private static final Lock patientDownloadLock = new ReentrantLock();
+    private static final Lock observationDownloadLock = new ReentrantLock();
+    private static final Lock relationshipDownloadLock = new ReentrantLock();
     private final MuzimaApplication muzimaApplication;
     private final FormController formController;
     private final ConceptController conceptController;
     private final CohortController cohortController;
     private final PatientController patientController;
     private final ObservationController observationController;
+    private final SyncProgressReporter progressReporter = new SyncProgressReporter();
     private LocationController locationController;
     private ProviderController providerController;
     private SetupConfigurationController setupConfigurationController;
@@ -580,6 +573,10 @@ public class MuzimaSyncService {
     }
 
     public int[] downloadPatientsForCohorts(String[] cohortUuids) {
+        return runExclusively(patientDownloadLock, () -> downloadPatientsForCohortsExclusively(cohortUuids));
+    }
+
+    private int[] downloadPatientsForCohortsExclusively(String[] cohortUuids) {
         int[] result = new int[4];
 
         int patientCount = 0;
@@ -696,7 +693,7 @@ public class MuzimaSyncService {
             }
             result = downloadObservationsForPatientsByPatientUUIDs(patientlist, replaceExistingObservation);
             if (result[0] != SUCCESS) {
-                updateProgressDialog(muzimaApplication.getString(R.string.error_encounter_observation_download));
+                progressReporter.reportMessage(SyncProgressEvent.PHASE_OBSERVATIONS, muzimaApplication.getString(R.string.error_encounter_observation_download));
 
             }
             MuzimaSettingController muzimaSettingController = muzimaApplication.getMuzimaSettingController();
@@ -724,7 +721,7 @@ public class MuzimaSyncService {
             }
             result = downloadObservationsForPatientsByPatientUUIDs(personUuidList, replaceExistingObservation);
             if (result[0] != SUCCESS) {
-                updateProgressDialog(muzimaApplication.getString(R.string.error_encounter_observation_download));
+                progressReporter.reportMessage(SyncProgressEvent.PHASE_OBSERVATIONS, muzimaApplication.getString(R.string.error_encounter_observation_download));
             }
         } catch (PersonController.PersonLoadException e) {
             Log.e(getClass().getSimpleName(), "Exception thrown while loading persons.", e);
@@ -733,12 +730,6 @@ public class MuzimaSyncService {
         return result;
     }
 
-    private void updateProgressDialog(String message) {
-        Intent progressUpdateIntent = new Intent(muzimaApplication.getApplicationContext(), ProgressDialogUpdateIntentService.class);
-        progressUpdateIntent.putExtra(Constants.ProgressDialogConstants.PROGRESS_UPDATE_MESSAGE, message);
-        muzimaApplication.getApplicationContext().startService(progressUpdateIntent);
-    }
-
     private List<List<String>> split(final List<String> strings) {
         List<List<String>> lists = new ArrayList<>();
 
@@ -759,13 +750,16 @@ public class MuzimaSyncService {
     }
 
     public int[] downloadObservationsForPatientsByPatientUUIDs(List<String> patientUuids, boolean replaceExistingObservations) {
+        return runExclusively(observationDownloadLock,
+                () -> downloadObservationsForPatientsExclusively(patientUuids, replaceExistingObservations));
+    }
+
+    private int[] downloadObservationsForPatientsExclusively(List<String> patientUuids, boolean replaceExistingObservations) {
         int[] result = new int[4];
         try {
             List<String> conceptUuidsFromConcepts = getConceptUuidsFromConcepts(conceptController.getConcepts());
             List<List<String>> slicedPatientUuids = split(patientUuids);
             List<List<String>> slicedConceptUuids = split(conceptUuidsFromConcepts);
-            Set<String> patientUuidsForDownloadedObs = new HashSet<>();
-            long totalTimeDownloading = 0, totalTimeReplacing = 0, totalTimeSaving = 0;
 
             String activeSetupConfigUuid = null;
             try {
@@ -777,52 +771,25 @@ public class MuzimaSyncService {
                 Log.e(getClass().getSimpleName(), "Could not obtain active setup config", e);
             }
 
-            int i = 0;
-            for (List<String> slicedPatientUuid : slicedPatientUuids) {
-                for (List<String> slicedConceptUuid : slicedConceptUuids) {
-                    long startDownloadObservations = System.currentTimeMillis();
-
-                    List<Observation> allObservations = new ArrayList<>(observationController.downloadObservationsByPatientUuidsAndConceptUuids(
-                            slicedPatientUuid, slicedConceptUuid, activeSetupConfigUuid));
-
-                    for (Observation observation : allObservations) {
-                        patientUuidsForDownloadedObs.add(observation.getPerson().getUuid());
-                    }
-
-                    updateProgressDialog(muzimaApplication.getString(R.string.info_observations_download_progress, patientUuidsForDownloadedObs.size(), patientUuids.size()));
-
-                    Log.i(getClass().getSimpleName(), "Downloading observations for " + slicedPatientUuid.size() + " patients and " + slicedConceptUuid.size() + " concepts");
-                    long endDownloadObservations = System.currentTimeMillis();
-                    Log.i(getClass().getSimpleName(), "Observations download successful with " + allObservations.size() + " observations");
-                    Log.d(getClass().getSimpleName(), "In Downloading observations : " + (endDownloadObservations - startDownloadObservations) / 1000 + " sec");
-                    totalTimeDownloading += endDownloadObservations - startDownloadObservations;
-                    List<Observation> voidedObservations = getVoidedObservations(allObservations);
-                    observationController.deleteObservations(voidedObservations);
-                    allObservations.removeAll(voidedObservations);
-                    Log.i(getClass().getSimpleName(), "Voided observations delete successful with " + voidedObservations.size() + " observations");
-
-                    if (replaceExistingObservations) {
-                        observationController.replaceObservations(allObservations);
-                        long replacedObservations = System.currentTimeMillis();
-                        Log.d(getClass().getSimpleName(), "In Replacing observations for patients: " + (replacedObservations - endDownloadObservations) / 1000 + " sec");
-                        totalTimeReplacing += replacedObservations - endDownloadObservations;
-                    } else {
-                        observationController.saveObservations(allObservations);
-                        long savedObservations = System.currentTimeMillis();
-                        Log.d(getClass().getSimpleName(), "In saving observations : " + (savedObservations - endDownloadObservations) / 1000 + " sec\n");
-                        totalTimeSaving += savedObservations - endDownloadObservations;
-                    }
-
-                    result[1] += allObservations.size();
-                    result[2] += voidedObservations.size();
+            final int totalPatients = patientUuids.size();
+            ObservationDownloadPipeline.Result pipelineResult = new ObservationDownloadPipeline(observationController).run(
+                    slicedPatientUuids, slicedConceptUuids, activeSetupConfigUuid, replaceExistingObservations,
+                    new ObservationDownloadPipeline.ProgressListener() {
+                        @Override
+                        public void onSliceWritten(int slicesWritten, int totalSlices, int patientsWithObservations) {
+                            progressReporter.report(SyncProgressEvent.PHASE_OBSERVATIONS,
+                                    muzimaApplication.getString(R.string.info_observations_download_progress, patientsWithObservations, totalPatients),
+                                    slicesWritten, totalSlices);
+                        }
+                    });
+            progressReporter.flush();
 
-                }
-            }
-            result[3] = patientUuidsForDownloadedObs.size();
+            result[1] = pipelineResult.getDownloadedCount();
+            result[2] = pipelineResult.getVoidedCount();
+            result[3] = pipelineResult.getPatientCount();
             result[0] = SUCCESS;
-            Log.d(getClass().getSimpleName(), "Total Downloading observations : " + totalTimeDownloading / 1000 + " sec\n");
-            Log.d(getClass().getSimpleName(), "Total Replacing observations : " + totalTimeReplacing / 1000 + " sec\n");
-            Log.d(getClass().getSimpleName(), "Total Saving observations : " + totalTimeSaving / 1000 + " sec\n");
+            Log.i(getClass().getSimpleName(), "Observations download successful with " + result[1] + " observations, " + result[2] + " voided");
+            Log.d(getClass().getSimpleName(), "Observation download stage timings: " + pipelineResult.getTimings());
         } catch (ObservationController.DownloadObservationException e) {
             Log.e(getClass().getSimpleName(), "Exception thrown while downloading observations.", e);
             result[0] = SyncStatusConstants.DOWNLOAD_ERROR;
@@ -843,17 +810,11 @@ public class MuzimaSyncService {
         return result;
     }
 
-    private List<Observation> getVoidedObservations(List<Observation> allObservations) {
-        List<Observation> voidedObservations = new ArrayList<>();
-        for (Observation observation : allObservations) {
-            if (observation.isVoided()) {
-                voidedObservations.add(observation);
-            }
-        }
-        return voidedObservations;
+    public int[] uploadAllCompletedForms() {
+        return runExclusively(formUploadLock, this::uploadAllCompletedFormsExclusively);
     }
 
-    public int[] uploadAllCompletedForms() {
+    private int[] uploadAllCompletedFormsExclusively() {
         int[] result = new int[1];
 
         try {
@@ -1174,6 +1135,7 @@ public class MuzimaSyncService {
             if (setupConfigurationTemplate != null) {
                 result[1] = 1;
                 setupConfigurationController.saveSetupConfigurationTemplate(setupConfigurationTemplate);
+                settingsController.invalidateSettingsCache();
             }
         } catch (SetupConfigurationController.SetupConfigurationDownloadException e) {
             Log.e(getClass().getSimpleName(), "Exception when trying to download setup configs");
@@ -1194,6 +1156,7 @@ public class MuzimaSyncService {
             if (setupConfigurationTemplate != null) {
                 result[1] = 1;
                 setupConfigurationController.updateSetupConfigurationTemplate(setupConfigurationTemplate);
+                settingsController.invalidateSettingsCache();
             }
 
         } catch (SetupConfigurationController.SetupConfigurationDownloadException e) {
@@ -1273,6 +1236,7 @@ public class MuzimaSyncService {
     }
 
     public void updateSettingsPreferences(List<MuzimaSetting> muzimaSettings) {
+        settingsController.invalidateSettingsCache();
         for (MuzimaSetting muzimaSetting : muzimaSettings) {
             if (MuzimaSettingUtils.isGpsFeatureEnabledSetting(muzimaSetting)) {
                 muzimaApplication.getGPSFeaturePreferenceService().updateGPSDataPreferenceSettings();
@@ -1317,34 +1281,58 @@ public class MuzimaSyncService {
         if (!settingsController.isRelationshipEnabled())
             return null;
 
-        int[] result = new int[3];
+        return runExclusively(relationshipDownloadLock, () -> downloadRelationshipsForPatientsExclusively(patientUuids));
+    }
+
+    /**
+     * @return the status, the number of relationships downloaded, the number of patients and the
+     * number of patients whose relationships were downloaded
+     */
+    private int[] downloadRelationshipsForPatientsExclusively(List<String> patientUuids) {
+        int[] result = new int[4];
         result[2] = patientUuids.size();
         try {
             Log.i(getClass().getSimpleName(), "Downloading relationships for " + patientUuids.size() + " patients");
-            for (String patientUuid : patientUuids) {
-                Log.i(getClass().getSimpleName(), "Downloading relationships for " + patientUuid);
-                long startDownloadRelationships = System.currentTimeMillis();
-                List<Relationship> patientRelationships = new ArrayList<>(relationshipController.downloadRelationshipsForPerson(patientUuid));
-
-                long endDownloadRelationships = System.currentTimeMillis();
-                Log.d(getClass().getSimpleName(), "In Downloading relationships : " + (endDownloadRelationships - startDownloadRelationships) / 1000 + " sec\n");
-
-                Log.i(getClass().getSimpleName(), "Relationships download successful with " + patientRelationships.size() + " relationships");
-                result[1] += patientRelationships.size();
-
-                relationshipController.saveRelationships(patientRelationships, patientUuid);
-            }
+            long startDownloadRelationships = System.currentTimeMillis();
+            RelationshipController.RelationshipReconciliation reconciliation = relationshipController.startRelationshipReconciliation();
+            for (int start = 0; start < patientUuids.size(); start += RELATIONSHIP_SYNC_SLICE_SIZE) {
+                List<String> slice = patientUuids.subList(start, Math.min(start + RELATIONSHIP_SYNC_SLICE_SIZE, patientUuids.size()));
+                List<Relationship> relationships = relationshipController.downloadRelationshipsForPersons(slice);
+                result[1] += relationships.size();
+                reconciliation.reconcile(slice, relationships);
+                int done = start + slice.size();
+                result[3] = done;
+                progressReporter.report(SyncProgressEvent.PHASE_RELATIONSHIPS,
+                        muzimaApplication.getString(R.string.info_relationships_download_progress, done, patientUuids.size()),
+                        done, patientUuids.size());
+            }
+            Log.i(getClass().getSimpleName(), "Relationships download successful with " + result[1] + " relationships in "
+                    + (System.currentTimeMillis() - startDownloadRelationships) + " ms");
             result[0] = SUCCESS;
         } catch (RelationshipController.RetrieveRelationshipException e) {
             Log.e(getClass().getSimpleName(), "Exception thrown while downloading relationships.", e);
             result[0] = SyncStatusConstants.DOWNLOAD_ERROR;
-        } catch (RelationshipController.SaveRelationshipException | RelationshipController.SearchRelationshipException e) {
+        } catch (RelationshipController.SaveRelationshipException e) {
             Log.e(getClass().getSimpleName(), "Exception thrown while saving relationships.", e);
             result[0] = SyncStatusConstants.SAVE_ERROR;
         }
         return result;
     }
 
+    /**
+     * Runs one operation at a time, whether the sync job or DataSyncService started it, so that
+     * for example the same completed forms are not uploaded twice. A second caller waits for the
+     * running operation and then runs its own.
+     */
+    private static int[] runExclusively(Lock lock, Supplier<int[]> operation) {
+        lock.lock();
+        try {
+            return operation.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public int[] downloadRelationshipsForPatientsByCohortUUIDs(String[] cohortUuids) {
         if (!settingsController.isRelationshipEnabled())
             return null;
@@ -1355,19 +1343,16 @@ public class MuzimaSyncService {
             patients = patientController.getPatientsForCohorts(cohortUuids);
             int patientsTotal = patients.size();
 
-            int count = 0;
             List<String> patientList = new ArrayList();
             for (Patient patient : patients) {
-                count++;
-                Log.i(getClass().getSimpleName(), "Downloading relationships for patient " + count + " of " + patientsTotal);
-                updateProgressDialog(muzimaApplication.getString(R.string.info_relationships_download_progress, count, patientsTotal));
                 patientList.add(patient.getUuid());
             }
             result = downloadRelationshipsForPatientsByPatientUUIDs(patientList);
             if (result[0] != SUCCESS) {
-                Log.e(getClass().getSimpleName(), "Relationships for patient " + count + " of " + patientsTotal + " not downloaded");
-                updateProgressDialog(muzimaApplication.getString(R.string.info_relationships_not_downloaded_progress, count, patientsTotal));
-
+                int patientsFailed = patientsTotal - result[3];
+                Log.e(getClass().getSimpleName(), "Relationships for " + patientsFailed + " of " + patientsTotal + " patients not downloaded");
+                progressReporter.reportMessage(SyncProgressEvent.PHASE_RELATIONSHIPS,
+                        muzimaApplication.getString(R.string.info_relationships_not_downloaded_progress, patientsFailed, patientsTotal));
             }
         } catch (PatientController.PatientLoadException e) {
             Log.e(getClass().getSimpleName(), "Exception thrown while downloading relationships for patients.", e);
@@ -1383,205 +1368,21 @@ public class MuzimaSyncService {
     }
 
     public void updatePatientTags(List<String> patientUuidList){
-        Log.e(getClass().getSimpleName(),"Generating Patient Tags");
-        List<PatientTag> existingTags = new ArrayList<>();
-
+        Log.i(getClass().getSimpleName(),"Generating Patient Tags");
         try {
-            existingTags = patientController.getAllTags();
+            long startTime = System.currentTimeMillis();
+            int updatedPatients = new PatientTagsGenerator(muzimaApplication, patientController, relationshipController, observationController)
+                    .generateTags(patientUuidList);
+            Log.i(getClass().getSimpleName(), "Updated tags of " + updatedPatients + " of " + patientUuidList.size()
+                    + " patients in " + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (RelationshipController.RetrieveRelationshipException e) {
+            Log.e(getClass().getSimpleName(),"Error retrieving relationships", e);
+        } catch (PatientController.PatientSaveException e) {
+            Log.e(getClass().getSimpleName(), "Could not save patients with updated tags", e);
         } catch (PatientController.PatientLoadException e) {
-            Log.e(getClass().getSimpleName(),"Encounter an exception loading patients",e);
-        }
-
-        for(String patientUuid:patientUuidList){
-            try {
-                Patient patient = patientController.getPatientByUuid(patientUuid);
-                    if(patient != null){
-                    List<PatientTag> tags = new ArrayList<>();
-                    if (patient.getTags() != null) {
-                        tags = new ArrayList<>(Arrays.asList(patient.getTags()));
-                    }
-
-                    PatientTag addressTag = null;
-                    PatientTag assignmentTag = null;
-                    PatientTag awaitingAssignmentTag = null;
-                    boolean hasSexualPartnerTag = false;
-                    boolean hasAssignmentTag = false;
-                    boolean hasAwaitingAssignmentTag = false;
-                    for (PatientTag tag : patient.getTags()) {
-                        if (StringUtils.equals(tag.getUuid(), HAS_SEXUAL_PARTNER_TAG_UUID)) {
-                            hasSexualPartnerTag = true;
-                        } else if (StringUtils.equals(tag.getUuid(), ALREADY_ASSIGNED_TAG_UUID)) {
-                            hasAssignmentTag = true;
-                            assignmentTag = tag;
-                        } else if (StringUtils.equals(tag.getUuid(), AWAITING_ASSIGNMENT_TAG_UUID)) {
-                            hasAwaitingAssignmentTag = true;
-                        }
-                    }
-
-                    //Create tag if patient has a sexual partner
-                    if (!hasSexualPartnerTag) {
-                        List<Relationship> relationships = relationshipController.getRelationshipsForPerson(patientUuid);
-                        for (Relationship relationship : relationships) {
-                            if (StringUtils.equals(relationship.getRelationshipType().getUuid(), "2f7d5778-0c80-11eb-b335-9f16b42e3b00")) {
-                                PatientTag sexualPartnerTag = new PatientTag();
-                                sexualPartnerTag.setName("P");
-                                sexualPartnerTag.setDescription(muzimaApplication.getString(R.string.general_has_sexual_partner));
-                                sexualPartnerTag.setUuid(HAS_SEXUAL_PARTNER_TAG_UUID);
-                                if (!hasSexualPartnerTag) {
-                                    hasSexualPartnerTag = true;
-                                    tags.add(sexualPartnerTag);
-                                    patientController.savePatientTags(sexualPartnerTag);
-                                }
-
-                                //update for the related patient as well
-                                try {
-                                    Patient relatedPatient = null;
-                                    if (relationship.getPersonA() != null && !StringUtils.equals(patientUuid, relationship.getPersonA().getUuid())) {
-                                        relatedPatient = patientController.getPatientByUuid(relationship.getPersonA().getUuid());
-                                    } else if (relationship.getPersonB() != null) {
-                                        relatedPatient = patientController.getPatientByUuid(relationship.getPersonB().getUuid());
-                                    }
-
-                                    if (relatedPatient != null) {
-                                        boolean relatedPatientHasSexualPartnerTag = false;
-                                        for (PatientTag tag : relatedPatient.getTags()) {
-                                            if (StringUtils.equals(tag.getUuid(), HAS_SEXUAL_PARTNER_TAG_UUID)) {
-                                                relatedPatientHasSexualPartnerTag = true;
-                                            }
-                                        }
-                                        if (!relatedPatientHasSexualPartnerTag) {
-                                            PatientTag relatedSexualPartnerTag = new PatientTag();
-                                            relatedSexualPartnerTag.setName("P");
-                                            relatedSexualPartnerTag.setDescription(muzimaApplication.getString(R.string.general_has_sexual_partner));
-                                            relatedSexualPartnerTag.setUuid(HAS_SEXUAL_PARTNER_TAG_UUID);
-                                            List<PatientTag> relatedPatientTags = new ArrayList<>(Arrays.asList(relatedPatient.getTags()));
-
-
-                                            relatedPatientTags.add(relatedSexualPartnerTag);
-                                            patientController.savePatientTags(relatedSexualPartnerTag);
-
-                                            relatedPatient.setTags(relatedPatientTags.toArray(new PatientTag[relatedPatientTags.size()]));
-                                            patientController.updatePatient(relatedPatient);
-                                        }
-                                    }
-                                } catch (PatientController.PatientLoadException e) {
-                                    Log.e(getClass().getSimpleName(), "Could not update related patient", e);
-                                }
-                            }
-                        }
-                    }
-
-                    //Create tag if the patient has address field for Bairro.
-                    List<String> tagNames = new ArrayList<>();
-
-                    for (PatientTag tag : existingTags) {
-                        tagNames.add(tag.getName());
-                    }
-
-                    PersonAddress personAddress = patient.getPreferredAddress();
-                    String address5 = null;
-
-                    if (personAddress != null) {
-                        address5 = personAddress.getAddress5();
-                    }
-
-                    if (personAddress == null) {
-                        for (PersonAddress address : patient.getAddresses()) {
-                            if (!StringUtils.isEmpty(address.getAddress5())) {
-                                address5 = address.getAddress5();
-                                break;
-                            }
-                        }
-                    }
-
-                    if (!StringUtils.isEmpty(address5)) {
-                        String addressTagName = null;
-                        if (address5.length() > 3) {
-                            addressTagName = address5.substring(0, 3);
-                        } else {
-                            addressTagName = address5;
-                        }
-
-                        for (PatientTag existingTag : existingTags) {
-                            if (StringUtils.equals(existingTag.getName(), addressTagName)) {
-                                addressTag = existingTag;
-                            }
-                        }
-
-                        if (addressTag == null) {
-                            addressTag = new PatientTag();
-                            addressTag.setName(addressTagName);
-                            addressTag.setDescription(address5);
-                            addressTag.setUuid(UUID.randomUUID().toString());
-                            existingTags.add(addressTag);
-                            patientController.savePatientTags(addressTag);
-
-                            tags.add(addressTag);
-                        }
-                    }
-
-                    if(muzimaApplication.getMuzimaSettingController().isAllocationTagGenerationEnabled()) {
-                        if (!hasAssignmentTag) {
-                            List<Observation> assignmentObsList = observationController.getObservationsByPatientuuidAndConceptId(patientUuid, HEALTHWORKER_ASSIGNMENT_CONCEPT_ID);
-                            if (assignmentObsList.size() > 0) {
-                                for (Observation assignmentObs : assignmentObsList) {
-                                    Date now = new Date();
-                                    long assignmentDaysPassed = (now.getTime() - assignmentObs.getObservationDatetime().getTime()) / (24 * 60 * 60 * 1000);
-                                    if (assignmentDaysPassed >= 0 && assignmentDaysPassed <= 21) {
-                                        assignmentTag = new PatientTag();
-                                        assignmentTag.setName("AL");
-                                        assignmentTag.setDescription(muzimaApplication.getString(R.string.general_already_assigned));
-                                        assignmentTag.setUuid(ALREADY_ASSIGNED_TAG_UUID);
-                                        tags.add(assignmentTag);
-                                        patientController.savePatientTags(assignmentTag);
-
-                                        //remove AA tag if available
-                                        PatientTag AATag = null;
-                                        for (PatientTag patientTag : tags) {
-                                            if (patientTag.getName().equals("AA")) {
-                                                AATag = patientTag;
-                                            }
-                                        }
-
-                                        if (AATag != null) {
-                                            tags.remove(AATag);
-                                        }
-
-                                        hasAssignmentTag = true;
-                                        break;
-                                    }
-                                    if (assignmentTag != null) {
-                                        hasAssignmentTag = true;
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-
-                        if (!hasAssignmentTag && !hasAwaitingAssignmentTag && assignmentTag == null) {
-                            assignmentTag = new PatientTag();
-                            assignmentTag.setName("AA");
-                            assignmentTag.setDescription(muzimaApplication.getString(R.string.general_awaiting_assignment));
-                            assignmentTag.setUuid(AWAITING_ASSIGNMENT_TAG_UUID);
-                            tags.add(assignmentTag);
-                            patientController.savePatientTags(assignmentTag);
-                        }
-                    }
-
-                    patient.setTags(tags.toArray(new PatientTag[tags.size()]));
-                    patientController.updatePatient(patient);
-                }
-            } catch (RelationshipController.RetrieveRelationshipException e) {
-                Log.e(getClass().getSimpleName(),"Error retrieving relationships", e);
-            } catch (PatientController.PatientSaveException e) {
-                Log.e(getClass().getSimpleName(), "Could not save patient with updated tags", e);
-            } catch (IOException e) {
-                Log.e(getClass().getSimpleName(), "Could not load recordqs", e);
-            } catch (PatientController.PatientLoadException e) {
-                Log.e(getClass().getSimpleName(), "Could not load patient record to update update tags", e);
-            } catch (ObservationController.LoadObservationException e) {
-                Log.e(getClass().getSimpleName(), "Could not load observations to create tags tags", e);
-            }
+            Log.e(getClass().getSimpleName(), "Could not load patient records to update tags", e);
+        } catch (ObservationController.LoadObservationException e) {
+            Log.e(getClass().getSimpleName(), "Could not load observations to create tags", e);
         }
     }
 
@@ -1965,15 +1766,8 @@ public class MuzimaSyncService {
                 long totalFileSize = MemoryUtil.getTotalMediaFileSize(mediaList);
                 long availableSpace = MemoryUtil.getAvailableInternalMemorySize();
                 if(availableSpace>totalFileSize) {
-                    for (Media media : mediaList) {
-                        Media media1 = mediaController.getMediaByUuid(media.getUuid());
-                        if(media1 != null)
-                            mediaController.updateMedia(Collections.singletonList(media));
-                        else
-                            mediaController.saveMedia(Collections.singletonList(media));
-
-                        downloadFile(media,context);
-                    }
+                    mediaController.saveOrUpdateMedia(mediaList);
+                    muzimaApplication.getMediaDownloadQueue().sync(mediaList);
                     result[0] =SUCCESS;
                     result[1] = mediaList.size();
                 }else{
@@ -2006,62 +1800,12 @@ public class MuzimaSyncService {
             Log.e(getClass().getSimpleName(),"Encountered IOException ",e);
         } catch (ParseException e) {
             Log.e(getClass().getSimpleName(),"Encountered ParseException ",e);
-        } catch (MediaController.MediaFetchException e) {
-            Log.e(getClass().getSimpleName(),"Encountered Media fetch exception ",e);
         } catch (MediaController.MediaSaveException e) {
             Log.e(getClass().getSimpleName(),"Encountered exception while saving media ",e);
         }
         return result;
     }
 
-    public void downloadFile(Media media, android.content.Context context){
-        try {
-            //Delete file if exists
-            String mimeType = media.getMimeType();
-            String PATH = Objects.requireNonNull(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)).getAbsolutePath();
-            File file = new File(PATH + "/"+media.getName()+"."+mimeType.substring(mimeType.lastIndexOf("/") + 1));
-            String mediaName = media.getName()+"."+mimeType.substring(mimeType.lastIndexOf("/") + 1);
-            if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.ms-excel")){
-                file = new File(PATH + "/"+media.getName()+".xls");
-                mediaName = media.getName()+".xls";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.spreadsheetml.sheet")){
-                file = new File(PATH + "/"+media.getName()+".xlsx");
-                mediaName = media.getName()+".xlsx";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("msword")){
-                file = new File(PATH + "/"+media.getName()+".doc");
-                mediaName = media.getName()+".doc";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.wordprocessingml.document")){
-                file = new File(PATH + "/"+media.getName()+".docx");
-                mediaName = media.getName()+".docx";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.ms-powerpoint")){
-                file = new File(PATH + "/"+media.getName()+".ppt");
-                mediaName = media.getName()+".ppt";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.presentationml.presentation")){
-                file = new File(PATH + "/"+media.getName()+".pptx");
-                mediaName = media.getName()+".pptx";
-            }
-            if(file.exists()) {
-                file.delete();
-                context.getApplicationContext().sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
-            }
-
-            if(!media.isRetired()) {
-                //Enqueue the file for download
-                DownloadManager.Request request = new DownloadManager.Request(Uri.parse(media.getUrl() + ""));
-                request.setTitle(media.getName());
-                request.setDescription(media.getDescription());
-                request.allowScanningByMediaScanner();
-                request.setAllowedOverMetered(true);
-                request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
-                request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, mediaName);
-                DownloadManager dm = (DownloadManager) context.getApplicationContext().getSystemService(DOWNLOAD_SERVICE);
-                dm.enqueue(request);
-            }
-        } catch (Exception e) {
-            Log.e(getClass().getSimpleName(), "Error ", e);
-        }
-    }
-
     public void SyncPatientFullDataBasedOnCohortChangesInConfig(SetupConfigurationTemplate configBeforeConfigUpdate){
         try {
             android.content.Context context = muzimaApplication.getApplicationContext();
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.Observation;
+import com.muzima.controller.ObservationController;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads observations for a patient x concept slice matrix with a small pool of download
+ * threads feeding a single writer (the calling thread) through a bounded queue.
+ *
+ * At most {@code downloadThreads + queueCapacity} downloaded slices are held in memory at any
+ * time; download threads block when the writer falls behind. The patients of a slice share one
+ * download watermark, which is recorded only once the writer saved all their concept slices, so
+ * a slice lost to a failed download or write is downloaded again next time.
+ */
+public class ObservationDownloadPipeline {
+    public static final int DEFAULT_DOWNLOAD_THREADS = 3;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private final ObservationController observationController;
+    private final int downloadThreads;
+    private final int queueCapacity;
+
+    public ObservationDownloadPipeline(ObservationController observationController) {
+        this(observationController, DEFAULT_DOWNLOAD_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ObservationDownloadPipeline(ObservationController observationController, int downloadThreads, int queueCapacity) {
+        if (downloadThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Download threads and queue capacity must be positive");
+        }
+        this.observationController = observationController;
+        this.downloadThreads = downloadThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public Result run(List<List<String>> slicedPatientUuids, List<List<String>> slicedConceptUuids,
+                      String activeSetupConfigUuid, boolean replaceExistingObservations, ProgressListener progressListener)
+            throws ObservationController.DownloadObservationException, ObservationController.DeleteObservationException,
+            ObservationController.ReplaceObservationException, ObservationController.SaveObservationException {
+        Result result = new Result();
+        long startTime = System.currentTimeMillis();
+        int sliceCount = slicedPatientUuids.size() * slicedConceptUuids.size();
+        if (sliceCount == 0) {
+            return result;
+        }
+
+        List<String> conceptUuids = new ArrayList<>();
+        for (List<String> conceptSlice : slicedConceptUuids) {
+            conceptUuids.addAll(conceptSlice);
+        }
+        int[] conceptSlicesWritten = new int[slicedPatientUuids.size()];
+        Date[] patientSliceSyncTimes = new Date[slicedPatientUuids.size()];
+
+        BlockingQueue<DownloadedSlice> queue = new ArrayBlockingQueue<>(queueCapacity);
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(downloadThreads, sliceCount), new DownloaderThreadFactory());
+        try {
+            for (int patientSlice = 0; patientSlice < slicedPatientUuids.size(); patientSlice++) {
+                for (List<String> conceptSlice : slicedConceptUuids) {
+                    executorService.execute(new SliceDownloader(patientSlice, slicedPatientUuids.get(patientSlice), conceptSlice,
+                            activeSetupConfigUuid, queue, result.timings));
+                }
+            }
+
+            for (int written = 0; written < sliceCount; written++) {
+                long waitStart = System.currentTimeMillis();
+                DownloadedSlice slice = queue.take();
+                result.timings.writerIdleTime.addAndGet(System.currentTimeMillis() - waitStart);
+                if (slice.error != null) {
+                    throw slice.error;
+                }
+                write(slice, replaceExistingObservations, result);
+                patientSliceSyncTimes[slice.patientSlice] = earliest(patientSliceSyncTimes[slice.patientSlice], slice.syncTime);
+                if (++conceptSlicesWritten[slice.patientSlice] == slicedConceptUuids.size()) {
+                    observationController.recordObservationsDownloaded(slice.patientUuids, conceptUuids,
+                            patientSliceSyncTimes[slice.patientSlice]);
+                }
+                if (progressListener != null) {
+                    progressListener.onSliceWritten(written + 1, sliceCount, result.patientUuids.size());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ObservationController.DownloadObservationException(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+        result.timings.wallTime = System.currentTimeMillis() - startTime;
+        return result;
+    }
+
+    private void write(DownloadedSlice slice, boolean replaceExistingObservations, Result result)
+            throws ObservationController.DeleteObservationException, ObservationController.ReplaceObservationException,
+            ObservationController.SaveObservationException {
+        List<Observation> observations = slice.observations;
+        for (Observation observation : observations) {
+            result.patientUuids.add(observation.getPerson().getUuid());
+        }
+
+        long startDelete = System.currentTimeMillis();
+        List<Observation> voidedObservations = new ArrayList<>();
+        for (Observation observation : observations) {
+            if (observation.isVoided()) {
+                voidedObservations.add(observation);
+            }
+        }
+        observationController.deleteObservations(voidedObservations);
+        observations.removeAll(voidedObservations);
+        long startWrite = System.currentTimeMillis();
+        result.timings.deleteTime.addAndGet(startWrite - startDelete);
+
+        if (replaceExistingObservations) {
+            observationController.replaceObservations(observations);
+        } else {
+            observationController.saveObservations(observations);
+        }
+        result.timings.writeTime.addAndGet(System.currentTimeMillis() - startWrite);
+
+        result.downloadedCount += observations.size();
+        result.voidedCount += voidedObservations.size();
+        result.timings.slicesWritten++;
+    }
+
+    private static Date earliest(Date date, Date otherDate) {
+        if (date == null || otherDate == null) {
+            return date == null ? otherDate : date;
+        }
+        return date.before(otherDate) ? date : otherDate;
+    }
+
+    public interface ProgressListener {
+        void onSliceWritten(int slicesWritten, int totalSlices, int patientsWithObservations);
+    }
+
+    public static class Result {
+        private int downloadedCount;
+        private int voidedCount;
+        private final Set<String> patientUuids = new HashSet<>();
+        private final StageTimings timings = new StageTimings();
+
+        public int getDownloadedCount() {
+            return downloadedCount;
+        }
+
+        public int getVoidedCount() {
+            return voidedCount;
+        }
+
+        public int getPatientCount() {
+            return patientUuids.size();
+        }
+
+        public StageTimings getTimings() {
+            return timings;
+        }
+    }
+
+    /**
+     * Per-stage timings in milliseconds. Download and backpressure times are summed over all
+     * download threads, so they may exceed the wall time.
+     */
+    public static class StageTimings {
+        private final AtomicLong downloadTime = new AtomicLong();
+        private final AtomicLong downloadBlockedTime = new AtomicLong();
+        private final AtomicLong writerIdleTime = new AtomicLong();
+        private final AtomicLong deleteTime = new AtomicLong();
+        private final AtomicLong writeTime = new AtomicLong();
+        private int slicesWritten;
+        private long wallTime;
+
+        public long getDownloadTime() {
+            return downloadTime.get();
+        }
+
+        public long getDownloadBlockedTime() {
+            return downloadBlockedTime.get();
+        }
+
+        public long getWriterIdleTime() {
+            return writerIdleTime.get();
+        }
+
+        public long getDeleteTime() {
+            return deleteTime.get();
+        }
+
+        public long getWriteTime() {
+            return writeTime.get();
+        }
+
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "slices=%d wall=%dms download=%dms downloadBlocked=%dms writerIdle=%dms deleteVoided=%dms write=%dms",
+                    slicesWritten, wallTime, getDownloadTime(), getDownloadBlockedTime(), getWriterIdleTime(), getDeleteTime(), getWriteTime());
+        }
+    }
+
+    private static class DownloadedSlice {
+        private final int patientSlice;
+        private final List<String> patientUuids;
+        private final Date syncTime;
+        private final List<Observation> observations;
+        private final ObservationController.DownloadObservationException error;
+
+        private DownloadedSlice(int patientSlice, List<String> patientUuids, Date syncTime,
+                                List<Observation> observations, ObservationController.DownloadObservationException error) {
+            this.patientSlice = patientSlice;
+            this.patientUuids = patientUuids;
+            this.syncTime = syncTime;
+            this.observations = observations;
+            this.error = error;
+        }
+    }
+
+    private class SliceDownloader implements Runnable {
+        private final int patientSlice;
+        private final List<String> patientUuids;
+        private final List<String> conceptUuids;
+        private final String activeSetupConfigUuid;
+        private final BlockingQueue<DownloadedSlice> queue;
+        private final StageTimings timings;
+
+        SliceDownloader(int patientSlice, List<String> patientUuids, List<String> conceptUuids, String activeSetupConfigUuid,
+                        BlockingQueue<DownloadedSlice> queue, StageTimings timings) {
+            this.patientSlice = patientSlice;
+            this.patientUuids = patientUuids;
+            this.conceptUuids = conceptUuids;
+            this.activeSetupConfigUuid = activeSetupConfigUuid;
+            this.queue = queue;
+            this.timings = timings;
+        }
+
+        @Override
+        public void run() {
+            long startDownload = System.currentTimeMillis();
+            DownloadedSlice slice;
+            try {
+                Date syncTime = observationController.getObservationSyncTime();
+                slice = new DownloadedSlice(patientSlice, patientUuids, syncTime,
+                        new ArrayList<>(observationController.downloadObservationsByPatientUuidsAndConceptUuids(
+                                patientUuids, conceptUuids, activeSetupConfigUuid)), null);
+            } catch (ObservationController.DownloadObservationException e) {
+                slice = new DownloadedSlice(patientSlice, patientUuids, null, null, e);
+            } catch (RuntimeException e) {
+                slice = new DownloadedSlice(patientSlice, patientUuids, null, null,
+                        new ObservationController.DownloadObservationException(e));
+            }
+            long startPut = System.currentTimeMillis();
+            timings.downloadTime.addAndGet(startPut - startDownload);
+            try {
+                queue.put(slice);
+                timings.downloadBlockedTime.addAndGet(System.currentTimeMillis() - startPut);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class DownloaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "obs-download-" + threadNumber.getAndIncrement());
+        }
+    }
+}
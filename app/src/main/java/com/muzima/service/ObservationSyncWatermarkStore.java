@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers up to when the observations of each patient were downloaded, so that a download
+ * only asks the server for what changed since then.
+ *
+ * Every concept gets the generation of the concept set it was first downloaded with. A patient
+ * watermark holds the time of its last download and the newest concept generation it covered:
+ * concepts of a later generation were never downloaded for the patient and are fetched in full.
+ *
+ * Changes are appended to a journal file which is replayed when the store is opened and
+ * rewritten once it holds mostly superseded records. Without a file the store lives in memory.
+ */
+public class ObservationSyncWatermarkStore {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONCEPT = "C";
+    private static final String FORGOTTEN_CONCEPT = "F";
+    private static final String PATIENTS = "P";
+    private static final String FORGOTTEN_PATIENTS = "D";
+    private static final String SEPARATOR = "\t";
+    private static final String UUID_SEPARATOR = ",";
+    private static final int NO_GENERATION = -1;
+
+    private final File journalFile;
+    private final Map<String, Integer> conceptGenerations = new HashMap<>();
+    private final Map<String, Integer> patientSlots = new HashMap<>();
+    private long[] patientSyncTimes = new long[16];
+    private int[] patientGenerations = new int[16];
+    private int patientSlotCount;
+    private int generation;
+    private int journalPatientRecords;
+
+    /**
+     * @param journalFile the file holding the watermarks, or null to keep them in memory only
+     */
+    public ObservationSyncWatermarkStore(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * @return true if the watermarks were read from the journal, false if there are none yet
+     */
+    public synchronized boolean load() {
+        clearWatermarks();
+        if (journalFile == null || !journalFile.exists()) {
+            return false;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                }
+            } finally {
+                reader.close();
+            }
+            if (journalPatientRecords > 2 * patientSlots.size() + 1000) {
+                compact();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(getClass().getSimpleName(), "Could not read observation sync watermarks", e);
+            clearWatermarks();
+            return false;
+        }
+    }
+
+    /**
+     * Splits a download of the observations of the given patients and concepts into the
+     * downloads needed to bring them up to date. Patients sharing a watermark share a download.
+     */
+    public synchronized List<Download> plan(List<String> patientUuids, List<String> conceptUuids) {
+        Map<Integer, List<String>> knownConceptsByGeneration = new HashMap<>();
+        Map<Integer, List<String>> newConceptsByGeneration = new HashMap<>();
+        Map<Integer, Download> fullDownloads = new LinkedHashMap<>();
+        Map<String, Download> incrementalDownloads = new LinkedHashMap<>();
+        for (String patientUuid : patientUuids) {
+            Integer slot = patientSlots.get(clean(patientUuid));
+            if (slot == null) {
+                addToDownload(fullDownloads, NO_GENERATION, conceptUuids, null, patientUuid);
+                continue;
+            }
+            long syncTime = patientSyncTimes[slot];
+            int patientGeneration = patientGenerations[slot];
+            List<String> knownConcepts = knownConceptsByGeneration.get(patientGeneration);
+            if (knownConcepts == null) {
+                knownConcepts = new ArrayList<>();
+                List<String> newConcepts = new ArrayList<>();
+                for (String conceptUuid : conceptUuids) {
+                    Integer conceptGeneration = conceptGenerations.get(clean(conceptUuid));
+                    if (conceptGeneration != null && conceptGeneration <= patientGeneration) {
+                        knownConcepts.add(conceptUuid);
+                    } else {
+                        newConcepts.add(conceptUuid);
+                    }
+                }
+                knownConceptsByGeneration.put(patientGeneration, knownConcepts);
+                newConceptsByGeneration.put(patientGeneration, newConcepts);
+            }
+            if (!knownConcepts.isEmpty()) {
+                addToDownload(incrementalDownloads, watermark(syncTime, patientGeneration), knownConcepts,
+                        new Date(syncTime), patientUuid);
+            }
+            List<String> newConcepts = newConceptsByGeneration.get(patientGeneration);
+            if (!newConcepts.isEmpty()) {
+                addToDownload(fullDownloads, patientGeneration, newConcepts, null, patientUuid);
+            }
+        }
+        List<Download> downloads = new ArrayList<>(fullDownloads.values());
+        downloads.addAll(incrementalDownloads.values());
+        return downloads;
+    }
+
+    /**
+     * Records that the observations of the given patients and concepts are up to date as of the
+     * given time.
+     */
+    public synchronized void recordSync(List<String> patientUuids, List<String> conceptUuids, Date syncTime) {
+        List<String> journal = new ArrayList<>();
+        boolean newConcepts = false;
+        int syncGeneration = 0;
+        for (String conceptUuid : conceptUuids) {
+            Integer conceptGeneration = conceptGenerations.get(clean(conceptUuid));
+            if (conceptGeneration == null) {
+                if (!newConcepts) {
+                    generation++;
+                    newConcepts = true;
+                }
+                conceptGeneration = generation;
+                conceptGenerations.put(clean(conceptUuid), conceptGeneration);
+                journal.add(CONCEPT + SEPARATOR + clean(conceptUuid) + SEPARATOR + conceptGeneration);
+            }
+            syncGeneration = Math.max(syncGeneration, conceptGeneration);
+        }
+        long time = syncTime == null ? System.currentTimeMillis() : syncTime.getTime();
+        for (String patientUuid : patientUuids) {
+            setPatientWatermark(clean(patientUuid), time, syncGeneration);
+        }
+        journal.add(patientsRecord(watermark(time, syncGeneration), patientUuids));
+        journalPatientRecords += patientUuids.size();
+        append(journal);
+    }
+
+    /**
+     * Forgets the concepts whose observations were deleted, they are downloaded in full again
+     */
+    public synchronized void forgetConcepts(Collection<String> conceptUuids) {
+        List<String> journal = new ArrayList<>();
+        for (String conceptUuid : conceptUuids) {
+            if (conceptGenerations.remove(clean(conceptUuid)) != null) {
+                journal.add(FORGOTTEN_CONCEPT + SEPARATOR + clean(conceptUuid));
+            }
+        }
+        append(journal);
+    }
+
+    /**
+     * Forgets the patients whose observations were deleted, they are downloaded in full again
+     */
+    public synchronized void forgetPatients(Collection<String> patientUuids) {
+        List<String> forgottenPatients = new ArrayList<>();
+        for (String patientUuid : patientUuids) {
+            if (patientSlots.remove(clean(patientUuid)) != null) {
+                forgottenPatients.add(clean(patientUuid));
+            }
+        }
+        if (!forgottenPatients.isEmpty()) {
+            journalPatientRecords += forgottenPatients.size();
+            append(Collections.singletonList(uuidsRecord(FORGOTTEN_PATIENTS, forgottenPatients)));
+        }
+    }
+
+    /**
+     * Forgets all watermarks, in memory and in the journal, after all observations were deleted
+     */
+    public synchronized void clear() {
+        clearWatermarks();
+        if (journalFile != null && journalFile.exists() && !journalFile.delete()) {
+            Log.e(getClass().getSimpleName(), "Could not delete observation sync watermarks " + journalFile);
+        }
+    }
+
+    public synchronized int size() {
+        return patientSlots.size();
+    }
+
+    private <K> void addToDownload(Map<K, Download> downloads, K key, List<String> conceptUuids, Date since,
+                                   String patientUuid) {
+        Download download = downloads.get(key);
+        if (download == null) {
+            download = new Download(conceptUuids, since);
+            downloads.put(key, download);
+        }
+        download.patientUuids.add(patientUuid);
+    }
+
+    private void setPatientWatermark(String patientUuid, long syncTime, int patientGeneration) {
+        Integer slot = patientSlots.get(patientUuid);
+        if (slot == null) {
+            slot = patientSlotCount++;
+            if (slot == patientSyncTimes.length) {
+                patientSyncTimes = Arrays.copyOf(patientSyncTimes, slot * 2);
+                patientGenerations = Arrays.copyOf(patientGenerations, slot * 2);
+            }
+            patientSlots.put(patientUuid, slot);
+        }
+        patientSyncTimes[slot] = syncTime;
+        patientGenerations[slot] = patientGeneration;
+    }
+
+    private void replay(String line) {
+        String[] fields = line.split(SEPARATOR, -1);
+        if (CONCEPT.equals(fields[0]) && fields.length == 3) {
+            int conceptGeneration = Integer.parseInt(fields[2]);
+            conceptGenerations.put(fields[1], conceptGeneration);
+            generation = Math.max(generation, conceptGeneration);
+        } else if (FORGOTTEN_CONCEPT.equals(fields[0]) && fields.length == 2) {
+            conceptGenerations.remove(fields[1]);
+        } else if (FORGOTTEN_PATIENTS.equals(fields[0]) && fields.length == 2) {
+            for (String patientUuid : fields[1].split(UUID_SEPARATOR)) {
+                if (patientSlots.remove(patientUuid) != null) {
+                    journalPatientRecords++;
+                }
+            }
+        } else if (PATIENTS.equals(fields[0]) && fields.length == 4) {
+            long syncTime = Long.parseLong(fields[1]);
+            int patientGeneration = Integer.parseInt(fields[2]);
+            for (String patientUuid : fields[3].split(UUID_SEPARATOR)) {
+                if (!patientUuid.isEmpty()) {
+                    setPatientWatermark(patientUuid, syncTime, patientGeneration);
+                    journalPatientRecords++;
+                }
+            }
+        }
+    }
+
+    private void clearWatermarks() {
+        conceptGenerations.clear();
+        patientSlots.clear();
+        patientSlotCount = 0;
+        generation = 0;
+        journalPatientRecords = 0;
+    }
+
+    private void append(List<String> records) {
+        if (journalFile == null) {
+            return;
+        }
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF_8));
+            try {
+                for (String record : records) {
+                    writer.write(record);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not update observation sync watermarks", e);
+        }
+    }
+
+    private void compact() {
+        File compactedFile = new File(journalFile.getPath() + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compactedFile), UTF_8));
+            try {
+                for (Map.Entry<String, Integer> concept : conceptGenerations.entrySet()) {
+                    writer.write(CONCEPT + SEPARATOR + concept.getKey() + SEPARATOR + concept.getValue());
+                    writer.write('\n');
+                }
+                Map<String, List<String>> patientsByWatermark = new HashMap<>();
+                for (Map.Entry<String, Integer> patient : patientSlots.entrySet()) {
+                    String watermark = watermark(patientSyncTimes[patient.getValue()], patientGenerations[patient.getValue()]);
+                    List<String> patients = patientsByWatermark.get(watermark);
+                    if (patients == null) {
+                        patients = new ArrayList<>();
+                        patientsByWatermark.put(watermark, patients);
+                    }
+                    patients.add(patient.getKey());
+                }
+                for (Map.Entry<String, List<String>> patients : patientsByWatermark.entrySet()) {
+                    writer.write(patientsRecord(patients.getKey(), patients.getValue()));
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (!compactedFile.renameTo(journalFile)) {
+                throw new IOException("Could not replace " + journalFile);
+            }
+            journalPatientRecords = patientSlots.size();
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), "Could not compact observation sync watermarks", e);
+        }
+    }
+
+    private static String watermark(long syncTime, int patientGeneration) {
+        return syncTime + SEPARATOR + patientGeneration;
+    }
+
+    private static String patientsRecord(String watermark, List<String> patientUuids) {
+        return uuidsRecord(PATIENTS + SEPARATOR + watermark, patientUuids);
+    }
+
+    private static String uuidsRecord(String prefix, List<String> patientUuids) {
+        StringBuilder record = new StringBuilder(prefix).append(SEPARATOR);
+        for (int i = 0; i < patientUuids.size(); i++) {
+            if (i > 0) {
+                record.append(UUID_SEPARATOR);
+            }
+            record.append(clean(patientUuids.get(i)));
+        }
+        return record.toString();
+    }
+
+    private static String clean(String uuid) {
+        // keep records on a single line with a fixed number of fields
+        return uuid == null ? "" : uuid.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ').replace(',', ' ');
+    }
+
+    /**
+     * The observations of some patients and concepts to download, changed since the given date or
+     * all of them if there is no date.
+     */
+    public static class Download {
+        private final List<String> patientUuids = new ArrayList<>();
+        private final List<String> conceptUuids;
+        private final Date since;
+
+        Download(List<String> conceptUuids, Date since) {
+            this.conceptUuids = conceptUuids;
+            this.since = since;
+        }
+
+        public List<String> getPatientUuids() {
+            return patientUuids;
+        }
+
+        public List<String> getConceptUuids() {
+            return conceptUuids;
+        }
+
+        public Date getSince() {
+            return since;
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.Patient;
+import com.muzima.api.model.PatientTag;
+import com.muzima.api.model.PatientIdentifier;
+import com.muzima.api.model.PersonAddress;
+import com.muzima.api.model.PersonName;
+import com.muzima.utils.PatientComparator;
+import com.muzima.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static com.muzima.utils.Constants.FGH.TagsUuids.ALREADY_ASSIGNED_TAG_UUID;
+import static com.muzima.utils.Constants.FGH.TagsUuids.AWAITING_ASSIGNMENT_TAG_UUID;
+import static com.muzima.utils.Constants.FGH.TagsUuids.HAS_SEXUAL_PARTNER_TAG_UUID;
+
+/**
+ * In memory list of the patients on the device holding only what the patient list shows, with
+ * the tags of each patient as a bitset of tag ordinals, mapped back to one shared tag per
+ * ordinal, and the members of each cohort that was listed. Patients are kept in {@link PatientComparator} order. Patients are held as
+ * {@link ListEntry} values; the returned patients are built from them on each call.
+ *
+ * Names and identifiers are indexed by their first one and two characters and by their
+ * trigrams, so that searches find partial names without looking at every patient.
+ */
+public class PatientListIndex {
+    private static final String PREFIX_MARKER = "^";
+    private static final int EXACT_MATCH_SCORE = 3;
+    private static final int PREFIX_MATCH_SCORE = 2;
+    private static final int PARTIAL_MATCH_SCORE = 1;
+
+    private final Map<String, Row> rowsByUuid = new HashMap<>();
+    private final List<Row> rowsBySlot = new ArrayList<>();
+    private final Map<String, SlotList> postings = new HashMap<>();
+    private int removedSlots;
+    private final Map<String, Integer> tagOrdinals = new HashMap<>();
+    private final List<PatientTag> tagsByOrdinal = new ArrayList<>();
+    private final Map<String, Set<String>> cohortMembers = new HashMap<>();
+    private List<Row> sortedRows;
+    private String lastSearchKey;
+    private List<Row> lastSearchResults;
+
+    public synchronized void reset(List<Patient> patients) {
+        clear();
+        putAll(patients);
+    }
+
+    /**
+     * Forgets all patients and cohorts, e.g. after all patients were deleted from the device.
+     */
+    public synchronized void clear() {
+        rowsByUuid.clear();
+        rowsBySlot.clear();
+        postings.clear();
+        cohortMembers.clear();
+        removedSlots = 0;
+        changed();
+    }
+
+    public synchronized void put(Patient patient) {
+        if (patient != null && patient.getUuid() != null) {
+            Row row = new Row(new ListEntry(patient), tagsOf(patient.getTags()), searchTokensOf(patient));
+            unlink(rowsByUuid.remove(patient.getUuid()));
+            rowsByUuid.put(patient.getUuid(), row);
+            link(row);
+            changed();
+        }
+    }
+
+    public synchronized void putAll(List<Patient> patients) {
+        for (Patient patient : patients) {
+            put(patient);
+        }
+    }
+
+    public synchronized void remove(String patientUuid) {
+        Row row = rowsByUuid.remove(patientUuid);
+        if (row != null) {
+            unlink(row);
+            changed();
+        }
+    }
+
+    public synchronized boolean hasCohort(String cohortUuid) {
+        return cohortMembers.containsKey(cohortUuid);
+    }
+
+    public synchronized void setCohortMembers(String cohortUuid, Collection<String> patientUuids) {
+        cohortMembers.put(cohortUuid, new HashSet<>(patientUuids));
+        lastSearchKey = null;
+    }
+
+    /**
+     * Forgets the cohort members, e.g. after cohort memberships were changed.
+     */
+    public synchronized void clearCohorts() {
+        cohortMembers.clear();
+        lastSearchKey = null;
+    }
+
+    public synchronized int size() {
+        return rowsByUuid.size();
+    }
+
+    /**
+     * @param cohortUuids the cohorts to list the members of, all patients if empty. Members of
+     *                    cohorts not set through {@link #setCohortMembers} are not listed.
+     * @param tagUuids    the selected tags, as in {@link com.muzima.controller.PatientController#filterPatientByTags}
+     * @return the matching patients, in {@link PatientComparator} order
+     */
+    public synchronized List<Patient> getPatients(List<String> cohortUuids, List<String> tagUuids) {
+        Set<String> cohortPatients = getCohortPatients(cohortUuids);
+        TagFilter tagFilter = new TagFilter(tagUuids);
+        List<Patient> patients = new ArrayList<>();
+        for (Row row : getSortedRows()) {
+            if ((cohortPatients == null || cohortPatients.contains(row.entry.uuid)) && tagFilter.matches(row.tags)) {
+                patients.add(toPatient(row));
+            }
+        }
+        return patients;
+    }
+
+    /**
+     * Finds the patients whose names or identifiers contain every word of the search term, words
+     * of one or two characters matching only at the start of a name or identifier. Exact matches
+     * rank before prefix matches, which rank before partial matches; ties are in
+     * {@link PatientComparator} order.
+     *
+     * @param cohortUuids the cohorts to search the members of, all patients if empty
+     * @param page        the page of results to return, starting at 1. The results of the last
+     *                    search are kept until the index changes, so later pages are not searched again.
+     * @param cancelled   checked while searching; a cancelled search returns an empty list
+     */
+    public synchronized List<Patient> search(String term, List<String> cohortUuids, int page, int pageSize,
+                                             BooleanSupplier cancelled) {
+        String searchKey = term + PREFIX_MARKER + cohortUuids;
+        if (!searchKey.equals(lastSearchKey)) {
+            List<Row> results = search(term, cohortUuids, cancelled);
+            if (cancelled.getAsBoolean()) {
+                return new ArrayList<>();
+            }
+            lastSearchKey = searchKey;
+            lastSearchResults = results;
+        }
+        int from = Math.min((page - 1) * pageSize, lastSearchResults.size());
+        int to = Math.min(from + pageSize, lastSearchResults.size());
+        List<Patient> patients = new ArrayList<>(to - from);
+        for (Row row : lastSearchResults.subList(from, to)) {
+            patients.add(toPatient(row));
+        }
+        return patients;
+    }
+
+    private List<Row> search(String term, List<String> cohortUuids, BooleanSupplier cancelled) {
+        List<String> words = tokenize(term);
+        List<Row> matches = new ArrayList<>();
+        if (words.isEmpty()) {
+            return matches;
+        }
+        Set<String> cohortPatients = getCohortPatients(cohortUuids);
+        getSortedRows();
+
+        int[] candidates = null;
+        for (String word : words) {
+            candidates = intersect(candidates, candidatesFor(word));
+            if (candidates.length == 0 || cancelled.getAsBoolean()) {
+                return matches;
+            }
+        }
+
+        for (int i = 0; i < candidates.length; i++) {
+            if (i % 1000 == 0 && cancelled.getAsBoolean()) {
+                return new ArrayList<>();
+            }
+            Row row = rowsBySlot.get(candidates[i]);
+            if (row == null || (cohortPatients != null && !cohortPatients.contains(row.entry.uuid))) {
+                continue;
+            }
+            int score = 0;
+            for (String word : words) {
+                int wordScore = row.scoreOf(word);
+                if (wordScore == 0) {
+                    score = 0;
+                    break;
+                }
+                score += wordScore;
+            }
+            if (score > 0) {
+                row.score = score;
+                matches.add(row);
+            }
+        }
+        Collections.sort(matches, (row1, row2) -> row1.score != row2.score
+                ? row2.score - row1.score : row1.sortPosition - row2.sortPosition);
+        return matches;
+    }
+
+    private Set<String> getCohortPatients(List<String> cohortUuids) {
+        if (cohortUuids == null || cohortUuids.isEmpty()) {
+            return null;
+        }
+        Set<String> cohortPatients = new HashSet<>();
+        for (String cohortUuid : cohortUuids) {
+            Set<String> members = cohortMembers.get(cohortUuid);
+            if (members != null) {
+                cohortPatients.addAll(members);
+            }
+        }
+        return cohortPatients;
+    }
+
+    private int[] candidatesFor(String word) {
+        if (word.length() < 3) {
+            return slotsOf(PREFIX_MARKER + word);
+        }
+        int[] candidates = null;
+        for (int i = 0; i + 3 <= word.length(); i++) {
+            candidates = intersect(candidates, slotsOf(word.substring(i, i + 3)));
+            if (candidates.length == 0) {
+                break;
+            }
+        }
+        return candidates;
+    }
+
+    private int[] slotsOf(String key) {
+        SlotList slots = postings.get(key);
+        return slots == null ? new int[0] : slots.toArray();
+    }
+
+    private static int[] intersect(int[] slots1, int[] slots2) {
+        if (slots1 == null) {
+            return slots2;
+        }
+        // slots are appended in increasing order, so postings are sorted
+        int[] intersection = new int[Math.min(slots1.length, slots2.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < slots1.length && j < slots2.length) {
+            if (slots1[i] < slots2[j]) {
+                i++;
+            } else if (slots1[i] > slots2[j]) {
+                j++;
+            } else {
+                intersection[size++] = slots1[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(intersection, size);
+    }
+
+    private void link(Row row) {
+        row.slot = rowsBySlot.size();
+        rowsBySlot.add(row);
+        Set<String> keys = new HashSet<>();
+        for (String token : row.searchTokens) {
+            keys.add(PREFIX_MARKER + token.substring(0, 1));
+            if (token.length() > 1) {
+                keys.add(PREFIX_MARKER + token.substring(0, 2));
+            }
+            for (int i = 0; i + 3 <= token.length(); i++) {
+                keys.add(token.substring(i, i + 3));
+            }
+        }
+        for (String key : keys) {
+            SlotList slots = postings.get(key);
+            if (slots == null) {
+                slots = new SlotList();
+                postings.put(key, slots);
+            }
+            slots.add(row.slot);
+        }
+    }
+
+    private void unlink(Row row) {
+        if (row == null) {
+            return;
+        }
+        rowsBySlot.set(row.slot, null);
+        removedSlots++;
+        if (removedSlots > rowsByUuid.size() + 1000) {
+            // drop the postings of removed and replaced patients
+            rowsBySlot.clear();
+            postings.clear();
+            removedSlots = 0;
+            for (Row liveRow : rowsByUuid.values()) {
+                link(liveRow);
+            }
+        }
+    }
+
+    private void changed() {
+        sortedRows = null;
+        lastSearchKey = null;
+        lastSearchResults = null;
+    }
+
+    private List<Row> getSortedRows() {
+        if (sortedRows == null) {
+            sortedRows = new ArrayList<>(rowsByUuid.values());
+            Collections.sort(sortedRows, (row1, row2) -> row1.entry.compareTo(row2.entry));
+            for (int i = 0; i < sortedRows.size(); i++) {
+                sortedRows.get(i).sortPosition = i;
+            }
+        }
+        return sortedRows;
+    }
+
+    private static String[] searchTokensOf(Patient patient) {
+        List<String> tokens = new ArrayList<>();
+        if (patient.getNames() != null) {
+            for (PersonName name : patient.getNames()) {
+                tokens.addAll(tokenize(name.getGivenName()));
+                tokens.addAll(tokenize(name.getMiddleName()));
+                tokens.addAll(tokenize(name.getFamilyName()));
+            }
+        }
+        if (patient.getIdentifiers() != null) {
+            for (PatientIdentifier identifier : patient.getIdentifiers()) {
+                if (identifier.getIdentifier() != null) {
+                    String value = identifier.getIdentifier().toLowerCase(Locale.ROOT).trim();
+                    if (!value.isEmpty()) {
+                        tokens.add(value);
+                    }
+                    tokens.addAll(tokenize(value));
+                }
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text != null) {
+            for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private BitSet tagsOf(PatientTag[] tags) {
+        BitSet bits = new BitSet();
+        if (tags != null) {
+            for (PatientTag tag : tags) {
+                if (tag != null && tag.getUuid() != null) {
+                    int ordinal = tagOrdinal(tag.getUuid());
+                    // the latest copy of a tag is shared by every patient listed with it
+                    tagsByOrdinal.set(ordinal, tag);
+                    bits.set(ordinal);
+                }
+            }
+        }
+        return bits;
+    }
+
+    private int tagOrdinal(String tagUuid) {
+        Integer ordinal = tagOrdinals.get(tagUuid);
+        if (ordinal == null) {
+            ordinal = tagOrdinals.size();
+            tagOrdinals.put(tagUuid, ordinal);
+            tagsByOrdinal.add(null);
+        }
+        return ordinal;
+    }
+
+    private Patient toPatient(Row row) {
+        PatientTag[] tags = new PatientTag[row.tags.cardinality()];
+        int size = 0;
+        for (int ordinal = row.tags.nextSetBit(0); ordinal >= 0; ordinal = row.tags.nextSetBit(ordinal + 1)) {
+            tags[size++] = tagsByOrdinal.get(ordinal);
+        }
+        return row.entry.toPatient(tags);
+    }
+
+    /**
+     * What the patient list shows of a patient, besides its tags: the preferred name and
+     * identifier, gender, birthdate and the coordinates of the preferred address.
+     */
+    private static class ListEntry implements Comparable<ListEntry> {
+        private final String uuid;
+        private final String familyName;
+        private final String givenName;
+        private final String middleName;
+        private final String identifier;
+        private final String gender;
+        private final Date birthdate;
+        private final String latitude;
+        private final String longitude;
+
+        ListEntry(Patient patient) {
+            uuid = patient.getUuid();
+            boolean named = patient.getNames() != null && !patient.getNames().isEmpty();
+            familyName = named ? patient.getFamilyName() : null;
+            givenName = named ? patient.getGivenName() : null;
+            middleName = named ? patient.getMiddleName() : null;
+            identifier = patient.getIdentifiers() == null ? null : patient.getIdentifier();
+            gender = patient.getGender();
+            birthdate = patient.getBirthdate();
+            PersonAddress preferredAddress = patient.getAddresses() == null ? null : patient.getPreferredAddress();
+            latitude = preferredAddress == null ? null : preferredAddress.getLatitude();
+            longitude = preferredAddress == null ? null : preferredAddress.getLongitude();
+        }
+
+        Patient toPatient(PatientTag[] tags) {
+            Patient patient = new Patient();
+            patient.setUuid(uuid);
+            PersonName name = new PersonName();
+            name.setFamilyName(familyName);
+            name.setGivenName(givenName);
+            name.setMiddleName(middleName);
+            name.setPreferred(true);
+            patient.setNames(Collections.singletonList(name));
+            PatientIdentifier patientIdentifier = new PatientIdentifier();
+            patientIdentifier.setIdentifier(identifier);
+            patientIdentifier.setPreferred(true);
+            patient.addIdentifier(patientIdentifier);
+            patient.setGender(gender);
+            patient.setBirthdate(birthdate);
+            patient.setTags(tags);
+            if (latitude == null && longitude == null) {
+                patient.setAddresses(new ArrayList<PersonAddress>());
+            } else {
+                PersonAddress address = new PersonAddress();
+                address.setLatitude(latitude);
+                address.setLongitude(longitude);
+                address.setPreferred(true);
+                patient.setAddresses(Collections.singletonList(address));
+            }
+            return patient;
+        }
+
+        /**
+         * Orders as {@link PatientComparator} orders the patients.
+         */
+        @Override
+        public int compareTo(ListEntry other) {
+            int result = StringUtils.nullSafeCompare(familyName, other.familyName);
+            if (result == 0) {
+                result = StringUtils.nullSafeCompare(givenName, other.givenName);
+            }
+            return result == 0 ? StringUtils.nullSafeCompare(middleName, other.middleName) : result;
+        }
+    }
+
+    private static class Row {
+        private final ListEntry entry;
+        private final BitSet tags;
+        private final String[] searchTokens;
+        private int slot;
+        private int sortPosition;
+        private int score;
+
+        Row(ListEntry entry, BitSet tags, String[] searchTokens) {
+            this.entry = entry;
+            this.tags = tags;
+            this.searchTokens = searchTokens;
+        }
+
+        int scoreOf(String word) {
+            int score = 0;
+            for (String token : searchTokens) {
+                if (token.equals(word)) {
+                    return EXACT_MATCH_SCORE;
+                } else if (token.startsWith(word)) {
+                    score = PREFIX_MATCH_SCORE;
+                } else if (score == 0 && word.length() >= 3 && token.contains(word)) {
+                    score = PARTIAL_MATCH_SCORE;
+                }
+            }
+            return score;
+        }
+    }
+
+    private static class SlotList {
+        private int[] slots = new int[4];
+        private int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(slots, size);
+        }
+    }
+
+    private class TagFilter {
+        private final BitSet anyOf = new BitSet();
+        private final BitSet assignmentTags = new BitSet();
+        private int partnerTag = -1;
+
+        TagFilter(List<String> tagUuids) {
+            if (tagUuids == null || tagUuids.isEmpty()) {
+                return;
+            }
+            Set<String> tags = new HashSet<>(tagUuids);
+            if (tags.contains(HAS_SEXUAL_PARTNER_TAG_UUID)) {
+                partnerTag = tagOrdinal(HAS_SEXUAL_PARTNER_TAG_UUID);
+                if (tags.size() > 1) {
+                    tags.remove(HAS_SEXUAL_PARTNER_TAG_UUID);
+                }
+            }
+            if (tags.remove(ALREADY_ASSIGNED_TAG_UUID)) {
+                assignmentTags.set(tagOrdinal(ALREADY_ASSIGNED_TAG_UUID));
+            }
+            if (tags.remove(AWAITING_ASSIGNMENT_TAG_UUID)) {
+                assignmentTags.set(tagOrdinal(AWAITING_ASSIGNMENT_TAG_UUID));
+            }
+            for (String tag : tags) {
+                anyOf.set(tagOrdinal(tag));
+            }
+        }
+
+        boolean matches(BitSet patientTags) {
+            return (anyOf.isEmpty() || anyOf.intersects(patientTags))
+                    && (partnerTag < 0 || patientTags.get(partnerTag))
+                    && (assignmentTags.isEmpty() || assignmentTags.intersects(patientTags));
+        }
+    }
+}
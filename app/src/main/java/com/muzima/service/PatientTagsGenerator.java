@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.util.Log;
+
+import com.muzima.MuzimaApplication;
+import com.muzima.R;
+import com.muzima.api.model.Observation;
+import com.muzima.api.model.Patient;
+import com.muzima.api.model.PatientTag;
+import com.muzima.api.model.Person;
+import com.muzima.api.model.PersonAddress;
+import com.muzima.api.model.Relationship;
+import com.muzima.controller.ObservationController;
+import com.muzima.controller.PatientController;
+import com.muzima.controller.RelationshipController;
+import com.muzima.utils.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.muzima.utils.Constants.FGH.Concepts.HEALTHWORKER_ASSIGNMENT_CONCEPT_ID;
+import static com.muzima.utils.Constants.FGH.TagsUuids.ALREADY_ASSIGNED_TAG_UUID;
+import static com.muzima.utils.Constants.FGH.TagsUuids.AWAITING_ASSIGNMENT_TAG_UUID;
+import static com.muzima.utils.Constants.FGH.TagsUuids.HAS_SEXUAL_PARTNER_TAG_UUID;
+
+/**
+ * Generates the sexual partner, address and assignment tags for a list of patients.
+ *
+ * Patients, relationships and assignment observations are loaded up front, with one bulk query
+ * each when the list is large, tags are computed in memory and only the patients whose tags
+ * changed are written, in a single batch. A patient whose tags could not be computed keeps the
+ * stored tags without failing the others. Runs hold the tags lock of the patient controller, so
+ * they do not overwrite the tag a form save adds meanwhile.
+ */
+public class PatientTagsGenerator {
+    static final String SEXUAL_PARTNER_RELATIONSHIP_TYPE_UUID = "2f7d5778-0c80-11eb-b335-9f16b42e3b00";
+    private static final long MAXIMUM_ASSIGNMENT_AGE_IN_DAYS = 21;
+    // above this many patients a single bulk query is cheaper than one query per patient
+    private static final int BULK_LOAD_THRESHOLD = 50;
+
+    private final MuzimaApplication muzimaApplication;
+    private final PatientController patientController;
+    private final RelationshipController relationshipController;
+    private final ObservationController observationController;
+
+    public PatientTagsGenerator(MuzimaApplication muzimaApplication, PatientController patientController,
+                                RelationshipController relationshipController, ObservationController observationController) {
+        this.muzimaApplication = muzimaApplication;
+        this.patientController = patientController;
+        this.relationshipController = relationshipController;
+        this.observationController = observationController;
+    }
+
+    /**
+     * @return the number of patients whose tags were updated
+     */
+    public int generateTags(List<String> patientUuids) throws PatientController.PatientLoadException,
+            PatientController.PatientSaveException, RelationshipController.RetrieveRelationshipException,
+            ObservationController.LoadObservationException {
+        synchronized (patientController.getPatientTagsLock()) {
+            return generateTagsExclusively(patientUuids);
+        }
+    }
+
+    private int generateTagsExclusively(List<String> patientUuids) throws PatientController.PatientLoadException,
+            PatientController.PatientSaveException, RelationshipController.RetrieveRelationshipException,
+            ObservationController.LoadObservationException {
+        Batch batch = new Batch(patientUuids.size() > BULK_LOAD_THRESHOLD);
+        for (PatientTag tag : patientController.getAllTags()) {
+            batch.tagsByName.put(tag.getName(), tag);
+        }
+        boolean allocationTagsEnabled = muzimaApplication.getMuzimaSettingController().isAllocationTagGenerationEnabled();
+        if (batch.bulk) {
+            batch.loadAllPatients();
+            batch.loadAllRelationships();
+            if (allocationTagsEnabled) {
+                batch.loadAllAssignmentObservations();
+            }
+        }
+
+        for (String patientUuid : patientUuids) {
+            try {
+                Patient patient = batch.getPatient(patientUuid);
+                if (patient != null) {
+                    generateTags(patient, allocationTagsEnabled, batch);
+                }
+            } catch (PatientController.PatientLoadException | RelationshipController.RetrieveRelationshipException
+                    | ObservationController.LoadObservationException e) {
+                // keep the stored tags of this patient and carry on with the others
+                batch.tagsByPatientUuid.remove(patientUuid);
+                Log.e(getClass().getSimpleName(), "Could not generate tags for patient " + patientUuid, e);
+            }
+        }
+
+        for (PatientTag tag : batch.newTags.values()) {
+            try {
+                patientController.savePatientTags(tag);
+            } catch (IOException e) {
+                Log.e(getClass().getSimpleName(), "Could not save patient tag " + tag.getName(), e);
+            }
+        }
+        List<Patient> changedPatients = new ArrayList<>();
+        for (Map.Entry<String, List<PatientTag>> patientTags : batch.tagsByPatientUuid.entrySet()) {
+            Patient patient = batch.getPatient(patientTags.getKey());
+            List<PatientTag> tags = patientTags.getValue();
+            if (!hasSameTags(patient.getTags(), tags)) {
+                patient.setTags(tags.toArray(new PatientTag[tags.size()]));
+                changedPatients.add(patient);
+            }
+        }
+        if (!changedPatients.isEmpty()) {
+            patientController.replacePatients(changedPatients);
+        }
+        return changedPatients.size();
+    }
+
+    private void generateTags(Patient patient, boolean allocationTagsEnabled, Batch batch)
+            throws RelationshipController.RetrieveRelationshipException, ObservationController.LoadObservationException,
+            PatientController.PatientLoadException {
+        String patientUuid = patient.getUuid();
+        List<PatientTag> tags = batch.getTags(patient);
+
+        PatientTag assignmentTag = null;
+        boolean hasSexualPartnerTag = false;
+        boolean hasAssignmentTag = false;
+        boolean hasAwaitingAssignmentTag = false;
+        for (PatientTag tag : tags) {
+            if (StringUtils.equals(tag.getUuid(), HAS_SEXUAL_PARTNER_TAG_UUID)) {
+                hasSexualPartnerTag = true;
+            } else if (StringUtils.equals(tag.getUuid(), ALREADY_ASSIGNED_TAG_UUID)) {
+                hasAssignmentTag = true;
+                assignmentTag = tag;
+            } else if (StringUtils.equals(tag.getUuid(), AWAITING_ASSIGNMENT_TAG_UUID)) {
+                hasAwaitingAssignmentTag = true;
+            }
+        }
+
+        //Create tag if patient has a sexual partner, for the related patient as well
+        if (!hasSexualPartnerTag) {
+            for (Relationship relationship : batch.getRelationships(patientUuid)) {
+                if (relationship.getRelationshipType() == null || !StringUtils.equals(
+                        relationship.getRelationshipType().getUuid(), SEXUAL_PARTNER_RELATIONSHIP_TYPE_UUID)) {
+                    continue;
+                }
+                if (!hasSexualPartnerTag) {
+                    hasSexualPartnerTag = true;
+                    tags.add(batch.createTag("P", R.string.general_has_sexual_partner, HAS_SEXUAL_PARTNER_TAG_UUID));
+                }
+
+                Patient relatedPatient = null;
+                if (relationship.getPersonA() != null && !StringUtils.equals(patientUuid, relationship.getPersonA().getUuid())) {
+                    relatedPatient = batch.getPatient(relationship.getPersonA().getUuid());
+                } else if (relationship.getPersonB() != null) {
+                    relatedPatient = batch.getPatient(relationship.getPersonB().getUuid());
+                }
+                if (relatedPatient != null) {
+                    List<PatientTag> relatedPatientTags = batch.getTags(relatedPatient);
+                    if (!containsTag(relatedPatientTags, HAS_SEXUAL_PARTNER_TAG_UUID)) {
+                        relatedPatientTags.add(batch.createTag("P", R.string.general_has_sexual_partner, HAS_SEXUAL_PARTNER_TAG_UUID));
+                    }
+                }
+            }
+        }
+
+        //Create tag if the patient has address field for Bairro.
+        String address5 = getAddress5(patient);
+        if (!StringUtils.isEmpty(address5)) {
+            String addressTagName = address5.length() > 3 ? address5.substring(0, 3) : address5;
+            if (!batch.tagsByName.containsKey(addressTagName)) {
+                PatientTag addressTag = new PatientTag();
+                addressTag.setName(addressTagName);
+                addressTag.setDescription(address5);
+                addressTag.setUuid(UUID.randomUUID().toString());
+                batch.tagsByName.put(addressTagName, addressTag);
+                batch.newTags.put(addressTag.getUuid(), addressTag);
+                tags.add(addressTag);
+            }
+        }
+
+        if (allocationTagsEnabled) {
+            if (!hasAssignmentTag) {
+                long now = new Date().getTime();
+                for (Observation assignmentObs : batch.getAssignmentObservations(patientUuid)) {
+                    long assignmentDaysPassed = (now - assignmentObs.getObservationDatetime().getTime()) / (24 * 60 * 60 * 1000);
+                    if (assignmentDaysPassed >= 0 && assignmentDaysPassed <= MAXIMUM_ASSIGNMENT_AGE_IN_DAYS) {
+                        assignmentTag = batch.createTag("AL", R.string.general_already_assigned, ALREADY_ASSIGNED_TAG_UUID);
+                        tags.add(assignmentTag);
+
+                        //remove AA tag if available
+                        PatientTag awaitingAssignmentTag = null;
+                        for (PatientTag patientTag : tags) {
+                            if (StringUtils.equals(patientTag.getName(), "AA")) {
+                                awaitingAssignmentTag = patientTag;
+                            }
+                        }
+                        if (awaitingAssignmentTag != null) {
+                            tags.remove(awaitingAssignmentTag);
+                        }
+                        hasAssignmentTag = true;
+                        break;
+                    }
+                }
+            }
+
+            if (!hasAssignmentTag && !hasAwaitingAssignmentTag && assignmentTag == null) {
+                tags.add(batch.createTag("AA", R.string.general_awaiting_assignment, AWAITING_ASSIGNMENT_TAG_UUID));
+            }
+        }
+    }
+
+    private static String getAddress5(Patient patient) {
+        PersonAddress personAddress = patient.getPreferredAddress();
+        if (personAddress != null) {
+            return personAddress.getAddress5();
+        }
+        if (patient.getAddresses() != null) {
+            for (PersonAddress address : patient.getAddresses()) {
+                if (!StringUtils.isEmpty(address.getAddress5())) {
+                    return address.getAddress5();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean containsTag(List<PatientTag> tags, String tagUuid) {
+        for (PatientTag tag : tags) {
+            if (StringUtils.equals(tag.getUuid(), tagUuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasSameTags(PatientTag[] originalTags, List<PatientTag> tags) {
+        int originalTagCount = originalTags == null ? 0 : originalTags.length;
+        if (originalTagCount != tags.size()) {
+            return false;
+        }
+        for (int i = 0; i < originalTagCount; i++) {
+            if (!StringUtils.equals(originalTags[i].getUuid(), tags.get(i).getUuid())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The data loaded for one run, and the tags computed so far.
+     */
+    private class Batch {
+        private final boolean bulk;
+        private final Map<String, PatientTag> tagsByName = new HashMap<>();
+        private final Map<String, PatientTag> newTags = new LinkedHashMap<>();
+        private final Map<String, Patient> patientsByUuid = new HashMap<>();
+        private final Map<String, List<PatientTag>> tagsByPatientUuid = new LinkedHashMap<>();
+        private Map<String, List<Relationship>> relationshipsByPersonUuid;
+        private Map<String, List<Observation>> assignmentObservationsByPatientUuid;
+
+        Batch(boolean bulk) {
+            this.bulk = bulk;
+        }
+
+        void loadAllPatients() throws PatientController.PatientLoadException {
+            for (Patient patient : patientController.getAllPatients()) {
+                patientsByUuid.put(patient.getUuid(), patient);
+            }
+        }
+
+        void loadAllRelationships() throws RelationshipController.RetrieveRelationshipException {
+            relationshipsByPersonUuid = new HashMap<>();
+            for (Relationship relationship : relationshipController.getAllRelationships()) {
+                addRelationship(relationship.getPersonA(), relationship);
+                addRelationship(relationship.getPersonB(), relationship);
+            }
+        }
+
+        private void addRelationship(Person person, Relationship relationship) {
+            if (person == null) {
+                return;
+            }
+            List<Relationship> relationships = relationshipsByPersonUuid.get(person.getUuid());
+            if (relationships == null) {
+                relationships = new ArrayList<>();
+                relationshipsByPersonUuid.put(person.getUuid(), relationships);
+            }
+            relationships.add(relationship);
+        }
+
+        void loadAllAssignmentObservations() throws ObservationController.LoadObservationException {
+            assignmentObservationsByPatientUuid = new HashMap<>();
+            for (Observation observation : observationController.getObservationsByConceptId(HEALTHWORKER_ASSIGNMENT_CONCEPT_ID)) {
+                if (observation.getPerson() == null) {
+                    continue;
+                }
+                List<Observation> observations = assignmentObservationsByPatientUuid.get(observation.getPerson().getUuid());
+                if (observations == null) {
+                    observations = new ArrayList<>();
+                    assignmentObservationsByPatientUuid.put(observation.getPerson().getUuid(), observations);
+                }
+                observations.add(observation);
+            }
+        }
+
+        Patient getPatient(String patientUuid) throws PatientController.PatientLoadException {
+            if (!bulk && !patientsByUuid.containsKey(patientUuid)) {
+                patientsByUuid.put(patientUuid, patientController.getPatientByUuid(patientUuid));
+            }
+            return patientsByUuid.get(patientUuid);
+        }
+
+        List<Relationship> getRelationships(String patientUuid) throws RelationshipController.RetrieveRelationshipException {
+            if (relationshipsByPersonUuid == null) {
+                return relationshipController.getRelationshipsForPerson(patientUuid);
+            }
+            List<Relationship> relationships = relationshipsByPersonUuid.get(patientUuid);
+            return relationships == null ? new ArrayList<Relationship>() : relationships;
+        }
+
+        List<Observation> getAssignmentObservations(String patientUuid) throws ObservationController.LoadObservationException {
+            if (assignmentObservationsByPatientUuid == null) {
+                return observationController.getObservationsByPatientuuidAndConceptId(patientUuid, HEALTHWORKER_ASSIGNMENT_CONCEPT_ID);
+            }
+            List<Observation> observations = assignmentObservationsByPatientUuid.get(patientUuid);
+            return observations == null ? new ArrayList<Observation>() : observations;
+        }
+
+        /**
+         * @return the tags computed so far for the patient, starting from the stored tags
+         */
+        List<PatientTag> getTags(Patient patient) {
+            List<PatientTag> tags = tagsByPatientUuid.get(patient.getUuid());
+            if (tags == null) {
+                tags = new ArrayList<>();
+                if (patient.getTags() != null) {
+                    tags.addAll(Arrays.asList(patient.getTags()));
+                }
+                tagsByPatientUuid.put(patient.getUuid(), tags);
+            }
+            return tags;
+        }
+
+        PatientTag createTag(String name, int descriptionResourceId, String uuid) {
+            PatientTag tag = new PatientTag();
+            tag.setName(name);
+            tag.setDescription(muzimaApplication.getString(descriptionResourceId));
+            tag.setUuid(uuid);
+            if (!newTags.containsKey(uuid)) {
+                newTags.put(uuid, tag);
+            }
+            return tag;
+        }
+    }
+}
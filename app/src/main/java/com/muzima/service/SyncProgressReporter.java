@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.muzima.model.events.SyncProgressEvent;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reports the progress of a sync as {@link SyncProgressEvent}s on the event bus. Each phase keeps
+ * its own start time, counts and deliveries, so that phases running at the same time do not reset
+ * each other. Updates of a phase coming faster than the minimum interval are coalesced to the
+ * latest one, which is delivered once the interval is over, when the phase is done or on {@link #flush()}.
+ */
+public class SyncProgressReporter {
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 250;
+
+    public interface Listener {
+        void onProgress(SyncProgressEvent event);
+    }
+
+    public interface DelayedRunner {
+        void runAfter(Runnable runnable, long delayMillis);
+    }
+
+    private final long minIntervalMillis;
+    private final Listener listener;
+    private final DelayedRunner delayedRunner;
+    private final Map<String, PhaseProgress> phases = new HashMap<>();
+
+    public SyncProgressReporter() {
+        this(DEFAULT_MIN_INTERVAL_MILLIS, new Listener() {
+            @Override
+            public void onProgress(SyncProgressEvent event) {
+                EventBus eventBus = EventBus.getDefault();
+                if (eventBus.hasSubscriberForEvent(SyncProgressEvent.class)) {
+                    eventBus.post(event);
+                }
+            }
+        }, new DelayedRunner() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void runAfter(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
+        });
+    }
+
+    SyncProgressReporter(long minIntervalMillis, Listener listener, DelayedRunner delayedRunner) {
+        this.minIntervalMillis = minIntervalMillis;
+        this.listener = listener;
+        this.delayedRunner = delayedRunner;
+    }
+
+    public synchronized void report(String phase, String message, int done, int total) {
+        long now = System.currentTimeMillis();
+        PhaseProgress progress = progressOf(phase, now);
+        progress.done = done;
+        progress.total = total;
+        SyncProgressEvent event = progress.event(message, now);
+        if (done >= total) {
+            deliver(progress, event, now);
+            // the next report of the phase starts it again
+            phases.remove(phase);
+        } else if (now - progress.lastDeliveryMillis >= minIntervalMillis) {
+            deliver(progress, event, now);
+        } else {
+            progress.pending = event;
+            scheduleTrailingDelivery(progress, now);
+        }
+    }
+
+    /**
+     * Delivers a message ending the phase, such as an error, right away in place of its pending update
+     */
+    public synchronized void reportMessage(String phase, String message) {
+        long now = System.currentTimeMillis();
+        PhaseProgress progress = progressOf(phase, now);
+        deliver(progress, progress.event(message, now), now);
+        phases.remove(phase);
+    }
+
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        for (PhaseProgress progress : phases.values()) {
+            if (progress.pending != null) {
+                deliver(progress, progress.pending, now);
+            }
+        }
+    }
+
+    private PhaseProgress progressOf(String phase, long now) {
+        PhaseProgress progress = phases.get(phase);
+        if (progress == null) {
+            progress = new PhaseProgress(phase, now, now - minIntervalMillis);
+            phases.put(phase, progress);
+        }
+        return progress;
+    }
+
+    private void scheduleTrailingDelivery(final PhaseProgress progress, long now) {
+        if (progress.trailingDeliveryScheduled) {
+            return;
+        }
+        progress.trailingDeliveryScheduled = true;
+        delayedRunner.runAfter(new Runnable() {
+            @Override
+            public void run() {
+                deliverPending(progress);
+            }
+        }, Math.max(0, progress.lastDeliveryMillis + minIntervalMillis - now));
+    }
+
+    private synchronized void deliverPending(PhaseProgress progress) {
+        progress.trailingDeliveryScheduled = false;
+        if (progress.pending != null) {
+            deliver(progress, progress.pending, System.currentTimeMillis());
+        }
+    }
+
+    private void deliver(PhaseProgress progress, SyncProgressEvent event, long now) {
+        progress.pending = null;
+        progress.lastDeliveryMillis = now;
+        listener.onProgress(event);
+    }
+
+    private static class PhaseProgress {
+        private final String phase;
+        private final long startMillis;
+        private int done;
+        private int total;
+        private long lastDeliveryMillis;
+        private SyncProgressEvent pending;
+        private boolean trailingDeliveryScheduled;
+
+        PhaseProgress(String phase, long startMillis, long lastDeliveryMillis) {
+            this.phase = phase;
+            this.startMillis = startMillis;
+            this.lastDeliveryMillis = lastDeliveryMillis;
+        }
+
+        SyncProgressEvent event(String message, long now) {
+            long elapsedMillis = now - startMillis;
+            double itemsPerSecond = elapsedMillis > 0 ? done * 1000.0 / elapsedMillis : 0;
+            long etaMillis = itemsPerSecond > 0 ? (long) (Math.max(total - done, 0) * 1000 / itemsPerSecond) : -1;
+            return new SyncProgressEvent(phase, message, done, total, itemsPerSecond, etaMillis);
+        }
+    }
+}
@@ -14,17 +14,16 @@ import android.os.Handler;
 import android.os.Looper;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class AsyncWorker {
     private static final AsyncWorker instance = new AsyncWorker();
-    private static final int NUMBER_OF_THREADS = 4;
 
     private final ExecutorService executorService;
     protected Handler handler;
 
     private AsyncWorker() {
-        executorService = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+        executorService = MuzimaTaskScheduler.getInstance().getExecutorService(MuzimaTaskScheduler.Lane.UI_QUERY,
+                MuzimaTaskScheduler.Priority.USER_VISIBLE, getClass().getSimpleName());
         handler = new Handler(Looper.getMainLooper());
     }
 
@@ -38,6 +38,11 @@ public class EncryptedSharedHealthRecordSyncTask {
     }
     private static class SyncSharedHealthRecordBackgroundTask extends MuzimaAsyncTask<Void,Void,Integer[]>{
 
+        @Override
+        protected MuzimaTaskScheduler.Lane getLane() {
+            return MuzimaTaskScheduler.Lane.SYNC_IO;
+        }
+
         @Override
         protected void onPreExecute() {
 
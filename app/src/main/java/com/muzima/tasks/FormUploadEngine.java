@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.tasks;
+
+import android.util.Log;
+
+import com.muzima.api.model.FormData;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads completed form data with a bounded number of patients in flight.
+ *
+ * The forms with one of the first discriminators, the registrations, all go up before any other
+ * form, as relationship and person forms may refer to the registration of another patient. The
+ * forms of a patient go up one at a time in the order of their discriminators, so that a
+ * registration reaches the server before the demographics updates and encounters which refer to
+ * it. Once a form of a patient fails, the later forms of that patient wait for the next upload.
+ * The forms of different patients do not depend on each other and go up in parallel; as with
+ * {@link ParallelDownloader}, the calling thread uploads too and the helpers run on the sync lane.
+ * Forms without a patient do not depend on each other either and each go up on their own.
+ *
+ * An upload failing before its request was sent, e.g. with the connection refused, is retried
+ * with exponential backoff. Other errors are not retried, as the server may have accepted the form
+ * already and sending it again would create it twice. The status of each form is saved through
+ * the {@link StatusWriter} as soon as it is uploaded, so that a crash or a later upload does not
+ * send it again. Status writes are serialised, so only the uploads themselves run in parallel.
+ */
+public class FormUploadEngine {
+    public static final int DEFAULT_PARALLEL_UPLOADS = 3;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    public static final long REJECTED = -1;
+
+    public interface Upload {
+        /**
+         * Called from several threads at once, so it must only send the form and not write to the
+         * local store; the status is written through the {@link StatusWriter}.
+         *
+         * @return the number of payload bytes sent, or {@link #REJECTED} if the server did not accept the form
+         */
+        long upload(FormData formData) throws IOException;
+    }
+
+    public interface StatusWriter {
+        /**
+         * Called for one form at a time, never concurrently
+         */
+        void writeUploaded(FormData uploadedForm) throws IOException;
+    }
+
+    private final MuzimaTaskScheduler scheduler;
+    private final String taskType;
+    private final Map<String, Integer> discriminatorRanks = new HashMap<>();
+    private final Set<String> firstDiscriminators;
+    private final int parallelUploads;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final Object statusWriteLock = new Object();
+
+    /**
+     * @param discriminatorOrder  the discriminators in upload order, forms with other discriminators are not uploaded
+     * @param firstDiscriminators the discriminators of the forms to upload before any other form
+     */
+    public FormUploadEngine(String taskType, List<String> discriminatorOrder, Collection<String> firstDiscriminators) {
+        this(MuzimaTaskScheduler.getInstance(), taskType, discriminatorOrder, firstDiscriminators,
+                DEFAULT_PARALLEL_UPLOADS, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS);
+    }
+
+    public FormUploadEngine(MuzimaTaskScheduler scheduler, String taskType, List<String> discriminatorOrder,
+                            Collection<String> firstDiscriminators, int parallelUploads, int maxAttempts,
+                            long initialBackoffMillis) {
+        if (parallelUploads < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Parallel uploads and attempts must be positive");
+        }
+        this.scheduler = scheduler;
+        this.taskType = taskType;
+        for (String discriminator : discriminatorOrder) {
+            if (!discriminatorRanks.containsKey(discriminator)) {
+                discriminatorRanks.put(discriminator, discriminatorRanks.size());
+            }
+        }
+        this.firstDiscriminators = new HashSet<>(firstDiscriminators);
+        this.parallelUploads = parallelUploads;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * @throws IOException the first error writing the status of uploaded forms, once all uploads are over
+     */
+    public Result upload(List<FormData> formDataList, Upload upload, StatusWriter statusWriter) throws IOException {
+        long startTime = System.nanoTime();
+        List<FormData> firstForms = new ArrayList<>();
+        List<FormData> laterForms = new ArrayList<>();
+        for (FormData formData : formDataList) {
+            if (firstDiscriminators.contains(formData.getDiscriminator())) {
+                firstForms.add(formData);
+            } else {
+                laterForms.add(formData);
+            }
+        }
+        Result result = new Result();
+        Batch first = new Batch(orderByPatient(firstForms), upload, statusWriter, result, Collections.<String>emptySet());
+        uploadAll(first);
+        Batch later = new Batch(orderByPatient(laterForms), upload, statusWriter, result, first.failedPatients);
+        uploadAll(later);
+        result.elapsedNanos = System.nanoTime() - startTime;
+        if (first.firstStatusError != null) {
+            throw first.firstStatusError;
+        }
+        if (later.firstStatusError != null) {
+            throw later.firstStatusError;
+        }
+        return result;
+    }
+
+    private void uploadAll(Batch batch) {
+        List<Future<?>> helpers = new ArrayList<>();
+        int helperCount = Math.min(parallelUploads, batch.chains.size()) - 1;
+        try {
+            for (int i = 0; i < helperCount; i++) {
+                helpers.add(scheduler.submit(MuzimaTaskScheduler.Lane.SYNC_IO, MuzimaTaskScheduler.Priority.NORMAL,
+                        taskType, batch::help));
+            }
+        } catch (RejectedExecutionException e) {
+            // the lane is full, the calling thread uploads what the missing helpers would have
+        }
+        batch.uploadRemaining();
+        batch.awaitHelpers();
+        for (Future<?> helper : helpers) {
+            // a helper which did not start yet has nothing left to do
+            helper.cancel(false);
+        }
+    }
+
+    /**
+     * @return the forms of each patient in upload order, the patients with the most forms first so
+     * that they do not hold up the end of the upload
+     */
+    List<List<FormData>> orderByPatient(List<FormData> formDataList) {
+        Map<String, List<FormData>> chains = new LinkedHashMap<>();
+        for (FormData formData : formDataList) {
+            if (!discriminatorRanks.containsKey(formData.getDiscriminator())) {
+                continue;
+            }
+            String patientKey = patientKeyOf(formData);
+            List<FormData> chain = chains.get(patientKey);
+            if (chain == null) {
+                chain = new ArrayList<>();
+                chains.put(patientKey, chain);
+            }
+            chain.add(formData);
+        }
+        List<List<FormData>> orderedChains = new ArrayList<>(chains.values());
+        for (List<FormData> chain : orderedChains) {
+            Collections.sort(chain, (first, second) -> discriminatorRanks.get(first.getDiscriminator())
+                    .compareTo(discriminatorRanks.get(second.getDiscriminator())));
+        }
+        Collections.sort(orderedChains, (first, second) -> second.size() - first.size());
+        return orderedChains;
+    }
+
+    /**
+     * @return the patient uuid, or the form data uuid for a form without a patient so that it makes
+     * a chain of its own
+     */
+    private static String patientKeyOf(FormData formData) {
+        return formData.getPatientUuid() == null ? formData.getUuid() : formData.getPatientUuid();
+    }
+
+    public static class Result {
+        private int uploadedForms;
+        private int failedForms;
+        private int deferredForms;
+        private long uploadedBytes;
+        private long elapsedNanos;
+
+        public boolean isSuccessful() {
+            return failedForms == 0 && deferredForms == 0;
+        }
+
+        public int getUploadedForms() {
+            return uploadedForms;
+        }
+
+        public int getFailedForms() {
+            return failedForms;
+        }
+
+        /**
+         * @return the forms not uploaded because an earlier form of their patient failed
+         */
+        public int getDeferredForms() {
+            return deferredForms;
+        }
+
+        public long getUploadedBytes() {
+            return uploadedBytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        public double getFormsPerSecond() {
+            return elapsedNanos == 0 ? 0 : uploadedForms * 1e9 / elapsedNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : uploadedBytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d forms uploaded, %d failed, %d deferred, %d bytes in %d ms (%.1f forms/s, %.0f bytes/s)",
+                    uploadedForms, failedForms, deferredForms, uploadedBytes, getElapsedMillis(),
+                    getFormsPerSecond(), getBytesPerSecond());
+        }
+    }
+
+    private class Batch {
+        private final List<List<FormData>> chains;
+        private final Upload upload;
+        private final StatusWriter statusWriter;
+        private final AtomicInteger next = new AtomicInteger();
+        private final Result result;
+        private final Set<String> deferredPatients;
+        private final Set<String> failedPatients = Collections.synchronizedSet(new HashSet<String>());
+        private IOException firstStatusError;
+        private int activeHelpers;
+        private boolean closed;
+
+        /**
+         * @param deferredPatients the patients whose forms wait for the next upload, as an earlier form of theirs failed
+         */
+        Batch(List<List<FormData>> chains, Upload upload, StatusWriter statusWriter, Result result,
+              Set<String> deferredPatients) {
+            this.chains = chains;
+            this.upload = upload;
+            this.statusWriter = statusWriter;
+            this.result = result;
+            this.deferredPatients = deferredPatients;
+        }
+
+        void help() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                activeHelpers++;
+            }
+            try {
+                uploadRemaining();
+            } finally {
+                synchronized (this) {
+                    activeHelpers--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the helpers which started, helpers starting later find the batch closed
+         */
+        synchronized void awaitHelpers() {
+            closed = true;
+            boolean interrupted = false;
+            while (activeHelpers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void uploadRemaining() {
+            int index;
+            while ((index = next.getAndIncrement()) < chains.size()) {
+                uploadChain(chains.get(index));
+            }
+        }
+
+        private void uploadChain(List<FormData> chain) {
+            String patientKey = patientKeyOf(chain.get(0));
+            if (deferredPatients.contains(patientKey)) {
+                synchronized (this) {
+                    result.deferredForms += chain.size();
+                }
+                return;
+            }
+            for (int i = 0; i < chain.size(); i++) {
+                long bytes = uploadWithRetries(chain.get(i));
+                if (bytes == REJECTED) {
+                    failedPatients.add(patientKey);
+                    synchronized (this) {
+                        result.failedForms++;
+                        result.deferredForms += chain.size() - i - 1;
+                    }
+                    return;
+                }
+                recordUploaded(chain.get(i), bytes);
+            }
+        }
+
+        private long uploadWithRetries(FormData formData) {
+            long backoffMillis = initialBackoffMillis;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return upload.upload(formData);
+                } catch (IOException e) {
+                    if (!failedBeforeSending(e) || attempt >= maxAttempts || !sleep(backoffMillis)) {
+                        Log.e(getClass().getSimpleName(), "Could not upload form data " + formData.getUuid(), e);
+                        return REJECTED;
+                    }
+                    backoffMillis *= 2;
+                } catch (RuntimeException e) {
+                    Log.e(getClass().getSimpleName(), "Could not upload form data " + formData.getUuid(), e);
+                    return REJECTED;
+                }
+            }
+        }
+
+        private void recordUploaded(FormData formData, long bytes) {
+            IOException statusError = null;
+            synchronized (statusWriteLock) {
+                try {
+                    statusWriter.writeUploaded(formData);
+                } catch (IOException e) {
+                    Log.e(getClass().getSimpleName(), "Could not save the status of uploaded form data " + formData.getUuid(), e);
+                    statusError = e;
+                }
+            }
+            synchronized (this) {
+                result.uploadedForms++;
+                result.uploadedBytes += bytes;
+                if (firstStatusError == null) {
+                    firstStatusError = statusError;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the request never reached the server, so that sending it again cannot upload the form twice
+     */
+    static boolean failedBeforeSending(IOException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException
+                    || cause instanceof NoRouteToHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if interrupted, the upload is then given up
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
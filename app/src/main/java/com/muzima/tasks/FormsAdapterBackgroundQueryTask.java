@@ -20,9 +20,10 @@ import java.util.List;
 
 import static com.muzima.adapters.ListAdapter.BackgroundListQueryTaskListener;
 
-public abstract class FormsAdapterBackgroundQueryTask<T extends BaseForm> extends MuzimaAsyncTask<Void, Void, List<T>> {
+public abstract class FormsAdapterBackgroundQueryTask<T extends BaseForm> extends MuzimaAsyncTask<Void, List<T>, List<T>> {
 
     protected final WeakReference<FormsAdapter> adapterWeakReference;
+    private boolean pageShown = false;
 
     protected FormsAdapterBackgroundQueryTask(FormsAdapter adapter) {
         adapterWeakReference = new WeakReference<>(adapter);
@@ -38,6 +39,27 @@ public abstract class FormsAdapterBackgroundQueryTask<T extends BaseForm> extend
                 backgroundListQueryTaskListener.onQueryTaskStarted();
             }
         }
+        setOnProgressListener(this::showPage);
+    }
+
+    /**
+     * Appends a page of forms published from {@link #doInBackground(Object[])}, replacing the
+     * previous content of the adapter when the first page arrives.
+     */
+    private void showPage(List<T> page) {
+        if (adapterWeakReference.get() != null) {
+            FormsAdapter formsAdapter = adapterWeakReference.get();
+            if (!pageShown) {
+                formsAdapter.clear();
+                pageShown = true;
+            }
+            formsAdapter.addAll(page);
+            formsAdapter.notifyDataSetChanged();
+        }
+    }
+
+    protected boolean isPageShown() {
+        return pageShown;
     }
 
     @Override
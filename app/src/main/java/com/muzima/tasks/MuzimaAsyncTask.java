@@ -12,10 +12,12 @@ package com.muzima.tasks;
 
 import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public abstract class MuzimaAsyncTask<INPUT, PROGRESS, OUTPUT> {
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
+    private Future<?> future;
 
     public MuzimaAsyncTask() {}
 
@@ -25,18 +27,22 @@ public abstract class MuzimaAsyncTask<INPUT, PROGRESS, OUTPUT> {
      */
     public void execute(final INPUT... input) {
         onPreExecute();
-        ExecutorService executorService = AsyncWorker.getInstance().getExecutorService();
-        executorService.execute(() -> {
-            try {
-                final OUTPUT output = doInBackground(input);
-                if(!isCancelled())
-                    AsyncWorker.getInstance().getHandler().post(() -> onPostExecute(output));
-            } catch (final Exception e) {
-                Log.e(getClass().getSimpleName(),"Encounter an exception",e);
-
-                AsyncWorker.getInstance().getHandler().post(() -> onBackgroundError(e));
-            }
-        });
+        try {
+            future = MuzimaTaskScheduler.getInstance().submit(getLane(), getPriority(), getClass().getSimpleName(), () -> {
+                try {
+                    final OUTPUT output = doInBackground(input);
+                    if(!isCancelled())
+                        AsyncWorker.getInstance().getHandler().post(() -> onPostExecute(output));
+                } catch (final Exception e) {
+                    Log.e(getClass().getSimpleName(),"Encounter an exception",e);
+
+                    AsyncWorker.getInstance().getHandler().post(() -> onBackgroundError(e));
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            Log.e(getClass().getSimpleName(),"Too much background work to queue the task",e);
+            AsyncWorker.getInstance().getHandler().post(() -> onBackgroundError(e));
+        }
     }
 
     public void execute() {
@@ -60,6 +66,9 @@ public abstract class MuzimaAsyncTask<INPUT, PROGRESS, OUTPUT> {
      */
     public void cancel() {
         cancelled = true;
+        if (future != null) {
+            future.cancel(false);
+        }
     }
 
     /**
@@ -70,6 +79,20 @@ public abstract class MuzimaAsyncTask<INPUT, PROGRESS, OUTPUT> {
         return cancelled;
     }
 
+    /**
+     * @return The lane of the task scheduler to run on, queries behind the screens by default
+     */
+    protected MuzimaTaskScheduler.Lane getLane() {
+        return MuzimaTaskScheduler.Lane.UI_QUERY;
+    }
+
+    /**
+     * @return The priority of the background work in its lane, user visible by default
+     */
+    protected MuzimaTaskScheduler.Priority getPriority() {
+        return MuzimaTaskScheduler.Priority.USER_VISIBLE;
+    }
+
     /**
      * Call this method after cancelling background work
      */
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.tasks;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the background work of the app on a few bounded lanes of threads, so that a burst of sync
+ * work cannot starve the queries behind the screens. Within a lane, queued tasks run by priority
+ * and then in the order they were submitted; a lane rejects tasks once its queue is full.
+ *
+ * Cancellation is cooperative: cancelling a task that has started does not interrupt it, long
+ * running work checks {@link #isCurrentTaskCancelled()} instead.
+ */
+public class MuzimaTaskScheduler {
+    private static final MuzimaTaskScheduler instance = new MuzimaTaskScheduler();
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final ThreadLocal<ScheduledTask<?>> currentTask = new ThreadLocal<>();
+
+    public enum Lane {
+        UI_QUERY(4, 64, Thread.NORM_PRIORITY),
+        SYNC_IO(4, 128, Thread.MIN_PRIORITY + 1),
+        CPU(Math.max(2, Runtime.getRuntime().availableProcessors() - 1), 64, Thread.MIN_PRIORITY + 1);
+
+        private final int threads;
+        private final int queueCapacity;
+        private final int threadPriority;
+
+        Lane(int threads, int queueCapacity, int threadPriority) {
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.threadPriority = threadPriority;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+    }
+
+    /**
+     * Queued tasks of a higher priority run before the ones of a lower priority, declared first
+     */
+    public enum Priority {
+        USER_VISIBLE,
+        NORMAL,
+        BACKGROUND
+    }
+
+    private final Map<Lane, ThreadPoolExecutor> lanes = new EnumMap<>(Lane.class);
+    private final ConcurrentHashMap<String, TaskMetrics> metrics = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public static MuzimaTaskScheduler getInstance() {
+        return instance;
+    }
+
+    MuzimaTaskScheduler() {
+        for (Lane lane : Lane.values()) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(lane.threads, lane.threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new BoundedPriorityBlockingQueue(lane.queueCapacity), new LaneThreadFactory(lane));
+            executor.allowCoreThreadTimeOut(true);
+            lanes.put(lane, executor);
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue of the lane is full
+     */
+    public <T> Future<T> submit(Lane lane, Priority priority, String taskType, Callable<T> callable) {
+        return schedule(lane, new ScheduledTask<>(callable, priority, taskType));
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue of the lane is full
+     */
+    public Future<?> submit(Lane lane, Priority priority, String taskType, Runnable runnable) {
+        return schedule(lane, new ScheduledTask<Void>(runnable, null, priority, taskType));
+    }
+
+    /**
+     * @return an executor service submitting to the given lane. The lanes are shared by the whole
+     * app, so shutting the returned service down does nothing.
+     */
+    public ExecutorService getExecutorService(Lane lane, Priority priority, String taskType) {
+        return new LaneExecutorService(lane, priority, taskType);
+    }
+
+    /**
+     * @return true if the task running on the calling thread was cancelled or the thread was interrupted
+     */
+    public static boolean isCurrentTaskCancelled() {
+        ScheduledTask<?> task = currentTask.get();
+        return (task != null && task.isCancelled()) || Thread.currentThread().isInterrupted();
+    }
+
+    public int getQueueDepth(Lane lane) {
+        return lanes.get(lane).getQueue().size();
+    }
+
+    public int getActiveCount(Lane lane) {
+        return lanes.get(lane).getActiveCount();
+    }
+
+    /**
+     * @return the metrics of every task type run so far, by task type
+     */
+    public Map<String, TaskMetrics> getTaskMetrics() {
+        return Collections.unmodifiableMap(new TreeMap<>(metrics));
+    }
+
+    public void logMetrics() {
+        for (Lane lane : Lane.values()) {
+            Log.i(getClass().getSimpleName(), lane + ": " + getActiveCount(lane) + " active, "
+                    + getQueueDepth(lane) + " queued");
+        }
+        for (Map.Entry<String, TaskMetrics> entry : getTaskMetrics().entrySet()) {
+            Log.i(getClass().getSimpleName(), entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    private <T> Future<T> schedule(Lane lane, ScheduledTask<T> task) {
+        try {
+            lanes.get(lane).execute(task);
+        } catch (RejectedExecutionException e) {
+            metricsOf(task.taskType).rejected.incrementAndGet();
+            throw e;
+        }
+        return task;
+    }
+
+    private TaskMetrics metricsOf(String taskType) {
+        return metrics.computeIfAbsent(taskType, type -> new TaskMetrics());
+    }
+
+    private class ScheduledTask<T> extends FutureTask<T> implements Comparable<ScheduledTask<?>> {
+        private final Priority priority;
+        private final String taskType;
+        private final long sequenceNumber = sequence.getAndIncrement();
+        private final long enqueueTime = System.nanoTime();
+
+        ScheduledTask(Callable<T> callable, Priority priority, String taskType) {
+            super(callable);
+            this.priority = priority;
+            this.taskType = taskType;
+        }
+
+        ScheduledTask(Runnable runnable, T result, Priority priority, String taskType) {
+            super(runnable, result);
+            this.priority = priority;
+            this.taskType = taskType;
+        }
+
+        @Override
+        public void run() {
+            TaskMetrics taskMetrics = metricsOf(taskType);
+            if (isCancelled()) {
+                taskMetrics.cancelled.incrementAndGet();
+                return;
+            }
+            long startTime = System.nanoTime();
+            ScheduledTask<?> previousTask = currentTask.get();
+            currentTask.set(this);
+            try {
+                super.run();
+            } finally {
+                currentTask.set(previousTask);
+                taskMetrics.record(startTime - enqueueTime, System.nanoTime() - startTime);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable throwable) {
+            Log.e(getClass().getSimpleName(), "Task " + taskType + " failed", throwable);
+            super.setException(throwable);
+        }
+
+        @Override
+        public int compareTo(ScheduledTask<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+
+    /**
+     * Submits to a shared lane; shutdown and shutdownNow are no-ops, as the lane outlives any caller.
+     */
+    private class LaneExecutorService extends AbstractExecutorService {
+        private final Lane lane;
+        private final Priority priority;
+        private final String taskType;
+
+        LaneExecutorService(Lane lane, Priority priority, String taskType) {
+            this.lane = lane;
+            this.priority = priority;
+            this.taskType = taskType;
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new ScheduledTask<>(callable, priority, taskType);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new ScheduledTask<>(runnable, value, priority, taskType);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (command instanceof ScheduledTask) {
+                schedule(lane, (ScheduledTask<?>) command);
+            } else {
+                schedule(lane, new ScheduledTask<Void>(command, null, priority, taskType));
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    /**
+     * Counts and times of the runs of one task type, in milliseconds.
+     */
+    public static class TaskMetrics {
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong totalWaitTime = new AtomicLong();
+        private final AtomicLong maxWaitTime = new AtomicLong();
+        private final AtomicLong totalRunTime = new AtomicLong();
+        private final AtomicLong maxRunTime = new AtomicLong();
+
+        private void record(long waitNanos, long runNanos) {
+            long waitTime = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+            long runTime = TimeUnit.NANOSECONDS.toMillis(runNanos);
+            runs.incrementAndGet();
+            totalWaitTime.addAndGet(waitTime);
+            totalRunTime.addAndGet(runTime);
+            updateMax(maxWaitTime, waitTime);
+            updateMax(maxRunTime, runTime);
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getRuns() {
+            return runs.get();
+        }
+
+        public long getCancelled() {
+            return cancelled.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public long getTotalWaitTime() {
+            return totalWaitTime.get();
+        }
+
+        public long getMaxWaitTime() {
+            return maxWaitTime.get();
+        }
+
+        public long getTotalRunTime() {
+            return totalRunTime.get();
+        }
+
+        public long getMaxRunTime() {
+            return maxRunTime.get();
+        }
+
+        @Override
+        public String toString() {
+            long count = Math.max(1, runs.get());
+            return runs.get() + " runs, " + cancelled.get() + " cancelled, " + rejected.get() + " rejected, wait "
+                    + totalWaitTime.get() / count + " ms average " + maxWaitTime.get() + " ms max, run "
+                    + totalRunTime.get() / count + " ms average " + maxRunTime.get() + " ms max";
+        }
+    }
+
+    private static class BoundedPriorityBlockingQueue extends PriorityBlockingQueue<Runnable> {
+        private final int capacity;
+
+        BoundedPriorityBlockingQueue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Only refuses tasks once full, so that the executor rejects them instead of queueing without bound
+         */
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            return size() < capacity && super.offer(runnable);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, capacity - size());
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final Lane lane;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        LaneThreadFactory(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "muzima-" + lane.name().toLowerCase(Locale.ROOT) + "-" + threadNumber.getAndIncrement());
+            thread.setPriority(lane.threadPriority);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads objects by uuid with a bounded number of requests in flight. The calling thread
+ * downloads too, and the helpers run on the sync lane of the scheduler, so a download started
+ * from a sync task still finishes when the lane is busy.
+ */
+public class ParallelDownloader<T> {
+    public static final int DEFAULT_PARALLEL_DOWNLOADS = 3;
+
+    public interface Download<T> {
+        T download(String uuid) throws IOException;
+    }
+
+    private final MuzimaTaskScheduler scheduler;
+    private final String taskType;
+    private final int parallelDownloads;
+
+    public ParallelDownloader(String taskType) {
+        this(MuzimaTaskScheduler.getInstance(), taskType, DEFAULT_PARALLEL_DOWNLOADS);
+    }
+
+    public ParallelDownloader(MuzimaTaskScheduler scheduler, String taskType, int parallelDownloads) {
+        if (parallelDownloads < 1) {
+            throw new IllegalArgumentException("Parallel downloads must be positive");
+        }
+        this.scheduler = scheduler;
+        this.taskType = taskType;
+        this.parallelDownloads = parallelDownloads;
+    }
+
+    /**
+     * @return the downloaded objects in the order of the uuids, null where the server returned none
+     * @throws IOException the first error of any download; the downloads not started yet are dropped
+     */
+    public List<T> download(String[] uuids, Download<T> download) throws IOException {
+        Batch batch = new Batch(uuids, download);
+        List<Future<?>> helpers = new ArrayList<>();
+        int helperCount = Math.min(parallelDownloads, uuids.length) - 1;
+        try {
+            for (int i = 0; i < helperCount; i++) {
+                helpers.add(scheduler.submit(MuzimaTaskScheduler.Lane.SYNC_IO, MuzimaTaskScheduler.Priority.NORMAL,
+                        taskType, batch::help));
+            }
+        } catch (RejectedExecutionException e) {
+            // the lane is full, the calling thread downloads what the missing helpers would have
+        }
+        batch.downloadRemaining();
+        batch.awaitHelpers();
+        for (Future<?> helper : helpers) {
+            // a helper which did not start yet has nothing left to do
+            helper.cancel(false);
+        }
+        batch.throwFirstError();
+        return Arrays.asList(batch.results);
+    }
+
+    private class Batch {
+        private final String[] uuids;
+        private final Download<T> download;
+        private final T[] results;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+        private int activeHelpers;
+        private boolean closed;
+
+        @SuppressWarnings("unchecked")
+        Batch(String[] uuids, Download<T> download) {
+            this.uuids = uuids;
+            this.download = download;
+            this.results = (T[]) new Object[uuids.length];
+        }
+
+        void help() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                activeHelpers++;
+            }
+            try {
+                downloadRemaining();
+            } finally {
+                synchronized (this) {
+                    activeHelpers--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the helpers which started, helpers starting later find the batch closed
+         */
+        synchronized void awaitHelpers() {
+            closed = true;
+            boolean interrupted = false;
+            while (activeHelpers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void downloadRemaining() {
+            int index;
+            while (firstError.get() == null && (index = next.getAndIncrement()) < uuids.length) {
+                try {
+                    results[index] = download.download(uuids[index]);
+                } catch (IOException | RuntimeException e) {
+                    firstError.compareAndSet(null, e);
+                }
+            }
+        }
+
+        void throwFirstError() throws IOException {
+            Throwable error = firstError.get();
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+        }
+    }
+}
@@ -11,6 +11,11 @@
 package com.muzima.utils;
 
 import android.os.AsyncTask;
+import android.util.Log;
+
+import com.muzima.tasks.MuzimaTaskScheduler;
+
+import java.util.concurrent.RejectedExecutionException;
 
 public class BackgroundTaskHelper {
     public static <P, T extends AsyncTask<P, ?, ?>> void executeInParallel(T task) {
@@ -18,6 +23,13 @@ public class BackgroundTaskHelper {
     }
     @SafeVarargs
     private static <P, T extends AsyncTask<P, ?, ?>> void executeInParallel(T task, P... params) {
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, params);
+        try {
+            task.executeOnExecutor(MuzimaTaskScheduler.getInstance().getExecutorService(MuzimaTaskScheduler.Lane.UI_QUERY,
+                    MuzimaTaskScheduler.Priority.USER_VISIBLE, task.getClass().getSimpleName()), params);
+        } catch (RejectedExecutionException e) {
+            Log.e(BackgroundTaskHelper.class.getSimpleName(), "Too much background work to queue the task", e);
+            // the task never runs, cancelling it still calls its onCancelled on the UI thread
+            task.cancel(false);
+        }
     }
 }
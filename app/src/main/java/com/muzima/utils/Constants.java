@@ -170,11 +170,6 @@ public class Constants {
         public static final String REPORT_UUIDS = "reportUuids";
     }
 
-    public static class ProgressDialogConstants {
-        public static final String PROGRESS_UPDATE_MESSAGE = "progressUpdateMessage";
-        public static final String PROGRESS_UPDATE_ACTION = "progressUpdateAction";
-    }
-
     public enum SERVER_CONNECTIVITY_STATUS {
         SERVER_ONLINE, SERVER_OFFLINE, INTERNET_FAILURE
     }
@@ -11,22 +11,43 @@
 package com.muzima.utils;
 
 import android.os.Environment;
+import android.util.Base64;
+import android.util.Base64InputStream;
 import android.util.Log;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
-
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encrypts media files in place using a streaming format:
+ * <pre>
+ *     'M' 'Z' 'E' 0x01 | salt length | salt | iv length | iv | AES/CBC ciphertext
+ * </pre>
+ * Files written in the legacy {@code base64(salt)]base64(iv)]base64(ciphertext)} format are
+ * still readable; they are rewritten in the streaming format the next time they are encrypted.
+ */
 public class EnDeCrypt {
 
 
@@ -47,44 +68,43 @@ public class EnDeCrypt {
 
     private static final String DELIMITER = "]";
 
+    // 0x01 is not a Base64 character, so the header can never be confused with the legacy format
+    private static final byte[] STREAM_FORMAT_MAGIC = {'M', 'Z', 'E', 0x01};
+
+    private static final int MAX_HEADER_FIELD_LENGTH = 64;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int MAX_CACHED_KEYS = 16;
+
+    private static final Charset KEY_CACHE_CHARSET = Charset.forName("ISO-8859-1");
+
+    // PBKDF2 is deliberately slow, so derived keys are cached per (password, salt)
+    private static final Map<String, SecretKey> derivedKeys = new LinkedHashMap<String, SecretKey>(MAX_CACHED_KEYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+
+    // One salt per password per process keeps the key cache warm; each file still gets a fresh IV
+    private static final Map<String, byte[]> encryptionSalts = new HashMap<>();
+
 
     public static void encrypt(File plainFile, String password) {
         try {
-            File tmpFolder = new File(TEMP_FOLDER);
-            if (!tmpFolder.exists())
-                tmpFolder.mkdirs();
-
-            File tempFile = new File(TEMP_FOLDER + plainFile.getName());
-            FileInputStream fis = new FileInputStream(plainFile);
-            FileOutputStream fos = new FileOutputStream(tempFile);
-
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            byte[] iv;
-            byte[] salt;
-
-            salt = generateSalt();
-            iv = generateIv(cipher.getBlockSize());
-            IvParameterSpec ivParams = new IvParameterSpec(iv);
-            SecretKey key = deriveKey(password, salt);
-            cipher.init(Cipher.ENCRYPT_MODE, key, ivParams);
-
-            byte[] plainFileBytes = new byte[(int) plainFile.length()];
-            fis.read(plainFileBytes);
-            byte[] encryptedStream = cipher.doFinal(plainFileBytes);
-
-            String cipherText;
-            if (salt != null)
-                cipherText = String.format("%s%s%s%s%s", MediaUtils.toBase64(salt), DELIMITER,
-                        MediaUtils.toBase64(iv), DELIMITER, MediaUtils.toBase64(encryptedStream));
-            else
-                cipherText = MediaUtils.toBase64(encryptedStream);
-
-            // write the encrypted stream to file together with salt and IV
-            fos.write(cipherText.getBytes());
-
-            // and clean up
-            fos.flush();
-            fos.close();
+            File tempFile = getTempFile(plainFile);
+            InputStream in = new FileInputStream(plainFile);
+            try {
+                OutputStream out = openEncryptingStream(new FileOutputStream(tempFile), password);
+                try {
+                    copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
 
             // remove the temporary file by transferring the file as appropriate
             tempFile.renameTo(new File(plainFile.getAbsolutePath()));
@@ -97,52 +117,137 @@ public class EnDeCrypt {
 
     public static void decrypt(File encryptedFile, String password) {
         try {
-            File tmpFolder = new File(TEMP_FOLDER);
-            if (!tmpFolder.exists())
-                tmpFolder.mkdirs();
-
-            File tempFile = new File(TEMP_FOLDER + encryptedFile.getName());
-            FileOutputStream fos = new FileOutputStream(tempFile);
-
-            BufferedReader bufferedReader = new BufferedReader(new FileReader(encryptedFile));
-            StringBuilder builder = new StringBuilder();
-            String cipherText;
-            String line;
-            while ( (line = bufferedReader.readLine()) != null ) {
-                builder.append(line);
+            File tempFile = getTempFile(encryptedFile);
+            InputStream in = openDecryptingStream(encryptedFile, password);
+            try {
+                OutputStream out = new FileOutputStream(tempFile);
+                try {
+                    copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
             }
 
-            cipherText = builder.toString();
+            tempFile.renameTo(encryptedFile);
+            Log.i("En DeCrypt", "Decrypted " + encryptedFile.getAbsolutePath());
+        } catch (Exception e) {
+            Log.e("En DeCrypt", e.getMessage(), e);
+        }
+
+    }
+
+    /**
+     * Wraps {@code out} so that everything written to the returned stream is encrypted in the
+     * streaming format. Closing the returned stream writes the final block and closes {@code out}.
+     */
+    public static OutputStream openEncryptingStream(OutputStream out, String password) throws IOException, GeneralSecurityException {
+        byte[] salt = getEncryptionSalt(password);
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        byte[] iv = generateIv(cipher.getBlockSize());
+        cipher.init(Cipher.ENCRYPT_MODE, deriveKey(password, salt), new IvParameterSpec(iv));
+
+        OutputStream bufferedOut = new BufferedOutputStream(out, BUFFER_SIZE);
+        bufferedOut.write(STREAM_FORMAT_MAGIC);
+        bufferedOut.write(salt.length);
+        bufferedOut.write(salt);
+        bufferedOut.write(iv.length);
+        bufferedOut.write(iv);
+        return new CipherOutputStream(bufferedOut, cipher);
+    }
 
-            String[] fields = cipherText.split(DELIMITER);
-            if (fields.length != 3) {
-                throw new IllegalArgumentException("Invalid encrypted text format");
+    /**
+     * Opens a stream over the plain content of an encrypted file without modifying the file.
+     * Both the streaming and the legacy format are supported.
+     */
+    public static InputStream openDecryptingStream(File encryptedFile, String password) throws IOException, GeneralSecurityException {
+        InputStream in = new BufferedInputStream(new FileInputStream(encryptedFile), BUFFER_SIZE);
+        try {
+            in.mark(STREAM_FORMAT_MAGIC.length);
+            byte[] magic = new byte[STREAM_FORMAT_MAGIC.length];
+            if (readFully(in, magic) == magic.length && Arrays.equals(magic, STREAM_FORMAT_MAGIC)) {
+                byte[] salt = readHeaderField(in);
+                byte[] iv = readHeaderField(in);
+                return new CipherInputStream(in, getDecryptionCipher(password, salt, iv));
             }
 
-            byte[] salt = MediaUtils.fromBase64(fields[0]);
-            byte[] iv = MediaUtils.fromBase64(fields[1]);
-            byte[] cipherBytes = MediaUtils.fromBase64(fields[2]);
+            in.reset();
+            byte[] salt = MediaUtils.fromBase64(readLegacyHeaderField(in));
+            byte[] iv = MediaUtils.fromBase64(readLegacyHeaderField(in));
+            return new CipherInputStream(new Base64InputStream(in, Base64.NO_WRAP), getDecryptionCipher(password, salt, iv));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
 
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            IvParameterSpec ivParams = new IvParameterSpec(iv);
-            cipher.init(Cipher.DECRYPT_MODE, deriveKey(password, salt), ivParams);
-            byte[] plainText = cipher.doFinal(cipherBytes);
+    private static Cipher getDecryptionCipher(String password, byte[] salt, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(password, salt), new IvParameterSpec(iv));
+        return cipher;
+    }
 
-            // write the decrypted stream to file
-            fos.write(plainText);
+    private static byte[] readHeaderField(InputStream in) throws IOException {
+        int length = in.read();
+        if (length <= 0 || length > MAX_HEADER_FIELD_LENGTH) {
+            throw new IOException("Invalid encrypted file header");
+        }
+        byte[] field = new byte[length];
+        if (readFully(in, field) != length) {
+            throw new IOException("Invalid encrypted file header");
+        }
+        return field;
+    }
 
-            fos.flush();
-            fos.close();
+    private static String readLegacyHeaderField(InputStream in) throws IOException {
+        StringBuilder field = new StringBuilder();
+        int read;
+        while ((read = in.read()) != DELIMITER.charAt(0)) {
+            if (read == -1 || field.length() > MAX_HEADER_FIELD_LENGTH) {
+                throw new IOException("Invalid encrypted text format");
+            }
+            field.append((char) read);
+        }
+        return field.toString();
+    }
 
-            tempFile.renameTo(encryptedFile);
-            Log.i("En DeCrypt", "Decrypted " + encryptedFile.getAbsolutePath());
-        } catch (Exception e) {
-            Log.e("En DeCrypt", e.getMessage(), e);
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
         }
+        return total;
+    }
 
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static File getTempFile(File file) {
+        File tmpFolder = new File(TEMP_FOLDER);
+        if (!tmpFolder.exists())
+            tmpFolder.mkdirs();
+        return new File(TEMP_FOLDER + file.getName());
     }
 
-    private static SecretKey deriveKey(String password, byte[] salt) throws Exception {
+    private static SecretKey deriveKey(String password, byte[] salt) throws GeneralSecurityException {
+        String cacheKey = password + DELIMITER + new String(salt, KEY_CACHE_CHARSET);
+        synchronized (derivedKeys) {
+            SecretKey cachedKey = derivedKeys.get(cacheKey);
+            if (cachedKey != null) {
+                return cachedKey;
+            }
+        }
+
         // minimum values recommended by PKCS#5
         int ITERATION_COUNT = 1000;
         int KEY_LENGTH = 256;
@@ -155,7 +260,22 @@ public class EnDeCrypt {
 
         byte[] keyBytes = keyFactory.generateSecret(keySpec).getEncoded();
 
-        return new SecretKeySpec(keyBytes, KEY_ALGORITHM);
+        SecretKey key = new SecretKeySpec(keyBytes, KEY_ALGORITHM);
+        synchronized (derivedKeys) {
+            derivedKeys.put(cacheKey, key);
+        }
+        return key;
+    }
+
+    private static byte[] getEncryptionSalt(String password) {
+        synchronized (encryptionSalts) {
+            byte[] salt = encryptionSalts.get(password);
+            if (salt == null) {
+                salt = generateSalt();
+                encryptionSalts.put(password, salt);
+            }
+            return salt;
+        }
     }
 
     private static byte[] generateIv(int length) {
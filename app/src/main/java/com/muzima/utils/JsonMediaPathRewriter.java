@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+
+/**
+ * Copies a JSON payload token by token in a single pass, replacing every object value that
+ * points into the mUzima media folder with the Base64 encoded content of that media.
+ */
+public class JsonMediaPathRewriter {
+    public static final String MEDIA_PATH_MARKER = "/muzima/media/";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final MediaSource mediaSource;
+
+    public JsonMediaPathRewriter(MediaSource mediaSource) {
+        this.mediaSource = mediaSource;
+    }
+
+    public String rewrite(String jsonPayload) throws IOException {
+        // the marker may be written with escaped slashes, so only look for the folder name here
+        if (jsonPayload == null || !jsonPayload.contains("muzima")) {
+            return jsonPayload;
+        }
+
+        StringWriter writer = new StringWriter(jsonPayload.length());
+        JsonParser parser = jsonFactory.createParser(jsonPayload);
+        JsonGenerator generator = jsonFactory.createGenerator(writer);
+        try {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.VALUE_STRING && parser.getParsingContext().inObject()
+                        && parser.getText().contains(MEDIA_PATH_MARKER)) {
+                    writeMedia(parser.getText(), generator);
+                } else if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+                    // keep numbers exactly as they were written
+                    generator.writeNumber(parser.getText());
+                } else {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+        } finally {
+            parser.close();
+            generator.close();
+        }
+        return writer.toString();
+    }
+
+    private void writeMedia(String mediaPath, JsonGenerator generator) throws IOException {
+        InputStream media = mediaSource.open(mediaPath);
+        if (media == null) {
+            generator.writeString(mediaPath);
+            return;
+        }
+        try {
+            generator.writeBinary(media, -1);
+        } finally {
+            media.close();
+        }
+    }
+
+    public interface MediaSource {
+        /**
+         * @return the content of the media at the given path, or null to keep the path as is
+         */
+        InputStream open(String mediaPath) throws IOException;
+    }
+}
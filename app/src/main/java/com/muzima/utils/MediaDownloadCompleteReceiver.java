@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+package com.muzima.utils;
+
+import android.app.DownloadManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.muzima.MuzimaApplication;
+import com.muzima.tasks.MuzimaTaskScheduler;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Lets the media download queue record finished downloads and start the next ones
+ */
+public class MediaDownloadCompleteReceiver extends BroadcastReceiver {
+
+    public MediaDownloadCompleteReceiver(){}
+
+    @Override
+    public void onReceive(final Context context, Intent intent) {
+        final long downloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+        if (downloadId == -1) {
+            return;
+        }
+        final MuzimaApplication muzimaApplication = (MuzimaApplication) context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        Runnable recordDownload = () -> {
+            try {
+                muzimaApplication.getMediaDownloadQueue().onDownloadComplete(downloadId);
+            } finally {
+                pendingResult.finish();
+            }
+        };
+        try {
+            MuzimaTaskScheduler.getInstance().submit(MuzimaTaskScheduler.Lane.SYNC_IO, MuzimaTaskScheduler.Priority.NORMAL,
+                    "MediaDownloadComplete", recordDownload);
+        } catch (RejectedExecutionException e) {
+            recordDownload.run();
+        }
+    }
+}
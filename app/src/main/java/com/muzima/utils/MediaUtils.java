@@ -26,7 +26,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -41,6 +43,29 @@ public class MediaUtils {
 		return made;
 	}
 
+    /**
+     * @return the name of the file a media item is downloaded to, in the Downloads directory
+     */
+    public static String getMediaFileName(String mediaName, String mimeType) {
+        String type = mimeType.substring(mimeType.lastIndexOf("/") + 1);
+        switch (type) {
+            case "vnd.ms-excel":
+                return mediaName + ".xls";
+            case "vnd.openxmlformats-officedocument.spreadsheetml.sheet":
+                return mediaName + ".xlsx";
+            case "msword":
+                return mediaName + ".doc";
+            case "vnd.openxmlformats-officedocument.wordprocessingml.document":
+                return mediaName + ".docx";
+            case "vnd.ms-powerpoint":
+                return mediaName + ".ppt";
+            case "vnd.openxmlformats-officedocument.presentationml.presentation":
+                return mediaName + ".pptx";
+            default:
+                return mediaName + "." + type;
+        }
+    }
+
     public static String toBase64(byte[] bytes) {
         return Base64.encodeToString(bytes, Base64.NO_WRAP);
     }
@@ -49,6 +74,24 @@ public class MediaUtils {
         return Base64.decode(base64, Base64.NO_WRAP);
     }
 
+    /**
+     * Opens an encrypted media file for reading its plain content without modifying the stored
+     * file. Media that cannot be decrypted is returned as stored.
+     *
+     * @return null if the file does not exist
+     */
+    public static InputStream openMediaForUpload(File mediaFile, String password) throws IOException {
+        if (!mediaFile.exists()) {
+            return null;
+        }
+        try {
+            return EnDeCrypt.openDecryptingStream(mediaFile, password);
+        } catch (IOException | GeneralSecurityException e) {
+            Log.w("Media Utils", "Could not decrypt " + mediaFile.getAbsolutePath() + ", reading it as stored", e);
+            return new FileInputStream(mediaFile);
+        }
+    }
+
 	public static Bitmap getBitmapScaledToDisplay(File f, int screenHeight,
 			int screenWidth) {
 		// Determine image size of f
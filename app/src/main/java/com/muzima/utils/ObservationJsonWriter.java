@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.utils;
+
+import com.muzima.api.model.Concept;
+import com.muzima.api.model.Observation;
+import com.muzima.model.ConceptDictionary;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.muzima.utils.ConceptUtils.getConceptNameFromConceptNamesByLocale;
+import static com.muzima.utils.Constants.STANDARD_DATE_FORMAT;
+
+/**
+ * Writes observations as the JSON array handed to form JavaScript, straight into one buffer.
+ * Concept names come from the {@link ConceptDictionary}; names of coded values and formatted
+ * dates are resolved once per call. Fields without a value are left out, as org.json does.
+ */
+public class ObservationJsonWriter {
+    public static final String UNKNOWN_CONCEPT_NAME = "Concept Created On Phone";
+
+    private final ConceptDictionary conceptDictionary;
+    private final String language;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(STANDARD_DATE_FORMAT);
+    private final Map<Long, String> formattedDates = new HashMap<>();
+    private final Map<String, String> codedValueNames = new HashMap<>();
+
+    public ObservationJsonWriter(ConceptDictionary conceptDictionary, String language) {
+        this.conceptDictionary = conceptDictionary;
+        this.language = language;
+    }
+
+    public String write(List<Observation> observations) throws JSONException {
+        StringBuilder json = new StringBuilder(observations.size() * 256 + 2);
+        json.append('[');
+        for (int i = 0; i < observations.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            writeObservation(json, observations.get(i));
+        }
+        return json.append(']').toString();
+    }
+
+    private void writeObservation(StringBuilder json, Observation observation) throws JSONException {
+        Concept concept = observation.getConcept();
+        String conceptName = conceptDictionary.getConceptName(concept.getUuid(), language);
+
+        json.append('{');
+        boolean first = writeField(json, true, "conceptName",
+                StringUtils.isEmpty(conceptName) ? UNKNOWN_CONCEPT_NAME : conceptName);
+        first = writeField(json, first, "conceptId", concept.getId());
+        first = writeField(json, first, "conceptUuid", concept.getUuid());
+        first = writeField(json, first, "obsDate", format(observation.getObservationDatetime()));
+        Concept valueCoded = observation.getValueCoded();
+        if (valueCoded != null) {
+            first = writeName(json, first, "valueCoded");
+            json.append('{');
+            boolean firstCoded = writeField(json, true, "uuid", valueCoded.getUuid());
+            firstCoded = writeField(json, firstCoded, "id", valueCoded.getId());
+            writeField(json, firstCoded, "name", getCodedValueName(valueCoded));
+            json.append('}');
+        }
+        first = writeField(json, first, "valueNumeric", observation.getValueNumeric());
+        first = writeField(json, first, "valueText", observation.getValueText());
+        first = writeField(json, first, "encounterId", observation.getEncounter().getId());
+        first = writeField(json, first, "uuid", observation.getUuid());
+        first = writeField(json, first, "valueComplex", observation.getValueComplex());
+        first = writeField(json, first, "valueDatetime", format(observation.getValueDatetime()));
+        writeField(json, first, "obs_comment", observation.getComment());
+        json.append('}');
+    }
+
+    private String getCodedValueName(Concept valueCoded) {
+        String name = codedValueNames.get(valueCoded.getUuid());
+        if (name == null) {
+            name = getConceptNameFromConceptNamesByLocale(valueCoded.getConceptNames(), language);
+            if (valueCoded.getUuid() != null && name != null) {
+                codedValueNames.put(valueCoded.getUuid(), name);
+            }
+        }
+        return name;
+    }
+
+    private String format(Date date) {
+        if (date == null) {
+            return "";
+        }
+        String formattedDate = formattedDates.get(date.getTime());
+        if (formattedDate == null) {
+            formattedDate = dateFormat.format(date);
+            formattedDates.put(date.getTime(), formattedDate);
+        }
+        return formattedDate;
+    }
+
+    /**
+     * @return false once a field was written, to be passed as first to the next field
+     */
+    private static boolean writeField(StringBuilder json, boolean first, String name, Object value) throws JSONException {
+        if (value == null) {
+            return first;
+        }
+        writeName(json, first, name);
+        if (value instanceof Number) {
+            json.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            json.append(value);
+        } else {
+            json.append(JSONObject.quote(value.toString()));
+        }
+        return false;
+    }
+
+    private static boolean writeName(StringBuilder json, boolean first, String name) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append(JSONObject.quote(name)).append(':');
+        return false;
+    }
+}
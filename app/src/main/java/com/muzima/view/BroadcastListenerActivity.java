@@ -30,8 +30,13 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.muzima.R;
+import com.muzima.model.events.SyncProgressEvent;
 import com.muzima.utils.StringUtils;
 
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -52,6 +57,8 @@ public abstract class BroadcastListenerActivity extends BaseAuthenticatedActivit
     private ImageView imageView;
     private TextView titleTextView;
 
+    private final SyncProgressSubscriber syncProgressSubscriber = new SyncProgressSubscriber();
+
     private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -66,6 +73,7 @@ public abstract class BroadcastListenerActivity extends BaseAuthenticatedActivit
         LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver, new IntentFilter(PROGRESS_UPDATE_ACTION));
         LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver, new IntentFilter(SYNC_STARTED_ACTION));
         LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver, new IntentFilter(SYNC_COMPLETED_ACTION));
+        EventBus.getDefault().register(syncProgressSubscriber);
         isSyncRunning = hasOngoingSyncTasks();
     }
 
@@ -73,6 +81,19 @@ public abstract class BroadcastListenerActivity extends BaseAuthenticatedActivit
     protected void onPause() {
         super.onPause();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
+        EventBus.getDefault().unregister(syncProgressSubscriber);
+    }
+
+    /**
+     * Subscribed apart from the activity, which subclasses register on the event bus themselves
+     */
+    public class SyncProgressSubscriber {
+        @Subscribe(threadMode = ThreadMode.MAIN)
+        public void onSyncProgressEvent(SyncProgressEvent event) {
+            if (isSyncRunning && titleTextView != null && !StringUtils.isEmpty(event.getMessage())) {
+                titleTextView.setText(event.getMessage());
+            }
+        }
     }
 
     protected void onReceive(Context context, Intent intent){
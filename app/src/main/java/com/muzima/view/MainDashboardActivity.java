@@ -142,6 +142,7 @@ public class MainDashboardActivity extends ActivityWithBottomNavigation implemen
         mainLayout = (DrawerLayout) getLayoutInflater().inflate(R.layout.activity_main, null);
         setContentView(mainLayout);
         loadBottomNavigation();
+        ((MuzimaApplication) getApplicationContext()).getFormSaveStage().replayPendingSaves();
         RealTimeFormUploader.getInstance().uploadAllCompletedForms(getApplicationContext(), false);
         initializeResources();
         loadCohorts(false);
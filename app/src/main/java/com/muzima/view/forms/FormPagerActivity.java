@@ -271,7 +271,7 @@ public class FormPagerActivity extends ActivityWithBottomNavigation {
                     menuItem.setVisible(false);
                     Toast.makeText(getApplicationContext(), getResources().getString(R.string.info_muzima_sync_service_in_progress), Toast.LENGTH_LONG).show();
                     if (action == Constants.ACTION_MODE_EVENT.FORMS_DOWNLOAD_ACTION) {
-                        ((MuzimaApplication) getApplicationContext()).getExecutorService()
+                        ((MuzimaApplication) getApplicationContext()).getSyncExecutorService()
                                 .execute(new DownloadFormsTask(getApplicationContext(), selectedForms, new DownloadFormsTask.FormsDownloadCallback() {
                                     @Override
                                     public void formsDownloadFinished() {
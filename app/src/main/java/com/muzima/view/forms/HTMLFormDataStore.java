@@ -28,7 +28,6 @@ import com.muzima.api.model.Location;
 import com.muzima.api.model.Observation;
 import com.muzima.api.model.Patient;
 import com.muzima.api.model.PatientIdentifier;
-import com.muzima.api.model.PatientTag;
 import com.muzima.api.model.Person;
 import com.muzima.api.model.PersonAttribute;
 import com.muzima.api.model.Provider;
@@ -55,6 +54,7 @@ import com.muzima.service.MuzimaLoggerService;
 import com.muzima.utils.Constants;
 import com.muzima.utils.DateUtils;
 import com.muzima.utils.NetworkUtils;
+import com.muzima.utils.ObservationJsonWriter;
 import com.muzima.utils.RelationshipJsonMapper;
 import com.muzima.utils.StringUtils;
 
@@ -82,8 +82,6 @@ import java.util.UUID;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import static com.muzima.utils.ConceptUtils.getConceptNameFromConceptNamesByLocale;
-import static com.muzima.utils.Constants.STANDARD_DATE_FORMAT;
 import static com.muzima.utils.Constants.STATUS_COMPLETE;
 import static com.muzima.utils.Constants.STATUS_INCOMPLETE;
 
@@ -168,9 +166,11 @@ class HTMLFormDataStore {
     }
 
     public void processForm(String jsonPayload, String status, boolean keepFormOpen, FormData formData){
-        jsonPayload = injectUserSystemIdToEncounterPayload(jsonPayload);
-        jsonPayload = injectTimeZoneToEncounterPayload(jsonPayload);
-        jsonPayload = injectActiveSetupConfigUuidToEncounterPayload(jsonPayload);
+        JSONObject payload = parsePayload(jsonPayload);
+        if (payload != null) {
+            injectEncounterDetails(payload);
+            jsonPayload = payload.toString();
+        }
         formData.setJsonPayload(jsonPayload);
         formData.setStatus(status);
 
@@ -178,10 +178,12 @@ class HTMLFormDataStore {
         boolean encounterDetailsValidityStatus = true;
         try {
             if (status.equals("complete")) {
-                encounterDetailsValidityStatus = areMandatoryEncounterDetailsInForm(jsonPayload);
+                encounterDetailsValidityStatus = areMandatoryEncounterDetailsInForm(payload);
             }
 
             if (encounterDetailsValidityStatus) {
+                boolean hasDerivedData = true;
+                boolean parseObsForPerson = false;
                 if (isRegistrationComplete(status)) {
                     Patient newPatient = formController.createNewPatient(application, formData);
                     formData.setPatientUuid(newPatient.getUuid());
@@ -190,25 +192,19 @@ class HTMLFormDataStore {
                 }
                 if (formData.getDiscriminator() != null && (formData.getDiscriminator().equals(Constants.FORM_JSON_DISCRIMINATOR_RELATIONSHIP))) {
                     formData.setDiscriminator(Constants.FORM_JSON_DISCRIMINATOR_INDIVIDUAL_OBS);
-                    parseObsFromCompletedForm(jsonPayload, status, true);
+                    parseObsForPerson = true;
                 } else if (formData.getDiscriminator() != null &&
                         (formData.getDiscriminator().equals(Constants.FORM_JSON_DISCRIMINATOR_INDIVIDUAL_OBS))) {
-
-                    if (personController.getPersonByUuid(patientUuid) != null) {
-                        parseObsFromCompletedForm(jsonPayload, status, true);
-                    } else {
-                        parseObsFromCompletedForm(jsonPayload, status, false);
-                    }
+                    parseObsForPerson = personController.getPersonByUuid(patientUuid) != null;
                 } else if (formData.getDiscriminator() != null &&
                         (formData.getDiscriminator().equals(Constants.FORM_JSON_DISCRIMINATOR_PERSON_UPDATE))) {
 
                     Person updatePerson = personController.getPersonByUuid(patientUuid);
                     if (updatePerson != null) {
                         formController.updatePerson(application, formData);
-                        parseObsFromCompletedForm(jsonPayload, status, true);
+                        parseObsForPerson = true;
                     } else {
                         formController.updatePatient(application, formData);
-                        parseObsFromCompletedForm(jsonPayload, status, false);
                         //update tags
                         initiatePatientTagsUpdate(new ArrayList<String>(){{add(patientUuid);}});
                     }
@@ -216,79 +212,25 @@ class HTMLFormDataStore {
                         formData.getDiscriminator().equals(Constants.FORM_JSON_DISCRIMINATOR_DEMOGRAPHICS_UPDATE)) {
                     Patient updatedPatient = formController.updatePatient(application, formData);
                     if (updatedPatient != null) {
-                        parseObsFromCompletedForm(jsonPayload, status, false);
                         formWebViewActivity.startPatientSummaryView(updatedPatient);
                         initiatePatientTagsUpdate(new ArrayList<String>(){{add(patientUuid);}});
+                    } else {
+                        hasDerivedData = false;
                     }
-                } else {
-                    parseObsFromCompletedForm(jsonPayload, status, false);
                 }
 
-                Date encounterDate = getEncounterDateFromForm(jsonPayload);
-                formData.setEncounterDate(encounterDate);
+                formData.setEncounterDate(payload == null ? null : getFormParser().getEncounterDateFromFormDate(payload));
+                // the encounter, obs and patient tag are written once the form is closed, the
+                // journal entry written ahead of the form data has them replayed if the app stops first
+                boolean saveDerivedData = hasDerivedData && payload != null && status.equals(STATUS_COMPLETE);
+                if (saveDerivedData) {
+                    application.getFormSaveStage().journal(formData.getUuid(), parseObsForPerson);
+                }
                 formController.saveFormData(formData);
-                formWebViewActivity.setResult(FormsWithDataActivity.RESULT_OK);
-                if (status.equals("complete")) {
-                    JSONObject jsonObject = new JSONObject(jsonPayload);
-                    JSONObject jsonObjectInner = jsonObject.getJSONObject("patient");
-                    Log.e(getClass().getSimpleName(), jsonObjectInner.toString());
-                    if (jsonObjectInner.has("patient.tagName") && jsonObjectInner.has("patient.tagUuid")) {
-                        Log.e(getClass().getSimpleName(), "Form Has both tag fields");
-
-
-                        List<PatientTag> existingTags = new ArrayList<>();
-
-                        try {
-                            existingTags = patientController.getAllTags();
-                        } catch (PatientController.PatientLoadException e) {
-                            Log.e(getClass().getSimpleName(),"Encountered an exception",e);
-                        }
-
-                        List<PatientTag> tags = new ArrayList<PatientTag>();
-                        Patient patient = patientController.getPatientByUuid(patientUuid);
-
-                        if (patient.getTags() != null) {
-                            tags = new ArrayList<>(Arrays.asList(patient.getTags()));
-                        }
-
-                        //Remove AA patient tag to be replaced by the AL/NA tags
-                        PatientTag AATag = null;
-                        for(PatientTag patientTag : tags){
-                            if(patientTag.getName().equals("AA")){
-                                AATag = patientTag;
-                            }
-                        }
-
-                        if(AATag != null){
-                            tags.remove(AATag);
-                        }
-
-
-                        String tagName = jsonObjectInner.getString("patient.tagName");
-                        PatientTag tag = null;
-                        for (PatientTag existingTag : existingTags) {
-                            if (StringUtils.equals(existingTag.getName(), tagName)) {
-                                tag = existingTag;
-                            }
-                        }
-
-                        if (tag == null) {
-                            tag = new PatientTag();
-                            tag.setName(tagName);
-                            tag.setUuid(jsonObjectInner.getString("patient.tagUuid"));
-                            if(jsonObjectInner.has("patient.tagDescription")) {
-                                tag.setDescription(jsonObjectInner.getString("patient.tagDescription"));
-                            }
-                            existingTags.add(tag);
-                            patientController.savePatientTags(tag);
-                        }
-
-                        tags.add(tag);
-
-                        patient.setTags(tags.toArray(new PatientTag[tags.size()]));
-                        patientController.updatePatient(patient);
-                    }
+                if (saveDerivedData) {
+                    application.getFormSaveStage().applyInBackground(formData.getUuid(), payload, parseObsForPerson);
                 }
+                formWebViewActivity.setResult(FormsWithDataActivity.RESULT_OK);
                 if (!keepFormOpen) {
                     formWebViewActivity.finish();
                     if (status.equals("complete")) {
@@ -310,16 +252,11 @@ class HTMLFormDataStore {
         } catch (FormController.FormDataSaveException e) {
             Toast.makeText(formWebViewActivity, formWebViewActivity.getString(R.string.error_form_save), Toast.LENGTH_SHORT).show();
             Log.e(getClass().getSimpleName(), "Exception occurred while saving form data", e);
-        } catch (PatientController.PatientLoadException e) {
-            Log.e(getClass().getSimpleName(), "Exception occurred while fetching patient", e);
         } catch (PersonController.PersonLoadException e) {
             Log.e(getClass().getSimpleName(), "Exception occurred while fetching person", e);
-        } catch (PatientController.PatientSaveException e) {
-            Log.e(getClass().getSimpleName(), "Exception occurred while saving patient", e);
-        } catch (JSONException e) {
-            Log.e(getClass().getSimpleName(), "Exception occurred while parsing object", e);
         } catch (IOException e) {
-            Log.e(getClass().getSimpleName(), "Exception occurred while saving tags", e);
+            Toast.makeText(formWebViewActivity, formWebViewActivity.getString(R.string.error_form_save), Toast.LENGTH_SHORT).show();
+            Log.e(getClass().getSimpleName(), "Exception occurred while journaling form save", e);
         } catch (FormController.FormDataProcessException e) {
             Toast.makeText(formWebViewActivity, formWebViewActivity.getString(R.string.error_form_data_processing), Toast.LENGTH_SHORT).show();
             Log.e(getClass().getSimpleName(), "Exception occurred while processing form data", e);
@@ -625,19 +562,6 @@ class HTMLFormDataStore {
                 HTMLFormWebViewActivity.DEFAULT_FONT_SIZE).toLowerCase();
     }
 
-
-    private void parseObsFromCompletedForm(String jsonPayload, String status, boolean parseForPerson) {
-        if (status.equals(Constants.STATUS_INCOMPLETE)) {
-            return;
-        }
-
-        getFormParser(parseForPerson).createAndPersistObservations(jsonPayload, formData.getUuid());
-    }
-
-    public Date getEncounterDateFromForm(String jsonPayload) {
-        return getFormParser().getEncounterDateFromFormDate(jsonPayload);
-    }
-
     HTMLFormObservationCreator getFormParser(boolean parseAsPersonObs) {
         MuzimaApplication applicationContext = (MuzimaApplication) formWebViewActivity.getApplicationContext();
         return new HTMLFormObservationCreator(applicationContext, false, parseAsPersonObs);
@@ -762,69 +686,7 @@ class HTMLFormDataStore {
     }
 
     private String createObsJsonArray(List<Observation> observations) throws JSONException, ConceptController.ConceptFetchException {
-        int i = 0;
-        JSONArray arr = new JSONArray();
-        HashMap<String, JSONObject> map = new HashMap<>();
-        List<Concept> concepts = conceptController.getConcepts();
-        for (Observation obs : observations) {
-            String conceptName = "";
-            String conceptUuid = obs.getConcept().getUuid();
-            for (Concept concept : concepts) {
-                if (concept.getUuid().equals(conceptUuid)) {
-                    conceptName = getConceptNameFromConceptNamesByLocale(concept.getConceptNames(),getApplicationLanguage());
-                }
-            }
-            final String dateFormat = STANDARD_DATE_FORMAT;
-            SimpleDateFormat newDateFormat = new SimpleDateFormat("dd-MM-yy HH:mm:ss");
-            Date obsDateTime = null;
-            Date valueDateTime = null;
-            try {
-                obsDateTime = newDateFormat.parse(newDateFormat.format(obs.getObservationDatetime()));
-                if(obs.getValueDatetime() != null) {
-                    valueDateTime = newDateFormat.parse(newDateFormat.format(obs.getValueDatetime()));
-                }
-            } catch (ParseException e) {
-                Log.e(getClass().getSimpleName(), "Exception occurred while parsing date", e);
-            }
-            newDateFormat.applyPattern(dateFormat);
-            String convertedEncounterDate = newDateFormat.format(obsDateTime);
-            String convertedvalueDateTime = "";
-            if(valueDateTime != null){
-                 convertedvalueDateTime = newDateFormat.format(valueDateTime);
-            }
-
-            JSONObject json = new JSONObject();
-            JSONObject codedConcept = new JSONObject();
-            if (!conceptName.isEmpty()) {
-                json.put("conceptName", conceptName);
-            } else {
-                json.put("conceptName", "Concept Created On Phone");
-            }
-
-            json.put("conceptId",obs.getConcept().getId());
-            json.put("conceptUuid",obs.getConcept().getUuid());
-
-            json.put("obsDate", convertedEncounterDate);
-            if(obs.getValueCoded() != null) {
-                codedConcept.put("uuid",obs.getValueCoded().getUuid());
-                codedConcept.put("id",obs.getValueCoded().getId());
-                codedConcept.put("name",getConceptNameFromConceptNamesByLocale(obs.getValueCoded().getConceptNames(),getApplicationLanguage()));;
-                json.put("valueCoded",codedConcept);
-            }else{
-                json.put("valueCoded", obs.getValueCoded());
-            }
-            json.put("valueNumeric", obs.getValueNumeric());
-            json.put("valueText", obs.getValueText());
-            json.put("encounterId",obs.getEncounter().getId());
-            json.put("uuid",obs.getUuid());
-            json.put("valueComplex", obs.getValueComplex());
-            json.put("valueDatetime",convertedvalueDateTime);
-            json.put("obs_comment", obs.getComment());
-            map.put("json" + i, json);
-            arr.put(map.get("json" + i));
-            i++;
-        }
-        return arr.toString();
+        return new ObservationJsonWriter(conceptController.getConceptDictionary(), getApplicationLanguage()).write(observations);
     }
 
     @JavascriptInterface
@@ -840,13 +702,7 @@ class HTMLFormDataStore {
             JSONObject mainObject = new JSONObject(encounterPayLoad);
             JSONObject encounterObject = mainObject.getJSONObject("encounter");
             if (!(encounterObject.has("encounter.encounter_datetime"))) {
-                List<FormData> allFormData = new ArrayList<>();
-                List<FormData> incompleteForms = new ArrayList<>();
-                List<FormData> completeForms = new ArrayList<>();
-                incompleteForms = formController.getAllFormDataByPatientUuid(patientUuid, Constants.STATUS_INCOMPLETE);
-                completeForms = formController.getAllFormDataByPatientUuid(patientUuid, Constants.STATUS_COMPLETE);
-                allFormData.addAll(incompleteForms);
-                allFormData.addAll(completeForms);
+                List<FormData> allFormData = formController.getFormDataForDuplicateCheck(patientUuid, formUuid);
                 for (FormData formData : allFormData) {
                     Date encounterDate = formData.getEncounterDate();
                     String formDataUuid = formData.getTemplateUuid();
@@ -899,52 +755,48 @@ class HTMLFormDataStore {
         return JSONValue.toJSONString(locations);
     }
 
-    private boolean areMandatoryEncounterDetailsInForm(String jsonResponse) {
+    private JSONObject parsePayload(String jsonPayload) {
         try {
-            JSONObject jsonObject = new JSONObject(jsonResponse);
-            JSONObject jsonObjectInner = jsonObject.getJSONObject("encounter");
-            return jsonObjectInner.has("encounter.provider_id") && jsonObjectInner.has("encounter.encounter_datetime") && jsonObjectInner.has("encounter.location_id");
+            return new JSONObject(jsonPayload);
         } catch (JSONException e) {
             Log.e(getClass().getSimpleName(), "Error while parsing response JSON", e);
         }
-        return false;
+        return null;
     }
 
-    private String injectUserSystemIdToEncounterPayload(String jsonPayload) {
+    private boolean areMandatoryEncounterDetailsInForm(JSONObject payload) {
+        JSONObject jsonObjectInner = payload == null ? null : payload.optJSONObject("encounter");
+        if (jsonObjectInner == null) {
+            Log.e(getClass().getSimpleName(), "No encounter details section in the form");
+            return false;
+        }
+        return jsonObjectInner.has("encounter.provider_id") && jsonObjectInner.has("encounter.encounter_datetime") && jsonObjectInner.has("encounter.location_id");
+    }
+
+    /**
+     * Adds the user system id, device time zone and active setup config uuid the form did not set
+     */
+    private void injectEncounterDetails(JSONObject payload) {
         try {
-            JSONObject jsonObject = new JSONObject(jsonPayload);
-            JSONObject jsonObjectInner = jsonObject.getJSONObject("encounter");
+            JSONObject jsonObjectInner = payload.getJSONObject("encounter");
             if (!(jsonObjectInner.has("encounter.user_system_id"))) {
                 String user_system_id = ((MuzimaApplication) formWebViewActivity.getApplicationContext()).getAuthenticatedUser().getSystemId();
                 jsonObjectInner.put("encounter.user_system_id", user_system_id);
-                jsonObject.put("encounter", jsonObjectInner);
-                jsonPayload = jsonObject.toString();
             }
-            return jsonPayload;
-        } catch (JSONException e) {
-            Log.e(getClass().getSimpleName(), "Error while parsing response JSON", e);
-        }
-
-        return jsonPayload;
-    }
-    private String injectActiveSetupConfigUuidToEncounterPayload(String jsonPayload) {
-        try {
-            JSONObject jsonObject = new JSONObject(jsonPayload);
-            JSONObject jsonObjectInner = jsonObject.getJSONObject("encounter");
+            if (!(jsonObjectInner.has("encounter.device_time_zone"))) {
+                jsonObjectInner.put("encounter.device_time_zone", TimeZone.getDefault().getID());
+            }
             if (!(jsonObjectInner.has("encounter.setup_config_uuid"))) {
-                SetupConfigurationTemplate activeSetupConfig = application.getSetupConfigurationController().getActiveSetupConfigurationTemplate();
-                jsonObjectInner.put("encounter.setup_config_uuid", activeSetupConfig.getUuid());
-                jsonObject.put("encounter", jsonObjectInner);
-                jsonPayload = jsonObject.toString();
+                try {
+                    SetupConfigurationTemplate activeSetupConfig = application.getSetupConfigurationController().getActiveSetupConfigurationTemplate();
+                    jsonObjectInner.put("encounter.setup_config_uuid", activeSetupConfig.getUuid());
+                } catch (SetupConfigurationController.SetupConfigurationFetchException e) {
+                    Log.e(getClass().getSimpleName(), "Could not add active setup config UUID", e);
+                }
             }
-            return jsonPayload;
         } catch (JSONException e) {
             Log.e(getClass().getSimpleName(), "Error while parsing response JSON", e);
-        } catch (SetupConfigurationController.SetupConfigurationFetchException e) {
-            Log.e(getClass().getSimpleName(), "Could not add active setup config UUID", e);
         }
-
-        return jsonPayload;
     }
 
     private String checkMissingMandatoryEncounterDetails(String jsonPayLoad) {
@@ -1023,24 +875,6 @@ class HTMLFormDataStore {
         MuzimaLoggerService.log((MuzimaApplication) formWebViewActivity.getApplicationContext(),tag,details);
     }
 
-    private String injectTimeZoneToEncounterPayload(String jsonPayload) {
-        try {
-            JSONObject jsonObject = new JSONObject(jsonPayload);
-            JSONObject jsonObjectInner = jsonObject.getJSONObject("encounter");
-            if (!(jsonObjectInner.has("encounter.device_time_zone"))) {
-                String device_time_zone = TimeZone.getDefault().getID();
-                jsonObjectInner.put("encounter.device_time_zone", device_time_zone);
-                jsonObject.put("encounter", jsonObjectInner);
-                jsonPayload = jsonObject.toString();
-            }
-            return jsonPayload;
-        } catch (JSONException e) {
-            Log.e(getClass().getSimpleName(), "Error while parsing response JSON", e);
-        }
-
-        return jsonPayload;
-    }
-
     @JavascriptInterface
     public String getCohortMembershipByPatientUuid(String patientUuid){
         List<CohortMember> cohortMembers = new ArrayList<>();
@@ -48,6 +48,7 @@ import com.muzima.api.model.Patient;
 import com.muzima.controller.FormController;
 import com.muzima.model.BaseForm;
 import com.muzima.model.FormWithData;
+import com.muzima.service.FormTemplateCache;
 import com.muzima.service.MuzimaGPSLocationService;
 import com.muzima.utils.Constants;
 import com.muzima.utils.GeolocationJsonMapper;
@@ -66,8 +67,6 @@ import com.muzima.view.progressdialog.MuzimaProgressDialog;
 import org.apache.commons.lang.time.DateUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -576,11 +575,7 @@ public class HTMLFormWebViewActivity extends BroadcastListenerActivity {
         if (formData.getJsonPayload() == null) {
             return formTemplate.getHtml();
         }
-        Document document = Jsoup.parse(formTemplate.getHtml());
-        String json = formData.getJsonPayload();
-        String htmlWithJSON = "<div id='pre_populate_data'>" + json + "</div>";
-        document.select("body").prepend(htmlWithJSON);
-        return document.toString();
+        return FormTemplateCache.getInstance().prePopulate(formTemplate, formData.getJsonPayload());
     }
 
     private WebChromeClient createWebChromeClient() {
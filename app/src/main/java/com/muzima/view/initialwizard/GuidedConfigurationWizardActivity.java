@@ -18,7 +18,6 @@ import static com.muzima.utils.Constants.DataSyncServiceConstants.SyncStatusCons
 import static com.muzima.utils.Constants.STANDARD_DATE_TIMEZONE_FORMAT;
 import static com.muzima.utils.DeviceDetailsUtil.generatePseudoDeviceId;
 
-import android.app.DownloadManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -89,13 +88,11 @@ import net.minidev.json.JSONObject;
 
 import org.apache.lucene.queryParser.ParseException;
 
-import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Objects;
 import java.util.UUID;
 
 @SuppressWarnings("staticFieldLeak")
@@ -999,9 +996,7 @@ public class GuidedConfigurationWizardActivity extends BroadcastListenerActivity
                 if(availableSpace>totalFileSize) {
                     if(mediaList.size()>0){
                         resultForMedia = muzimaSyncService.saveMedia(mediaList);
-                        for (Media media : mediaList) {
-                            downloadFile(media);
-                        }
+                        ((MuzimaApplication) getApplicationContext()).getMediaDownloadQueue().sync(mediaList);
                     }
                 }else {
                     String loggedInUser = ((MuzimaApplication) getApplicationContext()).getAuthenticatedUserId();
@@ -1074,54 +1069,6 @@ public class GuidedConfigurationWizardActivity extends BroadcastListenerActivity
         }.execute();
     }
 
-    public void downloadFile(Media media){
-        try {
-            //Delete file if exists
-            String mimeType = media.getMimeType();
-            String PATH = Objects.requireNonNull(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)).getAbsolutePath();
-            File file = new File(PATH + "/"+media.getName()+"."+mimeType.substring(mimeType.lastIndexOf("/") + 1));
-            String mediaName = media.getName()+"."+mimeType.substring(mimeType.lastIndexOf("/") + 1);
-            if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.ms-excel")){
-                file = new File(PATH + "/"+media.getName()+".xls");
-                mediaName = media.getName()+".xls";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.spreadsheetml.sheet")){
-                file = new File(PATH + "/"+media.getName()+".xlsx");
-                mediaName = media.getName()+".xlsx";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("msword")){
-                file = new File(PATH + "/"+media.getName()+".doc");
-                mediaName = media.getName()+".doc";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.wordprocessingml.document")){
-                file = new File(PATH + "/"+media.getName()+".docx");
-                mediaName = media.getName()+".docx";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.ms-powerpoint")){
-                file = new File(PATH + "/"+media.getName()+".ppt");
-                mediaName = media.getName()+".ppt";
-            }else if(mimeType.substring(mimeType.lastIndexOf("/") + 1).equals("vnd.openxmlformats-officedocument.presentationml.presentation")){
-                file = new File(PATH + "/"+media.getName()+".pptx");
-                mediaName = media.getName()+".pptx";
-            }
-
-            if(file.exists()) {
-                file.delete();
-                getApplicationContext().sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
-            }
-
-            if(!media.isRetired()) {
-                DownloadManager.Request request = new DownloadManager.Request(Uri.parse(media.getUrl() + ""));
-                request.setTitle(media.getName());
-                request.setDescription(media.getDescription());
-                request.allowScanningByMediaScanner();
-                request.setAllowedOverMetered(true);
-                request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
-                request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, mediaName);
-                DownloadManager dm = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-                dm.enqueue(request);
-            }
-        }catch (Exception e) {
-            Log.e(getClass().getSimpleName(), "Error ", e);
-        }
-    }
-
     private List<String> extractConceptsUuids() {
         List<String> conceptsUuids = new ArrayList<>();
         List<Object> objects = JsonUtils.readAsObjectList(setupConfigurationTemplate.getConfigJson(), "$['config']['concepts']");
@@ -80,7 +80,7 @@ public class SetupMethodPreferenceWizardActivity extends BroadcastListenerActivi
 
     private void loadConfigList() {
         turnOnProgressDialog(getString(R.string.info_setup_config_load));
-        ((MuzimaApplication) getApplicationContext()).getExecutorService()
+        ((MuzimaApplication) getApplicationContext()).getSyncExecutorService()
                 .execute(new DownloadSetupConfigurationsTask(getApplicationContext(), new DownloadSetupConfigurationsTask.SetupConfigurationCompletedCallback() {
                     @Override
                     public void setupConfigDownloadCompleted(final List<SetupConfiguration> configurationList) {
@@ -69,6 +69,7 @@ import com.muzima.service.MuzimaSyncService;
 import com.muzima.service.OnlineOnlyModePreferenceService;
 import com.muzima.service.WizardFinishPreferenceService;
 import com.muzima.tasks.MuzimaAsyncTask;
+import com.muzima.tasks.MuzimaTaskScheduler;
 import com.muzima.util.Constants;
 import com.muzima.util.NetworkUtils;
 import com.muzima.utils.LanguageUtil;
@@ -737,6 +738,16 @@ public class LoginActivity extends BaseActivity {
         @Override
         protected void onPreExecute() {}
 
+        @Override
+        protected MuzimaTaskScheduler.Lane getLane() {
+            return MuzimaTaskScheduler.Lane.SYNC_IO;
+        }
+
+        @Override
+        protected MuzimaTaskScheduler.Priority getPriority() {
+            return MuzimaTaskScheduler.Priority.USER_VISIBLE;
+        }
+
         @Override
         public String doInBackground(String... params){
             String serverUrl = params[0];
@@ -827,6 +838,16 @@ public class LoginActivity extends BaseActivity {
         @Override
         protected void onPreExecute() {}
 
+        @Override
+        protected MuzimaTaskScheduler.Lane getLane() {
+            return MuzimaTaskScheduler.Lane.SYNC_IO;
+        }
+
+        @Override
+        protected MuzimaTaskScheduler.Priority getPriority() {
+            return MuzimaTaskScheduler.Priority.USER_VISIBLE;
+        }
+
         @Override
         public String doInBackground(String... params){
             String serverUrl = params[0];
@@ -43,6 +43,7 @@ import com.muzima.service.RealTimeFormDataSyncPreferenceService;
 import com.muzima.service.RequireMedicalRecordNumberPreferenceService;
 import com.muzima.service.SHRStatusPreferenceService;
 import com.muzima.tasks.MuzimaAsyncTask;
+import com.muzima.tasks.MuzimaTaskScheduler;
 import com.muzima.tasks.ValidateURLTask;
 import com.muzima.util.Constants;
 import com.muzima.utils.NetworkUtils;
@@ -644,6 +645,11 @@ public class SettingsPreferenceFragment extends PreferenceFragment  implements S
 
     abstract class SettingDownloadAsyncTask extends MuzimaAsyncTask<Void, Void,int[] > {
         abstract  SettingDownloadAsyncTask newInstance();
+
+        @Override
+        protected MuzimaTaskScheduler.Lane getLane() {
+            return MuzimaTaskScheduler.Lane.SYNC_IO;
+        }
     }
 
     public class DownloadGPSLocationSettingAsyncTask extends SettingDownloadAsyncTask {
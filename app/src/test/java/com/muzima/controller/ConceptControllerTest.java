@@ -12,12 +12,15 @@ package com.muzima.controller;
 
 import com.muzima.api.model.Concept;
 import com.muzima.api.model.ConceptName;
+import com.muzima.api.model.FormTemplate;
 import com.muzima.api.service.ConceptService;
 import com.muzima.api.service.ObservationService;
+import com.muzima.model.ConceptDictionary;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -26,6 +29,8 @@ import static java.util.Arrays.asList;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -91,6 +96,66 @@ public class ConceptControllerTest {
         assertThat(conceptByName,nullValue());
     }
 
+    @Test
+    public void shouldKeepTheConceptDictionaryUntilConceptsAreSaved() throws Exception, ConceptController.ConceptFetchException, ConceptController.ConceptSaveException {
+        Concept concept = createConceptByName("Weight");
+        concept.setUuid("weightUuid");
+        when(service.getAllConcepts()).thenReturn(new ArrayList<>(asList(concept)));
+
+        ConceptDictionary conceptDictionary = controller.getConceptDictionary();
+        assertThat(conceptDictionary.getConceptName("weightUuid", "en"), is("Weight"));
+        assertThat(controller.getConceptDictionary() == conceptDictionary, is(true));
+        verify(service, times(1)).getAllConcepts();
+
+        controller.saveConcepts(asList(concept));
+
+        assertThat(controller.getConceptDictionary() == conceptDictionary, is(false));
+        verify(service, times(2)).getAllConcepts();
+    }
+
+    @Test
+    public void shouldDownloadEveryConceptByUuidAndDropTheOnesNotFound() throws Exception, ConceptController.ConceptDownloadException {
+        Concept weight = createConceptWithUuid("weightUuid");
+        Concept height = createConceptWithUuid("heightUuid");
+        when(service.downloadConceptByUuid("weightUuid")).thenReturn(weight);
+        when(service.downloadConceptByUuid("heightUuid")).thenReturn(height);
+        when(service.downloadConceptByUuid("unknownUuid")).thenReturn(null);
+
+        List<Concept> concepts = controller.downloadConceptsByUuid(new String[]{"weightUuid", "unknownUuid", "heightUuid"});
+
+        assertThat(concepts.size(), is(2));
+        assertThat(concepts.containsAll(asList(weight, height)), is(true));
+    }
+
+    @Test(expected = ConceptController.ConceptDownloadException.class)
+    public void shouldThrowConceptDownloadExceptionWhenADownloadFails() throws Exception, ConceptController.ConceptDownloadException {
+        when(service.downloadConceptByUuid("weightUuid")).thenReturn(createConceptWithUuid("weightUuid"));
+        when(service.downloadConceptByUuid("heightUuid")).thenThrow(new IOException());
+
+        controller.downloadConceptsByUuid(new String[]{"weightUuid", "heightUuid"});
+    }
+
+    @Test
+    public void shouldDownloadRelatedConceptsAlsoWhenOnTheDevice() throws Exception, ConceptController.ConceptDownloadException {
+        Concept weight = createConceptWithUuid("weightUuid");
+        Concept height = createConceptWithUuid("heightUuid");
+        when(service.downloadConceptByUuid("weightUuid")).thenReturn(weight);
+        when(service.downloadConceptByUuid("heightUuid")).thenReturn(height);
+        FormTemplate formTemplate = new FormTemplate();
+        formTemplate.setMetaJson("{\"concepts\":[{\"uuid\":\"weightUuid\"},{\"uuid\":\"heightUuid\"}]}");
+
+        List<Concept> concepts = controller.getRelatedConcepts(asList(formTemplate));
+
+        assertThat(concepts.size(), is(2));
+        assertThat(concepts.containsAll(asList(weight, height)), is(true));
+    }
+
+    private Concept createConceptWithUuid(String uuid) {
+        Concept concept = createConceptByName(uuid);
+        concept.setUuid(uuid);
+        return concept;
+    }
+
     private Concept createConceptByName(String name) {
         Concept concept = new Concept();
         ConceptName conceptName = new ConceptName();
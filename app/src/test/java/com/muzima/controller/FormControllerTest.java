@@ -18,6 +18,7 @@ import com.muzima.api.model.FormTemplate;
 import com.muzima.api.model.LastSyncTime;
 import com.muzima.api.model.MuzimaSetting;
 import com.muzima.api.model.Patient;
+import com.muzima.api.model.PersonName;
 import com.muzima.api.model.Tag;
 import com.muzima.api.service.CohortService;
 import com.muzima.api.service.FormService;
@@ -33,6 +34,7 @@ import com.muzima.builder.FormTemplateBuilder;
 import com.muzima.builder.TagBuilder;
 import com.muzima.model.AvailableForm;
 import com.muzima.model.BaseForm;
+import com.muzima.model.IncompleteFormWithPatientData;
 import com.muzima.model.collections.AvailableForms;
 import com.muzima.model.collections.DownloadedForms;
 import com.muzima.service.SntpService;
@@ -65,6 +67,7 @@ import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -108,6 +111,7 @@ public class FormControllerTest {
         patientController = new PatientController(patientService,cohortService,formService,patientTagService,observationService);
 
         when(muzimaApplication.getPatientController()).thenReturn(patientController);
+        when(muzimaApplication.getObservationController()).thenReturn(mock(ObservationController.class));
         LastSyncTime lastSyncTime = mock(LastSyncTime.class);
         mockDate = mock(Date.class);
 
@@ -257,6 +261,28 @@ public class FormControllerTest {
         assertThat(formTemplates, hasItem(formTemplate2));
     }
 
+    @Test
+    public void downloadFormTemplates_shouldKeepTheOrderOfTheUuids() throws IOException, FormController.FormFetchException {
+        String[] uuids = new String[10];
+        List<FormTemplate> expectedFormTemplates = new ArrayList<>();
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = "uuid" + i;
+            FormTemplate formTemplate = FormTemplateBuilder.formTemplate().withUuid(uuids[i]).build();
+            expectedFormTemplates.add(formTemplate);
+            when(formService.downloadFormTemplateByUuid(uuids[i])).thenReturn(formTemplate);
+        }
+
+        assertThat(formController.downloadFormTemplates(uuids), is(expectedFormTemplates));
+    }
+
+    @Test(expected = FormController.FormFetchException.class)
+    public void downloadFormTemplates_shouldThrowFormFetchExceptionIfADownloadFails() throws IOException, FormController.FormFetchException {
+        when(formService.downloadFormTemplateByUuid("uuid1")).thenReturn(new FormTemplate());
+        doThrow(new IOException()).when(formService).downloadFormTemplateByUuid("uuid2");
+
+        formController.downloadFormTemplates(new String[]{"uuid1", "uuid2"});
+    }
+
     @Test
     public void saveAllForms_shouldSaveAllForm() throws FormController.FormSaveException, IOException {
         List<Form> forms = buildForms();
@@ -487,6 +513,177 @@ public class FormControllerTest {
         assertTrue(containsFormWithUuid(formController.getAllIncompleteFormsWithPatientData(StringUtils.EMPTY), form2.getUuid()));
     }
 
+    @Test
+    public void getAllIncompleteForms_shouldLookUpEachFormAndPatientOnlyOnce() throws Exception, FormController.FormFetchException {
+        final Form form = new Form(){{
+            setUuid("form1Uuid");
+        }};
+        List<FormData> formDataList = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            FormData formData = new FormData();
+            formData.setTemplateUuid("form1Uuid");
+            formData.setPatientUuid("patient1Uuid");
+            formDataList.add(formData);
+        }
+
+        when(formService.getAllFormData(Constants.STATUS_INCOMPLETE)).thenReturn(formDataList);
+        when(formService.getFormByUuid("form1Uuid")).thenReturn(form);
+        when(patientService.getPatientByUuid("patient1Uuid")).thenReturn(new Patient());
+
+        formController.getAllIncompleteFormsWithPatientData(StringUtils.EMPTY);
+        formController.getAllIncompleteFormsWithPatientData(StringUtils.EMPTY);
+
+        verify(formService, times(1)).getFormByUuid("form1Uuid");
+        verify(patientService, times(2)).getPatientByUuid("patient1Uuid");
+    }
+
+    @Test
+    public void getAllIncompleteForms_shouldReadPatientNameFromPayloadWhenPatientIsNotStored() throws Exception, FormController.FormFetchException {
+        final FormData formData = new FormData();
+        formData.setTemplateUuid("form1Uuid");
+        formData.setJsonPayload("{\"encounter\":{\"encounter.provider_id\":\"1\"},"
+                + "\"patient\":{\"patient.family_name\":\"Doe\",\"patient.given_name\":\"Jane\"}}");
+
+        when(formService.getAllFormData(Constants.STATUS_INCOMPLETE)).thenReturn(Collections.singletonList(formData));
+        when(formService.getFormByUuid("form1Uuid")).thenReturn(new Form());
+
+        Patient patient = formController.getAllIncompleteFormsWithPatientData(StringUtils.EMPTY).get(0).getPatient();
+
+        assertThat(patient.getFamilyName(), is("Doe"));
+        assertThat(patient.getGivenName(), is("Jane"));
+        assertThat(patient.getMiddleName(), is(StringUtils.EMPTY));
+    }
+
+    @Test
+    public void getAllIncompleteForms_shouldPublishRowsSortedByPatientName() throws Exception, FormController.FormFetchException {
+        List<FormData> formDataList = new ArrayList<>();
+        for (final String familyName : asList("Zulu", "Alpha")) {
+            FormData formData = new FormData();
+            formData.setTemplateUuid("form1Uuid");
+            formData.setPatientUuid(familyName);
+            formDataList.add(formData);
+            when(patientService.getPatientByUuid(familyName)).thenReturn(patient(familyName));
+        }
+        when(formService.getAllFormData(Constants.STATUS_INCOMPLETE)).thenReturn(formDataList);
+        when(formService.getFormByUuid("form1Uuid")).thenReturn(new Form());
+        final List<IncompleteFormWithPatientData> published = new ArrayList<>();
+
+        formController.getAllIncompleteFormsWithPatientData(StringUtils.EMPTY,
+                new FormController.FormsWithPatientDataPageListener<IncompleteFormWithPatientData>() {
+                    @Override
+                    public void onPage(List<IncompleteFormWithPatientData> page) {
+                        published.addAll(page);
+                    }
+                });
+
+        assertThat(published.size(), is(2));
+        assertThat(published.get(0).getPatient().getFamilyName(), is("Alpha"));
+        assertThat(published.get(1).getPatient().getFamilyName(), is("Zulu"));
+    }
+
+    @Test
+    public void getAllIncompleteForms_shouldPublishFullPagesLookingUpOnlyTheReferencedPatients() throws Exception, FormController.FormFetchException {
+        List<FormData> formDataList = new ArrayList<>();
+        for (int i = 0; i < 51; i++) {
+            FormData formData = new FormData();
+            formData.setTemplateUuid("form1Uuid");
+            formData.setPatientUuid("patient" + (i % 30));
+            formDataList.add(formData);
+        }
+        when(formService.getAllFormData(Constants.STATUS_INCOMPLETE)).thenReturn(formDataList);
+        when(formService.getFormByUuid("form1Uuid")).thenReturn(new Form());
+        when(patientService.getPatientByUuid(anyString())).thenReturn(new Patient());
+        final List<Integer> pageSizes = new ArrayList<>();
+
+        formController.getAllIncompleteFormsWithPatientData(StringUtils.EMPTY,
+                new FormController.FormsWithPatientDataPageListener<IncompleteFormWithPatientData>() {
+                    @Override
+                    public void onPage(List<IncompleteFormWithPatientData> page) {
+                        pageSizes.add(page.size());
+                    }
+                });
+
+        assertThat(pageSizes, is(asList(50, 1)));
+        verify(patientService, times(30)).getPatientByUuid(anyString());
+        verify(patientService, never()).getAllPatients();
+    }
+
+    @Test
+    public void countIncompleteFormsForPatient_shouldCountSavedFormDataWithoutQueryingAgain() throws Exception, FormController.FormFetchException, FormController.FormDataSaveException {
+        when(formService.countFormDataByPatient("patientUuid", Constants.STATUS_INCOMPLETE)).thenReturn(3);
+        when(formService.countFormDataByPatient(null, Constants.STATUS_INCOMPLETE)).thenReturn(5);
+        FormData formData = new FormData();
+        formData.setUuid("formData1");
+        formData.setPatientUuid("patientUuid");
+        formData.setStatus(Constants.STATUS_INCOMPLETE);
+
+        assertThat(formController.countIncompleteFormsForPatient("patientUuid"), is(3));
+        assertThat(formController.countAllIncompleteForms(), is(5));
+        formController.saveFormData(formData);
+
+        assertThat(formController.countIncompleteFormsForPatient("patientUuid"), is(4));
+        assertThat(formController.countAllIncompleteForms(), is(6));
+        verify(formService, times(1)).countFormDataByPatient("patientUuid", Constants.STATUS_INCOMPLETE);
+        verify(formService, times(1)).countFormDataByPatient(null, Constants.STATUS_INCOMPLETE);
+        verify(formService, never()).getAllFormData(anyString());
+    }
+
+    @Test
+    public void countCompleteFormsForPatient_shouldMoveFormDataBetweenCountsWhenItsStatusChanges() throws Exception, FormController.FormFetchException, FormController.FormDataSaveException {
+        when(formService.countFormDataByPatient("patientUuid", Constants.STATUS_COMPLETE)).thenReturn(2);
+        when(formService.countFormDataByPatient("patientUuid", Constants.STATUS_INCOMPLETE)).thenReturn(1);
+        FormData storedFormData = new FormData();
+        storedFormData.setUuid("formData1");
+        storedFormData.setPatientUuid("patientUuid");
+        storedFormData.setStatus(Constants.STATUS_INCOMPLETE);
+        when(formService.getFormDataByUuid("formData1")).thenReturn(storedFormData);
+        FormData formData = new FormData();
+        formData.setUuid("formData1");
+        formData.setPatientUuid("patientUuid");
+        formData.setStatus(Constants.STATUS_COMPLETE);
+
+        assertThat(formController.countCompleteFormsForPatient("patientUuid"), is(2));
+        assertThat(formController.countIncompleteFormsForPatient("patientUuid"), is(1));
+        formController.saveFormData(formData);
+
+        assertThat(formController.countCompleteFormsForPatient("patientUuid"), is(3));
+        assertThat(formController.countIncompleteFormsForPatient("patientUuid"), is(0));
+        verify(formService, never()).getFormDataByPatient(anyString(), anyString());
+    }
+
+    @Test
+    public void countCompleteFormsForPatient_shouldNotCountDeletedFormData() throws Exception, FormController.FormFetchException, FormController.FormDataDeleteException {
+        when(formService.countFormDataByPatient("patientUuid", Constants.STATUS_COMPLETE)).thenReturn(2);
+        FormData formData = new FormData();
+        formData.setUuid("formData1");
+        formData.setPatientUuid("patientUuid");
+        formData.setStatus(Constants.STATUS_COMPLETE);
+        formData.setDiscriminator(Constants.FORM_JSON_DISCRIMINATOR_ENCOUNTER);
+
+        assertThat(formController.countCompleteFormsForPatient("patientUuid"), is(2));
+        formController.deleteFormDataAndRelatedEncountersAndObs(asList(formData));
+
+        assertThat(formController.countCompleteFormsForPatient("patientUuid"), is(1));
+        verify(formService, times(1)).countFormDataByPatient("patientUuid", Constants.STATUS_COMPLETE);
+    }
+
+    @Test
+    public void getFormDataForDuplicateCheck_shouldFindFormDataSavedWithoutTheController() throws Exception, FormController.FormDataFetchException {
+        FormData formData = new FormData();
+        formData.setUuid("formData1");
+        formData.setPatientUuid("patient1");
+        formData.setTemplateUuid("form1");
+        formData.setStatus(Constants.STATUS_INCOMPLETE);
+        when(formService.countFormDataByPatient("patient1", Constants.STATUS_INCOMPLETE)).thenReturn(1);
+        when(formService.getFormDataByPatient("patient1", Constants.STATUS_INCOMPLETE)).thenReturn(asList(formData));
+        when(formService.getFormDataByUuid("formData1")).thenReturn(formData);
+
+        assertThat(formController.getFormDataForDuplicateCheck("patient1", "form1"), is(asList(formData)));
+        assertThat(formController.getFormDataForDuplicateCheck("patient1", "form1"), is(asList(formData)));
+
+        verify(formService, times(1)).getFormDataByPatient("patient1", Constants.STATUS_INCOMPLETE);
+    }
+
     @Test (expected = FormController.FormFetchException.class)
     public void getAllIncompleteForms_shouldThrowFormFetchExceptionIfExceptionThrownByService() throws Exception, FormController.FormFetchException {
         doThrow(new IOException()).when(formService).getAllFormData(anyString());
@@ -676,6 +873,14 @@ public class FormControllerTest {
         return formTemplates;
     }
 
+    private Patient patient(final String familyName) {
+        final PersonName personName = new PersonName();
+        personName.setFamilyName(familyName);
+        Patient patient = new Patient();
+        patient.setNames(Collections.singletonList(personName));
+        return patient;
+    }
+
     private boolean containsFormWithUuid(List<? extends BaseForm> forms, String uuid) {
         for (BaseForm form : forms) {
             if(form.getFormUuid().equals(uuid)){
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.controller;
+
+import com.muzima.MuzimaApplication;
+import com.muzima.api.model.MuzimaSetting;
+import com.muzima.api.service.LastSyncTimeService;
+import com.muzima.api.service.MuzimaSettingService;
+import com.muzima.api.service.SetupConfigurationService;
+import com.muzima.service.SntpService;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.muzima.util.Constants.ServerSettings.SHR_FEATURE_ENABLED_SETTING;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MuzimaSettingControllerTest {
+    private MuzimaSettingController settingController;
+    private MuzimaSettingService settingService;
+
+    @Before
+    public void setUp() {
+        settingService = mock(MuzimaSettingService.class);
+        settingController = new MuzimaSettingController(settingService, mock(LastSyncTimeService.class),
+                mock(SntpService.class), mock(SetupConfigurationService.class), mock(MuzimaApplication.class));
+    }
+
+    @Test
+    public void shouldReadSettingFromStoreOnlyOnceUntilSettingsChange() throws Exception, MuzimaSettingController.MuzimaSettingSaveException {
+        MuzimaSetting enabled = setting(true);
+        MuzimaSetting disabled = setting(false);
+        when(settingService.getSettingByProperty(SHR_FEATURE_ENABLED_SETTING)).thenReturn(enabled, disabled);
+
+        assertThat(settingController.isSHREnabled(), is(true));
+        assertThat(settingController.isSHREnabled(), is(true));
+        settingController.saveSetting(disabled);
+        assertThat(settingController.isSHREnabled(), is(false));
+
+        verify(settingService, times(2)).getSettingByProperty(SHR_FEATURE_ENABLED_SETTING);
+        assertThat(settingController.getSettingsCacheHitCount(), is(1L));
+        assertThat(settingController.getSettingsCacheMissCount(), is(2L));
+    }
+
+    @Test
+    public void shouldCacheMissingSettings() throws Exception {
+        assertThat(settingController.isSHREnabled(), is(false));
+        assertThat(settingController.isSHREnabled(), is(false));
+
+        verify(settingService, times(1)).getSettingByProperty(SHR_FEATURE_ENABLED_SETTING);
+    }
+
+    private MuzimaSetting setting(boolean value) {
+        MuzimaSetting setting = new MuzimaSetting();
+        setting.setProperty(SHR_FEATURE_ENABLED_SETTING);
+        setting.setValueBoolean(value);
+        return setting;
+    }
+}
@@ -13,11 +13,13 @@ package com.muzima.controller;
 import com.muzima.api.model.Concept;
 import com.muzima.api.model.LastSyncTime;
 import com.muzima.api.model.Observation;
+import com.muzima.api.model.Patient;
 import com.muzima.api.service.ConceptService;
 import com.muzima.api.service.EncounterService;
 import com.muzima.api.service.LastSyncTimeService;
 import com.muzima.api.service.ObservationService;
 import com.muzima.model.observation.ConceptWithObservations;
+import com.muzima.model.observation.PatientObservationMatrix;
 import com.muzima.service.SntpService;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,7 +29,6 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -36,9 +37,11 @@ import static java.util.Arrays.asList;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.matchers.JUnitMatchers.hasItems;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyList;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -61,106 +64,89 @@ public class ObservationControllerTest {
     }
 
     @Test
-    public void shouldCheckLastSyncTimeBeforeDownloadingObservations() throws Exception, ObservationController.DownloadObservationException {
+    public void shouldDownloadAllObservationsOfPatientsNotSyncedBefore() throws Exception, ObservationController.DownloadObservationException {
         List<String> patientUuids = asList("PatientUuid1", "PatientUuid2");
         List<String> conceptUuids = asList("ConceptUuid1", "ConceptUuid2");
         String activeSetupConfigUuid = "activeSetupConfigUuid";
-        Date aDate = mock(Date.class);
-        when(lastSyncTimeService.getLastSyncTimeFor(DOWNLOAD_OBSERVATIONS, "PatientUuid1,PatientUuid2;ConceptUuid1,ConceptUuid2")).thenReturn(aDate);
+        when(lastSyncTimeService.getFullLastSyncTimeInfoFor(DOWNLOAD_OBSERVATIONS)).thenReturn(null);
+
         observationController.downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
-        verify(lastSyncTimeService).getLastSyncTimeFor(DOWNLOAD_OBSERVATIONS, "PatientUuid1,PatientUuid2;ConceptUuid1,ConceptUuid2");
-        verify(lastSyncTimeService, never()).getFullLastSyncTimeInfoFor(DOWNLOAD_OBSERVATIONS);
+
+        verify(observationService).downloadObservationsAndSetupConfig(patientUuids, conceptUuids, null,activeSetupConfigUuid);
     }
 
     @Test
-    public void shouldUseLastSyncTimeToDownloadObservations() throws Exception, ObservationController.DownloadObservationException {
+    public void shouldUseLastSyncTimeToDownloadObservations() throws Exception, ObservationController.DownloadObservationException, ObservationController.SaveObservationException {
         List<String> patientUuids = asList("PatientUuid1", "PatientUuid2");
         List<String> conceptUuids = asList("ConceptUuid1", "ConceptUuid2");
         String activeSetupConfigUuid = "activeSetupConfigUuid";
-        Date lastSyncTime = mock(Date.class);
-        when(lastSyncTimeService.getLastSyncTimeFor(DOWNLOAD_OBSERVATIONS, "PatientUuid1,PatientUuid2;ConceptUuid1,ConceptUuid2")).thenReturn(lastSyncTime);
+        Date lastSyncTime = new Date(1000);
 
         observationController.downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
+        observationController.recordObservationsDownloaded(patientUuids, conceptUuids, lastSyncTime);
+        observationController.downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
+
         verify(observationService, never()).downloadObservationsByPatientUuidsAndConceptUuids(anyList(), anyList());
+        verify(observationService).downloadObservationsAndSetupConfig(patientUuids, conceptUuids, null,activeSetupConfigUuid);
         verify(observationService).downloadObservationsAndSetupConfig(patientUuids, conceptUuids, lastSyncTime,activeSetupConfigUuid);
     }
 
     @Test
-    public void shouldUpdateLastSyncTimeForObservation() throws Exception, ObservationController.DownloadObservationException {
+    public void shouldNotUseTheTimeOfADownloadWhichWasNotRecorded() throws Exception, ObservationController.DownloadObservationException {
         List<String> patientUuids = asList("PatientUuid1", "PatientUuid2");
         List<String> conceptUuids = asList("ConceptUuid1", "ConceptUuid2");
         String activeSetupConfigUuid = "activeSetupConfigUuid";
-        Date currentDate = mock(Date.class);
-        when(sntpService.getTimePerDeviceTimeZone()).thenReturn(currentDate);
+        when(sntpService.getTimePerDeviceTimeZone()).thenReturn(new Date(1000));
 
         observationController.downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
+        observationController.downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
+
+        verify(observationService, times(2)).downloadObservationsAndSetupConfig(patientUuids, conceptUuids, null,activeSetupConfigUuid);
+        verify(lastSyncTimeService, never()).saveLastSyncTime(any(LastSyncTime.class));
+    }
+
+    @Test
+    public void shouldUpdateLastSyncTimeForObservation() throws Exception, ObservationController.SaveObservationException {
+        List<String> patientUuids = asList("PatientUuid1", "PatientUuid2");
+        List<String> conceptUuids = asList("ConceptUuid1", "ConceptUuid2");
+        Date currentDate = new Date();
+
+        observationController.recordObservationsDownloaded(patientUuids, conceptUuids, currentDate);
         ArgumentCaptor<LastSyncTime> argumentCaptor = ArgumentCaptor.forClass(LastSyncTime.class);
         verify(lastSyncTimeService).saveLastSyncTime(argumentCaptor.capture());
         LastSyncTime savedLastSyncTime = argumentCaptor.getValue();
         assertThat(savedLastSyncTime.getApiName(), is(DOWNLOAD_OBSERVATIONS));
         assertThat(savedLastSyncTime.getLastSyncDate(), is(currentDate));
-        assertThat(savedLastSyncTime.getParamSignature(), is("PatientUuid1,PatientUuid2;ConceptUuid1,ConceptUuid2"));
+        assertThat(savedLastSyncTime.getParamSignature().contains("PatientUuid1"), is(false));
     }
 
-    //ToDo: Revise Delta sync logic
     @Test
     public void shouldProperlyProcessChangeInKnownPatientOrConcept() throws ObservationController.DownloadObservationException, IOException {
         List<String> patientUuids = asList("PatientUuid1", "PatientUuid2");
         List<String> conceptUuids = asList("ConceptUuid1", "ConceptUuid2");
-        List<String> previousPatientUuids = asList("PatientUuid1", "PatientUuid3");
-        List<String> previousConceptUuids = asList("ConceptUuid1", "ConceptUuid3");
-        List<String> newPatientUuids = Collections.singletonList("PatientUuid2");
-        List<String> newConceptUuids = Collections.singletonList("ConceptUuid2");
         String activeSetupConfigUuid = "activeSetupConfigUuid";
 
         LastSyncTime lastSyncTimeInFull = mock(LastSyncTime.class);
         when(lastSyncTimeInFull.getParamSignature()).thenReturn("PatientUuid1,PatientUuid3;ConceptUuid1,ConceptUuid3");
-        Date aDate =  mock(Date.class);
+        Date aDate = new Date(1000);
         when(lastSyncTimeInFull.getLastSyncDate()).thenReturn(aDate);
         when(lastSyncTimeService.getFullLastSyncTimeInfoFor(DOWNLOAD_OBSERVATIONS)).thenReturn(lastSyncTimeInFull);
         List<Observation> anObservationSet = new ArrayList<>();
         Observation anObservation = mock(Observation.class);
         anObservationSet.add(anObservation);
-        when(observationService.downloadObservationsAndSetupConfig(previousPatientUuids, previousConceptUuids, aDate,activeSetupConfigUuid)).thenReturn(anObservationSet);
+        when(observationService.downloadObservationsAndSetupConfig(asList("PatientUuid1"), asList("ConceptUuid1"), aDate,activeSetupConfigUuid)).thenReturn(anObservationSet);
         List<Observation> anotherObservationSet = new ArrayList<>();
         Observation anotherObservation = mock(Observation.class);
         anotherObservationSet.add(anotherObservation);
-        List<String> allConceptUuids = new ArrayList<>();
-        allConceptUuids.addAll(previousConceptUuids);
-        allConceptUuids.addAll(newConceptUuids);
-        Collections.sort(allConceptUuids);
-        when(observationService.downloadObservationsAndSetupConfig(newPatientUuids, allConceptUuids, null,activeSetupConfigUuid)).thenReturn(anotherObservationSet);
-        Date currentDate = mock(Date.class);
-        when(sntpService.getTimePerDeviceTimeZone()).thenReturn(currentDate);
+        when(observationService.downloadObservationsAndSetupConfig(asList("PatientUuid2"), conceptUuids, null,activeSetupConfigUuid)).thenReturn(anotherObservationSet);
 
         List<Observation> observations = observationController.downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
 
-        verify(lastSyncTimeService).getFullLastSyncTimeInfoFor(DOWNLOAD_OBSERVATIONS);
-        verify(observationService).downloadObservationsAndSetupConfig(previousPatientUuids, previousConceptUuids, aDate,activeSetupConfigUuid);
-        verify(observationService).downloadObservationsAndSetupConfig(previousPatientUuids, newConceptUuids, null,activeSetupConfigUuid);
-        verify(observationService).downloadObservationsAndSetupConfig(newPatientUuids, allConceptUuids, null,activeSetupConfigUuid);
+        verify(observationService).downloadObservationsAndSetupConfig(asList("PatientUuid1"), asList("ConceptUuid1"), aDate,activeSetupConfigUuid);
+        verify(observationService).downloadObservationsAndSetupConfig(asList("PatientUuid1"), asList("ConceptUuid2"), null,activeSetupConfigUuid);
+        verify(observationService).downloadObservationsAndSetupConfig(asList("PatientUuid2"), conceptUuids, null,activeSetupConfigUuid);
         assertThat(observations.size(), is(2));
         assertThat(observations, hasItems(anObservation, anotherObservation));
-
-        ArgumentCaptor<LastSyncTime> argumentCaptor = ArgumentCaptor.forClass(LastSyncTime.class);
-        verify(lastSyncTimeService).saveLastSyncTime(argumentCaptor.capture());
-        LastSyncTime savedLastSyncTime = argumentCaptor.getValue();
-        assertThat(savedLastSyncTime.getApiName(), is(DOWNLOAD_OBSERVATIONS));
-        assertThat(savedLastSyncTime.getLastSyncDate(), is(currentDate));
-        assertThat(savedLastSyncTime.getParamSignature(), is("PatientUuid1,PatientUuid2,PatientUuid3;ConceptUuid1,ConceptUuid2,ConceptUuid3"));
-    }
-
-    @Test
-    public void shouldRecognisedNonInitialisedLastSyncTime() throws ObservationController.DownloadObservationException, IOException {
-        List<String> patientUuids = asList("PatientUuid1", "PatientUuid2");
-        List<String> conceptUuids = asList("ConceptUuid1", "ConceptUuid2");
-        String activeSetupConfigUuid = "activeSetupConfigUuid";
-        when(lastSyncTimeService.getLastSyncTimeFor(DOWNLOAD_OBSERVATIONS, "PatientUuid1,PatientUuid2;ConceptUuid1,ConceptUuid2")).thenReturn(null);
-        when(lastSyncTimeService.getFullLastSyncTimeInfoFor(DOWNLOAD_OBSERVATIONS)).thenReturn(null);
-
-        observationController.downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
-
-        verify(observationService).downloadObservationsAndSetupConfig(patientUuids, conceptUuids, null,activeSetupConfigUuid);
     }
 
     @Test
@@ -229,6 +215,34 @@ public class ObservationControllerTest {
         verify(observationService).saveObservations(observations);
     }
 
+    @Test
+    public void getObservationMatrix_shouldLoadObservationsOnceUntilObservationsOfThePatientAreSaved() throws Exception, ObservationController.LoadObservationException, ObservationController.SaveObservationException {
+        final Concept concept1 = new Concept() {{
+            setUuid("concept1");
+        }};
+        final Concept concept2 = new Concept() {{
+            setUuid("concept2");
+        }};
+        final Patient patient = new Patient() {{
+            setUuid("patientUuid");
+        }};
+        List<Observation> observations = buildObservations(concept1, concept2);
+        when(observationService.getObservationsByPatient("patientUuid")).thenReturn(observations);
+
+        PatientObservationMatrix matrix = observationController.getObservationMatrix("patientUuid");
+        assertThat(observationController.getObservationMatrix("patientUuid") == matrix, is(true));
+        assertThat(matrix.getColumnCount(), is(3));
+        assertThat(matrix.getRow("concept1")[0], is(observations.get(2)));
+        verify(observationService, times(1)).getObservationsByPatient("patientUuid");
+
+        observationController.saveObservations(asList(new Observation() {{
+            setPerson(patient);
+        }}));
+
+        assertThat(observationController.getObservationMatrix("patientUuid") == matrix, is(false));
+        verify(observationService, times(2)).getObservationsByPatient("patientUuid");
+    }
+
     private List<Observation> buildObservations(final Concept concept1, final Concept concept2) throws ParseException {
         SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
         final Date date1 = sdf.parse("21/12/2012");
@@ -35,6 +35,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -114,6 +115,28 @@ public class PatientControllerTest {
         assertThat(patients.size(), is(1));
     }
 
+    @Test
+    public void getPatientsForList_shouldReadPatientsOnceAndKeepThemUpToDate() throws Exception, PatientController.PatientLoadException, PatientController.PatientSaveException {
+        String cohortId = "cohortId";
+        List<CohortMember> members = buildCohortMembers(cohortId);
+        when(cohortService.getCohortMembers(cohortId)).thenReturn(members);
+        Patient member = new Patient();
+        member.setUuid("patientId1");
+        Patient otherPatient = new Patient();
+        otherPatient.setUuid("patientId2");
+        when(patientService.getAllPatients()).thenReturn(asList(member, otherPatient));
+
+        assertThat(patientController.getPatientsForList(Collections.singletonList(cohortId), null).size(), is(1));
+        assertThat(patientController.getPatientsForList(Collections.<String>emptyList(), null).size(), is(2));
+        Patient newPatient = new Patient();
+        newPatient.setUuid("patientId3");
+        patientController.savePatient(newPatient);
+        assertThat(patientController.getPatientsForList(Collections.<String>emptyList(), null).size(), is(3));
+
+        verify(patientService, times(1)).getAllPatients();
+        verify(cohortService, times(1)).getCohortMembers(cohortId);
+    }
+
     @Test
     public void shouldSearchWithOutCohortUUIDIsNull() throws IOException, ParseException, PatientController.PatientLoadException {
         String searchString = "searchString";
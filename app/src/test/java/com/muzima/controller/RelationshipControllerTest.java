@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.controller;
+
+import com.muzima.api.model.Person;
+import com.muzima.api.model.Relationship;
+import com.muzima.api.model.RelationshipType;
+import com.muzima.api.service.PatientService;
+import com.muzima.api.service.PersonService;
+import com.muzima.api.service.RelationshipService;
+import com.muzima.tasks.MuzimaTaskScheduler;
+import com.muzima.tasks.ParallelDownloader;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class RelationshipControllerTest {
+
+    @Mock
+    private RelationshipService relationshipService;
+
+    @Mock
+    private PersonService personService;
+
+    @Mock
+    private PatientService patientService;
+
+    private RelationshipController controller;
+    private RelationshipType parent;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        controller = new RelationshipController(relationshipService, personService, patientService,
+                new ParallelDownloader<List<Relationship>>(new MuzimaTaskScheduler(), "RelationshipDownload", 2));
+        parent = relationshipType("parent");
+    }
+
+    @Test
+    public void shouldDownloadEachRelationshipOnceForSeveralPersons() throws Exception, RelationshipController.RetrieveRelationshipException {
+        Relationship between = relationship("between", person("patient1"), person("patient2"), parent, true);
+        Relationship other = relationship("other", person("patient2"), person("mother"), parent, true);
+        when(relationshipService.downloadRelationshipsForPerson("patient1")).thenReturn(asList(between));
+        when(relationshipService.downloadRelationshipsForPerson("patient2")).thenReturn(asList(between, other));
+
+        List<Relationship> relationships = controller.downloadRelationshipsForPersons(asList("patient1", "patient2"));
+
+        assertThat(relationships, is(asList(between, other)));
+    }
+
+    @Test
+    public void shouldReplaceTheSyncedRelationshipsOfThePersonsInOneDeleteAndOneSave() throws Exception,
+            RelationshipController.RetrieveRelationshipException, RelationshipController.SaveRelationshipException {
+        Person patient = person("patient1");
+        Relationship stale = relationship("stale", patient, person("father"), parent, true);
+        Relationship unsynced = relationship("unsynced", patient, person("sister"), parent, false);
+        Relationship changed = relationship("changed", patient, person("mother"), parent, true);
+        Relationship otherPatient = relationship("otherPatient", person("patient2"), person("uncle"), parent, true);
+        when(relationshipService.getAllRelationships()).thenReturn(asList(stale, unsynced, changed, otherPatient));
+        when(relationshipService.getAllRelationshipTypes()).thenReturn(asList(parent));
+        when(personService.getAllPersons()).thenReturn(asList(patient, person("father"), person("sister"), person("mother")));
+
+        Relationship downloadedChange = relationship("changed", patient, person("mother"), parent, true);
+        Relationship added = relationship("added", patient, person("sister"), parent, true);
+        controller.startRelationshipReconciliation().reconcile(asList("patient1"), asList(downloadedChange, added));
+
+        verify(relationshipService).deleteRelationships(asList(stale, changed));
+        verify(relationshipService).saveRelationships(asList(downloadedChange, added));
+        verify(relationshipService, never()).saveRelationshipTypes(anyList());
+    }
+
+    @Test
+    public void shouldSaveOnlyTheRelationshipTypesAndPersonsNewToTheDevice() throws Exception,
+            RelationshipController.RetrieveRelationshipException, RelationshipController.SaveRelationshipException {
+        Person patient = person("patient1");
+        Person brother = person("brother");
+        RelationshipType sibling = relationshipType("sibling");
+        when(relationshipService.getAllRelationships()).thenReturn(new ArrayList<Relationship>());
+        when(relationshipService.getAllRelationshipTypes()).thenReturn(asList(parent));
+        when(personService.getAllPersons()).thenReturn(asList(patient));
+
+        RelationshipController.RelationshipReconciliation reconciliation = controller.startRelationshipReconciliation();
+        reconciliation.reconcile(asList("patient1"), asList(relationship("siblings", patient, brother, sibling, true),
+                relationship("parents", patient, person("mother"), parent, true)));
+        reconciliation.reconcile(asList("patient2"), asList(relationship("siblings2", person("patient2"), brother, sibling, true)));
+
+        verify(relationshipService).saveRelationshipTypes(asList(sibling));
+        verify(personService).savePerson(brother);
+        verify(personService, never()).savePerson(patient);
+    }
+
+    private static Relationship relationship(String uuid, Person personA, Person personB, RelationshipType type, boolean synced) {
+        Relationship relationship = new Relationship();
+        relationship.setUuid(uuid);
+        relationship.setPersonA(personA);
+        relationship.setPersonB(personB);
+        relationship.setRelationshipType(type);
+        relationship.setSynced(synced);
+        return relationship;
+    }
+
+    private static RelationshipType relationshipType(String uuid) {
+        RelationshipType relationshipType = new RelationshipType();
+        relationshipType.setUuid(uuid);
+        return relationshipType;
+    }
+
+    private static Person person(String uuid) {
+        Person person = new Person();
+        person.setUuid(uuid);
+        return person;
+    }
+}
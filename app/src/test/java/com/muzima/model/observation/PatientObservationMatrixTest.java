@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.model.observation;
+
+import com.muzima.api.model.Concept;
+import com.muzima.api.model.Observation;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class PatientObservationMatrixTest {
+
+    @Test
+    public void shouldBucketObservationsByConceptAndDayMostRecentFirst() {
+        Observation morning = observation("weight", date(2021, 3, 1, 8));
+        Observation evening = observation("weight", date(2021, 3, 1, 18));
+        Observation earlier = observation("weight", date(2021, 2, 14, 9));
+        Observation height = observation("height", date(2021, 2, 14, 9));
+
+        PatientObservationMatrix matrix = new PatientObservationMatrix("patient", asList(morning, earlier, evening, height));
+
+        assertThat(matrix.getColumnCount(), is(2));
+        assertThat(matrix.getColumnDate(0), is(date(2021, 3, 1, 18)));
+        assertThat(matrix.getColumnDate(1), is(date(2021, 2, 14, 9)));
+        assertThat(matrix.getRow("weight")[0], is(evening));
+        assertThat(matrix.getRow("weight")[1], is(earlier));
+        assertThat(matrix.getRow("height")[0] == null, is(true));
+        assertThat(matrix.getRow("height")[1], is(height));
+    }
+
+    @Test
+    public void shouldSkipObservationsWithoutDate() {
+        PatientObservationMatrix matrix = new PatientObservationMatrix("patient", asList(observation("weight", null)));
+
+        assertThat(matrix.getColumnCount(), is(0));
+        assertThat(matrix.hasObservations("weight"), is(false));
+        assertThat(matrix.getRow("weight").length, is(0));
+    }
+
+    private Observation observation(String conceptUuid, Date observationDatetime) {
+        Concept concept = new Concept();
+        concept.setUuid(conceptUuid);
+        Observation observation = new Observation();
+        observation.setConcept(concept);
+        observation.setObservationDatetime(observationDatetime);
+        return observation;
+    }
+
+    private Date date(int year, int month, int day, int hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, 0);
+        return calendar.getTime();
+    }
+}
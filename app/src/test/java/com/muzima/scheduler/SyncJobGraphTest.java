@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.scheduler;
+
+import com.muzima.tasks.MuzimaTaskScheduler;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.muzima.scheduler.SyncJobGraph.ResourceClass.LOCAL_STORE;
+import static com.muzima.scheduler.SyncJobGraph.ResourceClass.NETWORK;
+import static com.muzima.scheduler.SyncJobGraph.StageStatus.FAILED;
+import static com.muzima.scheduler.SyncJobGraph.StageStatus.SKIPPED;
+import static com.muzima.scheduler.SyncJobGraph.StageStatus.SUCCEEDED;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class SyncJobGraphTest {
+
+    @Test
+    public void shouldStartStagesOnlyOnceTheirDependenciesSucceeded() throws Exception {
+        SyncJobGraph graph = new SyncJobGraph("test");
+        graph.addStage("config", NETWORK, () -> Thread.sleep(20))
+                .addStage("cohorts", NETWORK, () -> { }, "config")
+                .addStage("observations", NETWORK, () -> { }, "cohorts");
+
+        SyncJobGraph.TimingReport report = run(graph);
+
+        SyncJobGraph.StageTiming config = report.getStageTiming("config");
+        SyncJobGraph.StageTiming cohorts = report.getStageTiming("cohorts");
+        SyncJobGraph.StageTiming observations = report.getStageTiming("observations");
+        assertThat(config.getStatus(), is(SUCCEEDED));
+        assertTrue(cohorts.getStartedAt() >= config.getEndedAt());
+        assertTrue(observations.getStartedAt() >= cohorts.getEndedAt());
+        assertTrue(report.getWallTime() >= config.getRunTime());
+    }
+
+    @Test
+    public void shouldRunIndependentNetworkStagesConcurrently() throws Exception {
+        CyclicBarrier bothRunning = new CyclicBarrier(2);
+        SyncJobGraph graph = new SyncJobGraph("test");
+        graph.addStage("upload", NETWORK, () -> bothRunning.await(5, TimeUnit.SECONDS))
+                .addStage("settings", NETWORK, () -> bothRunning.await(5, TimeUnit.SECONDS));
+
+        SyncJobGraph.TimingReport report = run(graph);
+
+        assertThat(report.getStageTiming("upload").getStatus(), is(SUCCEEDED));
+        assertThat(report.getStageTiming("settings").getStatus(), is(SUCCEEDED));
+    }
+
+    @Test
+    public void shouldRunLocalStoreStagesOneAtATime() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        SyncJobGraph.StageWork work = () -> {
+            if (running.incrementAndGet() > 1) {
+                overlapped.set(true);
+            }
+            Thread.sleep(10);
+            running.decrementAndGet();
+        };
+        SyncJobGraph graph = new SyncJobGraph("test");
+        graph.addStage("consolidate", LOCAL_STORE, work)
+                .addStage("cleanup", LOCAL_STORE, work)
+                .addStage("tags", LOCAL_STORE, work);
+
+        SyncJobGraph.TimingReport report = run(graph);
+
+        assertFalse(overlapped.get());
+        assertThat(report.getStageTimings().size(), is(3));
+    }
+
+    @Test
+    public void shouldLeaveAThreadOfTheSyncLaneFree() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        SyncJobGraph.StageWork work = () -> {
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+        };
+        SyncJobGraph graph = new SyncJobGraph("test");
+        for (int i = 0; i < 6; i++) {
+            graph.addStage("download" + i, NETWORK, work);
+        }
+        graph.addStage("consolidate", LOCAL_STORE, work)
+                .addStage("tags", LOCAL_STORE, work);
+
+        run(graph);
+
+        assertTrue(mostRunning.get() <= MuzimaTaskScheduler.Lane.SYNC_IO.getThreads() - 1);
+    }
+
+    @Test
+    public void shouldSkipStagesDependingOnAFailedStage() throws Exception {
+        SyncJobGraph graph = new SyncJobGraph("test");
+        graph.addStage("authenticate", NETWORK, () -> {
+            throw new IllegalStateException("wrong credentials");
+        })
+                .addStage("upload", NETWORK, () -> { })
+                .addStage("cohorts", NETWORK, () -> { }, "authenticate")
+                .addStage("observations", NETWORK, () -> { }, "cohorts", "upload");
+
+        SyncJobGraph.TimingReport report = run(graph);
+
+        assertThat(report.getStageTiming("authenticate").getStatus(), is(FAILED));
+        assertTrue(report.getStageTiming("authenticate").getError() instanceof IllegalStateException);
+        assertThat(report.getStageTiming("upload").getStatus(), is(SUCCEEDED));
+        assertThat(report.getStageTiming("cohorts").getStatus(), is(SKIPPED));
+        assertThat(report.getStageTiming("observations").getStatus(), is(SKIPPED));
+        assertThat(report.getStageTiming("observations").getStartedAt(), is(-1L));
+    }
+
+    @Test
+    public void shouldRunStagesOrderedAfterAFailedStageOnceItFinished() throws Exception {
+        SyncJobGraph graph = new SyncJobGraph("test");
+        graph.addStage("upload", NETWORK, () -> {
+            Thread.sleep(20);
+            throw new IllegalStateException("server error");
+        })
+                .addStage("cohorts", NETWORK, () -> { })
+                .runAfter("cohorts", "upload")
+                .addStage("patients", NETWORK, () -> { }, "cohorts");
+
+        SyncJobGraph.TimingReport report = run(graph);
+
+        assertThat(report.getStageTiming("upload").getStatus(), is(FAILED));
+        assertThat(report.getStageTiming("cohorts").getStatus(), is(SUCCEEDED));
+        assertThat(report.getStageTiming("patients").getStatus(), is(SUCCEEDED));
+        assertTrue(report.getStageTiming("cohorts").getStartedAt() >= report.getStageTiming("upload").getEndedAt());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotOrderStagesAfterStagesAddedLater() {
+        new SyncJobGraph("test")
+                .addStage("cohorts", NETWORK, () -> { })
+                .addStage("upload", NETWORK, () -> { })
+                .runAfter("cohorts", "upload");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptDependenciesOnStagesNotAddedYet() {
+        new SyncJobGraph("test").addStage("cohorts", NETWORK, () -> { }, "config");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptTwoStagesWithTheSameName() {
+        new SyncJobGraph("test")
+                .addStage("config", NETWORK, () -> { })
+                .addStage("config", NETWORK, () -> { });
+    }
+
+    @Test
+    public void shouldReportRightAwayWhenThereAreNoStages() throws Exception {
+        SyncJobGraph.TimingReport report = run(new SyncJobGraph("test"));
+
+        assertTrue(report.getStageTimings().isEmpty());
+    }
+
+    private SyncJobGraph.TimingReport run(SyncJobGraph graph) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<SyncJobGraph.TimingReport> report = new AtomicReference<>();
+        graph.start(MuzimaTaskScheduler.getInstance(), timingReport -> {
+            report.set(timingReport);
+            finished.countDown();
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        return report.get();
+    }
+}
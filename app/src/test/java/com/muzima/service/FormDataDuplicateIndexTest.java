@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.testSupport.CustomTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Collections;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class FormDataDuplicateIndexTest {
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        journalFile = File.createTempFile("duplicate-index", ".txt");
+        assertTrue(journalFile.delete());
+    }
+
+    @Test
+    public void shouldFindEntriesByPatientAndForm() {
+        FormDataDuplicateIndex index = new FormDataDuplicateIndex(null);
+        index.put(new FormDataDuplicateIndex.Entry("formData1", "patient1", "form1", "2020-01-01", false));
+        index.put(new FormDataDuplicateIndex.Entry("formData2", "patient1", "form2", "2020-01-01", false));
+
+        assertThat(index.find("patient1", "form1").size(), is(1));
+        assertThat(index.find("patient1", "form1").get(0).getFormDataUuid(), is("formData1"));
+        assertThat(index.find("patient2", "form1").isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldMoveEntryWhenFormDataIsSavedAgain() {
+        FormDataDuplicateIndex index = new FormDataDuplicateIndex(null);
+        index.put(new FormDataDuplicateIndex.Entry("formData1", "oldPatient", "form1", "2020-01-01", false));
+        index.put(new FormDataDuplicateIndex.Entry("formData1", "newPatient", "form1", "2020-01-01", false));
+
+        assertThat(index.find("oldPatient", "form1").isEmpty(), is(true));
+        assertThat(index.find("newPatient", "form1").size(), is(1));
+        assertThat(index.size(), is(1));
+    }
+
+    @Test
+    public void shouldReplayJournalWhenLoaded() {
+        FormDataDuplicateIndex index = new FormDataDuplicateIndex(journalFile);
+        assertThat(index.load(), is(false));
+        index.reset(Collections.singletonList(new FormDataDuplicateIndex.Entry("formData1", "patient1", "form1", "2020-01-01", false)));
+        index.put(new FormDataDuplicateIndex.Entry("formData2", "patient1", "form1", "2020-01-02", true));
+        index.put(new FormDataDuplicateIndex.Entry("formData3", "patient1", "form1", "2020-01-03", false));
+        index.remove("formData1");
+
+        FormDataDuplicateIndex reloadedIndex = new FormDataDuplicateIndex(journalFile);
+
+        assertThat(reloadedIndex.load(), is(true));
+        assertThat(reloadedIndex.size(), is(2));
+        assertThat(reloadedIndex.find("patient1", "form1").get(0).getFormDataUuid(), is("formData2"));
+        assertThat(reloadedIndex.find("patient1", "form1").get(0).isRegistration(), is(true));
+        assertThat(reloadedIndex.find("patient1", "form1").get(1).getEncounterDatetime(), is("2020-01-03"));
+    }
+
+    @Test
+    public void shouldReplaceTheEntriesOfOnePatient() {
+        FormDataDuplicateIndex index = new FormDataDuplicateIndex(journalFile);
+        index.put(new FormDataDuplicateIndex.Entry("formData1", "patient1", "form1", "2020-01-01", false));
+        index.put(new FormDataDuplicateIndex.Entry("formData2", "patient2", "form1", "2020-01-01", false));
+
+        index.resetPatient("patient1", asList(new FormDataDuplicateIndex.Entry("formData3", "patient1", "form1", "2020-01-03", false),
+                new FormDataDuplicateIndex.Entry("formData4", "patient1", "form2", "2020-01-04", false)));
+
+        FormDataDuplicateIndex reloadedIndex = new FormDataDuplicateIndex(journalFile);
+        assertThat(reloadedIndex.load(), is(true));
+        assertThat(reloadedIndex.countByPatient("patient1"), is(2));
+        assertThat(reloadedIndex.countByPatient("patient2"), is(1));
+        assertThat(reloadedIndex.find("patient1", "form1").size(), is(1));
+        assertThat(reloadedIndex.find("patient1", "form1").get(0).getFormDataUuid(), is("formData3"));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.FormTemplate;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Scanner;
+
+import static com.muzima.builder.FormTemplateBuilder.formTemplate;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class FormTemplateCacheTest {
+    private static final String PAYLOAD = "{\"patient\":{\"patient.uuid\":\"patientUuid\"}}";
+
+    private String html;
+    private FormTemplateCache cache;
+
+    @Before
+    public void setUp() {
+        html = readFile();
+        cache = new FormTemplateCache(FormTemplateCache.MAX_CACHED_HTML_CHARS);
+    }
+
+    @Test
+    public void shouldExtractTheReferencesOfTheTemplate() {
+        FormTemplate template = formTemplate().withUuid("histo").withHtml(html).build();
+
+        assertThat(cache.getLocationNames(template), is(new HTMLLocationParser().parse(html)));
+        assertThat(cache.getProviderNames(template), is(new HTMLProviderParser().parse(html)));
+    }
+
+    @Test
+    public void shouldPrePopulateTheTemplateWithThePayloadAsFirstElementOfTheBody() {
+        FormTemplate template = formTemplate().withUuid("histo").withHtml(html).build();
+
+        Document prePopulated = Jsoup.parse(cache.prePopulate(template, PAYLOAD));
+
+        Element prePopulateData = prePopulated.body().child(0);
+        assertThat(prePopulateData.id(), is("pre_populate_data"));
+        assertThat(prePopulateData.html(), is(PAYLOAD));
+        prePopulateData.remove();
+        assertThat(withoutWhitespace(prePopulated.outerHtml()), is(withoutWhitespace(Jsoup.parse(html).outerHtml())));
+    }
+
+    @Test
+    public void shouldParseEachVersionOfATemplateOnce() {
+        FormTemplate template = formTemplate().withUuid("histo").withHtml(html).build();
+
+        cache.getLocationNames(template);
+        cache.getProviderNames(template);
+        cache.prePopulate(template, PAYLOAD);
+        cache.prePopulate(formTemplate().withUuid("histo").withHtml(html).build(), "{}");
+        assertThat(cache.getParseCount(), is(1));
+
+        String changedHtml = html.replace("BODY PART", "BODY PART CHANGED");
+        FormTemplate changedTemplate = formTemplate().withUuid("histo").withHtml(changedHtml).build();
+        assertThat(cache.getLocationNames(changedTemplate), is(new HTMLLocationParser().parse(changedHtml)));
+        assertThat(cache.getParseCount(), is(2));
+    }
+
+    @Test
+    public void shouldKeepTheReferencesOfTemplatesWhoseHtmlWasReleased() {
+        cache = new FormTemplateCache(html.length() * 3 / 2);
+        FormTemplate first = formTemplate().withUuid("first").withHtml(html).build();
+        FormTemplate second = formTemplate().withUuid("second").withHtml(html).build();
+
+        cache.prePopulate(first, PAYLOAD);
+        cache.prePopulate(second, PAYLOAD);
+        cache.getLocationNames(first);
+        assertThat(cache.getParseCount(), is(2));
+
+        cache.prePopulate(first, PAYLOAD);
+        assertThat(cache.getParseCount(), is(3));
+    }
+
+    private static String withoutWhitespace(String html) {
+        return html.replaceAll("\\s+", "");
+    }
+
+    private String readFile() {
+        InputStream fileStream = getClass().getClassLoader().getResourceAsStream("html/histo_form.html");
+        Scanner s = new Scanner(fileStream).useDelimiter("\\A");
+        return s.hasNext() ? s.next() : "{}";
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.testSupport.CustomTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class IdentifierJournalTest {
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        journalFile = File.createTempFile("identifier-journal", ".txt");
+        assertTrue(journalFile.delete());
+    }
+
+    @Test
+    public void shouldKeepIdentifiersInTheOrderTheyWereAdded() throws IOException {
+        IdentifierJournal journal = new IdentifierJournal(journalFile);
+        journal.add("patient2");
+        journal.add("patient1");
+        journal.add("patient2");
+        journal.add("patient3");
+        journal.remove("patient1");
+
+        assertThat(journal.list(), is(asList("patient2", "patient3")));
+        assertTrue(journal.contains("patient3"));
+        assertFalse(journal.contains("patient1"));
+    }
+
+    @Test
+    public void shouldOnlyAppendTheChangesToTheJournal() throws IOException {
+        IdentifierJournal journal = new IdentifierJournal(journalFile);
+        journal.add("patient1");
+        long length = journalFile.length();
+
+        journal.add("patient2");
+        journal.add("patient2");
+
+        assertThat(journalFile.length(), is(2 * length));
+        assertThat(journal.getJournalRecords(), is(2));
+    }
+
+    @Test
+    public void shouldReadTheIdentifiersBackFromTheJournal() throws IOException {
+        IdentifierJournal journal = new IdentifierJournal(journalFile);
+        journal.add("patient1");
+        journal.add("patient2");
+        journal.remove("patient1");
+        journal.add("patient3");
+
+        assertThat(new IdentifierJournal(journalFile).list(), is(asList("patient2", "patient3")));
+    }
+
+    @Test
+    public void shouldCompactTheJournalOnceMostOfItIsSuperseded() throws IOException {
+        IdentifierJournal journal = new IdentifierJournal(journalFile);
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            journal.add("patient" + i);
+            if (i % 10 == 0) {
+                kept.add("patient" + i);
+            } else {
+                journal.remove("patient" + i);
+            }
+        }
+
+        assertTrue(journal.getJournalRecords() <= 2 * kept.size() + 64);
+        assertThat(new IdentifierJournal(journalFile).list(), is(kept));
+    }
+
+    @Test
+    public void shouldRewriteTheJournalWithTheReplacementIdentifiers() throws IOException {
+        IdentifierJournal journal = new IdentifierJournal(journalFile);
+        journal.add("patient1");
+        journal.add("patient2");
+
+        journal.replace(asList("patient3", "patient2"));
+
+        assertThat(journal.list(), is(asList("patient3", "patient2")));
+        assertThat(journal.getJournalRecords(), is(2));
+        assertThat(new IdentifierJournal(journalFile).list(), is(asList("patient3", "patient2")));
+    }
+
+    @Test
+    public void shouldReadTheListWrittenByEarlierVersions() throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(journalFile);
+        outputStream.write("[\"patient1\",\"patient2\"]\n".getBytes("UTF-8"));
+        outputStream.close();
+
+        IdentifierJournal journal = new IdentifierJournal(journalFile);
+        journal.add("patient3");
+
+        assertThat(journal.list(), is(asList("patient1", "patient2", "patient3")));
+        assertThat(new IdentifierJournal(journalFile).list(), is(asList("patient1", "patient2", "patient3")));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.testSupport.CustomTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class LogEventBufferTest {
+    private final List<String> writtenTags = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void shouldWriteEventsInTheBackgroundOnceABatchIsFull() throws Exception {
+        final CountDownLatch written = new CountDownLatch(2);
+        LogEventBuffer buffer = new LogEventBuffer(10, 2, 60000, LogEventBuffer.DropPolicy.DROP_OLDEST,
+                events -> {
+                    for (LogEventBuffer.LogEvent event : events) {
+                        writtenTags.add(event.getTag());
+                        written.countDown();
+                    }
+                });
+
+        buffer.add(event("tag1"));
+        buffer.add(event("tag2"));
+
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertThat(writtenTags.get(0), is("tag1"));
+        assertThat(writtenTags.get(1), is("tag2"));
+    }
+
+    @Test
+    public void shouldDropOldestEventsWhenFull() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        LogEventBuffer buffer = new LogEventBuffer(2, 2, 60000, LogEventBuffer.DropPolicy.DROP_OLDEST,
+                events -> {
+                    writing.countDown();
+                    release.await();
+                    writeTags(events);
+                });
+        buffer.add(event("tag1"));
+        buffer.add(event("tag2"));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        buffer.add(event("tag3"));
+        buffer.add(event("tag4"));
+        assertThat(buffer.add(event("tag5")), is(true));
+        release.countDown();
+        buffer.flush();
+
+        assertThat(buffer.getDroppedCount(), is(1L));
+        assertThat(writtenTags, is(asList("tag1", "tag2", "tag4", "tag5")));
+        assertThat(buffer.getFlushedCount(), is(4L));
+    }
+
+    @Test
+    public void shouldDropNewEventsWhenFullIfConfigured() {
+        LogEventBuffer buffer = new LogEventBuffer(2, 1, 60000, LogEventBuffer.DropPolicy.DROP_NEWEST,
+                this::writeTags);
+
+        synchronized (buffer) {
+            // keep the writer away so the buffer fills up
+            buffer.add(event("tag1"));
+            buffer.add(event("tag2"));
+            assertThat(buffer.add(event("tag3")), is(false));
+        }
+        buffer.flush();
+
+        assertThat(buffer.getDroppedCount(), is(1L));
+        assertThat(writtenTags.contains("tag3"), is(false));
+        assertThat(buffer.getFlushedCount(), is(2L));
+    }
+
+    @Test
+    public void shouldWriteQueuedEventsWhenFlushed() {
+        LogEventBuffer buffer = new LogEventBuffer(10, 5, 60000, LogEventBuffer.DropPolicy.DROP_OLDEST,
+                this::writeTags);
+        buffer.add(event("tag1"));
+        buffer.add(event("tag2"));
+
+        buffer.flush();
+
+        assertThat(writtenTags.size(), is(2));
+        assertThat(buffer.size(), is(0));
+        assertThat(buffer.getFlushedCount(), is(2L));
+        assertThat(buffer.getFailedCount(), is(0L));
+    }
+
+    @Test
+    public void shouldHandEachBatchToTheWriterInOneCall() {
+        final List<Integer> batchSizes = new ArrayList<>();
+        LogEventBuffer buffer = new LogEventBuffer(10, 3, 60000, LogEventBuffer.DropPolicy.DROP_OLDEST,
+                events -> batchSizes.add(events.size()));
+
+        synchronized (buffer) {
+            // keep the writer away so every event is flushed here
+            for (int i = 0; i < 5; i++) {
+                buffer.add(event("tag" + i));
+            }
+        }
+        buffer.flush();
+
+        assertThat(batchSizes, is(asList(3, 2)));
+        assertThat(buffer.getFlushedCount(), is(5L));
+    }
+
+    @Test
+    public void shouldCountEveryEventOfAFailedBatchAsFailed() {
+        LogEventBuffer buffer = new LogEventBuffer(10, 5, 60000, LogEventBuffer.DropPolicy.DROP_OLDEST,
+                events -> {
+                    throw new Exception("store unavailable");
+                });
+        buffer.add(event("tag1"));
+        buffer.add(event("tag2"));
+
+        buffer.flush();
+
+        assertThat(buffer.getFailedCount(), is(2L));
+        assertThat(buffer.getFlushedCount(), is(0L));
+    }
+
+    private void writeTags(List<LogEventBuffer.LogEvent> events) {
+        for (LogEventBuffer.LogEvent event : events) {
+            writtenTags.add(event.getTag());
+        }
+    }
+
+    private LogEventBuffer.LogEvent event(String tag) {
+        return new LogEventBuffer.LogEvent(tag, "user", "{}", "{}", System.currentTimeMillis());
+    }
+}
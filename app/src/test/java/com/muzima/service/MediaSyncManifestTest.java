@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.Media;
+import com.muzima.testSupport.CustomTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MediaSyncManifestTest {
+    private File manifestFile;
+    private File downloadDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        manifestFile = File.createTempFile("media-manifest", ".txt");
+        assertTrue(manifestFile.delete());
+        downloadDirectory = File.createTempFile("downloads", "");
+        assertTrue(downloadDirectory.delete());
+        assertTrue(downloadDirectory.mkdir());
+    }
+
+    @Test
+    public void shouldQueueMediaNotDownloadedYet() {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+
+        MediaSyncManifest.Plan plan = manifest.plan(asList(media("video1", "http://server/video1"),
+                media("video2", "http://server/video2")), downloadDirectory);
+
+        assertThat(plan.getQueuedCount(), is(2));
+        assertThat(manifest.getEntries(MediaSyncManifest.State.QUEUED).get(0).getFileName(), is("video1.mp4"));
+    }
+
+    @Test
+    public void shouldNotQueueDownloadedMediaWhichDidNotChange() throws IOException {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+        Media video = media("video1", "http://server/video1");
+        download(manifest, video, 10);
+
+        MediaSyncManifest.Plan plan = manifest.plan(asList(video), downloadDirectory);
+
+        assertThat(plan.getQueuedCount(), is(0));
+        assertTrue(plan.getFilesToDelete().isEmpty());
+    }
+
+    @Test
+    public void shouldQueueDownloadedMediaAgainWhenItsFileIsMissingOrIncomplete() throws IOException {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+        Media video = media("video1", "http://server/video1");
+        download(manifest, video, 10);
+        writeFile("video1.mp4", 4);
+
+        assertThat(manifest.plan(asList(video), downloadDirectory).getQueuedCount(), is(1));
+    }
+
+    @Test
+    public void shouldReplaceMediaWhichChangedOnTheServer() throws IOException {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+        download(manifest, media("video1", "http://server/video1"), 10);
+        manifest.plan(asList(media("video2", "http://server/video2")), downloadDirectory);
+        manifest.markDownloading("video2", 42);
+
+        MediaSyncManifest.Plan plan = manifest.plan(asList(media("video1", "http://server/video1-v2"),
+                media("video2", "http://server/video2-v2")), downloadDirectory);
+
+        assertThat(plan.getQueuedCount(), is(2));
+        assertThat(plan.getFilesToDelete(), is(asList("video1.mp4", "video2.mp4")));
+        assertThat(plan.getDownloadsToCancel(), is(asList(42L)));
+    }
+
+    @Test
+    public void shouldKeepDownloadsInProgressOfMediaWhichDidNotChange() {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+        Media video = media("video1", "http://server/video1");
+        manifest.plan(asList(video), downloadDirectory);
+        manifest.markDownloading("video1", 42);
+
+        MediaSyncManifest.Plan plan = manifest.plan(asList(video), downloadDirectory);
+
+        assertThat(plan.getQueuedCount(), is(0));
+        assertTrue(plan.getDownloadsToCancel().isEmpty());
+        assertThat(manifest.getEntryByDownloadId(42).getUuid(), is("video1"));
+    }
+
+    @Test
+    public void shouldDropRetiredMedia() throws IOException {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+        Media video = media("video1", "http://server/video1");
+        download(manifest, video, 10);
+        when(video.isRetired()).thenReturn(true);
+
+        MediaSyncManifest.Plan plan = manifest.plan(asList(video), downloadDirectory);
+
+        assertThat(plan.getFilesToDelete(), is(asList("video1.mp4")));
+        assertThat(manifest.size(), is(0));
+    }
+
+    @Test
+    public void shouldTakeOverFilesDownloadedBeforeTheManifestWasKept() throws IOException {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+        writeFile("video1.mp4", 10);
+
+        MediaSyncManifest.Plan plan = manifest.plan(asList(media("video1", "http://server/video1")), downloadDirectory);
+
+        assertThat(plan.getQueuedCount(), is(0));
+        assertThat(manifest.getEntries(MediaSyncManifest.State.DOWNLOADED).size(), is(1));
+    }
+
+    @Test
+    public void shouldQueueFailedDownloadsAgainOnTheNextSync() {
+        MediaSyncManifest manifest = new MediaSyncManifest(null);
+        manifest.plan(asList(media("video1", "http://server/video1")), downloadDirectory);
+        manifest.markDownloading("video1", 42);
+        manifest.markFailed("video1");
+        assertTrue(manifest.getEntries(MediaSyncManifest.State.QUEUED).isEmpty());
+
+        MediaSyncManifest.Plan plan = manifest.plan(Collections.<Media>emptyList(), downloadDirectory);
+
+        assertThat(plan.getQueuedCount(), is(1));
+    }
+
+    @Test
+    public void shouldReadTheSavedManifest() throws IOException {
+        MediaSyncManifest manifest = new MediaSyncManifest(manifestFile);
+        assertFalse(manifest.load());
+        Media video = media("video1", "http://server/video1");
+        download(manifest, video, 10);
+        manifest.plan(asList(media("video2", "http://server/video2")), downloadDirectory);
+        manifest.markDownloading("video2", 42);
+        manifest.save();
+
+        MediaSyncManifest reloaded = new MediaSyncManifest(manifestFile);
+        assertTrue(reloaded.load());
+
+        assertThat(reloaded.size(), is(2));
+        assertThat(reloaded.getEntryByDownloadId(42).getUrl(), is("http://server/video2"));
+        assertThat(reloaded.plan(asList(video), downloadDirectory).getQueuedCount(), is(0));
+    }
+
+    private void download(MediaSyncManifest manifest, Media media, int size) throws IOException {
+        manifest.plan(asList(media), downloadDirectory);
+        manifest.markDownloading(media.getUuid(), 1);
+        writeFile(media.getName() + ".mp4", size);
+        manifest.markDownloaded(media.getUuid(), size);
+    }
+
+    private void writeFile(String fileName, int size) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(new File(downloadDirectory, fileName));
+        try {
+            outputStream.write(new byte[size]);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private Media media(String uuid, String url) {
+        Media media = mock(Media.class);
+        when(media.getUuid()).thenReturn(uuid);
+        when(media.getName()).thenReturn(uuid);
+        when(media.getMimeType()).thenReturn("video/mp4");
+        when(media.getUrl()).thenReturn(url);
+        when(media.getDescription()).thenReturn("Training video");
+        return media;
+    }
+}
@@ -24,6 +24,7 @@ import com.muzima.api.model.Observation;
 import com.muzima.api.model.Patient;
 import com.muzima.api.model.SetupConfigurationTemplate;
 import com.muzima.api.model.User;
+import com.muzima.controller.AppUsageLogsController;
 import com.muzima.controller.CohortController;
 import com.muzima.controller.ConceptController;
 import com.muzima.controller.EncounterController;
@@ -39,6 +40,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
@@ -50,6 +53,8 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.muzima.controller.ObservationController.ReplaceObservationException;
 import static com.muzima.utils.Constants.COHORT_PREFIX_PREF;
@@ -92,6 +97,7 @@ public class MuzimaSyncServiceTest {
         formController = mock(FormController.class);
         cohortController = mock(CohortController.class);
         patientController = mock(PatientController.class);
+        when(patientController.getPatientTagsLock()).thenReturn(new Object());
         observationController = mock(ObservationController.class);
         sharedPref = mock(SharedPreferences.class);
         conceptController = mock(ConceptController.class);
@@ -479,7 +485,7 @@ public class MuzimaSyncServiceTest {
     }
 
     @Test
-    public void downloadObservationsForPatients_shouldDownloadObservationsForGiveCohortIdsAndSavedConcepts() throws PatientController.PatientLoadException, ObservationController.DownloadObservationException, ObservationController.ReplaceObservationException, ConceptController.ConceptFetchException, ObservationController.DeleteObservationException, SetupConfigurationController.SetupConfigurationFetchException {
+    public void downloadObservationsForPatients_shouldDownloadObservationsForGiveCohortIdsAndSavedConcepts() throws PatientController.PatientLoadException, ObservationController.DownloadObservationException, ObservationController.ReplaceObservationException, ConceptController.ConceptFetchException, ObservationController.DeleteObservationException, ObservationController.SaveObservationException, SetupConfigurationController.SetupConfigurationFetchException {
         String[] cohortUuids = new String[]{"uuid1", "uuid2"};
 
         String activeSetupConfigUuid = "activeSetupConfigUuid";
@@ -516,6 +522,8 @@ public class MuzimaSyncServiceTest {
         verify(observationController).downloadObservationsByPatientUuidsAndConceptUuids(patientUuids, conceptUuids,activeSetupConfigUuid);
         verify(observationController).deleteObservations(new ArrayList<Observation>());
         verify(observationController).replaceObservations(allObservations);
+        verify(observationController).getObservationSyncTime();
+        verify(observationController).recordObservationsDownloaded(patientUuids, conceptUuids, null);
         verifyNoMoreInteractions(observationController);
     }
 
@@ -730,6 +738,33 @@ public class MuzimaSyncServiceTest {
         verify(observationController).replaceObservations(Collections.singletonList(anObservation));
     }
 
+    @Test
+    public void uploadAllCompletedForms_shouldNotRunTwoUploadsAtOnce() throws Exception, FormController.UploadFormDataException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean(false);
+        when(muzimaApplication.getAppUsageLogsController()).thenReturn(mock(AppUsageLogsController.class));
+        when(formController.uploadAllCompletedForms()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                if (running.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                Thread.sleep(50);
+                running.decrementAndGet();
+                return true;
+            }
+        });
+        final MuzimaSyncService syncService = new MuzimaSyncService(muzimaApplication);
+
+        Thread otherUpload = new Thread(() -> syncService.uploadAllCompletedForms());
+        otherUpload.start();
+        syncService.uploadAllCompletedForms();
+        otherUpload.join();
+
+        assertThat(overlapped.get(), is(false));
+        verify(formController, times(2)).uploadAllCompletedForms();
+    }
+
     private Patient patient(String patientUUID) {
         Patient patient1 = new Patient();
         patient1.setUuid(patientUUID);
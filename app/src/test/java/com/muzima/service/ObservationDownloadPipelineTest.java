@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.Observation;
+import com.muzima.api.model.Patient;
+import com.muzima.controller.ObservationController;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ObservationDownloadPipelineTest {
+    private ObservationController observationController;
+    private ObservationDownloadPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        observationController = mock(ObservationController.class);
+        pipeline = new ObservationDownloadPipeline(observationController, 2, 1);
+    }
+
+    @Test
+    public void shouldDownloadAndWriteEverySliceOfTheMatrix() throws Throwable {
+        List<String> patientSlice1 = Collections.singletonList("patient1");
+        List<String> patientSlice2 = Collections.singletonList("patient2");
+        List<String> conceptSlice1 = Collections.singletonList("concept1");
+        List<String> conceptSlice2 = Collections.singletonList("concept2");
+
+        when(observationController.downloadObservationsByPatientUuidsAndConceptUuids(eq(patientSlice1), anyList(), anyString()))
+                .thenReturn(asList(observationFor("patient1", false)));
+        when(observationController.downloadObservationsByPatientUuidsAndConceptUuids(eq(patientSlice2), anyList(), anyString()))
+                .thenReturn(asList(observationFor("patient2", false), observationFor("patient2", true)));
+
+        ObservationDownloadPipeline.Result result = pipeline.run(asList(patientSlice1, patientSlice2),
+                asList(conceptSlice1, conceptSlice2), "config", true, null);
+
+        assertThat(result.getDownloadedCount(), is(4));
+        assertThat(result.getVoidedCount(), is(2));
+        assertThat(result.getPatientCount(), is(2));
+        verify(observationController, times(4)).replaceObservations(anyList());
+    }
+
+    @Test
+    public void shouldReportProgressOncePerWrittenSlice() throws Throwable {
+        when(observationController.downloadObservationsByPatientUuidsAndConceptUuids(anyList(), anyList(), anyString()))
+                .thenReturn(new ArrayList<Observation>());
+        final List<Integer> progress = new ArrayList<>();
+
+        pipeline.run(asList(asList("p1"), asList("p2"), asList("p3")), asList(asList("c1")), "config", false,
+                new ObservationDownloadPipeline.ProgressListener() {
+                    @Override
+                    public void onSliceWritten(int slicesWritten, int totalSlices, int patientsWithObservations) {
+                        progress.add(slicesWritten);
+                    }
+                });
+
+        assertThat(progress, is(asList(1, 2, 3)));
+        verify(observationController, times(3)).saveObservations(anyList());
+    }
+
+    @Test
+    public void shouldRecordASliceAsDownloadedOnlyOnceItIsWritten() throws Throwable {
+        Date syncTime = new Date(1000);
+        List<Observation> observations = asList(observationFor("p1", false));
+        when(observationController.getObservationSyncTime()).thenReturn(syncTime);
+        when(observationController.downloadObservationsByPatientUuidsAndConceptUuids(anyList(), anyList(), anyString()))
+                .thenReturn(observations);
+
+        pipeline.run(asList(asList("p1")), asList(asList("c1")), "config", false, null);
+
+        InOrder inOrder = inOrder(observationController);
+        inOrder.verify(observationController).saveObservations(anyList());
+        inOrder.verify(observationController).recordObservationsDownloaded(asList("p1"), asList("c1"), syncTime);
+    }
+
+    @Test
+    public void shouldNotRecordASliceWhoseWriteFailed() throws Throwable {
+        when(observationController.downloadObservationsByPatientUuidsAndConceptUuids(anyList(), anyList(), anyString()))
+                .thenReturn(asList(observationFor("p1", false)));
+        doThrow(new ObservationController.ReplaceObservationException(null)).when(observationController).replaceObservations(anyList());
+
+        try {
+            pipeline.run(asList(asList("p1")), asList(asList("c1")), "config", true, null);
+            fail("Expected replace exception");
+        } catch (ObservationController.ReplaceObservationException e) {
+            // expected
+        }
+        verify(observationController, never()).recordObservationsDownloaded(anyList(), anyList(), any(Date.class));
+    }
+
+    @Test
+    public void shouldRecordThePatientsOfASliceOnceAllTheirConceptSlicesAreWritten() throws Throwable {
+        when(observationController.getObservationSyncTime()).thenReturn(new Date(2000), new Date(1000));
+        when(observationController.downloadObservationsByPatientUuidsAndConceptUuids(anyList(), anyList(), anyString()))
+                .thenReturn(asList(observationFor("p1", false)));
+
+        pipeline.run(asList(asList("p1")), asList(asList("c1"), asList("c2")), "config", false, null);
+
+        verify(observationController).recordObservationsDownloaded(asList("p1"), asList("c1", "c2"), new Date(1000));
+    }
+
+    @Test
+    public void shouldNotRecordThePatientsOfASliceWhenOneOfTheirConceptSlicesFailed() throws Throwable {
+        when(observationController.downloadObservationsByPatientUuidsAndConceptUuids(anyList(), eq(asList("c1")), anyString()))
+                .thenReturn(asList(observationFor("p1", false)));
+        doThrow(new ObservationController.DownloadObservationException(null)).when(observationController)
+                .downloadObservationsByPatientUuidsAndConceptUuids(anyList(), eq(asList("c2")), anyString());
+
+        try {
+            pipeline.run(asList(asList("p1")), asList(asList("c1"), asList("c2")), "config", false, null);
+            fail("Expected download exception");
+        } catch (ObservationController.DownloadObservationException e) {
+            // expected
+        }
+        verify(observationController, never()).recordObservationsDownloaded(anyList(), anyList(), any(Date.class));
+    }
+
+    @Test
+    public void shouldPropagateDownloadErrors() throws Throwable {
+        doThrow(new ObservationController.DownloadObservationException(null)).when(observationController)
+                .downloadObservationsByPatientUuidsAndConceptUuids(anyList(), anyList(), anyString());
+
+        try {
+            pipeline.run(asList(asList("p1"), asList("p2")), asList(asList("c1")), "config", true, null);
+            fail("Expected download exception");
+        } catch (ObservationController.DownloadObservationException e) {
+            // expected
+        }
+    }
+
+    private Observation observationFor(String patientUuid, boolean voided) {
+        Patient patient = new Patient();
+        patient.setUuid(patientUuid);
+        Observation observation = mock(Observation.class);
+        when(observation.getPerson()).thenReturn(patient);
+        when(observation.isVoided()).thenReturn(voided);
+        return observation;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.testSupport.CustomTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ObservationSyncWatermarkStoreTest {
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        journalFile = File.createTempFile("observation-watermarks", ".txt");
+        assertTrue(journalFile.delete());
+    }
+
+    @Test
+    public void shouldDownloadNewConceptsInFullForPatientsSyncedBefore() {
+        ObservationSyncWatermarkStore store = new ObservationSyncWatermarkStore(null);
+        store.recordSync(asList("patient1", "patient2"), asList("concept1"), new Date(1000));
+
+        List<ObservationSyncWatermarkStore.Download> downloads = store.plan(asList("patient1", "patient2", "patient3"),
+                asList("concept1", "concept2"));
+
+        assertThat(downloads.size(), is(3));
+        assertThat(downloads.get(0).getPatientUuids(), is(asList("patient1", "patient2")));
+        assertThat(downloads.get(0).getConceptUuids(), is(asList("concept2")));
+        assertThat(downloads.get(0).getSince(), is(nullValue()));
+        assertThat(downloads.get(1).getPatientUuids(), is(asList("patient3")));
+        assertThat(downloads.get(1).getConceptUuids(), is(asList("concept1", "concept2")));
+        assertThat(downloads.get(1).getSince(), is(nullValue()));
+        assertThat(downloads.get(2).getPatientUuids(), is(asList("patient1", "patient2")));
+        assertThat(downloads.get(2).getConceptUuids(), is(asList("concept1")));
+        assertThat(downloads.get(2).getSince(), is(new Date(1000)));
+    }
+
+    @Test
+    public void shouldReplayJournalWhenLoaded() {
+        ObservationSyncWatermarkStore store = new ObservationSyncWatermarkStore(journalFile);
+        assertThat(store.load(), is(false));
+        store.recordSync(asList("patient1", "patient2"), asList("concept1"), new Date(1000));
+        store.recordSync(asList("patient2"), asList("concept1", "concept2"), new Date(2000));
+
+        ObservationSyncWatermarkStore reloadedStore = new ObservationSyncWatermarkStore(journalFile);
+
+        assertThat(reloadedStore.load(), is(true));
+        assertThat(reloadedStore.size(), is(2));
+        List<ObservationSyncWatermarkStore.Download> downloads = reloadedStore.plan(asList("patient1", "patient2"),
+                asList("concept1", "concept2"));
+        assertThat(downloads.size(), is(3));
+        assertThat(downloads.get(0).getPatientUuids(), is(asList("patient1")));
+        assertThat(downloads.get(0).getConceptUuids(), is(asList("concept2")));
+        assertThat(downloads.get(1).getSince(), is(new Date(1000)));
+        assertThat(downloads.get(2).getPatientUuids(), is(asList("patient2")));
+        assertThat(downloads.get(2).getConceptUuids(), is(asList("concept1", "concept2")));
+        assertThat(downloads.get(2).getSince(), is(new Date(2000)));
+    }
+
+    @Test
+    public void shouldDownloadEverythingInFullAfterBeingCleared() {
+        ObservationSyncWatermarkStore store = new ObservationSyncWatermarkStore(journalFile);
+        store.recordSync(asList("patient1"), asList("concept1"), new Date(1000));
+
+        store.clear();
+
+        assertThat(store.size(), is(0));
+        assertThat(journalFile.exists(), is(false));
+        ObservationSyncWatermarkStore reloadedStore = new ObservationSyncWatermarkStore(journalFile);
+        assertThat(reloadedStore.load(), is(false));
+        List<ObservationSyncWatermarkStore.Download> downloads = store.plan(asList("patient1"), asList("concept1"));
+        assertThat(downloads.size(), is(1));
+        assertThat(downloads.get(0).getSince(), is(nullValue()));
+    }
+
+    @Test
+    public void shouldDownloadForgottenPatientsAndConceptsInFullAfterBeingReloaded() {
+        ObservationSyncWatermarkStore store = new ObservationSyncWatermarkStore(journalFile);
+        store.recordSync(asList("patient1", "patient2", "patient3"), asList("concept1", "concept2"), new Date(1000));
+
+        store.forgetPatients(asList("patient1"));
+        store.forgetConcepts(asList("concept2"));
+
+        ObservationSyncWatermarkStore reloadedStore = new ObservationSyncWatermarkStore(journalFile);
+        assertThat(reloadedStore.load(), is(true));
+        assertThat(reloadedStore.size(), is(2));
+        List<ObservationSyncWatermarkStore.Download> downloads = reloadedStore.plan(asList("patient1", "patient2"),
+                asList("concept1", "concept2"));
+        assertThat(downloads.size(), is(3));
+        assertThat(downloads.get(0).getPatientUuids(), is(asList("patient1")));
+        assertThat(downloads.get(0).getConceptUuids(), is(asList("concept1", "concept2")));
+        assertThat(downloads.get(0).getSince(), is(nullValue()));
+        assertThat(downloads.get(1).getPatientUuids(), is(asList("patient2")));
+        assertThat(downloads.get(1).getConceptUuids(), is(asList("concept2")));
+        assertThat(downloads.get(1).getSince(), is(nullValue()));
+        assertThat(downloads.get(2).getPatientUuids(), is(asList("patient2")));
+        assertThat(downloads.get(2).getConceptUuids(), is(asList("concept1")));
+        assertThat(downloads.get(2).getSince(), is(new Date(1000)));
+    }
+}
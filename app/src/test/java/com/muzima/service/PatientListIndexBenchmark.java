@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.Patient;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.muzima.builder.PatientBuilder.patient;
+
+/**
+ * Compares searches of the {@link PatientListIndex} with a scan of the names and identifiers of
+ * every patient, on 50000 generated patients.
+ * Run manually; it is too slow to be part of the regular test run.
+ */
+@Ignore("Benchmark, run manually")
+public class PatientListIndexBenchmark {
+    private static final String[] SYLLABLES = {"ka", "ma", "ni", "ot", "ie", "no", "wa", "nj", "ru", "ba", "ra", "sa", "ki", "mu", "ch", "ge"};
+    private static final String[] TERMS = {"wa", "kam", "anji", "mu ba", "id-4711", "kamaniwa"};
+    private static final int PATIENT_COUNT = 50000;
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void compareWithScan() {
+        List<Patient> patients = generatePatients();
+        PatientListIndex index = new PatientListIndex();
+
+        long start = System.nanoTime();
+        index.reset(patients);
+        System.out.println(String.format(Locale.US, "indexed %d patients in %.2f ms", PATIENT_COUNT, (System.nanoTime() - start) / 1e6));
+
+        for (String term : TERMS) {
+            // warm up both searches
+            search(index, term);
+            scan(patients, term);
+
+            start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                found = search(index, term);
+            }
+            long indexTime = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            int scanned = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                scanned = scan(patients, term);
+            }
+            long scanTime = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.println(String.format(Locale.US, "%-10s %6d matches: index %8.2f ms, scan %6d matches %8.2f ms",
+                    term, found, indexTime / 1e6, scanned, scanTime / 1e6));
+        }
+    }
+
+    private int search(PatientListIndex index, String term) {
+        // a new patient drops the cached results, as a changed index would
+        index.put(patient().withUuid("benchmark").withFamilyName("Benchmark").instance());
+        return index.search(term, Collections.<String>emptyList(), 1, Integer.MAX_VALUE, () -> false).size();
+    }
+
+    private int scan(List<Patient> patients, String term) {
+        String[] words = term.toLowerCase(Locale.ROOT).split(" ");
+        int found = 0;
+        for (Patient patient : patients) {
+            String text = (patient.getGivenName() + " " + patient.getFamilyName() + " "
+                    + patient.getIdentifier()).toLowerCase(Locale.ROOT);
+            boolean matches = true;
+            for (String word : words) {
+                matches &= text.contains(word);
+            }
+            if (matches) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private List<Patient> generatePatients() {
+        Random random = new Random(42);
+        List<Patient> patients = new ArrayList<>(PATIENT_COUNT);
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            patients.add(patient().withUuid("patient" + i)
+                    .withGivenName(name(random))
+                    .withFamilyName(name(random))
+                    .withIdentifier("ID-" + i)
+                    .instance());
+        }
+        return patients;
+    }
+
+    private String name(Random random) {
+        StringBuilder name = new StringBuilder();
+        int syllables = 2 + random.nextInt(3);
+        for (int i = 0; i < syllables; i++) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
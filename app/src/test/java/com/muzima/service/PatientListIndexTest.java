@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.api.model.Patient;
+import com.muzima.api.model.PatientTag;
+import com.muzima.api.model.PersonAddress;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.muzima.builder.PatientBuilder.patient;
+import static com.muzima.utils.Constants.FGH.TagsUuids.ALREADY_ASSIGNED_TAG_UUID;
+import static com.muzima.utils.Constants.FGH.TagsUuids.HAS_SEXUAL_PARTNER_TAG_UUID;
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class PatientListIndexTest {
+    private PatientListIndex index;
+
+    @Before
+    public void setUp() {
+        index = new PatientListIndex();
+        index.reset(asList(
+                tagged(patient().withUuid("patient1").withFamilyName("Otieno").instance(), "tag1"),
+                tagged(patient().withUuid("patient2").withFamilyName("Akinyi").instance(), "tag2", HAS_SEXUAL_PARTNER_TAG_UUID),
+                tagged(patient().withUuid("patient3").withFamilyName("Barasa").instance(), "tag1", ALREADY_ASSIGNED_TAG_UUID)));
+    }
+
+    @Test
+    public void shouldListPatientsSortedByName() {
+        assertThat(uuids(index.getPatients(Collections.<String>emptyList(), null)), is(asList("patient2", "patient3", "patient1")));
+    }
+
+    @Test
+    public void shouldFilterPatientsByTagsAndCohorts() {
+        index.setCohortMembers("cohort1", asList("patient1", "patient2"));
+
+        assertThat(uuids(index.getPatients(Collections.<String>emptyList(), asList("tag1"))), is(asList("patient3", "patient1")));
+        assertThat(uuids(index.getPatients(Collections.<String>emptyList(), asList("tag1", ALREADY_ASSIGNED_TAG_UUID))), is(asList("patient3")));
+        assertThat(uuids(index.getPatients(Collections.<String>emptyList(), asList("tag2", HAS_SEXUAL_PARTNER_TAG_UUID))), is(asList("patient2")));
+        assertThat(uuids(index.getPatients(asList("cohort1"), asList("tag1"))), is(asList("patient1")));
+    }
+
+    @Test
+    public void shouldKeepSortOrderWhenPatientsChange() {
+        index.put(patient().withUuid("patient1").withFamilyName("Achieng").instance());
+        index.put(patient().withUuid("patient4").withFamilyName("Wanjiru").instance());
+        index.remove("patient3");
+
+        assertThat(uuids(index.getPatients(Collections.<String>emptyList(), null)), is(asList("patient1", "patient2", "patient4")));
+    }
+
+    @Test
+    public void shouldSearchNamesAndIdentifiersByPrefixAndPartialMatch() {
+        index.put(patient().withUuid("patient4").withGivenName("Mary").withFamilyName("Wanjiru").withIdentifier("KE-1234").instance());
+
+        assertThat(uuids(search("wa")), is(asList("patient4")));
+        assertThat(uuids(search("anji")), is(asList("patient4")));
+        assertThat(uuids(search("MARY wanj")), is(asList("patient4")));
+        assertThat(uuids(search("1234")), is(asList("patient4")));
+        assertThat(uuids(search("ke-1234")), is(asList("patient4")));
+        assertThat(uuids(search("an")), is(Collections.<String>emptyList()));
+        assertThat(uuids(search("mary otieno")), is(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void shouldRankExactMatchesBeforePrefixAndPartialMatches() {
+        index.reset(asList(
+                patient().withUuid("partial").withFamilyName("Wambasa").instance(),
+                patient().withUuid("prefix").withFamilyName("Basaye").instance(),
+                patient().withUuid("exact").withFamilyName("Zawadi").withGivenName("Basa").instance()));
+
+        assertThat(uuids(search("basa")), is(asList("exact", "prefix", "partial")));
+    }
+
+    @Test
+    public void shouldPageSearchResultsAndSeeChanges() {
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            patients.add(patient().withUuid("patient" + i).withFamilyName("Kamau").withGivenName("Name" + i).instance());
+        }
+        index.reset(patients);
+
+        assertThat(uuids(index.search("kamau", Collections.<String>emptyList(), 1, 2, () -> false)), is(asList("patient0", "patient1")));
+        assertThat(uuids(index.search("kamau", Collections.<String>emptyList(), 3, 2, () -> false)), is(asList("patient4")));
+        assertThat(index.search("kamau", Collections.<String>emptyList(), 4, 2, () -> false).size(), is(0));
+
+        index.remove("patient0");
+        index.setCohortMembers("cohort1", asList("patient1", "patient2"));
+        assertThat(uuids(index.search("kamau", Collections.<String>emptyList(), 1, 2, () -> false)), is(asList("patient1", "patient2")));
+        assertThat(uuids(index.search("kamau", asList("cohort1"), 1, 10, () -> false)), is(asList("patient1", "patient2")));
+    }
+
+    @Test
+    public void shouldReturnNothingWhenSearchIsCancelled() {
+        assertThat(index.search("otieno", Collections.<String>emptyList(), 1, 10, () -> true).size(), is(0));
+        assertThat(uuids(search("otieno")), is(asList("patient1")));
+    }
+
+    @Test
+    public void shouldListOnlyWhatThePatientListShows() {
+        Patient patient = patient().withUuid("patient4").withFamilyName("Wanjiru").withGivenName("Mary")
+                .withIdentifier("KE-1234").withSex("F").instance();
+        index.reset(asList(patient));
+        patient.getNames().get(0).setFamilyName("Changed");
+
+        Patient listed = index.getPatients(Collections.<String>emptyList(), null).get(0);
+
+        assertThat(listed == patient, is(false));
+        assertThat(listed.getUuid(), is("patient4"));
+        assertThat(listed.getFamilyName(), is("Wanjiru"));
+        assertThat(listed.getGivenName(), is("Mary"));
+        assertThat(listed.getIdentifier(), is("KE-1234"));
+        assertThat(listed.getGender(), is("F"));
+        assertThat(listed.getTags().length, is(0));
+    }
+
+    @Test
+    public void shouldShareTagsAndKeepOnlyTheCoordinatesOfTheAddress() {
+        Patient patient = tagged(patient().withUuid("patient4").withFamilyName("Wanjiru").instance(), HAS_SEXUAL_PARTNER_TAG_UUID);
+        Patient partner = tagged(patient().withUuid("patient5").withFamilyName("Wekesa").instance(), HAS_SEXUAL_PARTNER_TAG_UUID);
+        PersonAddress address = new PersonAddress();
+        address.setLatitude("-0.5");
+        address.setLongitude("35.2");
+        address.setPreferred(true);
+        patient.setAddresses(asList(address));
+        index.reset(asList(patient, partner));
+
+        List<Patient> listed = index.getPatients(Collections.<String>emptyList(), null);
+
+        assertThat(listed.get(0).getTags()[0] == listed.get(1).getTags()[0], is(true));
+        assertThat(listed.get(0).getTags()[0].getUuid(), is(HAS_SEXUAL_PARTNER_TAG_UUID));
+        assertThat(listed.get(0).getPreferredAddress() == address, is(false));
+        assertThat(listed.get(0).getPreferredAddress().getLatitude(), is("-0.5"));
+        assertThat(listed.get(0).getPreferredAddress().getLongitude(), is("35.2"));
+        assertThat(listed.get(1).getPreferredAddress() == null, is(true));
+    }
+
+    @Test
+    public void shouldForgetPatientsAndCohortsWhenCleared() {
+        index.setCohortMembers("cohort1", asList("patient1"));
+
+        index.clear();
+
+        assertThat(index.size(), is(0));
+        assertThat(index.hasCohort("cohort1"), is(false));
+        assertThat(search("otieno").size(), is(0));
+    }
+
+    private List<Patient> search(String term) {
+        return index.search(term, Collections.<String>emptyList(), 1, 100, () -> false);
+    }
+
+    private Patient tagged(Patient patient, String... tagUuids) {
+        PatientTag[] tags = new PatientTag[tagUuids.length];
+        for (int i = 0; i < tagUuids.length; i++) {
+            tags[i] = new PatientTag();
+            tags[i].setUuid(tagUuids[i]);
+        }
+        patient.setTags(tags);
+        return patient;
+    }
+
+    private List<String> uuids(List<Patient> patients) {
+        List<String> uuids = new ArrayList<>();
+        for (Patient patient : patients) {
+            uuids.add(patient.getUuid());
+        }
+        return uuids;
+    }
+}
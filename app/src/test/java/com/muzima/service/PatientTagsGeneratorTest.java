@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.MuzimaApplication;
+import com.muzima.api.model.Patient;
+import com.muzima.api.model.PatientTag;
+import com.muzima.api.model.PersonAddress;
+import com.muzima.api.model.Relationship;
+import com.muzima.api.model.RelationshipType;
+import com.muzima.controller.MuzimaSettingController;
+import com.muzima.controller.ObservationController;
+import com.muzima.controller.PatientController;
+import com.muzima.controller.RelationshipController;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.muzima.utils.Constants.FGH.TagsUuids.HAS_SEXUAL_PARTNER_TAG_UUID;
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PatientTagsGeneratorTest {
+    private PatientController patientController;
+    private RelationshipController relationshipController;
+    private PatientTagsGenerator patientTagsGenerator;
+    private final Object patientTagsLock = new Object();
+
+    @Before
+    public void setUp() throws Exception {
+        MuzimaApplication muzimaApplication = mock(MuzimaApplication.class);
+        MuzimaSettingController settingController = mock(MuzimaSettingController.class);
+        when(muzimaApplication.getMuzimaSettingController()).thenReturn(settingController);
+        when(settingController.isAllocationTagGenerationEnabled()).thenReturn(false);
+        patientController = mock(PatientController.class);
+        relationshipController = mock(RelationshipController.class);
+        when(patientController.getAllTags()).thenReturn(new ArrayList<PatientTag>());
+        when(patientController.getPatientTagsLock()).thenReturn(patientTagsLock);
+        patientTagsGenerator = new PatientTagsGenerator(muzimaApplication, patientController, relationshipController,
+                mock(ObservationController.class));
+    }
+
+    @Test
+    public void shouldTagBothSexualPartnersAndWriteThemInOneBatch() throws Throwable {
+        Patient patient = patient("patient1");
+        Patient partner = patient("patient2");
+        Relationship relationship = sexualPartnerRelationship(patient, partner);
+        when(patientController.getPatientByUuid("patient1")).thenReturn(patient);
+        when(patientController.getPatientByUuid("patient2")).thenReturn(partner);
+        when(relationshipController.getRelationshipsForPerson(anyString())).thenReturn(asList(relationship));
+
+        int updatedPatients = patientTagsGenerator.generateTags(asList("patient1", "patient2"));
+
+        assertThat(updatedPatients, is(2));
+        assertThat(patient.getTags()[0].getUuid(), is(HAS_SEXUAL_PARTNER_TAG_UUID));
+        assertThat(partner.getTags()[0].getUuid(), is(HAS_SEXUAL_PARTNER_TAG_UUID));
+        assertThat(partner.getTags().length, is(1));
+        ArgumentCaptor<List> updatedPatientsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(patientController, times(1)).replacePatients(updatedPatientsCaptor.capture());
+        assertThat(updatedPatientsCaptor.getValue().size(), is(2));
+        verify(patientController, times(1)).savePatientTags(patient.getTags()[0]);
+        verify(patientController, never()).updatePatient(patient);
+    }
+
+    @Test
+    public void shouldNotWritePatientsWhoseTagsAreUnchanged() throws Throwable {
+        when(patientController.getPatientByUuid("patient1")).thenReturn(patient("patient1"));
+        when(relationshipController.getRelationshipsForPerson("patient1")).thenReturn(new ArrayList<Relationship>());
+
+        assertThat(patientTagsGenerator.generateTags(asList("patient1")), is(0));
+
+        verify(patientController, never()).replacePatients(anyList());
+    }
+
+    @Test
+    public void shouldLoadPatientsAndRelationshipsInBulkForLargeLists() throws Throwable {
+        List<String> patientUuids = new ArrayList<>();
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            patientUuids.add("patient" + i);
+            patients.add(patient("patient" + i));
+        }
+        when(patientController.getAllPatients()).thenReturn(patients);
+        when(relationshipController.getAllRelationships()).thenReturn(asList(sexualPartnerRelationship(patients.get(0), patients.get(1))));
+
+        assertThat(patientTagsGenerator.generateTags(patientUuids), is(2));
+
+        verify(patientController, never()).getPatientByUuid(anyString());
+        verify(relationshipController, never()).getRelationshipsForPerson(anyString());
+    }
+
+    @Test
+    public void shouldStillTagTheOtherPatientsWhenOnePatientFails() throws Throwable {
+        Patient patient = patient("patient2");
+        Patient partner = patient("patient3");
+        when(patientController.getPatientByUuid("patient1")).thenThrow(new PatientController.PatientLoadException(new Exception()));
+        when(patientController.getPatientByUuid("patient2")).thenReturn(patient);
+        when(patientController.getPatientByUuid("patient3")).thenReturn(partner);
+        when(relationshipController.getRelationshipsForPerson("patient2")).thenReturn(asList(sexualPartnerRelationship(patient, partner)));
+
+        assertThat(patientTagsGenerator.generateTags(asList("patient1", "patient2")), is(2));
+
+        ArgumentCaptor<List> updatedPatientsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(patientController, times(1)).replacePatients(updatedPatientsCaptor.capture());
+        assertThat(updatedPatientsCaptor.getValue().size(), is(2));
+    }
+
+    @Test
+    public void shouldHoldThePatientTagsLockWhileWritingTags() throws Throwable {
+        Patient patient = patient("patient1");
+        Patient partner = patient("patient2");
+        when(patientController.getPatientByUuid("patient1")).thenReturn(patient);
+        when(patientController.getPatientByUuid("patient2")).thenReturn(partner);
+        when(relationshipController.getRelationshipsForPerson(anyString())).thenReturn(asList(sexualPartnerRelationship(patient, partner)));
+        final List<Boolean> lockHeld = new ArrayList<>();
+        doAnswer(invocation -> lockHeld.add(Thread.holdsLock(patientTagsLock))).when(patientController).replacePatients(anyList());
+
+        patientTagsGenerator.generateTags(asList("patient1"));
+
+        assertThat(lockHeld, is(asList(true)));
+    }
+
+    private Patient patient(String uuid) {
+        Patient patient = new Patient();
+        patient.setUuid(uuid);
+        patient.setTags(new PatientTag[0]);
+        patient.setAddresses(new ArrayList<PersonAddress>());
+        return patient;
+    }
+
+    private Relationship sexualPartnerRelationship(Patient personA, Patient personB) {
+        RelationshipType relationshipType = new RelationshipType();
+        relationshipType.setUuid(PatientTagsGenerator.SEXUAL_PARTNER_RELATIONSHIP_TYPE_UUID);
+        Relationship relationship = new Relationship();
+        relationship.setRelationshipType(relationshipType);
+        relationship.setPersonA(personA);
+        relationship.setPersonB(personB);
+        return relationship;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.service;
+
+import com.muzima.model.events.SyncProgressEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.muzima.model.events.SyncProgressEvent.PHASE_OBSERVATIONS;
+import static com.muzima.model.events.SyncProgressEvent.PHASE_RELATIONSHIPS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class SyncProgressReporterTest {
+    private static final long AN_HOUR = 60 * 60 * 1000;
+
+    private List<SyncProgressEvent> events;
+    private List<Runnable> trailingDeliveries;
+    private List<Long> trailingDelays;
+
+    @Before
+    public void setUp() {
+        events = new ArrayList<>();
+        trailingDeliveries = new ArrayList<>();
+        trailingDelays = new ArrayList<>();
+    }
+
+    @Test
+    public void shouldCoalesceUpdatesWithinTheIntervalToTheLatest() {
+        SyncProgressReporter reporter = reporter(AN_HOUR);
+
+        for (int done = 1; done < 100; done++) {
+            reporter.report(PHASE_RELATIONSHIPS, "patient " + done, done, 100);
+        }
+        assertThat(events.size(), is(1));
+        assertThat(events.get(0).getDone(), is(1));
+
+        reporter.flush();
+        assertThat(events.size(), is(2));
+        assertThat(events.get(1).getDone(), is(99));
+        assertThat(events.get(1).getMessage(), is("patient 99"));
+    }
+
+    @Test
+    public void shouldDeliverTheEndOfAPhaseRightAway() {
+        SyncProgressReporter reporter = reporter(AN_HOUR);
+
+        reporter.report(PHASE_RELATIONSHIPS, "started", 0, 10);
+        reporter.report(PHASE_RELATIONSHIPS, "halfway", 5, 10);
+        reporter.report(PHASE_RELATIONSHIPS, "done", 10, 10);
+
+        assertThat(events.size(), is(2));
+        assertThat(events.get(1).getMessage(), is("done"));
+        reporter.flush();
+        assertThat(events.size(), is(2));
+    }
+
+    @Test
+    public void shouldDeliverThePendingUpdateOnceTheIntervalIsOver() {
+        SyncProgressReporter reporter = reporter(AN_HOUR);
+
+        reporter.report(PHASE_OBSERVATIONS, "slice 1", 1, 4);
+        reporter.report(PHASE_OBSERVATIONS, "slice 2", 2, 4);
+        reporter.report(PHASE_OBSERVATIONS, "slice 3", 3, 4);
+        assertThat(events.size(), is(1));
+        assertThat(trailingDeliveries.size(), is(1));
+        assertTrue(trailingDelays.get(0) > 0 && trailingDelays.get(0) <= AN_HOUR);
+
+        trailingDeliveries.get(0).run();
+        assertThat(events.size(), is(2));
+        assertThat(events.get(1).getMessage(), is("slice 3"));
+    }
+
+    @Test
+    public void shouldKeepTheProgressOfPhasesRunningAtTheSameTimeApart() {
+        SyncProgressReporter reporter = reporter(AN_HOUR);
+
+        reporter.report(PHASE_OBSERVATIONS, "slice 1", 1, 4);
+        reporter.report(PHASE_RELATIONSHIPS, "patient 1", 1, 100);
+        reporter.report(PHASE_OBSERVATIONS, "slice 2", 2, 4);
+        reporter.report(PHASE_RELATIONSHIPS, "patient 2", 2, 100);
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getPhase(), is(PHASE_OBSERVATIONS));
+        assertThat(events.get(1).getPhase(), is(PHASE_RELATIONSHIPS));
+
+        reporter.flush();
+        assertThat(events.size(), is(4));
+        for (SyncProgressEvent event : events.subList(2, 4)) {
+            if (PHASE_OBSERVATIONS.equals(event.getPhase())) {
+                assertThat(event.getDone(), is(2));
+                assertThat(event.getTotal(), is(4));
+            } else {
+                assertThat(event.getDone(), is(2));
+                assertThat(event.getTotal(), is(100));
+            }
+        }
+    }
+
+    @Test
+    public void shouldDeliverAMessageInPlaceOfThePendingUpdateOfItsPhase() {
+        SyncProgressReporter reporter = reporter(AN_HOUR);
+
+        reporter.report(PHASE_RELATIONSHIPS, "patient 1", 1, 100);
+        reporter.report(PHASE_RELATIONSHIPS, "patient 2", 2, 100);
+        reporter.reportMessage(PHASE_RELATIONSHIPS, "relationships not downloaded");
+        reporter.flush();
+
+        assertThat(events.size(), is(2));
+        assertThat(events.get(1).getMessage(), is("relationships not downloaded"));
+    }
+
+    @Test
+    public void shouldEstimateTheRemainingTimeFromTheRateOfThePhase() throws InterruptedException {
+        SyncProgressReporter reporter = reporter(0);
+
+        reporter.report(PHASE_OBSERVATIONS, "started", 0, 4);
+        assertThat(events.get(0).getEtaMillis(), is(-1L));
+        Thread.sleep(20);
+        reporter.report(PHASE_OBSERVATIONS, "slice 1", 1, 4);
+
+        SyncProgressEvent event = events.get(1);
+        assertTrue(event.getItemsPerSecond() > 0);
+        assertTrue(event.getEtaMillis() >= 0);
+        assertThat(event.getTotal(), is(4));
+    }
+
+    private SyncProgressReporter reporter(long minIntervalMillis) {
+        return new SyncProgressReporter(minIntervalMillis, events::add, (runnable, delayMillis) -> {
+            trailingDeliveries.add(runnable);
+            trailingDelays.add(delayMillis);
+        });
+    }
+}
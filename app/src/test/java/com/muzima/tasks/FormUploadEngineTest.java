@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.tasks;
+
+import com.muzima.api.model.FormData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class FormUploadEngineTest {
+    private static final List<String> ORDER = asList("registration", "relationship", "demographics", "encounter");
+    private static final List<String> FIRST = asList("registration");
+
+    private MuzimaTaskScheduler scheduler;
+    private List<String> uploads;
+    private List<String> savedStatuses;
+
+    @Before
+    public void setUp() {
+        scheduler = new MuzimaTaskScheduler();
+        uploads = Collections.synchronizedList(new ArrayList<String>());
+        savedStatuses = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Test
+    public void shouldUploadTheFormsOfAPatientInDependencyOrder() throws Exception {
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 3, 1, 0);
+
+        FormUploadEngine.Result result = engine.upload(asList(formData("e1", "patient1", "encounter"),
+                formData("d1", "patient1", "demographics"), formData("e2", "patient2", "encounter"),
+                formData("r1", "patient1", "registration")), this::upload, this::saveStatus);
+
+        List<String> patient1Uploads = new ArrayList<>(uploads);
+        patient1Uploads.remove("e2");
+        assertThat(patient1Uploads, is(asList("r1", "d1", "e1")));
+        assertTrue(result.isSuccessful());
+        assertThat(result.getUploadedForms(), is(4));
+        assertThat(result.getUploadedBytes(), is(24L));
+    }
+
+    @Test
+    public void shouldUploadEveryRegistrationBeforeAnyOtherForm() throws Exception {
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 3, 1, 0);
+
+        engine.upload(asList(formData("rel1", "patient1", "relationship"), formData("e1", "patient1", "encounter"),
+                formData("r2", "patient2", "registration"), formData("r3", "patient3", "registration")),
+                this::upload, this::saveStatus);
+
+        assertThat(uploads.size(), is(4));
+        assertThat(new HashSet<>(uploads.subList(0, 2)), is(new HashSet<>(asList("r2", "r3"))));
+    }
+
+    @Test
+    public void shouldDeferTheFormsOfAPatientWhoseRegistrationFailed() throws Exception {
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 3, 1, 0);
+
+        FormUploadEngine.Result result = engine.upload(asList(formData("r1", "patient1", "registration"),
+                formData("d1", "patient1", "demographics"), formData("e1", "patient1", "encounter"),
+                formData("e2", "patient2", "encounter")),
+                formData -> "r1".equals(formData.getUuid()) ? FormUploadEngine.REJECTED : upload(formData),
+                this::saveStatus);
+
+        assertThat(uploads, is(asList("e2")));
+        assertThat(result.getFailedForms(), is(1));
+        assertThat(result.getDeferredForms(), is(2));
+    }
+
+    @Test
+    public void shouldNotUploadFormsWithDiscriminatorsOutsideTheOrder() throws Exception {
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 3, 1, 0);
+
+        engine.upload(asList(formData("r1", "patient1", "registration"), formData("report", "patient1", "report")),
+                this::upload, this::saveStatus);
+
+        assertThat(uploads, is(asList("r1")));
+    }
+
+    @Test
+    public void shouldDeferTheLaterFormsOfAPatientWhoseFormFailed() throws Exception {
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 3, 1, 0);
+
+        FormUploadEngine.Result result = engine.upload(asList(formData("r1", "patient1", "registration"),
+                formData("e1", "patient1", "encounter"), formData("e2", "patient2", "encounter")),
+                formData -> "r1".equals(formData.getUuid()) ? FormUploadEngine.REJECTED : upload(formData),
+                this::saveStatus);
+
+        assertThat(uploads, is(asList("e2")));
+        assertFalse(result.isSuccessful());
+        assertThat(result.getFailedForms(), is(1));
+        assertThat(result.getDeferredForms(), is(1));
+        assertThat(savedStatuses, is(asList("e2")));
+    }
+
+    @Test
+    public void shouldRetryUploadsFailingBeforeTheRequestWasSent() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 1, 3, 1);
+
+        FormUploadEngine.Result result = engine.upload(asList(formData("r1", "patient1", "registration")), formData -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new ConnectException("Connection refused");
+            }
+            return upload(formData);
+        }, this::saveStatus);
+
+        assertThat(attempts.get(), is(3));
+        assertTrue(result.isSuccessful());
+    }
+
+    @Test
+    public void shouldGiveUpAfterTheLastAttempt() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 1, 2, 1);
+
+        FormUploadEngine.Result result = engine.upload(asList(formData("r1", "patient1", "registration")), formData -> {
+            attempts.incrementAndGet();
+            throw new IOException(new ConnectException("Connection refused"));
+        }, this::saveStatus);
+
+        assertThat(attempts.get(), is(2));
+        assertThat(result.getFailedForms(), is(1));
+        assertTrue(savedStatuses.isEmpty());
+    }
+
+    @Test
+    public void shouldNotRetryUploadsWhichMayHaveReachedTheServer() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 1, 3, 1);
+
+        FormUploadEngine.Result result = engine.upload(asList(formData("r1", "patient1", "registration")), formData -> {
+            attempts.incrementAndGet();
+            throw new SocketTimeoutException("Read timed out");
+        }, this::saveStatus);
+
+        assertThat(attempts.get(), is(1));
+        assertThat(result.getFailedForms(), is(1));
+    }
+
+    @Test
+    public void shouldSaveTheStatusOfEachFormRightAfterItsUpload() throws Exception {
+        List<String> events = new ArrayList<>();
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 1, 1, 0);
+
+        engine.upload(asList(formData("r1", "patient1", "registration"), formData("e1", "patient1", "encounter")),
+                formData -> {
+                    events.add("upload " + formData.getUuid());
+                    return upload(formData);
+                }, formData -> events.add("status " + formData.getUuid()));
+
+        assertThat(events, is(asList("upload r1", "status r1", "upload e1", "status e1")));
+    }
+
+    @Test
+    public void shouldNotHaveMorePatientsInFlightThanAllowed() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 3, 1, 0);
+        List<FormData> formDataList = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            formDataList.add(formData("e" + i, "patient" + i, "encounter"));
+        }
+
+        FormUploadEngine.Result result = engine.upload(formDataList, formData -> {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.set(Math.max(maxInFlight.get(), current));
+            sleep(5);
+            inFlight.decrementAndGet();
+            return upload(formData);
+        }, this::saveStatus);
+
+        assertThat(result.getUploadedForms(), is(20));
+        assertTrue(maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void shouldNotDeferFormsWithoutAPatientWhenAnotherSuchFormFailed() throws Exception {
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 1, 1, 0);
+
+        FormUploadEngine.Result result = engine.upload(asList(formData("e1", null, "encounter"),
+                formData("e2", null, "encounter")),
+                formData -> "e1".equals(formData.getUuid()) ? FormUploadEngine.REJECTED : upload(formData),
+                this::saveStatus);
+
+        assertThat(uploads, is(asList("e2")));
+        assertThat(result.getFailedForms(), is(1));
+        assertThat(result.getDeferredForms(), is(0));
+    }
+
+    @Test
+    public void shouldWriteTheStatusOfOneFormAtATime() throws Exception {
+        AtomicInteger writing = new AtomicInteger();
+        AtomicInteger maxWriting = new AtomicInteger();
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 3, 1, 0);
+        List<FormData> formDataList = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            formDataList.add(formData("e" + i, "patient" + i, "encounter"));
+        }
+
+        engine.upload(formDataList, this::upload, uploadedForm -> {
+            int current = writing.incrementAndGet();
+            maxWriting.set(Math.max(maxWriting.get(), current));
+            sleep(2);
+            writing.decrementAndGet();
+            saveStatus(uploadedForm);
+        });
+
+        assertThat(savedStatuses.size(), is(20));
+        assertThat(maxWriting.get(), is(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldReportAnErrorSavingTheStatusOfUploadedForms() throws Exception {
+        FormUploadEngine engine = new FormUploadEngine(scheduler, "upload", ORDER, FIRST, 1, 1, 0);
+
+        engine.upload(asList(formData("r1", "patient1", "registration")), this::upload, uploadedForm -> {
+            throw new IOException("Disk full");
+        });
+    }
+
+    private long upload(FormData formData) {
+        uploads.add(formData.getUuid());
+        return formData.getJsonPayload().length();
+    }
+
+    private void saveStatus(FormData uploadedForm) {
+        savedStatuses.add(uploadedForm.getUuid());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static FormData formData(String uuid, String patientUuid, String discriminator) {
+        FormData formData = new FormData();
+        formData.setUuid(uuid);
+        formData.setPatientUuid(patientUuid);
+        formData.setDiscriminator(discriminator);
+        formData.setJsonPayload("{\"" + uuid + "\"}");
+        return formData;
+    }
+}
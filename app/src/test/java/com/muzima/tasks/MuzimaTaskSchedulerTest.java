@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.muzima.tasks.MuzimaTaskScheduler.Lane.SYNC_IO;
+import static com.muzima.tasks.MuzimaTaskScheduler.Lane.UI_QUERY;
+import static com.muzima.tasks.MuzimaTaskScheduler.Priority.BACKGROUND;
+import static com.muzima.tasks.MuzimaTaskScheduler.Priority.NORMAL;
+import static com.muzima.tasks.MuzimaTaskScheduler.Priority.USER_VISIBLE;
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MuzimaTaskSchedulerTest {
+    private static final int LANE_THREADS = 4;
+
+    private MuzimaTaskScheduler scheduler;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        scheduler = new MuzimaTaskScheduler();
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void shouldRunQueuedTasksByPriorityThenInOrderOfSubmission() throws Exception {
+        blockLane(UI_QUERY);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(scheduler.submit(UI_QUERY, BACKGROUND, "sync", () -> order.add("background")));
+        futures.add(scheduler.submit(UI_QUERY, NORMAL, "load", () -> order.add("normal")));
+        futures.add(scheduler.submit(UI_QUERY, USER_VISIBLE, "search", () -> order.add("search 1")));
+        futures.add(scheduler.submit(UI_QUERY, USER_VISIBLE, "search", () -> order.add("search 2")));
+        assertThat(scheduler.getQueueDepth(UI_QUERY), is(4));
+
+        release.countDown();
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(order, is(asList("search 1", "search 2", "normal", "background")));
+    }
+
+    @Test
+    public void shouldKeepLanesApart() throws Exception {
+        blockLane(SYNC_IO);
+
+        Future<String> result = scheduler.submit(UI_QUERY, USER_VISIBLE, "search", () -> "found");
+
+        assertThat(result.get(5, TimeUnit.SECONDS), is("found"));
+    }
+
+    @Test
+    public void shouldRejectTasksOnceTheQueueOfTheLaneIsFull() throws Exception {
+        blockLane(UI_QUERY);
+        int queued = 0;
+        try {
+            while (queued < 1000) {
+                scheduler.submit(UI_QUERY, NORMAL, "load", () -> { });
+                queued++;
+            }
+            fail("Expected the lane to reject tasks");
+        } catch (RejectedExecutionException e) {
+            assertThat(queued, is(64));
+        }
+        assertThat(scheduler.getTaskMetrics().get("load").getRejected(), is(1L));
+    }
+
+    @Test
+    public void shouldLetRunningTasksNoticeTheyWereCancelled() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean noticed = new AtomicBoolean(false);
+        Future<?> future = scheduler.submit(SYNC_IO, BACKGROUND, "sync", () -> {
+            started.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                if (MuzimaTaskScheduler.isCurrentTaskCancelled()) {
+                    noticed.set(true);
+                    return;
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertFalse(MuzimaTaskScheduler.isCurrentTaskCancelled());
+
+        future.cancel(false);
+        awaitRuns("sync", 1);
+
+        assertTrue(noticed.get());
+    }
+
+    @Test
+    public void shouldSkipQueuedTasksWhichWereCancelled() throws Exception {
+        blockLane(UI_QUERY);
+        AtomicBoolean ran = new AtomicBoolean(false);
+        Future<?> future = scheduler.submit(UI_QUERY, NORMAL, "load", () -> ran.set(true));
+        future.cancel(false);
+
+        release.countDown();
+        scheduler.submit(UI_QUERY, NORMAL, "after", () -> { }).get(5, TimeUnit.SECONDS);
+
+        assertFalse(ran.get());
+        assertThat(scheduler.getTaskMetrics().get("load").getCancelled(), is(1L));
+        assertThat(scheduler.getTaskMetrics().get("load").getRuns(), is(0L));
+    }
+
+    @Test
+    public void shouldRecordWaitAndRunTimeByTaskType() throws Exception {
+        blockLane(UI_QUERY);
+        Future<?> future = scheduler.submit(UI_QUERY, NORMAL, "load", () -> sleep(30));
+        sleep(30);
+        release.countDown();
+        future.get(5, TimeUnit.SECONDS);
+        awaitRuns("load", 1);
+
+        MuzimaTaskScheduler.TaskMetrics metrics = scheduler.getTaskMetrics().get("load");
+        assertTrue(metrics.getMaxWaitTime() >= 25);
+        assertTrue(metrics.getMaxRunTime() >= 25);
+        assertThat(metrics.getTotalRunTime(), is(metrics.getMaxRunTime()));
+    }
+
+    @Test
+    public void shouldKeepRunningTasksOfAnExecutorServiceThatWasShutDown() throws Exception {
+        ExecutorService executorService = scheduler.getExecutorService(SYNC_IO, BACKGROUND, "shared");
+        executorService.shutdown();
+        assertThat(executorService.shutdownNow().isEmpty(), is(true));
+
+        assertThat(executorService.submit(() -> "ran").get(5, TimeUnit.SECONDS), is("ran"));
+        assertFalse(executorService.isShutdown());
+    }
+
+    private void blockLane(MuzimaTaskScheduler.Lane lane) throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(LANE_THREADS);
+        for (int i = 0; i < LANE_THREADS; i++) {
+            scheduler.submit(lane, USER_VISIBLE, "blocker", () -> {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Runs are recorded after the future of a task completes, so wait for them
+     */
+    private void awaitRuns(String taskType, long runs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            MuzimaTaskScheduler.TaskMetrics metrics = scheduler.getTaskMetrics().get(taskType);
+            if (metrics != null && metrics.getRuns() >= runs) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail("Expected " + runs + " runs of " + taskType);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.muzima.tasks.MuzimaTaskScheduler.Lane.SYNC_IO;
+import static com.muzima.tasks.MuzimaTaskScheduler.Priority.USER_VISIBLE;
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDownloaderTest {
+    private static final int LANE_THREADS = 4;
+
+    private MuzimaTaskScheduler scheduler;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        scheduler = new MuzimaTaskScheduler();
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void shouldReturnTheDownloadsInTheOrderOfTheUuids() throws Exception {
+        ParallelDownloader<String> downloader = new ParallelDownloader<>(scheduler, "download", 3);
+
+        List<String> results = downloader.download(new String[]{"a", "b", "c", "d", "e"}, uuid -> {
+            sleep("abcde".indexOf(uuid) % 2 * 10);
+            return uuid.equals("c") ? null : uuid.toUpperCase();
+        });
+
+        assertThat(results, is(asList("A", "B", null, "D", "E")));
+    }
+
+    @Test
+    public void shouldNotHaveMoreDownloadsInFlightThanAllowed() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ParallelDownloader<String> downloader = new ParallelDownloader<>(scheduler, "download", 3);
+        String[] uuids = new String[30];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = "uuid" + i;
+        }
+
+        downloader.download(uuids, uuid -> {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            sleep(5);
+            inFlight.decrementAndGet();
+            return uuid;
+        });
+
+        assertTrue(maxInFlight.get() <= 3);
+        assertTrue(maxInFlight.get() > 1);
+    }
+
+    @Test
+    public void shouldFinishOnTheCallingThreadWhenTheLaneIsBusy() throws Exception {
+        blockLane(SYNC_IO);
+        ParallelDownloader<String> downloader = new ParallelDownloader<>(scheduler, "download", 3);
+
+        List<String> results = downloader.download(new String[]{"a", "b"}, uuid -> uuid);
+
+        assertThat(results, is(asList("a", "b")));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldThrowTheErrorOfAFailedDownload() throws Exception {
+        ParallelDownloader<String> downloader = new ParallelDownloader<>(scheduler, "download", 3);
+
+        downloader.download(new String[]{"a", "b", "c"}, uuid -> {
+            if (uuid.equals("b")) {
+                throw new IOException("Server unreachable");
+            }
+            return uuid;
+        });
+    }
+
+    private void blockLane(MuzimaTaskScheduler.Lane lane) throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(LANE_THREADS);
+        for (int i = 0; i < LANE_THREADS; i++) {
+            scheduler.submit(lane, USER_VISIBLE, "blocker", () -> {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.utils;
+
+import com.muzima.testSupport.CustomTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EnDeCryptTest {
+    private static final String PASSWORD = "this-is-supposed-to-be-a-secure-key";
+
+    @Test
+    public void shouldRoundTripContentThroughTheStreamingFormat() throws Exception {
+        byte[] content = randomBytes(100000);
+        File encryptedFile = File.createTempFile("media", ".enc");
+        OutputStream out = EnDeCrypt.openEncryptingStream(new FileOutputStream(encryptedFile), PASSWORD);
+        out.write(content);
+        out.close();
+
+        assertThat(readAll(EnDeCrypt.openDecryptingStream(encryptedFile, PASSWORD)), is(content));
+    }
+
+    @Test
+    public void shouldReadFilesWrittenInTheLegacyFormat() throws Exception {
+        byte[] content = randomBytes(5000);
+        byte[] salt = randomBytes(8);
+        byte[] iv = randomBytes(16);
+        PBEKeySpec keySpec = new PBEKeySpec(PASSWORD.toCharArray(), salt, 1000, 256);
+        byte[] keyBytes = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(keySpec).getEncoded();
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new IvParameterSpec(iv));
+        String legacyText = MediaUtils.toBase64(salt) + "]" + MediaUtils.toBase64(iv) + "]" + MediaUtils.toBase64(cipher.doFinal(content));
+
+        File encryptedFile = File.createTempFile("legacy", ".enc");
+        OutputStream out = new FileOutputStream(encryptedFile);
+        out.write(legacyText.getBytes());
+        out.close();
+
+        assertThat(readAll(EnDeCrypt.openDecryptingStream(encryptedFile, PASSWORD)), is(content));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.utils;
+
+import com.muzima.util.JsonUtils;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Compares the single pass {@link JsonMediaPathRewriter} with the recursive JsonPath traversal
+ * that FormController used before, on encounter payloads of increasing size.
+ * Run manually; it is too slow to be part of the regular test run.
+ */
+@Ignore("Benchmark, run manually")
+public class JsonMediaPathRewriterBenchmark {
+    private static final String MEDIA = "media-content";
+    private static final String BASE64_MEDIA = "bWVkaWEtY29udGVudA==";
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void compareWithJsonPathTraversal() throws Exception {
+        JsonMediaPathRewriter rewriter = new JsonMediaPathRewriter(new JsonMediaPathRewriter.MediaSource() {
+            @Override
+            public InputStream open(String mediaPath) {
+                return new ByteArrayInputStream(MEDIA.getBytes());
+            }
+        });
+
+        for (int observationCount : new int[]{50, 250, 1000}) {
+            String payload = buildEncounterPayload(observationCount);
+
+            // warm up both implementations
+            rewriter.rewrite(payload);
+            new JsonPathTraversal().rewrite(payload);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                rewriter.rewrite(payload);
+            }
+            long streamingTime = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                new JsonPathTraversal().rewrite(payload);
+            }
+            long traversalTime = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.println(String.format(Locale.US, "%5d obs, %7d chars: streaming %8.2f ms, JsonPath traversal %10.2f ms",
+                    observationCount, payload.length(), streamingTime / 1e6, traversalTime / 1e6));
+        }
+    }
+
+    private String buildEncounterPayload(int observationCount) {
+        StringBuilder payload = new StringBuilder();
+        payload.append("{\"patient\":{\"patient.uuid\":\"4f2a8d3e-6c1b-4c5e-9a7f-1b2c3d4e5f60\",\"patient.given_name\":\"Jane\",")
+                .append("\"patient.family_name\":\"Doe\",\"patient.sex\":\"F\",\"patient.birth_date\":\"1990-01-01\"},")
+                .append("\"encounter\":{\"encounter.form_uuid\":\"9b1c2d3e-4f5a-6b7c-8d9e-0f1a2b3c4d5e\",")
+                .append("\"encounter.encounter_datetime\":\"2021-06-01 10:00\",\"encounter.provider_id\":\"admin\",")
+                .append("\"encounter.location_id\":\"1\"},\"observation\":{");
+        for (int i = 0; i < observationCount; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            if (i % 10 == 0) {
+                payload.append("\"").append(1000 + i).append("^IMAGE^99DCT\":\"\\/sdcard\\/muzima\\/media\\/image\\/")
+                        .append(i).append(".jpg\"");
+            } else if (i % 10 == 5) {
+                payload.append("\"").append(1000 + i).append("^GROUP^99DCT\":[{\"").append(2000 + i)
+                        .append("^VALUE^99DCT\":\"").append(i).append("\",\"").append(3000 + i)
+                        .append("^CODED^99DCT\":\"1065^YES^99DCT\"}]");
+            } else {
+                payload.append("\"").append(1000 + i).append("^CONCEPT^99DCT\":\"").append(i * 7).append("\"");
+            }
+        }
+        payload.append("}}");
+        return payload.toString();
+    }
+
+    /**
+     * The recursive traversal FormController used before the streaming rewriter.
+     */
+    private static class JsonPathTraversal {
+        private String jsonPayload;
+
+        String rewrite(String payload) throws Exception {
+            jsonPayload = payload;
+            JSONParser jp = new JSONParser(JSONParser.MODE_PERMISSIVE);
+            traverseJson((JSONObject) jp.parse(jsonPayload));
+            return jsonPayload;
+        }
+
+        private void traverseJson(JSONObject json) {
+            for (String key : json.keySet()) {
+                String val = null;
+                try {
+                    Object obj = JsonUtils.readAsObject(json.toJSONString(), "$['" + key + "']");
+                    if (obj instanceof JSONArray) {
+                        for (Object object : (JSONArray) obj) {
+                            traverseJson((JSONObject) object);
+                        }
+                    } else {
+                        traverseJson((JSONObject) obj);
+                    }
+                } catch (Exception e) {
+                    val = json.get(key).toString();
+                }
+
+                if (val != null && val.contains(JsonMediaPathRewriter.MEDIA_PATH_MARKER)) {
+                    String newKeyValPair = "\"" + key + "\":\"" + BASE64_MEDIA + "\"";
+                    if (!jsonPayload.contains(val)) {
+                        val = val.replace("/", "\\/");
+                    }
+                    jsonPayload = jsonPayload.replace("\"" + key + "\":\"" + val + "\"", newKeyValPair);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JsonMediaPathRewriterTest {
+    private JsonMediaPathRewriter rewriter;
+
+    @Before
+    public void setUp() {
+        rewriter = new JsonMediaPathRewriter(new JsonMediaPathRewriter.MediaSource() {
+            @Override
+            public InputStream open(String mediaPath) {
+                if (mediaPath.endsWith("missing.jpg")) {
+                    return null;
+                }
+                return new ByteArrayInputStream("hello".getBytes());
+            }
+        });
+    }
+
+    @Test
+    public void shouldReplaceMediaPathValuesWithBase64Content() throws Exception {
+        String payload = "{\"observation\":{\"image\":\"\\/sdcard\\/muzima\\/media\\/image\\/1.jpg\",\"group\":{\"audio\":\"/sdcard/muzima/media/audio/2.3gp\"}}}";
+
+        assertThat(rewriter.rewrite(payload), is("{\"observation\":{\"image\":\"aGVsbG8=\",\"group\":{\"audio\":\"aGVsbG8=\"}}}"));
+    }
+
+    @Test
+    public void shouldKeepPathsOfMissingMediaAndArrayElements() throws Exception {
+        String payload = "{\"image\":\"/sdcard/muzima/media/missing.jpg\",\"paths\":[\"/sdcard/muzima/media/1.jpg\"]}";
+
+        assertThat(rewriter.rewrite(payload), is(payload));
+    }
+
+    @Test
+    public void shouldCopyOtherValuesUnchanged() throws Exception {
+        String payload = "{\"patient\":{\"patient.uuid\":\"abc\",\"weight\":70.50,\"count\":3,\"alive\":true,\"notes\":null,\"quote\":\"a \\\"b\\\"\"},\"media\":\"/muzima/media/x.jpg\"}";
+
+        assertThat(rewriter.rewrite(payload), is("{\"patient\":{\"patient.uuid\":\"abc\",\"weight\":70.50,\"count\":3,\"alive\":true,\"notes\":null,\"quote\":\"a \\\"b\\\"\"},\"media\":\"aGVsbG8=\"}"));
+    }
+
+    @Test
+    public void shouldReturnPayloadsWithoutMediaAsIs() throws Exception {
+        String payload = "{ \"encounter\" : { \"encounter.form_uuid\" : \"form\" } }";
+
+        assertThat(rewriter.rewrite(payload), is(payload));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.utils;
+
+import com.muzima.api.model.Concept;
+import com.muzima.api.model.ConceptName;
+import com.muzima.api.model.Encounter;
+import com.muzima.api.model.Observation;
+import com.muzima.model.ConceptDictionary;
+import com.muzima.testSupport.CustomTestRunner;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static com.muzima.utils.ConceptUtils.getConceptNameFromConceptNamesByLocale;
+
+/**
+ * Compares the {@link ObservationJsonWriter} with the org.json serialization that
+ * HTMLFormDataStore used before, which scanned every concept and created a date format for
+ * each observation, on 1000, 10000 and 50000 observations of 500 concepts.
+ * Run manually; it is too slow to be part of the regular test run.
+ */
+@Ignore("Benchmark, run manually")
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ObservationJsonWriterBenchmark {
+    private static final int CONCEPT_COUNT = 500;
+    private static final int ITERATIONS = 3;
+
+    @Test
+    public void compareWithOrgJson() throws Exception {
+        List<Concept> concepts = new ArrayList<>();
+        for (int i = 0; i < CONCEPT_COUNT; i++) {
+            concepts.add(concept(i));
+        }
+
+        for (int observationCount : new int[]{1000, 10000, 50000}) {
+            List<Observation> observations = new ArrayList<>();
+            for (int i = 0; i < observationCount; i++) {
+                observations.add(observation(concepts.get(i % CONCEPT_COUNT), i));
+            }
+
+            // warm up both implementations
+            writeWithDictionary(concepts, observations);
+            writeWithOrgJson(concepts, observations);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                writeWithDictionary(concepts, observations);
+            }
+            long writerTime = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                writeWithOrgJson(concepts, observations);
+            }
+            long orgJsonTime = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.println(String.format(Locale.US, "%6d obs: writer %9.2f ms, org.json with concept scan %10.2f ms",
+                    observationCount, writerTime / 1e6, orgJsonTime / 1e6));
+        }
+    }
+
+    private String writeWithDictionary(List<Concept> concepts, List<Observation> observations) throws Exception {
+        // the dictionary is built once and shared in the app, so building it is part of the first call only
+        return new ObservationJsonWriter(new ConceptDictionary(concepts), "en").write(observations);
+    }
+
+    private String writeWithOrgJson(List<Concept> concepts, List<Observation> observations) throws Exception {
+        JSONArray array = new JSONArray();
+        for (Observation observation : observations) {
+            String conceptName = "";
+            for (Concept concept : concepts) {
+                if (concept.getUuid().equals(observation.getConcept().getUuid())) {
+                    conceptName = getConceptNameFromConceptNamesByLocale(concept.getConceptNames(), "en");
+                }
+            }
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yy HH:mm:ss");
+            Date observationDatetime = dateFormat.parse(dateFormat.format(observation.getObservationDatetime()));
+            dateFormat.applyPattern(Constants.STANDARD_DATE_FORMAT);
+
+            JSONObject json = new JSONObject();
+            json.put("conceptName", conceptName);
+            json.put("conceptId", observation.getConcept().getId());
+            json.put("conceptUuid", observation.getConcept().getUuid());
+            json.put("obsDate", dateFormat.format(observationDatetime));
+            json.put("valueNumeric", observation.getValueNumeric());
+            json.put("encounterId", observation.getEncounter().getId());
+            json.put("uuid", observation.getUuid());
+            json.put("valueDatetime", "");
+            array.put(json);
+        }
+        return array.toString();
+    }
+
+    private Concept concept(int id) {
+        ConceptName conceptName = new ConceptName();
+        conceptName.setName("Concept " + id);
+        conceptName.setPreferred(true);
+        Concept concept = new Concept();
+        concept.setId(id);
+        concept.setUuid("concept-" + id);
+        concept.setConceptNames(Collections.singletonList(conceptName));
+        return concept;
+    }
+
+    private Observation observation(Concept concept, int index) {
+        Encounter encounter = new Encounter();
+        encounter.setId(index / 20);
+        Observation observation = new Observation();
+        observation.setUuid("observation-" + index);
+        observation.setConcept(concept);
+        observation.setObservationDatetime(new Date(1600000000000L - (index / 20) * 86400000L));
+        observation.setEncounter(encounter);
+        observation.setValueNumeric((double) index);
+        return observation;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) The Trustees of Indiana University, Moi University
+ * and Vanderbilt University Medical Center. All Rights Reserved.
+ *
+ * This version of the code is licensed under the MPL 2.0 Open Source license
+ * with additional health care disclaimer.
+ * If the user is an entity intending to commercialize any application that uses
+ * this code in a for-profit venture, please contact the copyright holder.
+ */
+
+package com.muzima.utils;
+
+import com.muzima.api.model.Concept;
+import com.muzima.api.model.ConceptName;
+import com.muzima.api.model.Encounter;
+import com.muzima.api.model.Observation;
+import com.muzima.model.ConceptDictionary;
+import com.muzima.testSupport.CustomTestRunner;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(CustomTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ObservationJsonWriterTest {
+
+    @Test
+    public void shouldWriteTheSameJsonAsOrgJson() throws Exception {
+        Concept weight = concept(5089, "weight-uuid", "Weight \"kg\"");
+        Concept yes = concept(1065, "yes-uuid", "Yes");
+        Concept answered = concept(1234, "answered-uuid", "Answered");
+        Observation numeric = observation(weight, new Date(1600000000000L));
+        numeric.setValueNumeric(70.0);
+        Observation coded = observation(answered, new Date(1500000000000L));
+        coded.setValueCoded(yes);
+        coded.setValueDatetime(new Date(1400000000000L));
+        Observation unknownConcept = observation(concept(42, "phone-uuid", "Phone"), new Date(1600000000000L));
+        unknownConcept.setValueText("text/with \"quotes\"\n");
+        ConceptDictionary conceptDictionary = new ConceptDictionary(asList(weight, answered));
+
+        String json = new ObservationJsonWriter(conceptDictionary, "en").write(asList(numeric, coded, unknownConcept));
+
+        JSONArray expected = new JSONArray();
+        expected.put(expectedJson(numeric, "Weight \"kg\"", null));
+        expected.put(expectedJson(coded, "Answered",
+                new JSONObject().put("uuid", "yes-uuid").put("id", 1065).put("name", "Yes")));
+        expected.put(expectedJson(unknownConcept, ObservationJsonWriter.UNKNOWN_CONCEPT_NAME, null));
+        assertThat(json, is(expected.toString()));
+    }
+
+    @Test
+    public void shouldWriteAnEmptyArrayWithoutObservations() throws Exception {
+        assertThat(new ObservationJsonWriter(new ConceptDictionary(Collections.<Concept>emptyList()), "en")
+                .write(Collections.<Observation>emptyList()), is("[]"));
+    }
+
+    private JSONObject expectedJson(Observation observation, String conceptName, JSONObject valueCoded) throws Exception {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(Constants.STANDARD_DATE_FORMAT);
+        JSONObject json = new JSONObject();
+        json.put("conceptName", conceptName);
+        json.put("conceptId", observation.getConcept().getId());
+        json.put("conceptUuid", observation.getConcept().getUuid());
+        json.put("obsDate", dateFormat.format(observation.getObservationDatetime()));
+        json.put("valueCoded", valueCoded);
+        json.put("valueNumeric", observation.getValueNumeric());
+        json.put("valueText", observation.getValueText());
+        json.put("encounterId", observation.getEncounter().getId());
+        json.put("uuid", observation.getUuid());
+        json.put("valueDatetime", observation.getValueDatetime() == null ? "" : dateFormat.format(observation.getValueDatetime()));
+        return json;
+    }
+
+    private Concept concept(int id, String uuid, String name) {
+        ConceptName conceptName = new ConceptName();
+        conceptName.setName(name);
+        conceptName.setPreferred(true);
+        Concept concept = new Concept();
+        concept.setId(id);
+        concept.setUuid(uuid);
+        concept.setConceptNames(Collections.singletonList(conceptName));
+        return concept;
+    }
+
+    private Observation observation(Concept concept, Date observationDatetime) {
+        Encounter encounter = new Encounter();
+        encounter.setId(7);
+        Observation observation = new Observation();
+        observation.setUuid("obs-" + concept.getUuid());
+        observation.setConcept(concept);
+        observation.setObservationDatetime(observationDatetime);
+        observation.setEncounter(encounter);
+        return observation;
+    }
+}
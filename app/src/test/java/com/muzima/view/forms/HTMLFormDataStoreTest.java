@@ -21,11 +21,14 @@ import com.muzima.controller.MuzimaSettingController;
 import com.muzima.controller.ObservationController;
 import com.muzima.controller.ProviderController;
 import com.muzima.controller.SetupConfigurationController;
+import com.muzima.service.FormSaveStage;
 import com.muzima.service.HTMLFormObservationCreator;
 import com.muzima.utils.Constants;
 import org.junit.Before;
 import org.junit.Test;
+import org.json.JSONObject;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
@@ -33,8 +36,13 @@ import org.robolectric.annotation.Config;
 import java.io.InputStream;
 import java.util.Scanner;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -47,6 +55,8 @@ public class HTMLFormDataStoreTest {
     private FormData formData;
     private HTMLFormObservationCreator htmlFormObservationCreator;
     private HTMLFormDataStore htmlFormDataStore;
+    private FormController formController;
+    private FormSaveStage formSaveStage;
 
     @Mock
     private ConceptController conceptController;
@@ -61,7 +71,8 @@ public class HTMLFormDataStoreTest {
 
     @Before
     public void setUp() {
-        FormController formController = mock(FormController.class);
+        formController = mock(FormController.class);
+        formSaveStage = mock(FormSaveStage.class);
         LocationController locationController = mock(LocationController.class);
         ProviderController providerController = mock(ProviderController.class);
         formWebViewActivity = mock(HTMLFormWebViewActivity.class);
@@ -79,6 +90,7 @@ public class HTMLFormDataStoreTest {
         when(muzimaApplication.getEncounterController()).thenReturn(encounterController);
         when(muzimaApplication.getMuzimaSettingController()).thenReturn(settingController);
         when(muzimaApplication.getSetupConfigurationController()).thenReturn(setupConfigurationController);
+        when(muzimaApplication.getFormSaveStage()).thenReturn(formSaveStage);
         htmlFormDataStore = new HTMLFormDataStore(formWebViewActivity, formData, false, muzimaApplication){
             @Override
             public HTMLFormObservationCreator getFormParser(){
@@ -101,6 +113,36 @@ public class HTMLFormDataStoreTest {
         verify(htmlFormObservationCreator, times(0)).createAndPersistObservations(jsonPayLoad,formData.getUuid());
     }
 
+    @Test
+    public void shouldJournalCompletedFormBeforeSavingItAndCreateObservationsAfterwards() throws Exception {
+        SetupConfigurationTemplate setupConfigurationTemplate = new SetupConfigurationTemplate();
+        setupConfigurationTemplate.setUuid("dummySetupConfig");
+        when(setupConfigurationController.getActiveSetupConfigurationTemplate()).thenReturn(setupConfigurationTemplate);
+        when(formData.getUuid()).thenReturn("formDataUuid");
+
+        htmlFormDataStore.setSelectedPatientsUuids("[]");
+        htmlFormDataStore.saveHTML(readFile(), Constants.STATUS_COMPLETE, true);
+
+        InOrder inOrder = inOrder(formSaveStage, formController);
+        inOrder.verify(formSaveStage).journal("formDataUuid", false);
+        inOrder.verify(formController).saveFormData(formData);
+        inOrder.verify(formSaveStage).applyInBackground(eq("formDataUuid"), any(JSONObject.class), eq(false));
+        verify(htmlFormObservationCreator, never()).createAndPersistObservations(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldNotJournalIncompleteForm() throws Exception {
+        SetupConfigurationTemplate setupConfigurationTemplate = new SetupConfigurationTemplate();
+        setupConfigurationTemplate.setUuid("dummySetupConfig");
+        when(setupConfigurationController.getActiveSetupConfigurationTemplate()).thenReturn(setupConfigurationTemplate);
+
+        htmlFormDataStore.setSelectedPatientsUuids("[]");
+        htmlFormDataStore.saveHTML(readFile(), Constants.STATUS_INCOMPLETE, true);
+
+        verify(formController).saveFormData(formData);
+        verify(formSaveStage, never()).journal(anyString(), eq(false));
+    }
+
     public String readFile() {
         InputStream fileStream = getClass().getClassLoader().getResourceAsStream("html/dispensary.json");
         Scanner s = new Scanner(fileStream).useDelimiter("\\A");